@@ -26,6 +26,8 @@ package gov.lanl.adore.djatoka;
 import gov.lanl.adore.djatoka.io.FormatFactory;
 import gov.lanl.adore.djatoka.io.FormatWriterParams;
 import gov.lanl.adore.djatoka.io.IWriter;
+import gov.lanl.adore.djatoka.io.writer.JPGWriter;
+import gov.lanl.adore.djatoka.io.writer.PNGWriter;
 import gov.lanl.adore.djatoka.util.IOUtils;
 import gov.lanl.adore.djatoka.util.ImageProcessingUtils;
 
@@ -250,19 +252,21 @@ public class DjatokaExtractProcessor {
             }
         }
 
-        BufferedImage bi = extractImpl.process(input, params);
+        if (!writeStrips(input, os, params, w)) {
+            BufferedImage bi = extractImpl.process(input, params);
 
-        if (bi != null) {
-            if (params.getScalingFactor() != 1.0 ||
-                    params.getScalingDimensions() != null) {
-                bi = applyScaling(bi, params);
-            }
+            if (bi != null) {
+                if (params.getScalingFactor() != 1.0 ||
+                        params.getScalingDimensions() != null) {
+                    bi = applyScaling(bi, params);
+                }
 
-            if (params.getTransform() != null) {
-                bi = params.getTransform().run(bi);
-            }
+                if (params.getTransform() != null) {
+                    bi = params.getTransform().run(bi);
+                }
 
-            w.write(bi, os);
+                w.write(bi, os);
+            }
         }
 
         if (in != null) {
@@ -297,6 +301,37 @@ public class DjatokaExtractProcessor {
         }
     }
 
+    /**
+     * Writes the region as it's decoded, if the extractor can and the region
+     * goes straight from the decoder to the writer, with no scaling, rotation
+     * or transform in between. The JPEG and PNG writers read the image's rows
+     * in order, so only a strip of a full size image's pixels is held in
+     * memory. The output stream may be written to on a decode thread; see
+     * {@link IStripExtract}.
+     * 
+     * @return true if the region was written; else, false
+     */
+    private boolean writeStrips(String input, OutputStream os,
+            DjatokaDecodeParam params, IWriter w) throws DjatokaException {
+        if (!(extractImpl instanceof IStripExtract) ||
+                !(w instanceof JPGWriter || w instanceof PNGWriter)) {
+            return false;
+        }
+
+        if (params.getScalingFactor() != 1.0 ||
+                params.getScalingDimensions() != null ||
+                params.getRotationDegree() != 0) {
+            return false;
+        }
+
+        if (params.getTransform() != null &&
+                params.getTransform().isTransformable()) {
+            return false;
+        }
+
+        return ((IStripExtract) extractImpl).extract(input, params, w, os);
+    }
+
     /**
      * Apply scaling, if Scaling Factor != to 1.0 then check ScalingDimensions
      * for w,h vars. A scaling factor value must be greater than 0 and less than
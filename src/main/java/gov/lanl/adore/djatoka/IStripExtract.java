@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2008  Los Alamos National Security, LLC.
+ *
+ * Los Alamos National Laboratory
+ * Research Library
+ * Digital Library Research & Prototyping Team
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.adore.djatoka;
+
+import gov.lanl.adore.djatoka.io.IWriter;
+
+import java.io.OutputStream;
+
+/**
+ * An extractor that can write a region as it's decoded, a strip of rows at a
+ * time, so a large region's pixels are never held in memory whole. It's only
+ * used when nothing needs to be done to the region between its decode and its
+ * output: no scaling, rotation or transform.
+ * <p/>
+ * The region may be encoded on one of the extractor's decode threads, so the
+ * output stream mustn't block: write to a buffer, like a
+ * <code>ByteArrayOutputStream</code>, and send that to a client once the
+ * extract returns. Writing straight to a response would let a slow client
+ * hold a decode thread for as long as its download takes.
+ */
+public interface IStripExtract {
+
+    /**
+     * Extracts region defined in DjatokaDecodeParam and writes it with the
+     * supplied writer as it's decoded. The writer is given an image whose
+     * rows it must read from top to bottom.
+     *
+     * @param input absolute file path of JPEG 2000 image file.
+     * @param params DjatokaDecodeParam instance containing region settings.
+     * @param w format writer to be used to serialize extracted region.
+     * @param os OutputStream to serialize formatted output image to; it
+     *        mustn't block
+     * @return true if the region was written; false if nothing was written
+     *         and the region should be extracted as a BufferedImage instead
+     * @throws DjatokaException if the region was only partly written
+     */
+    public boolean extract(String input, DjatokaDecodeParam params, IWriter w,
+            OutputStream os) throws DjatokaException;
+}
@@ -25,6 +25,7 @@ package gov.lanl.adore.djatoka.io.writer;
 
 import gov.lanl.adore.djatoka.io.FormatIOException;
 import gov.lanl.adore.djatoka.io.IWriter;
+import gov.lanl.adore.djatoka.util.ImageProcessingUtils;
 
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
@@ -58,8 +59,7 @@ public class GIFWriter implements IWriter {
         if (bi != null) {
             BufferedOutputStream bos = null;
             bos = new BufferedOutputStream(os);
-            ImagePlus ip = new ImagePlus();
-            ip.setImage(bi);
+            ImagePlus ip = ImageProcessingUtils.toImagePlus("tempGif", bi);
             GifEncoder ge = new GifEncoder();
             ge.start(bos);
             ge.addFrame(ip);
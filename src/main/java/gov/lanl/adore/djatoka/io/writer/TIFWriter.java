@@ -25,6 +25,7 @@ package gov.lanl.adore.djatoka.io.writer;
 
 import gov.lanl.adore.djatoka.io.FormatIOException;
 import gov.lanl.adore.djatoka.io.IWriter;
+import gov.lanl.adore.djatoka.util.ImageProcessingUtils;
 
 import ij.ImagePlus;
 import ij.io.TiffEncoder;
@@ -60,13 +61,15 @@ public class TIFWriter implements IWriter {
      */
     public void write(BufferedImage aImage, OutputStream aOutStream)
             throws FormatIOException {
-        ImagePlus imagePlus = new ImagePlus("tempTif", aImage);
+        ImagePlus imagePlus =
+                ImageProcessingUtils.toImagePlus("tempTif", aImage);
         TiffEncoder encoder = new TiffEncoder(imagePlus.getFileInfo());
         BufferedOutputStream bufStream = new BufferedOutputStream(aOutStream);
         DataOutputStream out = new DataOutputStream(bufStream);
 
         try {
             encoder.write(out);
+            out.flush();
         } catch (IOException e) {
             LOGGER.error(e.getMessage(), e);
             throw new FormatIOException(e.getMessage(), e);
@@ -28,6 +28,7 @@ import gov.lanl.adore.djatoka.io.reader.PNMReader;
 import gov.lanl.adore.djatoka.util.IOUtils;
 import gov.lanl.adore.djatoka.util.ImageProcessingUtils;
 import gov.lanl.adore.djatoka.util.ImageRecord;
+import gov.lanl.adore.djatoka.util.ImageRecordCache;
 import gov.lanl.adore.djatoka.util.JP2ImageInfo;
 import gov.lanl.util.ExecuteStreamHandler;
 import gov.lanl.util.PumpStreamHandler;
@@ -437,10 +438,6 @@ public class KduExtractExe implements IExtract {
             throw new DjatokaException("Image Does Not Exist");
         }
 
-        if (!ImageProcessingUtils.checkIfJp2(r.getImageFile())) {
-            throw new DjatokaException("Not a JP2 image.");
-        }
-
         if (f.length() <= 4096) {
             FileInputStream fis = null;
 
@@ -456,6 +453,37 @@ public class KduExtractExe implements IExtract {
             }
         }
 
+        // Every tile needs the metadata, but it only needs to be read once
+        try {
+            ImageRecordCache.load(f, r);
+        } catch (IOException e) {
+            if (e.getCause() instanceof DjatokaException) {
+                throw (DjatokaException) e.getCause();
+            }
+
+            throw new DjatokaException(e.getMessage(), e);
+        }
+
+        return r;
+    }
+
+    /**
+     * Reads the metadata of a JPEG 2000 file from its header with Kakadu.
+     * This is how the {@link ImageRecordCache} fills itself; other callers
+     * should get the metadata from the cache.
+     * 
+     * @param f a JPEG 2000 file
+     * @return a new ImageRecord with the file's metadata
+     * @throws DjatokaException if the file isn't a JPEG 2000 file or its
+     *         header can't be read
+     */
+    public static ImageRecord readMetadata(File f) throws DjatokaException {
+        ImageRecord r = new ImageRecord(f.getAbsolutePath());
+
+        if (!ImageProcessingUtils.checkIfJp2(f.getAbsolutePath())) {
+            throw new DjatokaException("Not a JP2 image.");
+        }
+
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("Checking: java.library.path = {}", System
                     .getProperty("java.library.path"));
@@ -467,7 +495,7 @@ public class KduExtractExe implements IExtract {
         int ref_component = 0;
 
         try {
-            jp2_family_in.Open(r.getImageFile(), true);
+            jp2_family_in.Open(f.getAbsolutePath(), true);
             inputSource.Open(jp2_family_in, true);
             Kdu_codestream codestream = new Kdu_codestream();
             codestream.Create(inputSource.Access_codestream(ref_component)
@@ -0,0 +1,472 @@
+/*
+ * Copyright (c) 2008  Los Alamos National Security, LLC.
+ *
+ * Los Alamos National Laboratory
+ * Research Library
+ * Digital Library Research & Prototyping Team
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.adore.djatoka.kdu.jni;
+
+import info.freelibrary.djatoka.util.CacheMetrics;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import kdu_jni.Jp2_family_src;
+import kdu_jni.Jp2_locator;
+import kdu_jni.Jp2_source;
+import kdu_jni.KduException;
+import kdu_jni.Kdu_channel_mapping;
+import kdu_jni.Kdu_codestream;
+import kdu_jni.Kdu_dims;
+
+/**
+ * Keeps JPEG 2000 codestreams open between decodes, so the tiles of an image
+ * that's being viewed are decoded without parsing its headers again, and
+ * with the compressed data Kakadu has already read still in memory. The
+ * codestreams are opened as persistent codestreams and are keyed by their
+ * file and its modification time, so a replaced image is opened afresh.
+ * <p/>
+ * A codestream can only be used by one decode at a time: it's borrowed for
+ * the decode and released afterwards. Released codestreams are kept until
+ * there are more than the maximum number of them, or they hold more than the
+ * maximum number of bytes of native memory, when the least recently used are
+ * destroyed; any that go unused for longer than the idle timeout are
+ * destroyed in the background.
+ */
+public class KduCodestreamPool {
+
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(KduCodestreamPool.class);
+
+    private static final ThreadFactory THREADS = new ThreadFactory() {
+
+        public Thread newThread(Runnable aRunnable) {
+            Thread thread = new Thread(aRunnable, "kdu-codestream-sweeper");
+
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+
+            return thread;
+        }
+    };
+
+    // Idle handles, least recently released first
+    private final LinkedHashSet<Handle> myIdle = new LinkedHashSet<Handle>();
+
+    private final AtomicLong myEvictions = new AtomicLong();
+
+    private final int myMaxHandles;
+
+    private final long myMaxBytes;
+
+    private final long myIdleTimeout;
+
+    private final CacheMetrics myMetrics;
+
+    private final ScheduledExecutorService mySweeper;
+
+    private long myBytes;
+
+    private boolean isClosed;
+
+    /**
+     * Creates a pool of open codestreams.
+     *
+     * @param aMaxHandles The maximum number of codestreams that are kept open
+     *        between decodes, or 0 to close every codestream after its decode
+     * @param aMaxBytes The maximum native memory the idle codestreams can hold
+     * @param aIdleTimeout The number of seconds an unused codestream is kept
+     */
+    public KduCodestreamPool(int aMaxHandles, long aMaxBytes,
+            long aIdleTimeout) {
+        myMaxHandles = aMaxHandles;
+        myMaxBytes = aMaxBytes;
+        myIdleTimeout = TimeUnit.SECONDS.toMillis(aIdleTimeout);
+        myMetrics = CacheMetrics.register(new CacheMetrics("codestreamPool") {
+
+            @Override
+            public long getSize() {
+                return size();
+            }
+
+            @Override
+            public long getByteSize() {
+                return KduCodestreamPool.this.getByteSize();
+            }
+
+            @Override
+            public long getEvictionCount() {
+                return myEvictions.get();
+            }
+        });
+
+        if (aMaxHandles > 0 && aIdleTimeout > 0) {
+            long interval = Math.max(1, aIdleTimeout / 2);
+
+            mySweeper = Executors.newSingleThreadScheduledExecutor(THREADS);
+            mySweeper.scheduleWithFixedDelay(new Runnable() {
+
+                public void run() {
+                    sweep(System.currentTimeMillis());
+                }
+            }, interval, interval, TimeUnit.SECONDS);
+        } else {
+            mySweeper = null;
+        }
+    }
+
+    /**
+     * Borrows an open codestream for the supplied JPEG 2000 file, opening one
+     * if there isn't an idle one. It must be released once the decode is
+     * done.
+     *
+     * @param aFile A JPEG 2000 file
+     * @return A codestream for the file
+     * @throws KduException If the file can't be opened
+     */
+    public Handle borrow(File aFile) throws KduException {
+        String path = aFile.getAbsolutePath();
+        long lastModified = aFile.lastModified();
+        List<Handle> stale = new ArrayList<Handle>();
+        Handle handle = null;
+
+        synchronized (this) {
+            Iterator<Handle> iterator = myIdle.iterator();
+
+            while (iterator.hasNext()) {
+                Handle idle = iterator.next();
+
+                if (!idle.myPath.equals(path)) {
+                    continue;
+                }
+
+                if (idle.myLastModified != lastModified) {
+                    stale.add(idle); // The file has been replaced
+                } else if (handle == null) {
+                    handle = idle;
+                } else {
+                    continue;
+                }
+
+                iterator.remove();
+                myBytes -= idle.myBytes;
+            }
+        }
+
+        destroy(stale);
+
+        if (handle != null) {
+            myMetrics.recordHit();
+            return handle;
+        }
+
+        long start = System.nanoTime();
+
+        myMetrics.recordMiss();
+        handle = Handle.open(path, lastModified);
+        myMetrics.recordLoad(System.nanoTime() - start);
+
+        return handle;
+    }
+
+    /**
+     * Releases a borrowed codestream. If the decode failed, the codestream is
+     * destroyed rather than kept, since it may be in an unknown state.
+     *
+     * @param aHandle A borrowed codestream
+     * @param aReusable Whether the codestream can be used again
+     */
+    public void release(Handle aHandle, boolean aReusable) {
+        List<Handle> evicted = new ArrayList<Handle>();
+
+        if (aReusable && myMaxHandles > 0) {
+            try {
+                aHandle.myBytes = aHandle.getMemory();
+            } catch (KduException details) {
+                aReusable = false;
+            }
+        }
+
+        synchronized (this) {
+            if (!aReusable || isClosed || myMaxHandles <= 0 ||
+                    aHandle.myBytes > myMaxBytes) {
+                evicted.add(aHandle);
+            } else {
+                aHandle.myReleased = System.currentTimeMillis();
+                myIdle.add(aHandle);
+                myBytes += aHandle.myBytes;
+
+                Iterator<Handle> iterator = myIdle.iterator();
+
+                while (iterator.hasNext() &&
+                        (myIdle.size() > myMaxHandles ||
+                                myBytes > myMaxBytes)) {
+                    Handle eldest = iterator.next();
+
+                    iterator.remove();
+                    myBytes -= eldest.myBytes;
+                    evicted.add(eldest);
+                    myEvictions.incrementAndGet();
+                }
+            }
+        }
+
+        destroy(evicted);
+    }
+
+    /**
+     * Gets the number of idle codestreams.
+     *
+     * @return The number of codestreams kept open between decodes
+     */
+    public synchronized int size() {
+        return myIdle.size();
+    }
+
+    /**
+     * Gets the native memory held by the idle codestreams.
+     *
+     * @return The number of bytes held by the idle codestreams
+     */
+    public synchronized long getByteSize() {
+        return myBytes;
+    }
+
+    /**
+     * Destroys the idle codestreams and any that are released from now on.
+     */
+    public void close() {
+        List<Handle> idle;
+
+        synchronized (this) {
+            isClosed = true;
+            idle = new ArrayList<Handle>(myIdle);
+            myIdle.clear();
+            myBytes = 0;
+        }
+
+        if (mySweeper != null) {
+            mySweeper.shutdown();
+        }
+
+        destroy(idle);
+    }
+
+    /**
+     * Destroys the codestreams that were released before the idle timeout.
+     *
+     * @param aNow The current time in milliseconds
+     */
+    void sweep(long aNow) {
+        List<Handle> expired = new ArrayList<Handle>();
+
+        synchronized (this) {
+            Iterator<Handle> iterator = myIdle.iterator();
+
+            while (iterator.hasNext()) {
+                Handle handle = iterator.next();
+
+                if (aNow - handle.myReleased < myIdleTimeout) {
+                    break; // The rest were released more recently
+                }
+
+                iterator.remove();
+                myBytes -= handle.myBytes;
+                expired.add(handle);
+                myEvictions.incrementAndGet();
+            }
+        }
+
+        if (!expired.isEmpty() && LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Closing {} idle codestreams", expired.size());
+        }
+
+        destroy(expired);
+    }
+
+    private static void destroy(List<Handle> aHandles) {
+        for (Handle handle : aHandles) {
+            handle.destroy();
+        }
+    }
+
+    /**
+     * An open JPEG 2000 codestream and the sources it's read from.
+     */
+    public static final class Handle {
+
+        private final String myPath;
+
+        private final long myLastModified;
+
+        private final Jp2_family_src myFamilySource = new Jp2_family_src();
+
+        private final Jp2_source mySource = new Jp2_source();
+
+        private final Kdu_codestream myCodestream = new Kdu_codestream();
+
+        private final Kdu_channel_mapping myChannels =
+                new Kdu_channel_mapping();
+
+        private int myWidth;
+
+        private int myHeight;
+
+        private int myDWTLevels;
+
+        private long myBytes;
+
+        private long myReleased;
+
+        private Handle(String aPath, long aLastModified) {
+            myPath = aPath;
+            myLastModified = aLastModified;
+        }
+
+        /**
+         * Opens a persistent codestream for the supplied file, which can be
+         * decoded again and again, and reads its headers.
+         *
+         * @param aPath The absolute path of a JPEG 2000 file
+         * @param aLastModified The file's modification time
+         * @return An open codestream
+         * @throws KduException If the file can't be opened
+         */
+        static Handle open(String aPath, long aLastModified)
+                throws KduException {
+            Handle handle = new Handle(aPath, aLastModified);
+
+            try {
+                Kdu_dims dims = new Kdu_dims();
+
+                handle.myFamilySource.Open(aPath, true);
+                handle.mySource.Open(handle.myFamilySource, new Jp2_locator());
+                handle.mySource.Read_header();
+                handle.myCodestream.Create(handle.mySource);
+                handle.myCodestream.Set_persistent();
+
+                if (handle.mySource.Exists()) {
+                    handle.myChannels.Configure(handle.mySource, false);
+                } else {
+                    handle.myChannels.Configure(handle.myCodestream);
+                }
+
+                handle.myCodestream.Get_dims(handle.myChannels
+                        .Get_source_component(0), dims);
+                handle.myWidth = dims.Access_size().Get_x();
+                handle.myHeight = dims.Access_size().Get_y();
+                handle.myDWTLevels = handle.myCodestream.Get_min_dwt_levels();
+            } catch (KduException details) {
+                handle.destroy();
+                throw details;
+            }
+
+            return handle;
+        }
+
+        /**
+         * Gets the codestream.
+         *
+         * @return The codestream
+         */
+        public Kdu_codestream getCodestream() {
+            return myCodestream;
+        }
+
+        /**
+         * Gets the JP2 source the codestream is read from.
+         *
+         * @return The codestream's source
+         */
+        public Jp2_source getSource() {
+            return mySource;
+        }
+
+        /**
+         * Gets the mapping of the codestream's components to colour channels.
+         *
+         * @return The codestream's channel mapping
+         */
+        public Kdu_channel_mapping getChannels() {
+            return myChannels;
+        }
+
+        /**
+         * Gets the width of the full image.
+         *
+         * @return The image's width
+         */
+        public int getWidth() {
+            return myWidth;
+        }
+
+        /**
+         * Gets the height of the full image.
+         *
+         * @return The image's height
+         */
+        public int getHeight() {
+            return myHeight;
+        }
+
+        /**
+         * Gets the number of resolution levels every tile of the image has.
+         *
+         * @return The image's minimum number of DWT levels
+         */
+        public int getDWTLevels() {
+            return myDWTLevels;
+        }
+
+        private long getMemory() throws KduException {
+            return myCodestream.Get_compressed_data_memory() +
+                    myCodestream.Get_compressed_state_memory();
+        }
+
+        /**
+         * Destroys the codestream and its sources.
+         */
+        void destroy() {
+            try {
+                myChannels.Native_destroy();
+
+                if (myCodestream.Exists()) {
+                    myCodestream.Destroy();
+                }
+            } catch (KduException details) {
+                LOGGER.error(details.getMessage(), details);
+            } finally {
+                mySource.Native_destroy();
+                myFamilySource.Native_destroy();
+            }
+        }
+    }
+}
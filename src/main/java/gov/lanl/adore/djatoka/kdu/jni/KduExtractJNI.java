@@ -179,7 +179,7 @@ public class KduExtractJNI implements IExtract {
     public BufferedImage process(ImageRecord input, DjatokaDecodeParam params)
             throws DjatokaException {
         if (input.getImageFile() != null) {
-            return process(input, params);
+            return process(input.getImageFile(), params);
         } else if (input.getObject() != null &&
                 (input.getObject() instanceof InputStream)) {
             return process((InputStream) input.getObject(), params);
@@ -0,0 +1,471 @@
+/*
+ * Copyright (c) 2008  Los Alamos National Security, LLC.
+ *
+ * Los Alamos National Laboratory
+ * Research Library
+ * Digital Library Research & Prototyping Team
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.adore.djatoka.kdu.jni;
+
+import gov.lanl.adore.djatoka.DjatokaDecodeParam;
+import gov.lanl.adore.djatoka.DjatokaException;
+import gov.lanl.adore.djatoka.IExtract;
+import gov.lanl.adore.djatoka.IStripExtract;
+import gov.lanl.adore.djatoka.io.FormatIOException;
+import gov.lanl.adore.djatoka.io.IWriter;
+import gov.lanl.adore.djatoka.util.ImageRecord;
+
+import java.awt.image.BufferedImage;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Extracts regions in process, through the Kakadu Java Native Interface, on a
+ * fixed number of worker threads. This avoids starting a kdu_expand process
+ * for every region, which costs more than decoding a small tile does, while
+ * keeping the number of regions that are being decoded at once (and the
+ * native memory they use) bounded, however many requests are waiting. The
+ * codestreams of recently decoded images are kept open in a
+ * {@link KduCodestreamPool}, so the next tile of the same image is decoded
+ * without reading its headers again.
+ * <p/>
+ * Anything the native decoder can't handle is passed on to a fallback
+ * extractor, normally the kdu_expand bridge: streams, which can't be read a
+ * second time if the native decoder fails on them; compositing layers; and
+ * regions the native decoder fails to extract. If the native library can't
+ * be linked, every region goes to the fallback.
+ * <p/>
+ * Large regions can also be written as they're decoded, on the worker that
+ * decodes them, so the memory a full size image takes is bounded by a strip
+ * of its rows rather than by its size.
+ */
+public class KduExtractPool implements IExtract, IStripExtract {
+
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(KduExtractPool.class);
+
+    private static final String KDU_JNI = "kdu_jni";
+
+    private static final int DEFAULT_MAX_CODESTREAMS = 64;
+
+    private static final long DEFAULT_MAX_CODESTREAM_BYTES = 134217728;
+
+    private static final long DEFAULT_CODESTREAM_TIMEOUT = 60;
+
+    private static Boolean isLinked;
+
+    private final AtomicLong myDecodes = new AtomicLong();
+
+    private final AtomicLong myFallbacks = new AtomicLong();
+
+    private final AtomicLong myStrips = new AtomicLong();
+
+    private final IExtract myFallback;
+
+    private final KduCodestreamPool myCodestreams;
+
+    private final ThreadPoolExecutor myWorkers;
+
+    private volatile boolean isDisabled;
+
+    /**
+     * Creates an extractor with a worker thread for each of the system's
+     * processors.
+     *
+     * @param aFallback The extractor used for what the native decoder can't
+     *        handle
+     */
+    public KduExtractPool(IExtract aFallback) {
+        this(Runtime.getRuntime().availableProcessors(), aFallback);
+    }
+
+    /**
+     * Creates an extractor with the supplied number of worker threads.
+     *
+     * @param aThreadCount The number of regions decoded at the same time
+     * @param aFallback The extractor used for what the native decoder can't
+     *        handle
+     */
+    public KduExtractPool(int aThreadCount, IExtract aFallback) {
+        this(aThreadCount, new KduCodestreamPool(DEFAULT_MAX_CODESTREAMS,
+                DEFAULT_MAX_CODESTREAM_BYTES, DEFAULT_CODESTREAM_TIMEOUT),
+                aFallback);
+    }
+
+    /**
+     * Creates an extractor with the supplied number of worker threads that
+     * keeps the codestreams it decodes open in the supplied pool.
+     *
+     * @param aThreadCount The number of regions decoded at the same time
+     * @param aCodestreams The pool of codestreams kept open between decodes
+     * @param aFallback The extractor used for what the native decoder can't
+     *        handle
+     */
+    public KduExtractPool(int aThreadCount, KduCodestreamPool aCodestreams,
+            IExtract aFallback) {
+        final AtomicInteger count = new AtomicInteger();
+        int threads = Math.max(1, aThreadCount);
+
+        myFallback = aFallback;
+        myCodestreams = aCodestreams;
+        myWorkers =
+                new ThreadPoolExecutor(threads, threads, 0L,
+                        TimeUnit.MILLISECONDS,
+                        new LinkedBlockingQueue<Runnable>(),
+                        new ThreadFactory() {
+
+                            public Thread newThread(Runnable aRunnable) {
+                                Thread thread =
+                                        new Thread(aRunnable, "kdu-extract-" +
+                                                count.incrementAndGet());
+
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+    }
+
+    /**
+     * Returns whether the Kakadu native library can be linked. It's only
+     * loaded once, so later calls return the first call's answer.
+     *
+     * @return True if the native library is available; else, false
+     */
+    public static synchronized boolean isAvailable() {
+        if (isLinked == null) {
+            try {
+                System.loadLibrary(KDU_JNI);
+                isLinked = Boolean.TRUE;
+            } catch (UnsatisfiedLinkError details) {
+                if (LOGGER.isWarnEnabled()) {
+                    LOGGER.warn("Unable to load {}: {}", KDU_JNI, details
+                            .getMessage());
+                }
+
+                isLinked = Boolean.FALSE;
+            } catch (SecurityException details) {
+                if (LOGGER.isWarnEnabled()) {
+                    LOGGER.warn("Not allowed to load {}: {}", KDU_JNI,
+                            details.getMessage());
+                }
+
+                isLinked = Boolean.FALSE;
+            }
+        }
+
+        return isLinked.booleanValue();
+    }
+
+    /**
+     * Extracts region defined in DjatokaDecodeParam as BufferedImage
+     *
+     * @param input absolute file path of JPEG 2000 image file.
+     * @param params DjatokaDecodeParam instance containing region and transform
+     *        settings.
+     * @return extracted region as a BufferedImage
+     * @throws DjatokaException
+     */
+    public BufferedImage process(final String input,
+            final DjatokaDecodeParam params) throws DjatokaException {
+        Future<BufferedImage> future;
+
+        if (isDisabled || params.getCompositingLayer() > 0) {
+            myFallbacks.incrementAndGet();
+            return myFallback.process(input, params);
+        }
+
+        future = myWorkers.submit(new Callable<BufferedImage>() {
+
+            public BufferedImage call() throws DjatokaException {
+                return decode(input, params);
+            }
+        });
+
+        try {
+            BufferedImage image = future.get();
+
+            myDecodes.incrementAndGet();
+            return image;
+        } catch (InterruptedException details) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new DjatokaException("Interrupted while extracting: " +
+                    input, details);
+        } catch (ExecutionException details) {
+            Throwable cause = details.getCause();
+
+            if (cause instanceof LinkageError) {
+                LOGGER.error("Native extraction disabled: {}", cause
+                        .getMessage());
+                isDisabled = true;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Native extraction of {} failed: {}", input,
+                        cause.getMessage());
+            }
+
+            myFallbacks.incrementAndGet();
+            return myFallback.process(input, params);
+        }
+    }
+
+    /**
+     * Extracts region defined in DjatokaDecodeParam and writes it with the
+     * supplied writer as it's decoded, on a worker thread. Regions that are
+     * small enough to decode whole, or that the native decoder can't handle,
+     * aren't written. The output stream is written to on the worker, so it
+     * should be an in-memory buffer rather than a client's response.
+     *
+     * @param input absolute file path of JPEG 2000 image file.
+     * @param params DjatokaDecodeParam instance containing region settings.
+     * @param w format writer to be used to serialize extracted region.
+     * @param os OutputStream to serialize formatted output image to; it
+     *        mustn't block
+     * @return true if the region was written; false if nothing was written
+     * @throws DjatokaException if the region was only partly written
+     */
+    public boolean extract(final String input,
+            final DjatokaDecodeParam params, final IWriter w,
+            final OutputStream os) throws DjatokaException {
+        Future<Boolean> future;
+
+        if (isDisabled || params.getCompositingLayer() > 0) {
+            return false;
+        }
+
+        future = myWorkers.submit(new Callable<Boolean>() {
+
+            public Boolean call() throws DjatokaException {
+                return write(input, params, w, os);
+            }
+        });
+
+        try {
+            boolean isWritten = future.get().booleanValue();
+
+            if (isWritten) {
+                myDecodes.incrementAndGet();
+                myStrips.incrementAndGet();
+            }
+
+            return isWritten;
+        } catch (InterruptedException details) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new DjatokaException("Interrupted while extracting: " +
+                    input, details);
+        } catch (ExecutionException details) {
+            Throwable cause = details.getCause();
+
+            if (cause instanceof LinkageError) {
+                LOGGER.error("Native extraction disabled: {}", cause
+                        .getMessage());
+                isDisabled = true;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else if (cause instanceof FormatIOException) {
+                throw (FormatIOException) cause;
+            } else if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Native extraction of {} failed: {}", input,
+                        cause.getMessage());
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Extracts region defined in DjatokaDecodeParam as BufferedImage
+     *
+     * @param input InputStream containing a JPEG 2000 image bitstream.
+     * @param params DjatokaDecodeParam instance containing region and transform
+     *        settings.
+     * @return extracted region as a BufferedImage
+     * @throws DjatokaException
+     */
+    public BufferedImage process(InputStream input, DjatokaDecodeParam params)
+            throws DjatokaException {
+        myFallbacks.incrementAndGet();
+        return myFallback.process(input, params);
+    }
+
+    /**
+     * Extracts region defined in DjatokaDecodeParam as BufferedImage
+     *
+     * @param input ImageRecord wrapper containing file reference, inputstream,
+     *        etc.
+     * @param params DjatokaDecodeParam instance containing region and transform
+     *        settings.
+     * @return extracted region as a BufferedImage
+     * @throws DjatokaException
+     */
+    public BufferedImage process(ImageRecord input, DjatokaDecodeParam params)
+            throws DjatokaException {
+        if (input.getImageFile() != null) {
+            return process(input.getImageFile(), params);
+        }
+
+        myFallbacks.incrementAndGet();
+        return myFallback.process(input, params);
+    }
+
+    /**
+     * Returns JPEG 2000 props in ImageRecord
+     *
+     * @param r ImageRecord containing absolute file path of JPEG 2000 image
+     *        file.
+     * @return a populated ImageRecord object
+     * @throws DjatokaException
+     */
+    public ImageRecord getMetadata(ImageRecord r) throws DjatokaException {
+        return myFallback.getMetadata(r);
+    }
+
+    /**
+     * Returns array of XML records contained in JP2 XMLboxes.
+     *
+     * @param r ImageRecord containing absolute file path of JPEG 2000 image
+     *        file.
+     * @return an array of XML records contained in JP2 XMLboxes
+     * @throws DjatokaException
+     */
+    public String[] getXMLBox(ImageRecord r) throws DjatokaException {
+        return myFallback.getXMLBox(r);
+    }
+
+    /**
+     * Gets the number of worker threads.
+     *
+     * @return The number of regions decoded at the same time
+     */
+    public int getThreadCount() {
+        return myWorkers.getMaximumPoolSize();
+    }
+
+    /**
+     * Gets the number of regions that are waiting for a worker thread.
+     *
+     * @return The number of waiting regions
+     */
+    public int getQueuedCount() {
+        return myWorkers.getQueue().size();
+    }
+
+    /**
+     * Gets the number of regions the native decoder has extracted.
+     *
+     * @return The number of natively decoded regions
+     */
+    public long getDecodeCount() {
+        return myDecodes.get();
+    }
+
+    /**
+     * Gets the number of regions that were written as they were decoded,
+     * which are also counted as natively decoded regions.
+     *
+     * @return The number of regions written a strip at a time
+     */
+    public long getStripCount() {
+        return myStrips.get();
+    }
+
+    /**
+     * Gets the number of regions that were passed on to the fallback.
+     *
+     * @return The number of regions the fallback extracted
+     */
+    public long getFallbackCount() {
+        return myFallbacks.get();
+    }
+
+    /**
+     * Gets the pool of codestreams that are kept open between decodes.
+     *
+     * @return The pool of open codestreams
+     */
+    public KduCodestreamPool getCodestreamPool() {
+        return myCodestreams;
+    }
+
+    /**
+     * Stops the worker threads once the regions they've been given are done
+     * and closes the codestreams that are kept open.
+     */
+    public void shutdown() {
+        myWorkers.shutdown();
+
+        try {
+            myWorkers.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException details) {
+            Thread.currentThread().interrupt();
+        }
+
+        myCodestreams.close();
+    }
+
+    /**
+     * Decodes a region on a worker thread.
+     *
+     * @param aFile The absolute path of a JPEG 2000 image file
+     * @param aParams The region and transform settings
+     * @return The extracted region
+     * @throws DjatokaException If the region can't be extracted
+     */
+    protected BufferedImage decode(String aFile, DjatokaDecodeParam aParams)
+            throws DjatokaException {
+        KduExtractProcessorJNI processor =
+                new KduExtractProcessorJNI(aFile, aParams);
+
+        return processor.extract(myCodestreams);
+    }
+
+    /**
+     * Writes a region as it's decoded on a worker thread.
+     *
+     * @param aFile The absolute path of a JPEG 2000 image file
+     * @param aParams The region settings
+     * @param aWriter The writer for the region's output format
+     * @param aOutStream The stream the region is written to
+     * @return True if the region was written; else, false
+     * @throws FormatIOException If the region was only partly written
+     * @throws DjatokaException If the region can't be extracted, in which
+     *         case nothing has been written
+     */
+    protected boolean write(String aFile, DjatokaDecodeParam aParams,
+            IWriter aWriter, OutputStream aOutStream) throws DjatokaException {
+        KduExtractProcessorJNI processor =
+                new KduExtractProcessorJNI(aFile, aParams);
+
+        return processor.extract(myCodestreams, aWriter, aOutStream);
+    }
+}
@@ -25,25 +25,40 @@ package gov.lanl.adore.djatoka.kdu.jni;
 
 import gov.lanl.adore.djatoka.DjatokaDecodeParam;
 import gov.lanl.adore.djatoka.DjatokaException;
+import gov.lanl.adore.djatoka.io.FormatIOException;
+import gov.lanl.adore.djatoka.io.IWriter;
 import gov.lanl.adore.djatoka.util.IOUtils;
 import gov.lanl.adore.djatoka.util.ImageProcessingUtils;
 
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.StringTokenizer;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import kdu_jni.Jp2_family_src;
-import kdu_jni.Jp2_locator;
-import kdu_jni.Jp2_source;
 import kdu_jni.Jpx_source;
 import kdu_jni.KduException;
 import kdu_jni.Kdu_channel_mapping;
 import kdu_jni.Kdu_codestream;
 import kdu_jni.Kdu_compositor_buf;
-import kdu_jni.Kdu_compressed_source;
 import kdu_jni.Kdu_coords;
 import kdu_jni.Kdu_dims;
 import kdu_jni.Kdu_global;
@@ -52,16 +67,28 @@ import kdu_jni.Kdu_region_decompressor;
 import kdu_jni.Kdu_simple_file_source;
 
 /**
- * Uses Kakadu Java Native Interface to extract regions. This implementation is
- * provided for reference purposes only. There are serious issues related to
- * multi-threading and byte buffers when pushing this implementation. This
- * implementation should be used for experimental purposes only. The kdu_expand
- * bridge method is far more scalable and memory efficient.
+ * Uses Kakadu Java Native Interface to extract regions. A processor extracts
+ * one region and isn't thread-safe; {@link KduExtractPool} runs them on a
+ * fixed number of threads. The compositor based extraction is experimental.
  * 
  * @author Ryan Chute
  */
 public class KduExtractProcessorJNI {
 
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(KduExtractProcessorJNI.class);
+
+    // Where each channel's samples go in a pixel of the image's raster
+    private static final int[] GREY_OFFSETS = new int[] { 0 };
+
+    private static final int[] BGR_OFFSETS = new int[] { 2, 1, 0 };
+
+    // The most pixels that are decoded at a time, unless a row is wider
+    private static final int REGION_PIXELS = 262144;
+
+    // The pixels in a strip of a region that's written as it's decoded
+    private static final int STRIP_PIXELS = 1048576;
+
     static {
         System.loadLibrary("kdu_jni");
     }
@@ -324,214 +351,652 @@ public class KduExtractProcessorJNI {
 
             return image;
         } catch (KduException e) {
-            e.printStackTrace();
+            LOGGER.error(e.getMessage(), e);
             throw new DjatokaException(e.getMessage(), e);
         } catch (Exception e) {
-            e.printStackTrace();
+            LOGGER.error(e.getMessage(), e);
             throw new DjatokaException(e.getMessage(), e);
         }
     }
 
     /**
-     * Extracts the buffered image.
+     * Extracts the buffered image. The region is read at the resolution level
+     * that's requested, or that's closest to the requested scaling
+     * dimensions, and the level reduction factor of the decoding
+     * configuration is set to match, just as the kdu_expand bridge does. All
+     * of the native objects that are created are destroyed before this
+     * returns, whether the extraction succeeds or not.
      * 
      * @return The buffered image
      * @throws DjatokaException If there is a problem with the extraction
      */
     public BufferedImage extract() throws DjatokaException {
-        boolean useRegion = false;
-        int left = 0;
-        int top = 0;
-        int width = 50;
-        int height = 50;
-        boolean useleftDouble = false;
-        Double leftDouble = 0.0;
-        boolean usetopDouble = false;
-        Double topDouble = 0.0;
-        boolean usewidthDouble = false;
-        Double widthDouble = 0.0;
-        boolean useheightDouble = false;
-        Double heightDouble = 0.0;
+        return extract(null);
+    }
 
-        if (params.getRegion() != null) {
-            StringTokenizer st = new StringTokenizer(params.getRegion(), "{},");
-            String token;
-            // top
-            if ((token = st.nextToken()).contains(".")) {
-                topDouble = Double.parseDouble(token);
-                usetopDouble = true;
-            } else {
-                top = Integer.parseInt(token);
+    /**
+     * Extracts the buffered image from a codestream borrowed from the
+     * supplied pool, so the image's headers don't need to be read again if
+     * it's been decoded recently. Images read from a stream aren't pooled.
+     * 
+     * @param aPool A pool of open codestreams, or null to open a new one
+     * @return The buffered image
+     * @throws DjatokaException If there is a problem with the extraction
+     */
+    public BufferedImage extract(KduCodestreamPool aPool)
+            throws DjatokaException {
+        File tmpFile = null;
+
+        if (is != null) {
+            try {
+                tmpFile = File.createTempFile("tmp", ".jp2");
+                tmpFile.deleteOnExit();
+                FileOutputStream fos = new FileOutputStream(tmpFile);
+                sourceFile = tmpFile.getAbsolutePath();
+
+                try {
+                    IOUtils.copyStream(is, fos);
+                } finally {
+                    is.close();
+                    fos.close();
+                }
+            } catch (IOException e) {
+                throw new DjatokaException(e.getMessage(), e);
             }
-            // left
-            if ((token = st.nextToken()).contains(".")) {
-                leftDouble = Double.parseDouble(token);
-                useleftDouble = true;
+        }
+
+        File file = new File(sourceFile);
+        boolean isPooled = aPool != null && tmpFile == null;
+        boolean isReusable = true;
+        KduCodestreamPool.Handle handle = null;
+        Kdu_region_decompressor decompressor = null;
+
+        try {
+            if (isPooled) {
+                handle = aPool.borrow(file);
             } else {
-                left = Integer.parseInt(token);
+                handle =
+                        KduCodestreamPool.Handle.open(file.getAbsolutePath(),
+                                file.lastModified());
             }
-            // height
-            if ((token = st.nextToken()).contains(".")) {
-                heightDouble = Double.parseDouble(token);
-                useheightDouble = true;
-            } else {
-                height = Integer.parseInt(token);
+
+            Kdu_codestream codestream = handle.getCodestream();
+            Kdu_channel_mapping channels = handle.getChannels();
+            Kdu_coords ref_expansion = new Kdu_coords();
+            Kdu_dims view_dims = getRegion(handle, ref_expansion);
+            int reduce = params.getLevelReductionFactor();
+            Kdu_coords viewPosition = view_dims.Access_pos();
+            Kdu_coords viewSize = view_dims.Access_size();
+            int width = viewSize.Get_x();
+            int height = viewSize.Get_y();
+            BufferedImage image = createImage(channels, width, height);
+            Object imgBuffer = getData(image);
+            int pixelSize = image.getRaster().getNumDataElements();
+            int regionPixels =
+                    Math.min(width * height, Math.max(width, REGION_PIXELS));
+            Object region_buf =
+                    imgBuffer instanceof int[] ? new int[regionPixels]
+                            : new byte[regionPixels * pixelSize];
+            Kdu_dims new_region = new Kdu_dims();
+            Kdu_dims incomplete_region = new Kdu_dims();
+
+            decompressor = new Kdu_region_decompressor();
+
+            // Until it's finished, the decompressor has tiles of the codestream
+            isReusable = false;
+
+            if (!decompressor.Start(codestream, channels, -1, reduce, 16384,
+                    view_dims, ref_expansion, new Kdu_coords(1, 1), false,
+                    Kdu_global.KDU_WANT_OUTPUT_COMPONENTS)) {
+                throw new DjatokaException("Unable to decompress: " +
+                        sourceFile);
             }
-            // width
-            if ((token = st.nextToken()).contains(".")) {
-                widthDouble = Double.parseDouble(token);
-                usewidthDouble = true;
-            } else {
-                width = Integer.parseInt(token);
+            incomplete_region.Assign(view_dims);
+
+            while (process(decompressor, region_buf, pixelSize, viewPosition,
+                    regionPixels, incomplete_region, new_region)) {
+                Kdu_coords newOffset = new_region.Access_pos();
+                Kdu_coords newSize = new_region.Access_size();
+                newOffset.Subtract(viewPosition);
+
+                int rowLength = newSize.Get_x() * pixelSize;
+                int imgBufferIdx =
+                        (newOffset.Get_x() + newOffset.Get_y() * width) *
+                                pixelSize;
+                int kduBufferIdx = 0;
+
+                // Copy the decoded rows into the image's raster
+                for (int j = 0; j < newSize.Get_y(); j++) {
+                    System.arraycopy(region_buf, kduBufferIdx, imgBuffer,
+                            imgBufferIdx, rowLength);
+                    kduBufferIdx += rowLength;
+                    imgBufferIdx += width * pixelSize;
+                }
+
+                if (incomplete_region.Is_empty()) {
+                    break;
+                }
             }
 
-            useRegion = true;
-        }
+            if (!decompressor.Finish()) {
+                throw new DjatokaException("Unable to decompress: " +
+                        sourceFile);
+            }
 
-        try {
-            if (is != null) {
-                File f = File.createTempFile("tmp", ".jp2");
-                f.deleteOnExit();
-                FileOutputStream fos = new FileOutputStream(f);
-                sourceFile = f.getAbsolutePath();
-                IOUtils.copyStream(is, fos);
-                is.close();
-                fos.close();
-            }
-        } catch (IOException e) {
+            isReusable = true;
+
+            if (params.getRotationDegree() > 0) {
+                image =
+                        ImageProcessingUtils.rotate(image, params
+                                .getRotationDegree());
+            }
+
+            return image;
+        } catch (KduException e) {
+            isReusable = false;
+            LOGGER.error(e.getMessage(), e);
             throw new DjatokaException(e.getMessage(), e);
+        } finally {
+            if (decompressor != null) {
+                decompressor.Native_destroy();
+            }
+
+            if (handle != null && isPooled) {
+                aPool.release(handle, isReusable);
+            } else if (handle != null) {
+                handle.destroy();
+            }
+
+            if (tmpFile != null && !tmpFile.delete() &&
+                    LOGGER.isWarnEnabled()) {
+                LOGGER.warn("File not deleted: {}", tmpFile);
+            }
         }
+    }
+
+    /**
+     * Extracts the region and writes it with the supplied writer as it's
+     * decoded, rather than decoding all of it before it's written. The writer
+     * is given an image that holds one strip of rows at a time, so it must
+     * read the rows from top to bottom; the region's rotation isn't applied.
+     * Regions that fit in a single strip, images whose pixels aren't decoded
+     * as bytes, and images read from a stream, are left to
+     * {@link #extract(KduCodestreamPool)}: nothing is written and false is
+     * returned.
+     * 
+     * @param aPool A pool of open codestreams, or null to open a new one
+     * @param aWriter The writer for the region's output format
+     * @param aOutStream The stream the region is written to
+     * @return True if the region was written; else, false
+     * @throws FormatIOException If the region was only partly written
+     * @throws DjatokaException If the region can't be extracted, in which
+     *         case nothing has been written
+     */
+    public boolean extract(KduCodestreamPool aPool, IWriter aWriter,
+            OutputStream aOutStream) throws DjatokaException {
+        if (is != null) {
+            return false;
+        }
+
+        File file = new File(sourceFile);
+        boolean isReusable = true;
+        boolean isWritten = false;
+        KduCodestreamPool.Handle handle = null;
+        Kdu_region_decompressor decompressor = null;
 
         try {
-            Jp2_source inputSource = new Jp2_source();
-            Kdu_compressed_source input = null;
-            Jp2_family_src jp2_family_in = new Jp2_family_src();
-            Jp2_locator loc = new Jp2_locator();
-            jp2_family_in.Open(sourceFile, true);
-            inputSource.Open(jp2_family_in, loc);
-            inputSource.Read_header();
-            input = inputSource;
-
-            Kdu_codestream codestream = new Kdu_codestream();
-            codestream.Create(input);
-            Kdu_channel_mapping channels = new Kdu_channel_mapping();
-
-            if (inputSource.Exists()) {
-                channels.Configure(inputSource, false);
+            if (aPool != null) {
+                handle = aPool.borrow(file);
             } else {
-                channels.Configure(codestream);
+                handle =
+                        KduCodestreamPool.Handle.open(file.getAbsolutePath(),
+                                file.lastModified());
             }
-            int ref_component = channels.Get_source_component(0);
-            Kdu_coords ref_expansion =
-                    getReferenceExpansion(ref_component, channels, codestream);
-            Kdu_dims image_dims = new Kdu_dims();
-            codestream.Get_dims(ref_component, image_dims);
-            Kdu_coords imageSize = image_dims.Access_size();
-            Kdu_coords imagePosition = image_dims.Access_pos();
 
-            if (useleftDouble) {
-                left =
-                        imagePosition.Get_x() +
-                                (int) Math
-                                        .round(leftDouble * imageSize.Get_x());
+            Kdu_codestream codestream = handle.getCodestream();
+            Kdu_channel_mapping channels = handle.getChannels();
+            Kdu_coords ref_expansion = new Kdu_coords();
+            final Kdu_dims view_dims = getRegion(handle, ref_expansion);
+            final int width = view_dims.Access_size().Get_x();
+            final int height = view_dims.Access_size().Get_y();
+            final int pixelSize = getPixelSize(channels);
+            int[] tops =
+                    getStripTops(codestream, channels.Get_source_component(0),
+                            ref_expansion, view_dims);
+
+            if (pixelSize == 0 || tops.length < 3 ||
+                    (long) width * height * pixelSize > Integer.MAX_VALUE) {
+                return false;
             }
-            if (usetopDouble) {
-                top =
-                        imagePosition.Get_y() +
-                                (int) Math.round(topDouble * imageSize.Get_y());
+
+            final Kdu_region_decompressor strips =
+                    new Kdu_region_decompressor();
+            final Kdu_dims incomplete_region = new Kdu_dims();
+            final byte[] region_buf =
+                    new byte[Math.max(width, REGION_PIXELS) * pixelSize];
+            KduStripBuffer buffer =
+                    new KduStripBuffer(width * pixelSize, tops) {
+
+                        @Override
+                        protected void decode(int aTop, int aRows,
+                                byte[] aStrip) throws DjatokaException {
+                            decodeStrip(strips, region_buf, pixelSize,
+                                    view_dims, incomplete_region, aTop, aRows,
+                                    aStrip);
+                        }
+                    };
+
+            decompressor = strips;
+
+            // Until it's finished, the decompressor has tiles of the codestream
+            isReusable = false;
+
+            if (!decompressor.Start(codestream, channels, -1, params
+                    .getLevelReductionFactor(), 16384, view_dims,
+                    ref_expansion, new Kdu_coords(1, 1), false,
+                    Kdu_global.KDU_WANT_OUTPUT_COMPONENTS)) {
+                throw new DjatokaException("Unable to decompress: " +
+                        sourceFile);
             }
-            if (useheightDouble) {
-                height = (int) Math.round(heightDouble * imageSize.Get_y());
+            incomplete_region.Assign(view_dims);
+
+            BufferedImage image =
+                    createImage(buffer, pixelSize, width, height);
+
+            // Decode the first strip before anything's written, so a region
+            // that can't be decoded can still be extracted some other way
+            try {
+                buffer.getElem(0);
+            } catch (IllegalStateException details) {
+                throw buffer.getFailure();
             }
-            if (usewidthDouble) {
-                width = (int) Math.round(widthDouble * imageSize.Get_x());
+
+            isWritten = true;
+
+            try {
+                aWriter.write(image, aOutStream);
+            } catch (RuntimeException details) {
+                throw new FormatIOException("Unable to write: " + sourceFile,
+                        buffer.getFailure() != null ? buffer.getFailure()
+                                : details);
             }
 
-            if (useRegion) {
-                imageSize.Set_x(width);
-                imageSize.Set_y(height);
-                imagePosition.Set_x(left);
-                imagePosition.Set_y(top);
+            if (buffer.getFailure() != null) {
+                throw new FormatIOException("Unable to write: " + sourceFile,
+                        buffer.getFailure());
             }
 
-            int reduce = 1 << params.getLevelReductionFactor();
-            imageSize.Set_x(imageSize.Get_x() * ref_expansion.Get_x());
-            imageSize.Set_y(imageSize.Get_y() * ref_expansion.Get_y());
-            imagePosition.Set_x(imagePosition.Get_x() * ref_expansion.Get_x() /
-                    reduce - ((ref_expansion.Get_x() / reduce - 1) / 2));
-            imagePosition.Set_y(imagePosition.Get_y() * ref_expansion.Get_y() /
-                    reduce - ((ref_expansion.Get_y() / reduce - 1) / 2));
-
-            Kdu_dims view_dims = new Kdu_dims();
-            view_dims.Assign(image_dims);
-            view_dims.Access_size().Set_x(imageSize.Get_x());
-            view_dims.Access_size().Set_y(imageSize.Get_y());
-
-            int region_buf_size = imageSize.Get_x() * imageSize.Get_y();
-            int[] region_buf = new int[region_buf_size];
-            Kdu_region_decompressor decompressor =
-                    new Kdu_region_decompressor();
-            decompressor.Start(codestream, channels, -1, params
-                    .getLevelReductionFactor(), 16384, image_dims,
-                    ref_expansion, new Kdu_coords(1, 1), false,
-                    Kdu_global.KDU_WANT_OUTPUT_COMPONENTS);
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Wrote {}x{} region of {} in {} strips",
+                        new Object[] { width, height, sourceFile,
+                            buffer.getStripCount() });
+            }
 
-            Kdu_dims new_region = new Kdu_dims();
-            Kdu_dims incomplete_region = new Kdu_dims();
-            Kdu_coords viewSize = view_dims.Access_size();
-            incomplete_region.Assign(image_dims);
+            isReusable = decompressor.Finish();
+            return true;
+        } catch (KduException e) {
+            isReusable = false;
+            LOGGER.error(e.getMessage(), e);
+
+            if (!isWritten) {
+                throw new DjatokaException(e.getMessage(), e);
+            }
+
+            // The region was written; only finishing the decompressor failed
+            return true;
+        } finally {
+            if (decompressor != null) {
+                decompressor.Native_destroy();
+            }
+
+            if (handle != null && aPool != null) {
+                aPool.release(handle, isReusable);
+            } else if (handle != null) {
+                handle.destroy();
+            }
+        }
+    }
+
+    /**
+     * Decodes the next rows of the region into the supplied strip. Whatever
+     * the decompressor returns has to fall within those rows, which is true
+     * of the strips {@link #getStripTops} divides the region into.
+     */
+    private static void decodeStrip(Kdu_region_decompressor aDecompressor,
+            byte[] aRegionBuffer, int aPixelSize, Kdu_dims aView,
+            Kdu_dims aIncomplete, int aTop, int aRows, byte[] aStrip)
+            throws DjatokaException {
+        Kdu_dims new_region = new Kdu_dims();
+
+        try {
+            Kdu_coords viewPosition = aView.Access_pos();
+            int width = aView.Access_size().Get_x();
+            int remaining = width * aRows;
+
+            while (remaining > 0) {
+                int maxPixels =
+                        Math.min(remaining, aRegionBuffer.length / aPixelSize);
+
+                if (!process(aDecompressor, aRegionBuffer, aPixelSize,
+                        viewPosition, maxPixels, aIncomplete, new_region)) {
+                    throw new DjatokaException("Unable to decompress rows " +
+                            aTop + " to " + (aTop + aRows));
+                }
 
-            int[] imgBuffer = new int[viewSize.Get_x() * viewSize.Get_y()];
-            int[] kduBuffer = null;
-            while (decompressor.Process(region_buf, image_dims.Access_pos(), 0,
-                    0, region_buf_size, incomplete_region, new_region)) {
                 Kdu_coords newOffset = new_region.Access_pos();
                 Kdu_coords newSize = new_region.Access_size();
-                newOffset.Subtract(view_dims.Access_pos());
-
-                kduBuffer = region_buf;
-                int imgBuffereIdx =
-                        newOffset.Get_x() + newOffset.Get_y() *
-                                viewSize.Get_x();
+                int x = newOffset.Get_x() - viewPosition.Get_x();
+                int y = newOffset.Get_y() - viewPosition.Get_y() - aTop;
+                int rowLength = newSize.Get_x() * aPixelSize;
+                int stripIdx = (x + y * width) * aPixelSize;
                 int kduBufferIdx = 0;
-                int xDiff = viewSize.Get_x() - newSize.Get_x();
-                for (int j = 0; j < newSize.Get_y(); j++, imgBuffereIdx +=
-                        xDiff) {
-                    for (int i = 0; i < newSize.Get_x(); i++) {
-                        imgBuffer[imgBuffereIdx++] = kduBuffer[kduBufferIdx++];
-                    }
+
+                if (newSize.Get_y() > 0 &&
+                        (y < 0 || y + newSize.Get_y() > aRows)) {
+                    throw new DjatokaException("Rows decoded out of order");
+                }
+
+                // Copy the decoded rows into the strip
+                for (int j = 0; j < newSize.Get_y(); j++) {
+                    System.arraycopy(aRegionBuffer, kduBufferIdx, aStrip,
+                            stripIdx, rowLength);
+                    kduBufferIdx += rowLength;
+                    stripIdx += width * aPixelSize;
                 }
+
+                remaining -= newSize.Get_x() * newSize.Get_y();
+            }
+        } catch (KduException details) {
+            throw new DjatokaException(details.getMessage(), details);
+        }
+    }
+
+    /**
+     * Gets the first row of each strip the region is decoded in, followed by
+     * the region's height. The decompressor decodes the tiles in a row of
+     * tiles one after another, from top to bottom, before it starts on the
+     * next row; so if the region spans more than one tile across, each strip
+     * is a row of tiles. Otherwise, the rows are decoded in order and each
+     * strip holds as many as fit in {@link #STRIP_PIXELS}.
+     */
+    private static int[] getStripTops(Kdu_codestream aCodestream,
+            int aComponent, Kdu_coords aExpansion, Kdu_dims aView)
+            throws KduException {
+        int left = aView.Access_pos().Get_x();
+        int top = aView.Access_pos().Get_y();
+        int width = aView.Access_size().Get_x();
+        int height = aView.Access_size().Get_y();
+        List<Integer> tops = new ArrayList<Integer>();
+        Kdu_dims tiles = new Kdu_dims();
+        Kdu_dims tile = new Kdu_dims();
+        Kdu_coords tileIndex = new Kdu_coords();
+        int across = 0;
+
+        aCodestream.Get_valid_tiles(tiles);
+        tileIndex.Assign(tiles.Access_pos());
+
+        for (int x = 0; x < tiles.Access_size().Get_x(); x++) {
+            tileIndex.Set_x(tiles.Access_pos().Get_x() + x);
+            aCodestream.Get_tile_dims(tileIndex, aComponent, tile);
+
+            int tileLeft = tile.Access_pos().Get_x() * aExpansion.Get_x();
+            int tileWidth = tile.Access_size().Get_x() * aExpansion.Get_x();
+
+            if (tileLeft < left + width && tileLeft + tileWidth > left) {
+                across++;
             }
+        }
 
-            BufferedImage image =
-                    new BufferedImage(imageSize.Get_x(), imageSize.Get_y(),
-                            BufferedImage.TYPE_INT_RGB);
-            image.setRGB(0, 0, viewSize.Get_x(), viewSize.Get_y(), imgBuffer,
-                    0, viewSize.Get_x());
+        tops.add(0);
 
-            if (params.getRotationDegree() > 0) {
-                image =
-                        ImageProcessingUtils.rotate(image, params
-                                .getRotationDegree());
+        if (across > 1) {
+            tileIndex.Set_x(tiles.Access_pos().Get_x());
+
+            for (int y = 1; y < tiles.Access_size().Get_y(); y++) {
+                tileIndex.Set_y(tiles.Access_pos().Get_y() + y);
+                aCodestream.Get_tile_dims(tileIndex, aComponent, tile);
+
+                int tileTop =
+                        tile.Access_pos().Get_y() * aExpansion.Get_y() - top;
+
+                if (tileTop > 0 && tileTop < height) {
+                    tops.add(tileTop);
+                }
             }
+        } else {
+            int rows = Math.max(1, STRIP_PIXELS / width);
 
-            decompressor.Native_destroy();
-            channels.Native_destroy();
-            if (codestream.Exists()) {
-                codestream.Destroy();
+            for (int row = rows; row < height; row += rows) {
+                tops.add(row);
             }
-            inputSource.Native_destroy();
-            input.Native_destroy();
-            jp2_family_in.Native_destroy();
+        }
 
-            return image;
-        } catch (KduException e) {
-            e.printStackTrace();
-            throw new DjatokaException(e.getMessage(), e);
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new DjatokaException(e.getMessage(), e);
+        tops.add(height);
+
+        int[] result = new int[tops.size()];
+
+        for (int index = 0; index < result.length; index++) {
+            result[index] = tops.get(index);
         }
+
+        return result;
+    }
+
+    /**
+     * Creates an image to decode into that has as many bands as the image has
+     * colour channels: a greyscale image stays one byte a pixel, rather than
+     * being expanded to RGB. Images with an alpha channel, or an unusual
+     * number of channels, are decoded as RGB integers as they always were.
+     */
+    private static BufferedImage createImage(Kdu_channel_mapping aChannels,
+            int aWidth, int aHeight) throws KduException {
+        int pixelSize = getPixelSize(aChannels);
+        int type;
+
+        if (pixelSize == 1) {
+            type = BufferedImage.TYPE_BYTE_GRAY;
+        } else if (pixelSize == 3) {
+            type = BufferedImage.TYPE_3BYTE_BGR;
+        } else {
+            type = BufferedImage.TYPE_INT_RGB;
+        }
+
+        return new BufferedImage(aWidth, aHeight, type);
+    }
+
+    /**
+     * Creates an image of the same format as {@link #createImage} would,
+     * whose pixels are held in the supplied buffer.
+     */
+    private static BufferedImage createImage(DataBuffer aBuffer,
+            int aPixelSize, int aWidth, int aHeight) {
+        int[] offsets = aPixelSize == 1 ? GREY_OFFSETS : BGR_OFFSETS;
+        ColorSpace space =
+                ColorSpace.getInstance(aPixelSize == 1 ? ColorSpace.CS_GRAY
+                        : ColorSpace.CS_sRGB);
+        ColorModel colorModel =
+                new ComponentColorModel(space, false, false,
+                        Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+        SampleModel sampleModel =
+                new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE, aWidth,
+                        aHeight, aPixelSize, aWidth * aPixelSize, offsets);
+
+        return new BufferedImage(colorModel, Raster.createWritableRaster(
+                sampleModel, aBuffer, null), false, null);
+    }
+
+    /**
+     * Gets the number of bytes a decoded pixel takes: one for greyscale
+     * images and three for colour images, or none if the image has an alpha
+     * channel or an unusual number of channels and is decoded as RGB
+     * integers.
+     */
+    private static int getPixelSize(Kdu_channel_mapping aChannels)
+            throws KduException {
+        int count = aChannels.Get_num_channels();
+        int colours = aChannels.Get_num_colour_channels();
+
+        if (count == 1 && colours == 1) {
+            return 1;
+        } else if (count == 3 && colours == 3) {
+            return 3;
+        }
+
+        return 0;
+    }
+
+    private static Object getData(BufferedImage aImage) {
+        DataBuffer buffer = aImage.getRaster().getDataBuffer();
+
+        if (buffer instanceof DataBufferInt) {
+            return ((DataBufferInt) buffer).getData();
+        }
+
+        return ((DataBufferByte) buffer).getData();
+    }
+
+    /**
+     * Decodes the next part of the region, no more than the supplied number
+     * of pixels, into the supplied buffer, which holds either RGB integers or
+     * the supplied number of bytes a pixel. The buffer is kept small because
+     * each call copies all of it to and from the native decoder.
+     */
+    private static boolean process(Kdu_region_decompressor aDecompressor,
+            Object aBuffer, int aPixelSize, Kdu_coords aOrigin,
+            int aMaxPixels, Kdu_dims aIncomplete, Kdu_dims aNew)
+            throws KduException {
+        if (aBuffer instanceof int[]) {
+            return aDecompressor.Process((int[]) aBuffer, aOrigin, 0, 0,
+                    aMaxPixels, aIncomplete, aNew);
+        }
+
+        int[] offsets = aPixelSize == 1 ? GREY_OFFSETS : BGR_OFFSETS;
+
+        return aDecompressor.Process((byte[]) aBuffer, offsets, aPixelSize,
+                aOrigin, 0, 0, aMaxPixels, aIncomplete, aNew);
+    }
+
+    /**
+     * Sets the level reduction factor of the decoding configuration from the
+     * requested level or, if there isn't one, the requested scaling
+     * dimensions, the same way the kdu_expand bridge does.
+     */
+    private void setLevelReductionFactor(int aWidth, int aHeight,
+            int aDWTLevels) {
+        int levels = ImageProcessingUtils.getLevelCount(aWidth, aHeight);
+
+        levels = (aDWTLevels < levels) ? aDWTLevels : levels;
+
+        if (params.getLevel() >= 0) {
+            int reduce = levels - params.getLevel();
+            params.setLevelReductionFactor((reduce >= 0) ? reduce : 0);
+        } else if (params.getLevel() == -1 && params.getRegion() == null &&
+                params.getScalingDimensions() != null) {
+            int[] dims = params.getScalingDimensions();
+            int reduce =
+                    levels -
+                            ImageProcessingUtils.getScalingLevel(aWidth,
+                                    aHeight, dims[0], dims[1]);
+            params.setLevelReductionFactor((reduce >= 0) ? reduce : 0);
+        }
+    }
+
+    /**
+     * Gets the region to decode from the supplied codestream, at the level
+     * that's being read, and sets the level reduction factor of the decoding
+     * configuration to that level. The region is expanded by the reference
+     * component's expansion, which is set in the supplied coordinates, as the
+     * region decompressor expects.
+     */
+    private Kdu_dims getRegion(KduCodestreamPool.Handle aHandle,
+            Kdu_coords aExpansion) throws KduException, DjatokaException {
+        Kdu_codestream codestream = aHandle.getCodestream();
+        Kdu_channel_mapping channels = aHandle.getChannels();
+
+        // Undo the restrictions of the codestream's last decode
+        codestream.Apply_input_restrictions(0, 0, 0, 0, null,
+                Kdu_global.KDU_WANT_OUTPUT_COMPONENTS);
+
+        int ref_component = channels.Get_source_component(0);
+
+        aExpansion.Assign(getReferenceExpansion(ref_component, channels,
+                codestream));
+
+        setLevelReductionFactor(aHandle.getWidth(), aHandle.getHeight(),
+                aHandle.getDWTLevels());
+
+        int reduce = params.getLevelReductionFactor();
+
+        // The dimensions of the image at the level that's being read
+        Kdu_dims image_dims = new Kdu_dims();
+        codestream.Apply_input_restrictions(0, 0, reduce, 0, null,
+                Kdu_global.KDU_WANT_OUTPUT_COMPONENTS);
+        codestream.Get_dims(ref_component, image_dims);
+
+        Kdu_dims view_dims = getViewDims(image_dims, 1 << reduce);
+
+        if (view_dims.Is_empty()) {
+            throw new DjatokaException("Region out of bounds: " +
+                    params.getRegion());
+        }
+
+        Kdu_coords viewPosition = view_dims.Access_pos();
+        Kdu_coords viewSize = view_dims.Access_size();
+        viewPosition.Set_x(viewPosition.Get_x() * aExpansion.Get_x());
+        viewPosition.Set_y(viewPosition.Get_y() * aExpansion.Get_y());
+        viewSize.Set_x(viewSize.Get_x() * aExpansion.Get_x());
+        viewSize.Set_y(viewSize.Get_y() * aExpansion.Get_y());
+
+        return view_dims;
+    }
+
+    /**
+     * Gets the requested region in the coordinates of the reduced image. As
+     * with kdu_expand, the region's top and left are given in pixels of the
+     * full image and its height and width in pixels of the reduced image, or
+     * any of them as a fraction of the image.
+     */
+    private Kdu_dims getViewDims(Kdu_dims aImageDims, int aReduce)
+            throws KduException {
+        Kdu_dims view_dims = new Kdu_dims();
+
+        view_dims.Assign(aImageDims);
+
+        if (params.getRegion() == null) {
+            return view_dims;
+        }
+
+        Kdu_coords imageSize = aImageDims.Access_size();
+        Kdu_coords imagePosition = aImageDims.Access_pos();
+        StringTokenizer st = new StringTokenizer(params.getRegion(), "{},");
+        int top = getOffset(st.nextToken(), imageSize.Get_y(), aReduce);
+        int left = getOffset(st.nextToken(), imageSize.Get_x(), aReduce);
+        int height = getExtent(st.nextToken(), imageSize.Get_y());
+        int width = getExtent(st.nextToken(), imageSize.Get_x());
+
+        view_dims.Access_pos().Set_y(imagePosition.Get_y() + top);
+        view_dims.Access_pos().Set_x(imagePosition.Get_x() + left);
+        view_dims.Access_size().Set_y(height);
+        view_dims.Access_size().Set_x(width);
+
+        // Clip the region to the image
+        return view_dims.Intersection(aImageDims);
+    }
+
+    private static int getOffset(String aToken, int aSize, int aReduce) {
+        if (aToken.contains(".")) {
+            return (int) Math.round(Double.parseDouble(aToken) * aSize);
+        }
+
+        return Integer.parseInt(aToken) / aReduce;
+    }
+
+    private static int getExtent(String aToken, int aSize) {
+        if (aToken.contains(".")) {
+            return (int) Math.round(Double.parseDouble(aToken) * aSize);
+        }
+
+        return Integer.parseInt(aToken);
     }
 
     private static Kdu_coords getReferenceExpansion(int reference_component,
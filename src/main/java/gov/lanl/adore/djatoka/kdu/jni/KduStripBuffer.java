@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2008  Los Alamos National Security, LLC.
+ *
+ * Los Alamos National Laboratory
+ * Research Library
+ * Digital Library Research & Prototyping Team
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.adore.djatoka.kdu.jni;
+
+import gov.lanl.adore.djatoka.DjatokaException;
+
+import java.awt.image.DataBuffer;
+
+/**
+ * The data buffer of a byte image that only holds one strip of the image's
+ * rows at a time. The strips are decoded in order, each when one of its rows
+ * is first read, so an image writer that reads the rows from top to bottom,
+ * as ImageIO's JPEG and PNG writers do, can encode an image far larger than
+ * the memory it would take to hold it. Rows above the current strip can't be
+ * read again and the buffer can't be written to.
+ * <p/>
+ * If a strip can't be decoded, the read fails with an unchecked exception,
+ * which stops the writer; the failure is kept, so it can be reported once the
+ * writer has given up.
+ */
+abstract class KduStripBuffer extends DataBuffer {
+
+    private final int myRowLength;
+
+    private final int[] myTops;
+
+    private final byte[] myStrip;
+
+    // The index of the strip that's held
+    private int myIndex = -1;
+
+    private DjatokaException myFailure;
+
+    /**
+     * Creates a buffer for an image that's decoded in strips.
+     *
+     * @param aRowLength The number of bytes in a row of the image
+     * @param aTops The first row of each strip, in order, followed by the
+     *        image's height
+     */
+    KduStripBuffer(int aRowLength, int[] aTops) {
+        super(TYPE_BYTE, aRowLength * aTops[aTops.length - 1]);
+
+        int rows = 0;
+
+        for (int index = 1; index < aTops.length; index++) {
+            rows = Math.max(rows, aTops[index] - aTops[index - 1]);
+        }
+
+        myRowLength = aRowLength;
+        myTops = aTops;
+        myStrip = new byte[aRowLength * rows];
+    }
+
+    /**
+     * Decodes the next strip of the image.
+     *
+     * @param aTop The strip's first row
+     * @param aRows The number of rows in the strip
+     * @param aStrip The array to decode the rows into, from its start
+     * @throws DjatokaException If the strip can't be decoded
+     */
+    protected abstract void decode(int aTop, int aRows, byte[] aStrip)
+            throws DjatokaException;
+
+    /**
+     * Gets the number of strips the image is decoded in.
+     *
+     * @return The number of strips
+     */
+    int getStripCount() {
+        return myTops.length - 1;
+    }
+
+    /**
+     * Gets the reason a strip couldn't be decoded.
+     *
+     * @return The failure, or null if every strip that's been read was
+     *         decoded
+     */
+    DjatokaException getFailure() {
+        return myFailure;
+    }
+
+    @Override
+    public int getElem(int aBank, int aIndex) {
+        int row = aIndex / myRowLength;
+
+        if (myIndex < 0 || row >= myTops[myIndex + 1]) {
+            load(row);
+        } else if (row < myTops[myIndex]) {
+            throw new IllegalStateException("Row " + row +
+                    " has already been read");
+        }
+
+        return myStrip[aIndex - myTops[myIndex] * myRowLength] & 0xff;
+    }
+
+    @Override
+    public void setElem(int aBank, int aIndex, int aValue) {
+        throw new UnsupportedOperationException("Strips are read only");
+    }
+
+    private void load(int aRow) {
+        if (myFailure != null) {
+            throw new IllegalStateException(myFailure.getMessage(), myFailure);
+        }
+
+        while (aRow >= myTops[myIndex + 1]) {
+            int top = myTops[++myIndex];
+
+            try {
+                decode(top, myTops[myIndex + 1] - top, myStrip);
+            } catch (DjatokaException details) {
+                myFailure = details;
+                throw new IllegalStateException(details.getMessage(), details);
+            }
+        }
+    }
+}
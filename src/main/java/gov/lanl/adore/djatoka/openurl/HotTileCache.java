@@ -0,0 +1,450 @@
+/*
+ * Copyright (c) 2008  Los Alamos National Security, LLC.
+ *
+ * Los Alamos National Laboratory
+ * Research Library
+ * Digital Library Research & Prototyping Team
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.adore.djatoka.openurl;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded, in-memory cache of recently served encoded tiles that sits in
+ * front of the file-based {@link TileCacheManager}. Tiles are stored off-heap
+ * in direct <code>ByteBuffer</code> slabs that are carved into fixed size
+ * blocks, so a large cache doesn't add to the heap the garbage collector has
+ * to walk. Like the file cache, keys are spread across independently locked
+ * LRU segments; each segment owns its own slab.
+ */
+public class HotTileCache {
+
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(HotTileCache.class);
+
+    /** The default size of the blocks the slabs are divided into */
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    private static final int STRIPES = 16;
+
+    private final List<Segment> mySegments;
+
+    private final int mySegmentMask;
+
+    private final int myBlockSize;
+
+    private final long myMaxBytes;
+
+    private final int myMaxTileBytes;
+
+    private final AtomicLong myBytes = new AtomicLong();
+
+    private final AtomicLong myHits = new AtomicLong();
+
+    private final AtomicLong myMisses = new AtomicLong();
+
+    private final AtomicLong myEvictions = new AtomicLong();
+
+    /**
+     * Creates an in-memory tile cache that holds up to the supplied number of
+     * bytes of encoded tiles.
+     *
+     * @param aMaxBytes The maximum number of bytes of tiles to keep in memory
+     */
+    public HotTileCache(long aMaxBytes) {
+        this(aMaxBytes, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates an in-memory tile cache that holds up to the supplied number of
+     * bytes of encoded tiles, stored in blocks of the supplied size.
+     *
+     * @param aMaxBytes The maximum number of bytes of tiles to keep in memory
+     * @param aBlockSize The size of the blocks that tiles are stored in
+     */
+    public HotTileCache(long aMaxBytes, int aBlockSize) {
+        long segmentBytes = aMaxBytes / STRIPES;
+        int blocks;
+
+        if (aBlockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive");
+        }
+
+        blocks = (int) Math.min(Integer.MAX_VALUE / aBlockSize,
+                Math.max(1, segmentBytes / aBlockSize));
+
+        myBlockSize = aBlockSize;
+        myMaxBytes = (long) blocks * aBlockSize * STRIPES;
+        mySegmentMask = STRIPES - 1;
+        mySegments = new ArrayList<Segment>(STRIPES);
+
+        // Don't let one large tile push out a whole segment of small ones
+        myMaxTileBytes = Math.max(aBlockSize, blocks * aBlockSize / 4);
+
+        for (int index = 0; index < STRIPES; index++) {
+            mySegments.add(new Segment(blocks));
+        }
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Allocated {} bytes of off-heap tile cache",
+                    myMaxBytes);
+        }
+    }
+
+    /**
+     * Gets a copy of the tile stored under the supplied key.
+     *
+     * @param aKey The key of the tile to retrieve
+     * @return The tile's bytes or null if the tile isn't in the cache
+     */
+    public byte[] get(String aKey) {
+        byte[] bytes = segmentFor(aKey).get(aKey);
+
+        if (bytes == null) {
+            myMisses.incrementAndGet();
+        } else {
+            myHits.incrementAndGet();
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Puts a copy of the supplied tile into the cache. Tiles that are too
+     * large to share a segment with other tiles aren't cached.
+     *
+     * @param aKey The key of the tile to store
+     * @param aBytes The tile's bytes
+     * @return True if the tile was stored; else, false
+     */
+    public boolean put(String aKey, byte[] aBytes) {
+        if (aBytes == null || !accepts(aBytes.length)) {
+            return false;
+        }
+
+        return segmentFor(aKey).put(aKey, aBytes);
+    }
+
+    /**
+     * Returns true if a tile of the supplied size can be stored in the cache;
+     * else, false.
+     *
+     * @param aSize The size of a tile in bytes
+     * @return True if a tile of the supplied size can be cached
+     */
+    public boolean accepts(long aSize) {
+        return aSize > 0 && aSize <= myMaxTileBytes;
+    }
+
+    /**
+     * Removes the tile stored under the supplied key.
+     *
+     * @param aKey The key of the tile to remove
+     * @return True if a tile was removed; else, false
+     */
+    public boolean remove(String aKey) {
+        return segmentFor(aKey).remove(aKey);
+    }
+
+    /**
+     * Returns true if a tile is stored under the supplied key; else, false.
+     *
+     * @param aKey The key to query the cache about
+     * @return True if the key is found; else, false
+     */
+    public boolean containsKey(String aKey) {
+        return segmentFor(aKey).containsKey(aKey);
+    }
+
+    /**
+     * Gets the number of tiles in the cache.
+     *
+     * @return The number of tiles in the cache
+     */
+    public int size() {
+        int size = 0;
+
+        for (Segment segment : mySegments) {
+            size += segment.size();
+        }
+
+        return size;
+    }
+
+    /**
+     * Gets the number of bytes of tiles in the cache.
+     *
+     * @return The number of bytes of tiles in the cache
+     */
+    public long getByteSize() {
+        return myBytes.get();
+    }
+
+    /**
+     * Gets the number of bytes of off-heap memory set aside for the cache.
+     *
+     * @return The maximum number of bytes the cache can hold
+     */
+    public long getMaxByteSize() {
+        return myMaxBytes;
+    }
+
+    /**
+     * Gets the number of requests that were answered from the cache.
+     *
+     * @return The number of cache hits
+     */
+    public long getHitCount() {
+        return myHits.get();
+    }
+
+    /**
+     * Gets the number of requests that weren't answered from the cache.
+     *
+     * @return The number of cache misses
+     */
+    public long getMissCount() {
+        return myMisses.get();
+    }
+
+    /**
+     * Gets the number of tiles that have been evicted from the cache.
+     *
+     * @return The number of evicted tiles
+     */
+    public long getEvictionCount() {
+        return myEvictions.get();
+    }
+
+    /**
+     * Clears the cache.
+     */
+    public void clear() {
+        for (Segment segment : mySegments) {
+            segment.clear();
+        }
+    }
+
+    private Segment segmentFor(Object aKey) {
+        int hash = aKey.hashCode();
+
+        // Spread the hash bits so similar keys don't share a segment
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+
+        return mySegments.get(hash & mySegmentMask);
+    }
+
+    /**
+     * An independently locked LRU segment with its own off-heap slab.
+     */
+    private final class Segment {
+
+        private final ReentrantLock myLock = new ReentrantLock();
+
+        private final LinkedHashMap<String, Tile> myTiles;
+
+        private final ByteBuffer mySlab;
+
+        private final int[] myFreeBlocks;
+
+        private int myFreeCount;
+
+        private Segment(int aBlockCount) {
+            myTiles = new LinkedHashMap<String, Tile>(16, 0.75F, true);
+            mySlab = ByteBuffer.allocateDirect(aBlockCount * myBlockSize);
+            myFreeBlocks = new int[aBlockCount];
+
+            for (int index = 0; index < aBlockCount; index++) {
+                myFreeBlocks[index] = aBlockCount - index - 1;
+            }
+
+            myFreeCount = aBlockCount;
+        }
+
+        private byte[] get(String aKey) {
+            myLock.lock();
+
+            try {
+                Tile tile = myTiles.get(aKey);
+
+                if (tile == null) {
+                    return null;
+                }
+
+                byte[] bytes = new byte[tile.myLength];
+                int offset = 0;
+
+                for (int block : tile.myBlocks) {
+                    int length = Math.min(myBlockSize, bytes.length - offset);
+
+                    mySlab.limit(block * myBlockSize + length);
+                    mySlab.position(block * myBlockSize);
+                    mySlab.get(bytes, offset, length);
+                    offset += length;
+                }
+
+                return bytes;
+            } finally {
+                myLock.unlock();
+            }
+        }
+
+        private boolean put(String aKey, byte[] aBytes) {
+            int needed = (aBytes.length + myBlockSize - 1) / myBlockSize;
+            int evicted = 0;
+
+            myLock.lock();
+
+            try {
+                Tile old = myTiles.remove(aKey);
+
+                if (old != null) {
+                    free(old);
+                }
+
+                Iterator<Map.Entry<String, Tile>> iterator =
+                        myTiles.entrySet().iterator();
+
+                while (myFreeCount < needed && iterator.hasNext()) {
+                    Tile eldest = iterator.next().getValue();
+
+                    iterator.remove();
+                    free(eldest);
+                    evicted += 1;
+                }
+
+                if (myFreeCount < needed) {
+                    return false;
+                }
+
+                int[] blocks = new int[needed];
+                int offset = 0;
+
+                for (int index = 0; index < needed; index++) {
+                    int block = myFreeBlocks[--myFreeCount];
+                    int length = Math.min(myBlockSize, aBytes.length - offset);
+
+                    mySlab.limit(block * myBlockSize + length);
+                    mySlab.position(block * myBlockSize);
+                    mySlab.put(aBytes, offset, length);
+                    blocks[index] = block;
+                    offset += length;
+                }
+
+                myTiles.put(aKey, new Tile(blocks, aBytes.length));
+                myBytes.addAndGet(aBytes.length);
+
+                return true;
+            } finally {
+                myLock.unlock();
+
+                if (evicted > 0) {
+                    myEvictions.addAndGet(evicted);
+                }
+            }
+        }
+
+        private boolean remove(String aKey) {
+            myLock.lock();
+
+            try {
+                Tile tile = myTiles.remove(aKey);
+
+                if (tile != null) {
+                    free(tile);
+                    return true;
+                }
+
+                return false;
+            } finally {
+                myLock.unlock();
+            }
+        }
+
+        private boolean containsKey(String aKey) {
+            myLock.lock();
+
+            try {
+                return myTiles.containsKey(aKey);
+            } finally {
+                myLock.unlock();
+            }
+        }
+
+        private int size() {
+            myLock.lock();
+
+            try {
+                return myTiles.size();
+            } finally {
+                myLock.unlock();
+            }
+        }
+
+        private void clear() {
+            myLock.lock();
+
+            try {
+                for (Tile tile : myTiles.values()) {
+                    free(tile);
+                }
+
+                myTiles.clear();
+            } finally {
+                myLock.unlock();
+            }
+        }
+
+        // Must be called with the segment's lock held
+        private void free(Tile aTile) {
+            for (int block : aTile.myBlocks) {
+                myFreeBlocks[myFreeCount++] = block;
+            }
+
+            myBytes.addAndGet(-aTile.myLength);
+        }
+    }
+
+    /**
+     * The slab blocks a tile is stored in and the tile's length in bytes.
+     */
+    private static final class Tile {
+
+        private final int[] myBlocks;
+
+        private final int myLength;
+
+        private Tile(int[] aBlocks, int aLength) {
+            myBlocks = aBlocks;
+            myLength = aLength;
+        }
+    }
+}
@@ -21,17 +21,28 @@
 
 package gov.lanl.adore.djatoka.openurl;
 
+import info.freelibrary.djatoka.util.AdmissionPolicy;
+import info.freelibrary.djatoka.util.CacheBackend;
+import info.freelibrary.djatoka.util.CacheMetrics;
+import info.freelibrary.djatoka.util.ConditionalGet;
+import info.freelibrary.djatoka.util.LocalCacheBackend;
+import info.freelibrary.djatoka.util.PeerRequest;
+import info.freelibrary.djatoka.util.TileKey;
 import info.freelibrary.djatoka.view.IdentifierResolver;
-import info.freelibrary.djatoka.util.CacheUtils;
+import info.freelibrary.djatoka.view.ViewCache;
 
 import gov.lanl.adore.djatoka.DjatokaDecodeParam;
 import gov.lanl.adore.djatoka.DjatokaException;
 import gov.lanl.adore.djatoka.DjatokaExtractProcessor;
+import gov.lanl.adore.djatoka.IExtract;
 import gov.lanl.adore.djatoka.io.FormatConstants;
 import gov.lanl.adore.djatoka.kdu.KduExtractExe;
+import gov.lanl.adore.djatoka.kdu.jni.KduCodestreamPool;
+import gov.lanl.adore.djatoka.kdu.jni.KduExtractPool;
 import gov.lanl.adore.djatoka.plugin.ITransformPlugIn;
 import gov.lanl.adore.djatoka.util.IOUtils;
 import gov.lanl.adore.djatoka.util.ImageRecord;
+import gov.lanl.adore.djatoka.util.ImageRecordCache;
 
 import gov.lanl.util.HttpDate;
 
@@ -49,15 +60,21 @@ import info.openurl.oom.entities.Requester;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.security.MessageDigest;
 import java.util.HashMap;
-import java.util.Map;
 import java.util.Properties;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.oclc.oomRef.descriptors.ByValueMetadataImpl;
@@ -97,15 +114,67 @@ public class OpenURLJP2KService implements Service, FormatConstants {
     private static final String PROPS_KEY_CACHE_SIZE =
             "OpenURLJP2KService.cacheSize";
 
+    private static final String PROPS_KEY_CACHE_MAX_BYTES =
+            "OpenURLJP2KService.cacheMaxBytes";
+
+    private static final String PROPS_KEY_MEMORY_CACHE_MAX_BYTES =
+            "OpenURLJP2KService.memoryCacheMaxBytes";
+
+    private static final String PROPS_KEY_CACHE_ADMISSION =
+            "OpenURLJP2KService.cacheAdmissionPolicy";
+
+    private static final String PROPS_KEY_CACHE_BACKEND =
+            "OpenURLJP2KService.cacheBackend";
+
+    private static final String PROPS_KEY_CACHE_WRITE_QUEUE =
+            "OpenURLJP2KService.cacheWriteQueueSize";
+
+    private static final String PROPS_KEY_NATIVE_EXTRACT =
+            "OpenURLJP2KService.nativeExtract";
+
+    private static final String PROPS_KEY_EXTRACT_THREADS =
+            "OpenURLJP2KService.extractThreads";
+
+    private static final String PROPS_KEY_CODESTREAM_POOL_SIZE =
+            "OpenURLJP2KService.codestreamPoolSize";
+
+    private static final String PROPS_KEY_CODESTREAM_POOL_MAX_BYTES =
+            "OpenURLJP2KService.codestreamPoolMaxBytes";
+
+    private static final String PROPS_KEY_CODESTREAM_IDLE_TIMEOUT =
+            "OpenURLJP2KService.codestreamIdleTimeout";
+
+    private static final String PROPS_KEY_METADATA_CACHE_SIZE =
+            "OpenURLJP2KService.metadataCacheSize";
+
     private static final String PROP_KEY_CACHE_MAX_PIXELS =
             "OpenURLJP2KService.cacheImageMaxPixels";
 
     private static final String SVC_ID = "info:lanl-repo/svc/getRegion";
 
-    private static final String DEFAULT_CACHE_SIZE = "1000";
+    private static final String DEFAULT_CACHE_SIZE = "0";
+
+    private static final String DEFAULT_CACHE_MAX_BYTES = "536870912";
+
+    private static final String DEFAULT_MEMORY_CACHE_MAX_BYTES = "67108864";
+
+    private static final String DEFAULT_CACHE_WRITE_QUEUE = "256";
+
+    private static final String DEFAULT_CODESTREAM_POOL_SIZE = "64";
+
+    private static final String DEFAULT_CODESTREAM_POOL_MAX_BYTES =
+            "134217728";
+
+    private static final String DEFAULT_CODESTREAM_IDLE_TIMEOUT = "60";
 
     private static final int DEFAULT_CACHE_MAXPIXELS = 100000;
 
+    // How long shutdown waits for queued tiles to reach the tile cache
+    private static final long SHUTDOWN_TIMEOUT = 10000;
+
+    // Used to guess how many tiles a cache bounded by bytes will hold
+    private static final long AVERAGE_TILE_BYTES = 16384;
+
     private static String implClass = null;
 
     private static Properties props = new Properties();
@@ -122,10 +191,29 @@ public class OpenURLJP2KService implements Service, FormatConstants {
 
     private static TileCacheManager<String, String> tileCache;
 
+    private static HotTileCache hotTiles;
+
+    private static TileCacheIndex tileIndex;
+
+    private static TileCacheWriter tileWriter;
+
+    private static CacheMetrics tileMetrics;
+
+    private static CacheBackend backend = new LocalCacheBackend();
+
+    private static IExtract extractImpl;
+
     private static DjatokaExtractProcessor extractor;
 
     private static int maxPixels = DEFAULT_CACHE_MAXPIXELS;
 
+    private static final ConcurrentMap<String, FutureTask<RenderedTile>>
+            renders = new ConcurrentHashMap<String, FutureTask<RenderedTile>>();
+
+    private static final AtomicLong renderCount = new AtomicLong();
+
+    private static final AtomicLong coalescedCount = new AtomicLong();
+
     /**
      * Construct an info:lanl-repo/svc/getRegion web service class. Initializes
      * Referent Resolver instance using OpenURLJP2KService.referentResolverImpl
@@ -158,7 +246,53 @@ public class OpenURLJP2KService implements Service, FormatConstants {
                     int cacheSize =
                             Integer.parseInt(props.getProperty(
                                     PROPS_KEY_CACHE_SIZE, DEFAULT_CACHE_SIZE));
-                    tileCache = new TileCacheManager<String, String>(cacheSize);
+                    long cacheMaxBytes =
+                            Long.parseLong(props.getProperty(
+                                    PROPS_KEY_CACHE_MAX_BYTES,
+                                    DEFAULT_CACHE_MAX_BYTES));
+                    long memoryCacheMaxBytes =
+                            Long.parseLong(props.getProperty(
+                                    PROPS_KEY_MEMORY_CACHE_MAX_BYTES,
+                                    DEFAULT_MEMORY_CACHE_MAX_BYTES));
+                    tileCache =
+                            new TileCacheManager<String, String>(
+                                    cacheMaxBytes, cacheSize);
+                    if (props.getProperty(PROPS_KEY_CACHE_ADMISSION) != null) {
+                        String policyClass =
+                                props.getProperty(PROPS_KEY_CACHE_ADMISSION);
+                        AdmissionPolicy policy =
+                                (AdmissionPolicy) Class.forName(policyClass)
+                                        .newInstance();
+                        long tiles =
+                                cacheSize > 0 ? cacheSize : cacheMaxBytes /
+                                        AVERAGE_TILE_BYTES;
+                        policy.setCapacity((int) Math.min(tiles,
+                                Integer.MAX_VALUE));
+                        tileCache.setAdmissionPolicy(policy);
+                    }
+                    if (memoryCacheMaxBytes > 0) {
+                        hotTiles = new HotTileCache(memoryCacheMaxBytes);
+                    }
+                    if (cacheDir != null) {
+                        loadTileCacheIndex(new File(cacheDir));
+                    }
+                    tileWriter =
+                            new TileCacheWriter(cacheDir == null ? null
+                                    : new File(cacheDir), tileCache,
+                                    tileIndex, Integer.parseInt(props
+                                            .getProperty(
+                                                    PROPS_KEY_CACHE_WRITE_QUEUE,
+                                                    DEFAULT_CACHE_WRITE_QUEUE)));
+                    registerMetrics();
+                    if (props.getProperty(PROPS_KEY_CACHE_BACKEND) != null) {
+                        String backendClass =
+                                props.getProperty(PROPS_KEY_CACHE_BACKEND);
+                        CacheBackend cacheBackend =
+                                (CacheBackend) Class.forName(backendClass)
+                                        .newInstance();
+                        cacheBackend.setProperties(props);
+                        backend = cacheBackend;
+                    }
                 }
                 if (props.getProperty(PROPS_KEY_TRANSFORM) != null) {
                     transformCheck = true;
@@ -168,12 +302,16 @@ public class OpenURLJP2KService implements Service, FormatConstants {
                                     .newInstance();
                     transform.setup(props);
                 }
+                ImageRecordCache.setMaxSize(Integer.parseInt(props
+                        .getProperty(PROPS_KEY_METADATA_CACHE_SIZE, Integer
+                                .toString(ImageRecordCache.DEFAULT_MAX_SIZE))));
                 if (props.getProperty(PROP_KEY_CACHE_MAX_PIXELS) != null) {
                     maxPixels =
                             Integer.parseInt(props
                                     .getProperty(PROP_KEY_CACHE_MAX_PIXELS));
                 }
-                extractor = new DjatokaExtractProcessor(new KduExtractExe());
+                extractImpl = createExtractImpl();
+                extractor = new DjatokaExtractProcessor(extractImpl);
                 init = true;
             }
         } catch (IOException e) {
@@ -190,6 +328,156 @@ public class OpenURLJP2KService implements Service, FormatConstants {
         }
     }
 
+    /**
+     * Writes the tiles that are waiting to go into the tile cache and closes
+     * the cache's index, so the next start finds the cache as it was left.
+     * This is called when the OpenURL servlet is taken out of service.
+     */
+    public static void shutdown() {
+        if (tileWriter != null) {
+            try {
+                if (!tileWriter.close(SHUTDOWN_TIMEOUT) &&
+                        LOGGER.isWarnEnabled()) {
+                    LOGGER.warn("{} tiles weren't written to the tile cache",
+                            tileWriter.getPendingCount());
+                }
+            } catch (InterruptedException details) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (tileIndex != null) {
+            tileIndex.close();
+        }
+    }
+
+    /**
+     * Creates the extractor that decodes regions: the native, in-process
+     * decoder unless it's turned off or the Kakadu native library can't be
+     * linked, with the kdu_expand bridge to fall back on.
+     */
+    private static IExtract createExtractImpl() {
+        IExtract exe = new KduExtractExe();
+
+        if (!Boolean.parseBoolean(props.getProperty(PROPS_KEY_NATIVE_EXTRACT,
+                "true"))) {
+            return exe;
+        }
+
+        if (!KduExtractPool.isAvailable()) {
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Kakadu native library not found; using {}",
+                        KduExtractExe.KDU_EXPAND_EXE);
+            }
+
+            return exe;
+        }
+
+        int threads =
+                Integer.parseInt(props.getProperty(PROPS_KEY_EXTRACT_THREADS,
+                        "0"));
+        int poolSize =
+                Integer.parseInt(props.getProperty(
+                        PROPS_KEY_CODESTREAM_POOL_SIZE,
+                        DEFAULT_CODESTREAM_POOL_SIZE));
+        long poolMaxBytes =
+                Long.parseLong(props.getProperty(
+                        PROPS_KEY_CODESTREAM_POOL_MAX_BYTES,
+                        DEFAULT_CODESTREAM_POOL_MAX_BYTES));
+        long idleTimeout =
+                Long.parseLong(props.getProperty(
+                        PROPS_KEY_CODESTREAM_IDLE_TIMEOUT,
+                        DEFAULT_CODESTREAM_IDLE_TIMEOUT));
+        KduCodestreamPool codestreams =
+                new KduCodestreamPool(poolSize, poolMaxBytes, idleTimeout);
+
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        return new KduExtractPool(threads, codestreams, exe);
+    }
+
+    private static void registerMetrics() {
+        tileMetrics = CacheMetrics.register(new CacheMetrics("tileCache") {
+
+            @Override
+            public long getSize() {
+                return tileCache.size();
+            }
+
+            @Override
+            public long getByteSize() {
+                return tileCache.getByteSize();
+            }
+
+            @Override
+            public long getEvictionCount() {
+                return tileCache.getEvictionCount();
+            }
+        });
+
+        if (hotTiles != null) {
+            // The memory tier counts its own hits and misses
+            CacheMetrics.register(new CacheMetrics("hotTileCache") {
+
+                @Override
+                public long getHitCount() {
+                    return hotTiles.getHitCount();
+                }
+
+                @Override
+                public long getMissCount() {
+                    return hotTiles.getMissCount();
+                }
+
+                @Override
+                public double getHitRatio() {
+                    long hits = hotTiles.getHitCount();
+                    long lookups = hits + hotTiles.getMissCount();
+
+                    return lookups == 0 ? 0 : (double) hits / lookups;
+                }
+
+                @Override
+                public long getSize() {
+                    return hotTiles.size();
+                }
+
+                @Override
+                public long getByteSize() {
+                    return hotTiles.getByteSize();
+                }
+
+                @Override
+                public long getEvictionCount() {
+                    return hotTiles.getEvictionCount();
+                }
+            });
+        }
+    }
+
+    private static void loadTileCacheIndex(File aCacheDir) {
+        if (!aCacheDir.exists() && !aCacheDir.mkdirs()) {
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Dirs not created: {}", aCacheDir);
+            }
+
+            return;
+        }
+
+        tileIndex = new TileCacheIndex(aCacheDir, tileCache);
+
+        try {
+            tileIndex.load();
+        } catch (IOException details) {
+            LOGGER.error("Unable to load the tile cache index; tiles won't " +
+                    "survive a restart", details);
+            tileIndex.close();
+            tileIndex = null;
+        }
+    }
+
     /**
      * Returns the OpenURL service identifier for this implementation of
      * info.openurl.oom.Service
@@ -199,13 +487,99 @@ public class OpenURLJP2KService implements Service, FormatConstants {
     }
 
     /**
-     * Removes a tile from the tile cache.
+     * Removes a tile from the tile cache. The tile's file is left in place
+     * since callers move it into a more permanent cache.
      * 
      * @param aCacheID The ID of the tile in the cache
      * @return True if the tile was successfully removed; else, false
      */
     public static boolean removeFromTileCache(String aCacheID) {
-        return tileCache.remove(aCacheID) != null;
+        if (tileCache.release(aCacheID) == null) {
+            return false;
+        }
+
+        if (tileIndex != null) {
+            tileIndex.remove(aCacheID);
+        }
+
+        return true;
+    }
+
+    /**
+     * Gets the number of tiles that have been rendered for the tile cache.
+     *
+     * @return The number of tile renders
+     */
+    public static long getTileRenderCount() {
+        return renderCount.get();
+    }
+
+    /**
+     * Gets the number of requests that waited on an identical in-flight tile
+     * render instead of rendering the tile themselves.
+     *
+     * @return The number of coalesced tile requests
+     */
+    public static long getCoalescedRequestCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Gets the number of tiles that are currently being rendered.
+     *
+     * @return The number of in-flight tile renders
+     */
+    public static int getInFlightRenderCount() {
+        return renders.size();
+    }
+
+    /**
+     * Gets the tile cache, or null if tile caching isn't enabled or the
+     * service hasn't been initialized yet.
+     *
+     * @return The tile cache
+     */
+    public static TileCacheManager<String, String> getTileCache() {
+        return tileCache;
+    }
+
+    /**
+     * Gets the in-memory tile cache that sits in front of the tile cache, or
+     * null if it isn't enabled or the service hasn't been initialized yet.
+     *
+     * @return The in-memory tile cache
+     */
+    public static HotTileCache getHotTileCache() {
+        return hotTiles;
+    }
+
+    /**
+     * Gets the background writer that puts rendered tiles into the tile cache,
+     * or null if tile caching isn't enabled or the service hasn't been
+     * initialized yet.
+     *
+     * @return The tile cache writer
+     */
+    public static TileCacheWriter getTileCacheWriter() {
+        return tileWriter;
+    }
+
+    /**
+     * Gets the extractor that decodes regions of the JPEG 2000 images.
+     *
+     * @return The region extractor
+     */
+    public static IExtract getExtractImpl() {
+        return extractImpl;
+    }
+
+    /**
+     * Gets the backend that decides which node caches each tile.
+     *
+     * @return The tile cache backend
+     */
+    public static CacheBackend getCacheBackend() {
+        return backend;
     }
 
     /**
@@ -222,12 +596,10 @@ public class OpenURLJP2KService implements Service, FormatConstants {
         String format = "image/jpeg";
         int status = HttpServletResponse.SC_OK;
         HashMap<String, String> kev = setServiceValues(contextObject);
-        DjatokaDecodeParam params = new DjatokaDecodeParam();
-        String id = null;
+        DjatokaDecodeParam params =
+                TileKey.getDecodeParam(kev.get("level"), kev.get("region"),
+                        kev.get("scale"), kev.get("rotate"), kev.get("clayer"));
 
-        if (kev.containsKey("region")) {
-            params.setRegion(kev.get("region"));
-        }
         if (kev.containsKey("format")) {
             format = kev.get("format");
             if (!format.startsWith("image")) {
@@ -235,39 +607,13 @@ public class OpenURLJP2KService implements Service, FormatConstants {
                 format = "image/jpeg";
             }
         }
-        if (kev.containsKey("level")) {
-            params.setLevel(Integer.parseInt(kev.get("level")));
-        }
-        if (kev.containsKey("rotate")) {
-            params.setRotationDegree(Integer.parseInt(kev.get("rotate")));
-        }
-        if (kev.containsKey("scale")) {
-            String[] v = kev.get("scale").split(",");
-            if (v.length == 1) {
-                if (v[0].contains(".")) {
-                    params.setScalingFactor(Double.parseDouble(v[0]));
-                } else {
-                    int[] dims = new int[] {
-                        -1, Integer.parseInt(v[0])
-                    };
-                    params.setScalingDimensions(dims);
-                }
-            } else if (v.length == 2) {
-                int[] dims = new int[] {
-                    Integer.parseInt(v[0]), Integer.parseInt(v[1])
-                };
-                params.setScalingDimensions(dims);
-            }
-        }
-        if (kev.containsKey("clayer") && kev.get("clayer") != null) {
-            int clayer = Integer.parseInt(kev.get("clayer"));
-            if (clayer > 0) {
-                params.setCompositingLayer(clayer);
-            }
-        }
         responseFormat = format;
 
         byte[] bytes = null;
+        FileInputStream tileStream = null;
+        long tileLength = 0;
+        String eTag = null;
+        long lastModified = 0;
 
         if (params.getRegion() != null && params.getRegion().contains("-")) {
             try {
@@ -322,7 +668,35 @@ public class OpenURLJP2KService implements Service, FormatConstants {
                         }
                         params.setTransform(transform);
                     }
-                    if (!cacheTiles || !isCacheable(params)) {
+
+                    HttpServletRequest request = ConditionalGet.getRequest();
+                    String ext = getExtension(format);
+                    TileKey key =
+                            TileKey.create(r.getIdentifier(), params, ext,
+                                    getImageInfo(r));
+
+                    // Validators come from the source image, not the tile,
+                    // so they can be checked before the tile is looked up
+                    if (request != null && r.getImageFile() != null &&
+                            !isPersonalized()) {
+                        File source = new File(r.getImageFile());
+
+                        if ((lastModified = source.lastModified()) != 0) {
+                            eTag =
+                                    ConditionalGet.getETag(source, key
+                                            .getHash());
+                        }
+                    }
+
+                    if (eTag != null &&
+                            ConditionalGet.isNotModified(request, eTag,
+                                    lastModified)) {
+                        if (LOGGER.isDebugEnabled()) {
+                            LOGGER.debug("Not modified: {}", eTag);
+                        }
+
+                        status = HttpServletResponse.SC_NOT_MODIFIED;
+                    } else if (!cacheTiles || !isCacheable(params)) {
                         if (LOGGER.isWarnEnabled()) {
                             LOGGER.warn("Not using the OpenURL layer cache");
                         }
@@ -334,72 +708,55 @@ public class OpenURLJP2KService implements Service, FormatConstants {
                         bytes = baos.toByteArray();
                         baos.close();
                     } else {
-                        String ext = getExtension(format);
-                        String hash = getTileHash(r, params);
+                        String hash = key.getHash();
                         String file = tileCache.get(hash + ext);
                         File f;
 
-                        id = r.getIdentifier();
-
-                        if (file == null || !(f = new File(file)).exists() &&
-                                f.length() > 0) {
-                            if (cacheDir != null) {
-                                File cacheDirFile = new File(cacheDir);
-
-                                // If our cache dir doesn't exist, create it
-                                if (!cacheDirFile.exists()) {
-                                    if (!cacheDirFile.mkdirs() &&
-                                            LOGGER.isWarnEnabled()) {
-                                        LOGGER.warn("Dirs not created: {}",
-                                                cacheDirFile);
-                                    }
-                                }
-
-                                f =
-                                        File.createTempFile("cache" +
-                                                hash.hashCode() + "-", "." +
-                                                ext, cacheDirFile);
-                            } else {
-                                f =
-                                        File.createTempFile("cache" +
-                                                hash.hashCode() + "-", "." +
-                                                ext);
+                        if (hotTiles != null &&
+                                (bytes = hotTiles.get(hash + ext)) != null) {
+                            if (LOGGER.isDebugEnabled()) {
+                                LOGGER.debug("hotTileCache: {} {}", hash +
+                                        ext, bytes.length);
                             }
 
+                            djatokaCacheFile = file;
+                        } else if (file == null &&
+                                (bytes = getFromPeer(hash + ext)) != null) {
                             if (LOGGER.isDebugEnabled()) {
-                                LOGGER.debug("Temp file created: {}", f);
+                                LOGGER.debug("peerCache: {} {}", hash + ext,
+                                        bytes.length);
                             }
 
-                            f.deleteOnExit();
-                            file = f.getAbsolutePath();
-                            djatokaCacheFile = file;
+                            if (hotTiles != null) {
+                                hotTiles.put(hash + ext, bytes);
+                            }
+                        } else if (file == null ||
+                                !(f = new File(file)).exists() ||
+                                f.length() == 0) {
+                            tileMetrics.recordMiss();
 
-                            extractor.extractImage(r.getImageFile(), file,
-                                    params, format);
-
-                            if (tileCache.get(hash + ext) == null) {
-                                tileCache.put(hash + ext, file);
-                                bytes = IOUtils.getBytesFromFile(f);
-
-                                if (LOGGER.isDebugEnabled()) {
-                                    LOGGER.debug("makingTile: " + file + " " +
-                                            bytes.length + " params: " + params);
-                                }
-                            } else {
-                                // Handles simultaneous request on separate
-                                // thread, ignores cache.
-                                bytes = IOUtils.getBytesFromFile(f);
-
-                                if (!f.delete() && LOGGER.isWarnEnabled()) {
-                                    LOGGER.warn("File not deleted: {}", f);
-                                }
-
-                                if (LOGGER.isDebugEnabled()) {
-                                    LOGGER.debug("tempTile: " + file + " " +
-                                            bytes.length + " params: " + params);
-                                }
+                            RenderedTile tile =
+                                    renderTile(r, params, format, hash, ext);
+
+                            bytes = tile.bytes;
+                            djatokaCacheFile = tile.file;
+                        } else if (!ViewCache.hasTarget() &&
+                                (hotTiles == null ||
+                                        !hotTiles.accepts(f.length()))) {
+                            tileMetrics.recordHit();
+
+                            // Let the servlet send the file without copying it
+                            tileStream = new FileInputStream(f);
+                            tileLength = tileStream.getChannel().size();
+
+                            if (LOGGER.isDebugEnabled()) {
+                                LOGGER.debug("tileCache: {} {}", file,
+                                        tileLength);
                             }
+
+                            djatokaCacheFile = file;
                         } else {
+                            tileMetrics.recordHit();
                             bytes = IOUtils.getBytesFromFile(new File(file));
 
                             if (LOGGER.isDebugEnabled()) {
@@ -407,8 +764,18 @@ public class OpenURLJP2KService implements Service, FormatConstants {
                                         bytes.length);
                             }
 
+                            if (hotTiles != null) {
+                                hotTiles.put(hash + ext, bytes);
+                            }
+
                             djatokaCacheFile = file;
                         }
+
+                        if (ViewCache.hasTarget() &&
+                                backend.isLocal(hash + ext)) {
+                            publishToViewCache(hash + ext, djatokaCacheFile,
+                                    bytes);
+                        }
                     }
                 } else if (LOGGER.isWarnEnabled()) {
                     LOGGER.warn("Unable to retrieve ImageRecord");
@@ -431,7 +798,20 @@ public class OpenURLJP2KService implements Service, FormatConstants {
             }
         }
 
-        if (bytes == null || bytes.length == 0) {
+        if (tileStream != null && (status != HttpServletResponse.SC_OK ||
+                tileLength == 0)) {
+            try {
+                tileStream.close();
+            } catch (IOException details) {
+                LOGGER.debug(details.getMessage(), details);
+            }
+
+            tileStream = null;
+        }
+
+        if (status == HttpServletResponse.SC_NOT_MODIFIED) {
+            bytes = new byte[0];
+        } else if (tileStream == null && (bytes == null || bytes.length == 0)) {
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("No bytes found!");
             }
@@ -442,67 +822,44 @@ public class OpenURLJP2KService implements Service, FormatConstants {
         }
 
         HashMap<String, String> header_map = new HashMap<String, String>();
-        header_map.put("Content-Length", bytes.length + "");
-        header_map.put("Date", HttpDate.getHttpDate());
 
-        if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug("Getting OpenURLResponse...");
+        if (status != HttpServletResponse.SC_NOT_MODIFIED) {
+            header_map.put("Content-Length", (tileStream != null ? tileLength
+                    : bytes.length) + "");
         }
 
-        OpenURLResponse response =
-                new OpenURLResponse(status, responseFormat, bytes, header_map);
-
-        // Record where our cache file was (if we had/created one)
-        if (djatokaCacheFile != null) {
-            int[] dims = params.getScalingDimensions();
-            String scale = dims != null ? Integer.toString(dims[1]) : "";
-            String level = Integer.toString(params.getLevel());
-            String region = params.getRegion();
-            int rotation = params.getRotationDegree();
-            String ext = getExtension(format);
-            String hash;
-
-            try {
-                hash = getTileHash(id, params);
-            } catch (Exception details) {
-                if (LOGGER.isErrorEnabled()) {
-                    LOGGER.error(details.getMessage(), details);
-                }
-
-                hash = null;
-            }
-
-            String f = CacheUtils.getFileName(level, scale, region, rotation);
-            id = id + "_" + f;
+        header_map.put("Date", HttpDate.getHttpDate());
 
-            if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("OpenURL service: [ {} | {} | {} | {} ] = {}",
-                        new Object[] {
-                            level, scale, region, rotation, id
-                        });
-            }
+        if (eTag != null && (status == HttpServletResponse.SC_OK ||
+                status == HttpServletResponse.SC_NOT_MODIFIED)) {
+            header_map.put("ETag", eTag);
+            header_map.put("Last-Modified", HttpDate.getHttpDate(lastModified));
+        }
 
-            if (hash != null) {
-                Map sessionMap = response.getSessionMap();
-                String cacheName = hash + ext;
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Getting OpenURLResponse...");
+        }
 
-                if (LOGGER.isDebugEnabled()) {
-                    LOGGER.debug("Setting cache session data [ {} | {} ]",
-                            new Object[] {
-                                id, djatokaCacheFile
-                            });
-                }
+        OpenURLResponse response;
 
-                sessionMap.put(id, djatokaCacheFile);
-                sessionMap.put(djatokaCacheFile, cacheName);
-            }
-        } else if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug("djatokaCacheFile variable is null");
+        if (tileStream != null) {
+            response =
+                    new OpenURLResponse(status, responseFormat, tileStream,
+                            null, header_map);
+        } else {
+            response =
+                    new OpenURLResponse(status, responseFormat, bytes,
+                            header_map);
         }
 
         return response;
     }
 
+    private boolean isPersonalized() {
+        return transformCheck && transform != null &&
+                transform.isTransformable();
+    }
+
     private boolean isCacheable(DjatokaDecodeParam params) {
         if (transformCheck && params.getTransform().isTransformable()) {
             return false;
@@ -518,31 +875,159 @@ public class OpenURLJP2KService implements Service, FormatConstants {
         return true;
     }
 
-    private static final String getTileHash(ImageRecord r,
-            DjatokaDecodeParam params) throws Exception {
-        return getTileHash(r.getIdentifier(), params);
+    /**
+     * Gets a tile from the peer that owns it, or null if this node owns it or
+     * the owner couldn't supply it. Requests from other peers are always
+     * answered here, so a tile is never passed around the ring.
+     */
+    private static byte[] getFromPeer(String key) {
+        try {
+            return PeerRequest.fetch(backend, key);
+        } catch (IOException e) {
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Rendering {} locally: {}", key, e.getMessage());
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * Renders a tile into the tile cache. Concurrent requests for the same
+     * tile wait on the thread that's already rendering it and share its bytes
+     * instead of decoding the same region again.
+     */
+    private static RenderedTile renderTile(final ImageRecord r,
+            final DjatokaDecodeParam params, final String format,
+            final String hash, final String ext) throws Exception {
+        final String key = hash + ext;
+        FutureTask<RenderedTile> render =
+                new FutureTask<RenderedTile>(new Callable<RenderedTile>() {
+
+                    public RenderedTile call() throws Exception {
+                        return createTile(r, params, format, hash, ext);
+                    }
+                });
+        FutureTask<RenderedTile> inFlight = renders.putIfAbsent(key, render);
+
+        if (inFlight != null) {
+            coalescedCount.incrementAndGet();
+
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Waiting on in-flight tile for: {}", r
+                        .getIdentifier());
+            }
+
+            return getRenderedTile(inFlight);
+        }
+
+        renderCount.incrementAndGet();
+
+        try {
+            render.run();
+            return getRenderedTile(render);
+        } finally {
+            renders.remove(key, render);
+        }
     }
 
-    private static String getTileHash(String id, DjatokaDecodeParam params)
+    private static RenderedTile createTile(ImageRecord r,
+            DjatokaDecodeParam params, String format, String hash, String ext)
             throws Exception {
-        int level = params.getLevel();
-        String region = params.getRegion();
-        int rotateDegree = params.getRotationDegree();
-        double scalingFactor = params.getScalingFactor();
-        int[] scalingDims = params.getScalingDimensions();
-        String scale = "";
-        if (scalingDims != null && scalingDims.length == 1) {
-            scale = scalingDims[0] + "";
-        }
-        if (scalingDims != null && scalingDims.length == 2) {
-            scale = scalingDims[0] + "," + scalingDims[1];
-        }
-        int clayer = params.getCompositingLayer();
-        String rft_id =
-                id + "|" + level + "|" + region + "|" + rotateDegree + "|" +
-                        scalingFactor + "|" + scale + "|" + clayer;
-        MessageDigest complete = MessageDigest.getInstance("SHA1");
-        return new String(complete.digest(rft_id.getBytes()));
+        String file = tileCache.peek(hash + ext);
+        byte[] bytes = tileWriter.getPending(hash + ext);
+        File f;
+
+        // Another thread may have finished the tile since we last checked
+        if (bytes != null) {
+            return new RenderedTile(null, bytes);
+        } else if (file != null && (f = new File(file)).exists() &&
+                f.length() > 0) {
+            return new RenderedTile(file, IOUtils.getBytesFromFile(f));
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        long start = System.nanoTime();
+        extractor.extractImage(r.getImageFile(), baos, params, format);
+        tileMetrics.recordLoad(System.nanoTime() - start);
+        bytes = baos.toByteArray();
+
+        if (hotTiles != null) {
+            hotTiles.put(hash + ext, bytes);
+        }
+
+        // A tile bound for the view cache is published there instead, and
+        // one that another peer owns is left for it to cache
+        if (!ViewCache.hasTarget() && backend.isLocal(hash + ext) &&
+                !tileWriter.write(hash + ext, ext, bytes) &&
+                LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Not caching tile: {}", hash + ext);
+        }
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("makingTile: " + hash + ext + " " + bytes.length +
+                    " params: " + params);
+        }
+
+        return new RenderedTile(null, bytes);
+    }
+
+    /**
+     * Publishes a tile into the view cache for the view layer request that's
+     * being served on this thread. A tile that's in the tile cache is moved
+     * out of it; otherwise, the tile's bytes are written to the view cache.
+     */
+    private static void publishToViewCache(String aCacheID, String aFile,
+            byte[] aBytes) {
+        if (aFile != null && ViewCache.publish(new File(aFile))) {
+            if (!removeFromTileCache(aCacheID) && LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Unable to remove OpenURL cache file link: {}",
+                        aFile);
+            }
+        } else if (ViewCache.hasTarget() && !ViewCache.publish(aBytes) &&
+                LOGGER.isWarnEnabled()) {
+            LOGGER.warn("Unable to publish tile to the view cache: {}",
+                    aCacheID);
+        }
+    }
+
+    private static RenderedTile getRenderedTile(
+            FutureTask<RenderedTile> aRender) throws Exception {
+        try {
+            return aRender.get();
+        } catch (ExecutionException details) {
+            Throwable cause = details.getCause();
+
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            throw details;
+        }
+    }
+
+    /**
+     * Reads the source image's dimensions from its JP2 header, so the tile
+     * key can be resolved to the pixels that are rendered.
+     */
+    private static ImageRecord getImageInfo(ImageRecord r) {
+        if (r.getImageFile() == null) {
+            return null;
+        }
+
+        try {
+            return ImageRecordCache.getImageRecord(new File(r
+                    .getImageFile()));
+        } catch (IOException details) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Unable to read JP2 header: {}", details
+                        .getMessage());
+            }
+
+            return null;
+        }
     }
 
     private static final String getExtension(String mimetype) {
@@ -616,4 +1101,19 @@ public class OpenURLJP2KService implements Service, FormatConstants {
         }
         return map;
     }
+
+    /**
+     * A rendered tile's bytes and, if it was cached, the tile's file.
+     */
+    private static final class RenderedTile {
+
+        private final String file;
+
+        private final byte[] bytes;
+
+        private RenderedTile(String aFile, byte[] aBytes) {
+            file = aFile;
+            bytes = aBytes;
+        }
+    }
 }
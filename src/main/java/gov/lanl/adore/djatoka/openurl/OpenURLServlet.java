@@ -22,14 +22,21 @@ import info.openurl.oom.Transport;
 import info.openurl.oom.config.OpenURLConfig;
 import gov.lanl.util.AccessManager;
 
+import info.freelibrary.djatoka.util.ChannelUtils;
+import info.freelibrary.djatoka.util.ConditionalGet;
+import info.freelibrary.djatoka.util.PeerRequest;
+
+import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.SocketException;
 import java.net.URL;
+import java.nio.channels.FileChannel;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
@@ -151,8 +158,26 @@ public class OpenURLServlet extends HttpServlet {
             ContextObject[] coa = openURLRequest.getContextObjects();
             coa[0].getRequesters()[0].addDescriptor(req.getRemoteAddr());
 
+            // Let services answer conditional requests before decoding; a
+            // request forwarded from the view layer was checked there
+            String forward = RequestDispatcher.FORWARD_REQUEST_URI;
+
+            if (req.getAttribute(forward) == null) {
+                ConditionalGet.setRequest(req);
+            }
+
+            // Let services pass tiles that other peers own on to them
+            PeerRequest.set(req);
+
             // Process the ContextObjects
-            OpenURLResponse result = processor.resolve(openURLRequest);
+            OpenURLResponse result;
+
+            try {
+                result = processor.resolve(openURLRequest);
+            } finally {
+                ConditionalGet.clearRequest();
+                PeerRequest.clear();
+            }
 
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("OpenURLRequestProcessor resolving to a result");
@@ -183,7 +208,8 @@ public class OpenURLServlet extends HttpServlet {
 
                 Map sessionMap = result.getSessionMap();
 
-                if (sessionMap != null) {
+                // Don't create a session unless there's something to put in it
+                if (sessionMap != null && !sessionMap.isEmpty()) {
                     HttpSession session = req.getSession(true);
                     Iterator iter = sessionMap.entrySet().iterator();
 
@@ -226,6 +252,9 @@ public class OpenURLServlet extends HttpServlet {
                                 .getRedirectURL());
                     }
 
+                    break;
+                case HttpServletResponse.SC_NOT_MODIFIED:
+                    resp.setStatus(status);
                     break;
                 case HttpServletResponse.SC_NOT_FOUND:
                     String id = req.getParameter("rft_id");
@@ -243,11 +272,22 @@ public class OpenURLServlet extends HttpServlet {
                     resp.setContentType(result.getContentType());
 
                     InputStream is = result.getInputStream();
-                    byte[] bytes = new byte[1024];
-                    int len;
 
-                    while ((len = is.read(bytes)) != -1) {
-                        out.write(bytes, 0, len);
+                    try {
+                        if (is instanceof FileInputStream) {
+                            FileChannel channel =
+                                    ((FileInputStream) is).getChannel();
+                            ChannelUtils.send(channel, out);
+                        } else {
+                            byte[] bytes = new byte[1024];
+                            int len;
+
+                            while ((len = is.read(bytes)) != -1) {
+                                out.write(bytes, 0, len);
+                            }
+                        }
+                    } finally {
+                        is.close();
                     }
 
                     out.close();
@@ -267,4 +307,14 @@ public class OpenURLServlet extends HttpServlet {
             throws ServletException {
         doGet(req, resp);
     }
+
+    /**
+     * Flushes the OpenURL tile cache when the servlet is taken out of
+     * service.
+     */
+    @Override
+    public void destroy() {
+        OpenURLJP2KService.shutdown();
+        super.destroy();
+    }
 }
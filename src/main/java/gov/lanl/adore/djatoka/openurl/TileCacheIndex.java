@@ -0,0 +1,392 @@
+/*
+ * Copyright (c) 2008  Los Alamos National Security, LLC.
+ *
+ * Los Alamos National Laboratory
+ * Research Library
+ * Digital Library Research & Prototyping Team
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.adore.djatoka.openurl;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only log of the tiles in the OpenURL tile cache, kept in the
+ * cache's directory so the cache survives a restart. Each put, removal and
+ * eviction is written as a line to the log; at startup the log is replayed
+ * into the tile cache and rewritten in compact form. Replaying doesn't touch
+ * the tiles' files, so a restart with a large cache isn't held up by the file
+ * system; entries whose files have gone missing are dropped when they're next
+ * requested.
+ * <p/>
+ * Request threads only queue their records. A background thread appends them
+ * to the log, flushing it once a second, and compacts the log when it has
+ * grown to twice the size of the cache, so records written in the second
+ * before a crash may be lost.
+ */
+public class TileCacheIndex {
+
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(TileCacheIndex.class);
+
+    /** The name of the index file in the cache directory */
+    public static final String INDEX_FILE_NAME = "tile-cache.idx";
+
+    private static final String HEADER = "# djatoka tile cache index v1";
+
+    private static final String ENCODING = "UTF-8";
+
+    private static final char PUT = '+';
+
+    private static final char REMOVE = '-';
+
+    private static final char TAB = '\t';
+
+    private static final int MIN_COMPACTION_RECORDS = 10000;
+
+    private static final long FLUSH_INTERVAL = 1000;
+
+    private final Queue<String> myRecords = new ConcurrentLinkedQueue<String>();
+
+    private final File myCacheDir;
+
+    private final File myIndexFile;
+
+    private final TileCacheManager<String, String> myCache;
+
+    private ScheduledExecutorService myFlusher;
+
+    private volatile Writer myWriter;
+
+    private int myRecordCount;
+
+    /**
+     * Creates an index for the supplied tile cache in the supplied directory.
+     *
+     * @param aCacheDir The directory the cached tiles are written to
+     * @param aCache The tile cache that's being indexed
+     */
+    public TileCacheIndex(File aCacheDir,
+            TileCacheManager<String, String> aCache) {
+        myCacheDir = aCacheDir;
+        myIndexFile = new File(aCacheDir, INDEX_FILE_NAME);
+        myCache = aCache;
+    }
+
+    /**
+     * Replays the index into the tile cache, rewrites the index in compact
+     * form, and opens it for appending. From then on, the tiles the cache
+     * evicts are recorded too. Tile files in the cache directory that the
+     * index doesn't know about are deleted in the background.
+     *
+     * @return The number of tiles that were loaded into the cache
+     * @throws IOException If the index can't be read or written
+     */
+    public synchronized int load() throws IOException {
+        Map<String, Object[]> entries = new LinkedHashMap<String, Object[]>();
+        long started = System.currentTimeMillis();
+
+        if (myIndexFile.exists()) {
+            BufferedReader reader =
+                    new BufferedReader(new InputStreamReader(
+                            new FileInputStream(myIndexFile), ENCODING));
+
+            try {
+                String line;
+
+                while ((line = reader.readLine()) != null) {
+                    replay(line, entries);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        for (Map.Entry<String, Object[]> entry : entries.entrySet()) {
+            Object[] value = entry.getValue();
+            String key = entry.getKey();
+
+            // Tiles rendered since startup are newer than the index's
+            if (!myCache.containsKey(key)) {
+                myCache.put(key, (String) value[0], (Long) value[1]);
+            }
+        }
+
+        compact();
+        sweep(started);
+
+        myCache.setEvictionListener(
+                new TileCacheManager.EvictionListener<String>() {
+
+            public void evicted(String aKey) {
+                remove(aKey);
+            }
+        });
+
+        myFlusher =
+                Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            public Thread newThread(Runnable aRunnable) {
+                Thread thread = new Thread(aRunnable, "tile-cache-index");
+
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+
+                return thread;
+            }
+        });
+        myFlusher.scheduleWithFixedDelay(new Runnable() {
+
+            public void run() {
+                flush();
+            }
+        }, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info("Loaded {} tiles from the tile cache index in {} ms",
+                    myCache.size(), System.currentTimeMillis() - started);
+        }
+
+        return myCache.size();
+    }
+
+    /**
+     * Records a tile that's been put into the tile cache.
+     *
+     * @param aKey The tile cache key
+     * @param aFile The absolute path of the tile's file
+     * @param aSize The number of bytes the tile's file takes up
+     */
+    public void put(String aKey, String aFile, long aSize) {
+        queue(new StringBuilder().append(PUT).append(TAB).append(aKey)
+                .append(TAB).append(aFile).append(TAB).append(aSize)
+                .toString());
+    }
+
+    /**
+     * Records a tile that's been removed from the tile cache.
+     *
+     * @param aKey The tile cache key
+     */
+    public void remove(String aKey) {
+        queue(new StringBuilder().append(REMOVE).append(TAB).append(aKey)
+                .toString());
+    }
+
+    /**
+     * Rewrites the index so it only contains the tiles that are currently in
+     * the tile cache.
+     *
+     * @throws IOException If the index can't be written
+     */
+    public synchronized void compact() throws IOException {
+        File tmpFile = new File(myCacheDir, INDEX_FILE_NAME + ".tmp");
+        final Writer writer =
+                new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(tmpFile), ENCODING));
+
+        closeWriter();
+
+        try {
+            writer.write(HEADER);
+            writer.write('\n');
+
+            myCache.visit(new TileCacheManager.Visitor<String, String>() {
+
+                public void visit(String aKey, String aFile, long aSize)
+                        throws IOException {
+                    writer.write(PUT);
+                    writer.write(TAB);
+                    writer.write(aKey);
+                    writer.write(TAB);
+                    writer.write(aFile);
+                    writer.write(TAB);
+                    writer.write(Long.toString(aSize));
+                    writer.write('\n');
+                }
+            });
+        } finally {
+            writer.close();
+        }
+
+        if (!tmpFile.renameTo(myIndexFile)) {
+            // Windows won't rename over an existing file
+            if (!myIndexFile.delete() || !tmpFile.renameTo(myIndexFile)) {
+                throw new IOException("Unable to replace tile cache index: " +
+                        myIndexFile);
+            }
+        }
+
+        myRecordCount = myCache.size();
+        myWriter =
+                new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(myIndexFile, true), ENCODING));
+    }
+
+    /**
+     * Appends the queued records to the index and flushes it, compacting the
+     * index if it's grown too large. This is done in the background once a
+     * second.
+     */
+    public synchronized void flush() {
+        String record;
+
+        if (myWriter == null) {
+            return;
+        }
+
+        try {
+            while ((record = myRecords.poll()) != null) {
+                myWriter.write(record);
+                myWriter.write('\n');
+                myRecordCount++;
+            }
+
+            myWriter.flush();
+
+            if (myRecordCount > Math.max(MIN_COMPACTION_RECORDS, myCache
+                    .size() * 2)) {
+                compact();
+            }
+        } catch (IOException details) {
+            LOGGER.error("Unable to write to tile cache index; disabling it",
+                    details);
+            close();
+        }
+    }
+
+    /**
+     * Writes the queued records and closes the index.
+     */
+    public void close() {
+        if (myFlusher != null) {
+            myFlusher.shutdown();
+        }
+
+        flush();
+        closeWriter();
+        myRecords.clear();
+    }
+
+    private synchronized void closeWriter() {
+        if (myWriter != null) {
+            try {
+                myWriter.close();
+            } catch (IOException details) {
+                LOGGER.warn("Unable to close tile cache index", details);
+            }
+
+            myWriter = null;
+        }
+    }
+
+    private void queue(String aRecord) {
+        if (myWriter != null) {
+            myRecords.add(aRecord);
+        }
+    }
+
+    private void replay(String aLine, Map<String, Object[]> aEntries) {
+        String[] parts;
+
+        if (aLine.length() < 2 || aLine.charAt(1) != TAB) {
+            return; // Skip the header and any partially written line
+        }
+
+        parts = aLine.substring(2).split(String.valueOf(TAB));
+
+        try {
+            if (aLine.charAt(0) == PUT && parts.length == 3) {
+                // Re-insert so the replay order follows the order of the puts
+                aEntries.remove(parts[0]);
+                aEntries.put(parts[0], new Object[] {
+                    parts[1], Long.valueOf(parts[2])
+                });
+            } else if (aLine.charAt(0) == REMOVE && parts.length == 1) {
+                aEntries.remove(parts[0]);
+            }
+        } catch (NumberFormatException details) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Skipping bad tile cache index line: {}", aLine);
+            }
+        }
+    }
+
+    private void sweep(final long aStarted) {
+        final Set<String> known = new HashSet<String>();
+
+        try {
+            myCache.visit(new TileCacheManager.Visitor<String, String>() {
+
+                public void visit(String aKey, String aFile, long aSize) {
+                    known.add(new File(aFile).getName());
+                }
+            });
+        } catch (IOException details) {
+            return; // Our visitor doesn't write anything
+        }
+
+        Thread sweeper = new Thread(new Runnable() {
+
+            public void run() {
+                File[] files = myCacheDir.listFiles(new FilenameFilter() {
+
+                    public boolean accept(File aDir, String aName) {
+                        return aName.startsWith("cache") &&
+                                !known.contains(aName);
+                    }
+                });
+
+                for (File file : files == null ? new File[0] : files) {
+                    // Leave tiles that were rendered since startup alone
+                    if (file.lastModified() < aStarted && !file.delete() &&
+                            LOGGER.isWarnEnabled()) {
+                        LOGGER.warn("Failed to delete file: {}", file);
+                    }
+                }
+            }
+        }, "tile-cache-sweeper");
+
+        sweeper.setDaemon(true);
+        sweeper.setPriority(Thread.MIN_PRIORITY);
+        sweeper.start();
+    }
+}
@@ -22,126 +22,631 @@
 package gov.lanl.adore.djatoka.openurl;
 
 import java.io.File;
+import java.io.IOException;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import info.freelibrary.djatoka.util.AdmissionPolicy;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Implements an Least Recently Used (LRU) cache Manager.
- * 
- * @param max_cache the maximum cache size that will be kept in the cache.
+ * Implements a striped Least Recently Used (LRU) cache manager for tiles
+ * stored on disk. The keys are spread across a number of independently locked
+ * segments so concurrent requests for different tiles don't queue on a single
+ * monitor. Each segment evicts by the number of bytes its tiles take up on
+ * disk, and evicted tile files are deleted on a background thread rather than
+ * on the request thread.
+ * <p/>
+ * An optional admission policy keeps tiles that are rarely requested from
+ * displacing tiles that are requested often: requests are recorded with the
+ * policy and a new tile is only cached, when the cache is full, if the policy
+ * prefers it to the tile that would be evicted to make room for it.
+ * <p/>
+ * Values are expected to be the absolute paths of the cached tile files.
+ *
+ * @author Ryan Chute
+ * @author Kevin S. Clarke &lt;<a
+ *         href="mailto:ksclarke@gmail.com">ksclarke@gmail.com</a>&gt;
  */
 public class TileCacheManager<K, V> {
 
     private static Logger LOGGER = LoggerFactory
             .getLogger(TileCacheManager.class);
 
-    private LinkedHashMap<K, V> cacheMap; // For fast search/remove
-
-    private final int max_cache;
+    private static final int MIN_STRIPES = 16;
 
     private static final float loadFactor = 0.75F;
 
     private static final boolean accessOrder = true;
 
-    /** The class constructor */
-    public TileCacheManager(int max_cache) {
-        this.max_cache = max_cache;
-        this.cacheMap =
-                new LinkedHashMap<K, V>(max_cache, loadFactor, accessOrder) {
+    private static final ExecutorService DELETER = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+
+                public Thread newThread(Runnable aRunnable) {
+                    Thread thread = new Thread(aRunnable, "tile-cache-reaper");
+
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+
+                    return thread;
+                }
+            });
+
+    private final List<Segment> segments;
+
+    private final int segmentMask;
+
+    private final long max_bytes;
+
+    private final int max_cache;
 
-                    private static final long serialVersionUID = 1;
+    private final AtomicLong bytes = new AtomicLong();
 
-                    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
-                        if (LOGGER.isDebugEnabled()) {
-                            LOGGER.debug("cacheSize: " + size());
-                        }
+    private final AtomicLong evictions = new AtomicLong();
 
-                        boolean d = size() > TileCacheManager.this.max_cache;
-                        if (d) {
-                            File f = new File((String) eldest.getValue());
+    private final AtomicLong rejections = new AtomicLong();
 
-                            if (LOGGER.isDebugEnabled()) {
-                                LOGGER.debug("deletingTile: " +
-                                        eldest.getValue());
-                            }
+    private volatile AdmissionPolicy admission;
 
-                            if (f.exists()) {
-                                f.delete();
-                            }
+    private volatile EvictionListener<K> listener;
 
-                            remove(eldest.getKey());
-                        }
+    /**
+     * Creates a tile cache that's bounded by the number of entries it holds.
+     *
+     * @param max_cache the maximum number of tiles that will be kept in the
+     *        cache
+     */
+    public TileCacheManager(int max_cache) {
+        this(Long.MAX_VALUE, max_cache);
+    }
+
+    /**
+     * Creates a tile cache that's bounded by the number of bytes its tiles
+     * take up on disk and, optionally, by the number of tiles it holds.
+     *
+     * @param max_bytes the maximum number of bytes of tiles to keep on disk
+     * @param max_cache the maximum number of tiles that will be kept in the
+     *        cache; zero or less means the number of tiles isn't limited
+     */
+    public TileCacheManager(long max_bytes, int max_cache) {
+        int stripes = MIN_STRIPES;
 
-                        return false;
-                    };
-                };
+        // Keep comfortably more segments than cores to keep contention down
+        while (stripes < Runtime.getRuntime().availableProcessors() * 4) {
+            stripes <<= 1;
+        }
+
+        this.max_bytes = max_bytes > 0 ? max_bytes : Long.MAX_VALUE;
+        this.max_cache = max_cache > 0 ? max_cache : Integer.MAX_VALUE;
+        this.segmentMask = stripes - 1;
+        this.segments = new ArrayList<Segment>(stripes);
+
+        long segmentBytes =
+                this.max_bytes == Long.MAX_VALUE ? Long.MAX_VALUE
+                        : Math.max(1, this.max_bytes / stripes);
+        int segmentCount =
+                this.max_cache == Integer.MAX_VALUE ? Integer.MAX_VALUE
+                        : Math.max(1, this.max_cache / stripes);
+
+        for (int index = 0; index < stripes; index++) {
+            segments.add(new Segment(segmentBytes, segmentCount));
+        }
+    }
+
+    /**
+     * Puts the key and value into the tile cache. The size of the tile is read
+     * from the file system.
+     *
+     * @param key The tile cache key
+     * @param val The tile cache value
+     * @return The older value if any
+     */
+    public V put(K key, V val) {
+        return put(key, val, val instanceof String ? new File((String) val)
+                .length() : 0);
     }
 
     /**
      * Puts the key and value into the tile cache.
-     * 
+     *
      * @param key The tile cache key
      * @param val The tile cache value
+     * @param size The number of bytes the tile takes up on disk
      * @return The older value if any
      */
-    public synchronized V put(K key, V val) {
-        return cacheMap.put(key, val);
+    public V put(K key, V val, long size) {
+        List<V> evicted = new ArrayList<V>(2);
+        List<K> evictedKeys = new ArrayList<K>(2);
+        V old = segmentFor(key).put(key, val, size, evicted, evictedKeys);
+
+        if (old != null && !old.equals(val)) {
+            evicted.add(old);
+        }
+
+        deleteLater(evicted);
+        notifyEvicted(evictedKeys);
+        return old;
     }
 
     /**
-     * Removes value of supplied key from tile cache.
-     * 
+     * Offers the key and value to the tile cache. If the cache is full and
+     * the admission policy prefers the tile that would be evicted, the tile
+     * isn't cached and its file is left for the caller to deal with.
+     *
+     * @param key The tile cache key
+     * @param val The tile cache value
+     * @param size The number of bytes the tile takes up on disk
+     * @return True if the tile was cached; else, false
+     */
+    public boolean offer(K key, V val, long size) {
+        List<V> evicted = new ArrayList<V>(2);
+        List<K> evictedKeys = new ArrayList<K>(2);
+        Segment segment = segmentFor(key);
+
+        if (!segment.admits(key, size)) {
+            rejections.incrementAndGet();
+
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("notAdmitted: {}", key);
+            }
+
+            return false;
+        }
+
+        V old = segment.put(key, val, size, evicted, evictedKeys);
+
+        if (old != null && !old.equals(val)) {
+            evicted.add(old);
+        }
+
+        deleteLater(evicted);
+        notifyEvicted(evictedKeys);
+        return true;
+    }
+
+    /**
+     * Removes value of supplied key from tile cache; the tile's file is
+     * deleted in the background.
+     *
      * @param key The key of the value to be removed
      * @return The value of the supplied key
      */
-    public synchronized V remove(K key) {
-        if (get(key) instanceof String) {
-            File f = new File((String) get(key));
-            if (!f.delete() && LOGGER.isWarnEnabled()) {
-                LOGGER.warn("Failed to delete file: {}", f);
-            }
+    public V remove(K key) {
+        V val = segmentFor(key).remove(key);
+
+        if (val != null) {
+            deleteLater(val);
         }
-        return cacheMap.remove(key);
+
+        return val;
+    }
+
+    /**
+     * Removes value of supplied key from tile cache but leaves the tile's file
+     * in place. This is used when the file has been moved elsewhere.
+     *
+     * @param key The key of the value to be released
+     * @return The value of the supplied key
+     */
+    public V release(K key) {
+        return segmentFor(key).remove(key);
     }
 
     /**
      * Gets the value of supplied key from tile cache.
-     * 
+     *
      * @param key The key of the value to be retrieved
      * @return The value of the supplied key
      */
-    public synchronized V get(K key) {
-        return cacheMap.get(key);
+    public V get(K key) {
+        AdmissionPolicy policy = admission;
+
+        if (policy != null) {
+            policy.record(key);
+        }
+
+        return segmentFor(key).get(key);
+    }
+
+    /**
+     * Gets the value of supplied key from tile cache without recording a
+     * request for it with the admission policy.
+     *
+     * @param key The key of the value to be retrieved
+     * @return The value of the supplied key
+     */
+    public V peek(K key) {
+        return segmentFor(key).get(key);
     }
 
     /**
      * Returns true if the supplied key exists in the cache; else, false.
-     * 
+     *
      * @param key The key to query the cache about
      * @return True if the key is found; else, false
      */
-    public synchronized boolean containsKey(K key) {
-        return cacheMap.containsKey(key);
+    public boolean containsKey(K key) {
+        return segmentFor(key).containsKey(key);
     }
 
     /**
      * Gets the size of the tile cache.
-     * 
-     * @return The size of the tile cache
+     *
+     * @return The number of tiles in the tile cache
+     */
+    public int size() {
+        int size = 0;
+
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+
+        return size;
+    }
+
+    /**
+     * Gets the number of bytes the cached tiles take up on disk.
+     *
+     * @return The number of bytes in the tile cache
+     */
+    public long getByteSize() {
+        return bytes.get();
+    }
+
+    /**
+     * Gets the maximum number of bytes the tile cache will hold.
+     *
+     * @return The maximum number of bytes in the tile cache
+     */
+    public long getMaxByteSize() {
+        return max_bytes;
+    }
+
+    /**
+     * Gets the number of tiles that have been evicted from the cache.
+     *
+     * @return The number of evicted tiles
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Gets the number of tiles the admission policy kept out of the cache.
+     *
+     * @return The number of rejected tiles
+     */
+    public long getRejectionCount() {
+        return rejections.get();
+    }
+
+    /**
+     * Sets the policy that decides whether a new tile may displace an older
+     * one when the cache is full.
+     *
+     * @param policy The admission policy or null to admit every tile
+     */
+    public void setAdmissionPolicy(AdmissionPolicy policy) {
+        admission = policy;
+    }
+
+    /**
+     * Gets the cache's admission policy.
+     *
+     * @return The admission policy or null if every tile is admitted
+     */
+    public AdmissionPolicy getAdmissionPolicy() {
+        return admission;
+    }
+
+    /**
+     * Sets the listener that's told the keys of the tiles the cache evicts.
+     * The listener is called on the thread that caused the eviction, after
+     * the cache has been unlocked.
+     *
+     * @param aListener The eviction listener or null for none
+     */
+    public void setEvictionListener(EvictionListener<K> aListener) {
+        listener = aListener;
+    }
+
+    /**
+     * Passes each of the cache's entries to the supplied visitor, from least
+     * to most recently used within each of the cache's segments. The cache
+     * isn't locked while the visitor runs, so it sees a snapshot of each
+     * segment.
+     *
+     * @param visitor The visitor to pass the cache's entries to
+     * @throws IOException If the visitor has trouble writing an entry
      */
-    public synchronized int size() {
-        return cacheMap.size();
+    public void visit(Visitor<K, V> visitor) throws IOException {
+        for (Segment segment : segments) {
+            for (Map.Entry<K, Entry<V>> entry : segment.snapshot()) {
+                Entry<V> value = entry.getValue();
+                visitor.visit(entry.getKey(), value.value, value.size);
+            }
+        }
     }
 
     /**
-     * Clears the tile cache.
+     * Clears the tile cache; this doesn't delete the tiles' files.
      */
-    public synchronized void clear() {
-        cacheMap.clear();
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    private Segment segmentFor(Object key) {
+        int hash = key.hashCode();
+
+        // Spread the hash bits so similar keys don't share a segment
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+
+        return segments.get(hash & segmentMask);
+    }
+
+    private void notifyEvicted(List<K> aKeys) {
+        EvictionListener<K> evictionListener = listener;
+
+        if (evictionListener != null) {
+            for (K key : aKeys) {
+                evictionListener.evicted(key);
+            }
+        }
     }
 
+    private void deleteLater(final List<V> aValues) {
+        for (V value : aValues) {
+            deleteLater(value);
+        }
+    }
+
+    private void deleteLater(final V aValue) {
+        if (!(aValue instanceof String)) {
+            return;
+        }
+
+        DELETER.execute(new Runnable() {
+
+            public void run() {
+                File file = new File((String) aValue);
+
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("deletingTile: " + aValue);
+                }
+
+                if (file.exists() && !file.delete() && LOGGER.isWarnEnabled()) {
+                    LOGGER.warn("Failed to delete file: {}", file);
+                }
+            }
+        });
+    }
+
+    /**
+     * An independently locked LRU segment of the tile cache.
+     */
+    private final class Segment {
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private final LinkedHashMap<K, Entry<V>> map;
+
+        private final long maxBytes;
+
+        private final int maxCount;
+
+        private long segmentBytes;
+
+        private Segment(long aMaxBytes, int aMaxCount) {
+            map =
+                    new LinkedHashMap<K, Entry<V>>(16, loadFactor,
+                            accessOrder);
+            maxBytes = aMaxBytes;
+            maxCount = aMaxCount;
+        }
+
+        private V put(K key, V val, long size, List<V> evicted,
+                List<K> evictedKeys) {
+            Entry<V> old;
+
+            lock.lock();
+
+            try {
+                old = map.put(key, new Entry<V>(val, size));
+
+                if (old != null) {
+                    segmentBytes -= old.size;
+                    bytes.addAndGet(-old.size);
+                }
+
+                segmentBytes += size;
+                bytes.addAndGet(size);
+
+                Iterator<Map.Entry<K, Entry<V>>> iterator =
+                        map.entrySet().iterator();
+
+                // Never evict the entry that was just put into the segment
+                while ((segmentBytes > maxBytes || map.size() > maxCount) &&
+                        map.size() > 1) {
+                    Map.Entry<K, Entry<V>> eldest = iterator.next();
+                    Entry<V> entry = eldest.getValue();
+
+                    iterator.remove();
+                    segmentBytes -= entry.size;
+                    bytes.addAndGet(-entry.size);
+                    evictions.incrementAndGet();
+                    evicted.add(entry.value);
+                    evictedKeys.add(eldest.getKey());
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (LOGGER.isDebugEnabled() && !evicted.isEmpty()) {
+                LOGGER.debug("cacheSize: {} bytes ({} evicted)", bytes.get(),
+                        evicted.size());
+            }
+
+            return old == null ? null : old.value;
+        }
+
+        /**
+         * Returns true if a new tile of the supplied size fits without an
+         * eviction or is preferred to the tile that would be evicted.
+         */
+        private boolean admits(K key, long size) {
+            AdmissionPolicy policy = admission;
+
+            if (policy == null) {
+                return true;
+            }
+
+            lock.lock();
+
+            try {
+                boolean fits =
+                        segmentBytes + size <= maxBytes &&
+                                map.size() < maxCount;
+
+                if (fits || map.isEmpty() || map.containsKey(key)) {
+                    return true;
+                }
+
+                // Iterating doesn't change the order of an access-ordered map
+                return policy.admit(key, map.keySet().iterator().next());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private V get(K key) {
+            lock.lock();
+
+            try {
+                Entry<V> entry = map.get(key);
+                return entry == null ? null : entry.value;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean containsKey(K key) {
+            lock.lock();
+
+            try {
+                return map.containsKey(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private V remove(K key) {
+            lock.lock();
+
+            try {
+                Entry<V> entry = map.remove(key);
+
+                if (entry == null) {
+                    return null;
+                }
+
+                segmentBytes -= entry.size;
+                bytes.addAndGet(-entry.size);
+
+                return entry.value;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private List<Map.Entry<K, Entry<V>>> snapshot() {
+            lock.lock();
+
+            try {
+                return new ArrayList<Map.Entry<K, Entry<V>>>(
+                        new LinkedHashMap<K, Entry<V>>(map).entrySet());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int size() {
+            lock.lock();
+
+            try {
+                return map.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void clear() {
+            lock.lock();
+
+            try {
+                bytes.addAndGet(-segmentBytes);
+                segmentBytes = 0;
+                map.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Is told the keys of the tiles the cache evicts.
+     */
+    public interface EvictionListener<K> {
+
+        /**
+         * Receives the key of an evicted tile.
+         *
+         * @param key The tile cache key
+         */
+        void evicted(K key);
+    }
+
+    /**
+     * Receives the cache's entries when the cache is visited.
+     */
+    public interface Visitor<K, V> {
+
+        /**
+         * Visits a single cache entry.
+         *
+         * @param key The tile cache key
+         * @param val The tile cache value
+         * @param size The number of bytes the tile takes up on disk
+         * @throws IOException If there is trouble handling the entry
+         */
+        void visit(K key, V val, long size) throws IOException;
+    }
+
+    /**
+     * A cached value along with the number of bytes it takes up on disk.
+     */
+    private static final class Entry<V> {
+
+        private final V value;
+
+        private final long size;
+
+        private Entry(V aValue, long aSize) {
+            value = aValue;
+            size = aSize;
+        }
+    }
 }
@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2008  Los Alamos National Security, LLC.
+ *
+ * Los Alamos National Laboratory
+ * Research Library
+ * Digital Library Research & Prototyping Team
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.adore.djatoka.openurl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes rendered tiles into the OpenURL tile cache on a background thread,
+ * so a request that misses the cache is answered as soon as its tile has been
+ * encoded. Each tile is written to a temporary file in the cache directory
+ * that's then renamed into place, so the cache never points at a partially
+ * written tile. The writer's queue is bounded: when it's full, the tile isn't
+ * cached rather than holding up the request.
+ * <p/>
+ * Tiles that are waiting to be written can still be looked up, so a request
+ * that arrives before its tile reaches the disk doesn't render it again.
+ * Temporary files left behind by a crash are deleted before the writer's
+ * first tile is written.
+ */
+public class TileCacheWriter {
+
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(TileCacheWriter.class);
+
+    private static final String TMP_EXT = ".tmp";
+
+    private static final ThreadFactory THREADS = new ThreadFactory() {
+
+        public Thread newThread(Runnable aRunnable) {
+            Thread thread = new Thread(aRunnable, "tile-cache-writer");
+
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+
+            return thread;
+        }
+    };
+
+    private final ConcurrentMap<String, byte[]> myPending =
+            new ConcurrentHashMap<String, byte[]>();
+
+    private final AtomicLong myWrites = new AtomicLong();
+
+    private final AtomicLong mySkips = new AtomicLong();
+
+    private final TileCacheManager<String, String> myCache;
+
+    private final TileCacheIndex myIndex;
+
+    private final File myCacheDir;
+
+    private final ThreadPoolExecutor myExecutor;
+
+    /**
+     * Creates a writer for the supplied tile cache.
+     *
+     * @param aCacheDir The directory tiles are written to, or null to use the
+     *        system's temporary directory
+     * @param aCache The tile cache that written tiles are put into
+     * @param aIndex The tile cache's index, or null if it doesn't have one
+     * @param aQueueSize The number of tiles that can wait to be written
+     */
+    public TileCacheWriter(File aCacheDir,
+            TileCacheManager<String, String> aCache, TileCacheIndex aIndex,
+            int aQueueSize) {
+        myCacheDir = aCacheDir;
+        myCache = aCache;
+        myIndex = aIndex;
+        myExecutor =
+                new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<Runnable>(Math.max(1,
+                                aQueueSize)), THREADS);
+
+        if (aCacheDir != null) {
+            myExecutor.execute(new Runnable() {
+
+                public void run() {
+                    deleteTempFiles();
+                }
+            });
+        }
+    }
+
+    /**
+     * Queues a tile to be written into the tile cache. If the queue is full,
+     * the tile isn't cached.
+     *
+     * @param aKey The tile cache key
+     * @param aExt The tile's file extension
+     * @param aBytes The tile's bytes
+     * @return True if the tile was queued; else, false
+     */
+    public boolean write(final String aKey, final String aExt,
+            final byte[] aBytes) {
+        if (myPending.putIfAbsent(aKey, aBytes) != null) {
+            return true; // It's already on its way to the disk
+        }
+
+        try {
+            myExecutor.execute(new Runnable() {
+
+                public void run() {
+                    try {
+                        store(aKey, aExt, aBytes);
+                    } finally {
+                        myPending.remove(aKey, aBytes);
+                    }
+                }
+            });
+
+            return true;
+        } catch (RejectedExecutionException details) {
+            myPending.remove(aKey, aBytes);
+            mySkips.incrementAndGet();
+
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Tile cache writer is busy; not caching: {}",
+                        aKey);
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Gets the bytes of a tile that's waiting to be written, or null if there
+     * isn't one with the supplied key.
+     *
+     * @param aKey The tile cache key
+     * @return The tile's bytes
+     */
+    public byte[] getPending(String aKey) {
+        return myPending.get(aKey);
+    }
+
+    /**
+     * Gets the number of tiles that are waiting to be written.
+     *
+     * @return The number of queued tiles
+     */
+    public int getPendingCount() {
+        return myPending.size();
+    }
+
+    /**
+     * Gets the number of tiles that have been written into the tile cache.
+     *
+     * @return The number of tiles written
+     */
+    public long getWriteCount() {
+        return myWrites.get();
+    }
+
+    /**
+     * Gets the number of tiles that weren't cached because the writer's queue
+     * was full.
+     *
+     * @return The number of tiles skipped
+     */
+    public long getSkipCount() {
+        return mySkips.get();
+    }
+
+    /**
+     * Stops the writer after the tiles that are waiting have been written.
+     *
+     * @param aTimeout The number of milliseconds to wait for the queue to
+     *        drain
+     * @return True if all the waiting tiles were written; else, false
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public boolean close(long aTimeout) throws InterruptedException {
+        myExecutor.shutdown();
+        return myExecutor.awaitTermination(aTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Deletes the temporary files of tiles whose writes were cut short. Tiles
+     * are written one at a time on the writer's thread, so any that are found
+     * before the first write aren't ours.
+     */
+    private void deleteTempFiles() {
+        File[] files = myCacheDir.listFiles(new FilenameFilter() {
+
+            public boolean accept(File aDir, String aName) {
+                return aName.startsWith("cache") && aName.endsWith(TMP_EXT);
+            }
+        });
+
+        for (File file : files == null ? new File[0] : files) {
+            if (!file.delete() && LOGGER.isWarnEnabled()) {
+                LOGGER.warn("File not deleted: {}", file);
+            }
+        }
+    }
+
+    private void store(String aKey, String aExt, byte[] aBytes) {
+        File tmpFile = null;
+        File file;
+
+        // Another request may have cached it while this one waited
+        if (myCache.peek(aKey) != null) {
+            return;
+        }
+
+        try {
+            if (myCacheDir != null && !myCacheDir.exists() &&
+                    !myCacheDir.mkdirs() && LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Dirs not created: {}", myCacheDir);
+            }
+
+            tmpFile =
+                    File.createTempFile("cache" + aKey.hashCode() + "-", "." +
+                            aExt + TMP_EXT, myCacheDir);
+            file =
+                    new File(tmpFile.getParentFile(), tmpFile.getName()
+                            .substring(0, tmpFile.getName().length() -
+                                    TMP_EXT.length()));
+
+            write(tmpFile, aBytes);
+            move(tmpFile, file);
+            tmpFile = null;
+        } catch (IOException details) {
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Unable to write tile {} to the tile cache: {}",
+                        aKey, details.getMessage());
+            }
+
+            if (tmpFile != null && !tmpFile.delete() &&
+                    LOGGER.isWarnEnabled()) {
+                LOGGER.warn("File not deleted: {}", tmpFile);
+            }
+
+            return;
+        }
+
+        // Tiles outlive a restart when the cache index is keeping track of them
+        if (myIndex == null) {
+            file.deleteOnExit();
+        }
+
+        if (myCache.peek(aKey) == null &&
+                myCache.offer(aKey, file.getAbsolutePath(), aBytes.length)) {
+            if (myIndex != null) {
+                myIndex.put(aKey, file.getAbsolutePath(), aBytes.length);
+            }
+
+            myWrites.incrementAndGet();
+
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("cachedTile: {} {}", file, aBytes.length);
+            }
+        } else if (!file.delete() && LOGGER.isWarnEnabled()) {
+            // Handles a tile cached by another writer or one the cache's
+            // admission policy turned away
+            LOGGER.warn("File not deleted: {}", file);
+        }
+    }
+
+    private static void write(File aFile, byte[] aBytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(aFile);
+
+        try {
+            out.write(aBytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void move(File aSource, File aTarget) throws IOException {
+        try {
+            Files.move(aSource.toPath(), aTarget.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException details) {
+            Files.move(aSource.toPath(), aTarget.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
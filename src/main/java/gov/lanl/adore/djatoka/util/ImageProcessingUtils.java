@@ -23,14 +23,19 @@ package gov.lanl.adore.djatoka.util;
 
 import gov.lanl.adore.djatoka.io.FormatConstants;
 
+import ij.ImagePlus;
 import ij.io.FileInfo;
 import ij.io.Opener;
 import ij.io.TiffDecoder;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
 
 import java.awt.geom.AffineTransform;
 import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
 import java.awt.image.RenderedImage;
 import java.awt.image.WritableRaster;
 
@@ -58,7 +63,9 @@ public class ImageProcessingUtils {
 
     /**
      * Perform a rotation of the provided BufferedImage using degrees of 90,
-     * 180, or 270.
+     * 180, or 270. The pixels are moved as they're stored, so the rotated
+     * image has the same type (greyscale images stay greyscale) and samples as
+     * the original.
      * 
      * @param bi BufferedImage to be rotated
      * @param degree
@@ -67,37 +74,31 @@ public class ImageProcessingUtils {
     public static BufferedImage rotate(BufferedImage bi, int degree) {
         int width = bi.getWidth();
         int height = bi.getHeight();
-
+        WritableRaster source = bi.getRaster();
         BufferedImage biFlip;
+
         if (degree == 90 || degree == 270) {
-            biFlip = new BufferedImage(height, width, bi.getType());
+            biFlip = createImage(bi, height, width);
         } else if (degree == 180) {
-            biFlip = new BufferedImage(width, height, bi.getType());
+            biFlip = createImage(bi, width, height);
         } else {
             return bi;
         }
 
-        if (degree == 90) {
-            for (int i = 0; i < width; i++) {
-                for (int j = 0; j < height; j++) {
-                    biFlip.setRGB(height - j - 1, i, bi.getRGB(i, j));
-                }
-            }
-        }
+        WritableRaster raster = biFlip.getRaster();
+        Object pixel = null;
 
-        if (degree == 180) {
+        for (int j = 0; j < height; j++) {
             for (int i = 0; i < width; i++) {
-                for (int j = 0; j < height; j++) {
-                    biFlip.setRGB(width - i - 1, height - j - 1, bi
-                            .getRGB(i, j));
-                }
-            }
-        }
+                pixel = source.getDataElements(i, j, pixel);
 
-        if (degree == 270) {
-            for (int i = 0; i < width; i++) {
-                for (int j = 0; j < height; j++) {
-                    biFlip.setRGB(j, width - i - 1, bi.getRGB(i, j));
+                if (degree == 90) {
+                    raster.setDataElements(height - j - 1, i, pixel);
+                } else if (degree == 180) {
+                    raster.setDataElements(width - i - 1, height - j - 1,
+                            pixel);
+                } else {
+                    raster.setDataElements(j, width - i - 1, pixel);
                 }
             }
         }
@@ -108,6 +109,24 @@ public class ImageProcessingUtils {
         return biFlip;
     }
 
+    /**
+     * Creates an image of the supplied size that stores its pixels the same
+     * way as the supplied image, with the same palette if it has one.
+     */
+    private static BufferedImage createImage(BufferedImage bi, int width,
+            int height) {
+        if (bi.getType() != BufferedImage.TYPE_CUSTOM &&
+                !(bi.getColorModel() instanceof IndexColorModel)) {
+            return new BufferedImage(width, height, bi.getType());
+        }
+
+        ColorModel cm = bi.getColorModel();
+        WritableRaster raster =
+                bi.getRaster().createCompatibleWritableRaster(width, height);
+
+        return new BufferedImage(cm, raster, cm.isAlphaPremultiplied(), null);
+    }
+
     /**
      * Return the number of resolution levels the djatoka API will generate
      * based on the provided pixel dimensions.
@@ -341,4 +360,38 @@ public class ImageProcessingUtils {
         img.copyData(raster);
         return result;
     }
+
+    /**
+     * Wraps a BufferedImage in an ImageJ ImagePlus for ImageJ's encoders. A
+     * greyscale image is wrapped as it is, rather than being expanded to RGB,
+     * and other images that ImageJ would read a pixel at a time are converted
+     * to RGB in bulk.
+     * 
+     * @param title title of the ImagePlus
+     * @param bi BufferedImage to be wrapped
+     * @return ImagePlus containing the image's pixels
+     */
+    public static ImagePlus toImagePlus(String title, BufferedImage bi) {
+        int width = bi.getWidth();
+        int height = bi.getHeight();
+        WritableRaster raster = bi.getRaster();
+
+        if (bi.getType() == BufferedImage.TYPE_BYTE_GRAY &&
+                raster.getParent() == null) {
+            byte[] pixels = ((DataBufferByte) raster.getDataBuffer()).getData();
+
+            if (pixels.length == width * height) {
+                return new ImagePlus(title, new ByteProcessor(width, height,
+                        pixels, null));
+            }
+        }
+
+        if (bi.getType() == BufferedImage.TYPE_INT_RGB) {
+            return new ImagePlus(title, bi);
+        }
+
+        int[] pixels = bi.getRGB(0, 0, width, height, null, 0, width);
+
+        return new ImagePlus(title, new ColorProcessor(width, height, pixels));
+    }
 }
@@ -0,0 +1,390 @@
+/*
+ * Copyright (c) 2008  Los Alamos National Security, LLC.
+ *
+ * Los Alamos National Laboratory
+ * Research Library
+ * Digital Library Research & Prototyping Team
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.adore.djatoka.util;
+
+import gov.lanl.adore.djatoka.DjatokaException;
+import gov.lanl.adore.djatoka.kdu.KduExtractExe;
+
+import info.freelibrary.djatoka.util.CacheMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A process-wide cache of the metadata of JP2 files: their dimensions, DWT
+ * levels, quality layers, components and compositing layers. Every tile of an
+ * image needs the same metadata, which otherwise means opening and parsing
+ * the image's header for each one. Entries are keyed by the file's path and
+ * are only used while the file's last modified time and length are the same
+ * as when the metadata was read, so a replaced image is read again.
+ * <p/>
+ * Metadata is read with Kakadu, through
+ * {@link KduExtractExe#readMetadata(File)}, so every record agrees with what
+ * the decoder sees. Threads that miss on the same file at once wait on a
+ * single read. The cache holds the metadata of up to 10,000 files unless
+ * {@link #setMaxSize(int)} says otherwise.
+ * <p/>
+ * Records handed out by the cache are copies; callers are free to change
+ * them.
+ */
+public final class ImageRecordCache {
+
+    /** The default number of files whose metadata is cached */
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    private static volatile int maxSize = DEFAULT_MAX_SIZE;
+
+    private static final Map<String, Metadata> ENTRIES =
+            new LinkedHashMap<String, Metadata>(256, 0.75F, true) {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, Metadata> aEntry) {
+                    return size() > maxSize;
+                }
+            };
+
+    private static final ConcurrentMap<String, FutureTask<Metadata>> LOADS =
+            new ConcurrentHashMap<String, FutureTask<Metadata>>();
+
+    private static final CacheMetrics METRICS = CacheMetrics
+            .register(new CacheMetrics("metadataCache") {
+
+                @Override
+                public long getSize() {
+                    return size();
+                }
+            });
+
+    private ImageRecordCache() {
+    }
+
+    /**
+     * Gets the metadata of the supplied JP2 file, reading it from the file's
+     * header if it isn't already cached.
+     *
+     * @param aFile A JP2 file
+     * @return A record with the file's metadata
+     * @throws IOException If the file's header can't be read
+     */
+    public static ImageRecord getImageRecord(File aFile) throws IOException {
+        ImageRecord record = new ImageRecord(aFile.getAbsolutePath());
+
+        load(aFile, record);
+        return record;
+    }
+
+    /**
+     * Copies the metadata of the supplied JP2 file into the supplied record,
+     * reading it from the file's header if it isn't already cached.
+     *
+     * @param aFile A JP2 file
+     * @param aRecord The record to copy the file's metadata into
+     * @throws IOException If the file's header can't be read; a
+     *         <code>DjatokaException</code> from Kakadu is its cause
+     */
+    public static void load(File aFile, ImageRecord aRecord)
+            throws IOException {
+        long lastModified = aFile.lastModified();
+        long length = aFile.length();
+        Metadata entry = getEntry(aFile, lastModified, length);
+
+        if (entry == null) {
+            entry = read(aFile, lastModified, length);
+        }
+
+        entry.copyTo(aRecord);
+    }
+
+    /**
+     * Copies the cached metadata of the supplied file into the supplied
+     * record, if the file hasn't changed since its metadata was cached.
+     *
+     * @param aFile A JP2 file
+     * @param aLastModified The file's last modified time
+     * @param aLength The file's length
+     * @param aRecord The record to copy the file's metadata into
+     * @return True if the file's metadata was cached; else, false
+     */
+    public static boolean copyTo(File aFile, long aLastModified, long aLength,
+            ImageRecord aRecord) {
+        Metadata entry = getEntry(aFile, aLastModified, aLength);
+
+        if (entry == null) {
+            return false;
+        }
+
+        entry.copyTo(aRecord);
+        return true;
+    }
+
+    /**
+     * Caches the metadata of the supplied file. The file's last modified time
+     * and length should be read before its metadata is, so a change made
+     * while the metadata is being read isn't missed.
+     *
+     * @param aFile A JP2 file
+     * @param aLastModified The file's last modified time
+     * @param aLength The file's length
+     * @param aRecord A record with the file's metadata
+     */
+    public static void put(File aFile, long aLastModified, long aLength,
+            ImageRecord aRecord) {
+        store(aFile, new Metadata(aLastModified, aLength, aRecord));
+    }
+
+    /**
+     * Sets the maximum number of files whose metadata is cached. The least
+     * recently used metadata is dropped to make room.
+     *
+     * @param aMaxSize The maximum number of cached records
+     */
+    public static void setMaxSize(int aMaxSize) {
+        maxSize = Math.max(1, aMaxSize);
+
+        synchronized (ENTRIES) {
+            Iterator<String> iterator = ENTRIES.keySet().iterator();
+
+            while (ENTRIES.size() > maxSize && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Gets the maximum number of files whose metadata is cached.
+     *
+     * @return The maximum number of cached records
+     */
+    public static int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Removes all the cached metadata.
+     */
+    public static void clear() {
+        synchronized (ENTRIES) {
+            ENTRIES.clear();
+        }
+    }
+
+    /**
+     * Gets the number of files whose metadata is cached.
+     *
+     * @return The number of cached records
+     */
+    public static int size() {
+        synchronized (ENTRIES) {
+            return ENTRIES.size();
+        }
+    }
+
+    /**
+     * Gets the number of lookups that found current metadata in the cache.
+     *
+     * @return The number of cache hits
+     */
+    public static long getHitCount() {
+        return METRICS.getHitCount();
+    }
+
+    /**
+     * Gets the number of lookups that had to read a file's header.
+     *
+     * @return The number of cache misses
+     */
+    public static long getMissCount() {
+        return METRICS.getMissCount();
+    }
+
+    /**
+     * Gets the metrics of the metadata cache.
+     *
+     * @return The metadata cache's metrics
+     */
+    public static CacheMetrics getMetrics() {
+        return METRICS;
+    }
+
+    /**
+     * Reads a file's metadata into the cache. Concurrent misses on the same
+     * file wait on the thread that's already reading it.
+     */
+    private static Metadata read(final File aFile, final long aLastModified,
+            final long aLength) throws IOException {
+        String path = aFile.getAbsolutePath();
+        FutureTask<Metadata> load =
+                new FutureTask<Metadata>(new Callable<Metadata>() {
+
+                    public Metadata call() throws Exception {
+                        long start = System.nanoTime();
+                        ImageRecord record;
+
+                        try {
+                            record = KduExtractExe.readMetadata(aFile);
+                        } catch (DjatokaException details) {
+                            throw new IOException(details.getMessage(),
+                                    details);
+                        }
+
+                        METRICS.recordLoad(System.nanoTime() - start);
+                        return store(aFile, new Metadata(aLastModified,
+                                aLength, record));
+                    }
+                });
+        FutureTask<Metadata> inFlight = LOADS.putIfAbsent(path, load);
+
+        if (inFlight != null) {
+            return getMetadata(inFlight);
+        }
+
+        try {
+            load.run();
+            return getMetadata(load);
+        } finally {
+            LOADS.remove(path, load);
+        }
+    }
+
+    private static Metadata getMetadata(FutureTask<Metadata> aLoad)
+            throws IOException {
+        try {
+            return aLoad.get();
+        } catch (InterruptedException details) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(details.getMessage());
+        } catch (ExecutionException details) {
+            Throwable cause = details.getCause();
+
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            throw new IOException(cause);
+        }
+    }
+
+    private static Metadata store(File aFile, Metadata aEntry) {
+        // A missing file has no time; there's nothing to check against
+        if (aEntry.myLastModified != 0) {
+            synchronized (ENTRIES) {
+                ENTRIES.put(aFile.getAbsolutePath(), aEntry);
+            }
+        }
+
+        return aEntry;
+    }
+
+    private static Metadata getEntry(File aFile, long aLastModified,
+            long aLength) {
+        String path = aFile.getAbsolutePath();
+        Metadata entry;
+
+        synchronized (ENTRIES) {
+            entry = ENTRIES.get(path);
+
+            if (entry != null && (entry.myLastModified != aLastModified ||
+                    entry.myLength != aLength)) {
+                ENTRIES.remove(path);
+                entry = null;
+            }
+        }
+
+        if (entry == null) {
+            METRICS.recordMiss();
+        } else {
+            METRICS.recordHit();
+        }
+
+        return entry;
+    }
+
+    /**
+     * The metadata of a file as it was when the metadata was read.
+     */
+    private static final class Metadata {
+
+        private final long myLastModified;
+
+        private final long myLength;
+
+        private final int myWidth;
+
+        private final int myHeight;
+
+        private final int myLevels;
+
+        private final int myDWTLevels;
+
+        private final int myQualityLayers;
+
+        private final int myCompositingLayers;
+
+        private final int myBitDepth;
+
+        private final int myChannels;
+
+        private Metadata(long aLastModified, long aLength,
+                ImageRecord aRecord) {
+            myLastModified = aLastModified;
+            myLength = aLength;
+            myWidth = aRecord.getWidth();
+            myHeight = aRecord.getHeight();
+            myLevels = aRecord.getLevels();
+            myDWTLevels = aRecord.getDWTLevels();
+            myQualityLayers = aRecord.getQualityLayers();
+            myCompositingLayers = aRecord.getCompositingLayerCount();
+            myBitDepth = aRecord.getBitDepth();
+            myChannels = aRecord.getNumChannels();
+        }
+
+        private void copyTo(ImageRecord aRecord) {
+            aRecord.setWidth(myWidth);
+            aRecord.setHeight(myHeight);
+            aRecord.setLevels(myLevels);
+            aRecord.setDWTLevels(myDWTLevels);
+            aRecord.setQualityLayers(myQualityLayers);
+            aRecord.setCompositingLayerCount(myCompositingLayers);
+            aRecord.setBitDepth(myBitDepth);
+            aRecord.setNumChannels(myChannels);
+        }
+    }
+}
@@ -26,7 +26,6 @@ package gov.lanl.util;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.Locale;
 import java.util.TimeZone;
 
@@ -39,19 +38,42 @@ public class HttpDate {
 
     public final static TimeZone GMT_ZONE = TimeZone.getTimeZone("GMT");
 
-    public final static String RFC1123_PATTERN = "EEE, dd MMM yyyyy HH:mm:ss z";
+    public final static String RFC1123_PATTERN = "EEE, dd MMM yyyy HH:mm:ss z";
 
     public final static SimpleDateFormat rfc1123Format = new SimpleDateFormat(
             RFC1123_PATTERN, LOCALE_US);
 
+    private final static ThreadLocal<SimpleDateFormat> FORMATS =
+            new ThreadLocal<SimpleDateFormat>() {
+
+                @Override
+                protected SimpleDateFormat initialValue() {
+                    SimpleDateFormat format =
+                            new SimpleDateFormat(RFC1123_PATTERN, LOCALE_US);
+
+                    format.setTimeZone(GMT_ZONE);
+                    return format;
+                }
+            };
+
     /**
      * Returns an HTTP date.
      * 
      * @return The date in string form
      */
     public static String getHttpDate() {
-        Calendar calendar = new GregorianCalendar(GMT_ZONE, LOCALE_US);
-        return getHttpDate(calendar, new Date(System.currentTimeMillis()));
+        return getHttpDate(System.currentTimeMillis());
+    }
+
+    /**
+     * Returns an HTTP date for the supplied time. Unlike the shared
+     * <code>rfc1123Format</code>, this is safe to call from many threads.
+     * 
+     * @param time A time in milliseconds
+     * @return The date in string form
+     */
+    public static String getHttpDate(long time) {
+        return FORMATS.get().format(new Date(time));
     }
 
     /**
@@ -21,6 +21,25 @@ public interface Constants {
 
     public static final String VIEW_CACHE_DIR = "djatoka.view.cache.dir";
 
+    public static final String VIEW_CACHE_HIGH_WATERMARK =
+            "djatoka.view.cache.highWatermark";
+
+    public static final String VIEW_CACHE_LOW_WATERMARK =
+            "djatoka.view.cache.lowWatermark";
+
+    public static final String VIEW_CACHE_ADMISSION =
+            "djatoka.view.cache.admissionPolicy";
+
+    // The number of seconds between view cache size checks
+    public static final long VIEW_CACHE_CHECK_INTERVAL = 60;
+
+    public static final String WARM_THREADS = "djatoka.warm.threads";
+
+    public static final String WARM_DIR = "djatoka.warm.dir";
+
+    public static final String WARM_CHECKPOINT_DIR =
+            "djatoka.warm.checkpoint.dir";
+
     public static final String[] TIF_EXTS = new String[] {"tif", "tiff"};
 
     // Would be nicer to tell the regex filter to be case insensitive
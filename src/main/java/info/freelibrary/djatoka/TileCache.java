@@ -30,6 +30,14 @@ import org.slf4j.LoggerFactory;
 
 import au.com.bytecode.opencsv.CSVReader;
 
+/**
+ * Caches the tiles of images by requesting them from a running server.
+ *
+ * @deprecated The server's <code>/warm</code> endpoint renders tiles without
+ *             going through HTTP and can resume an interrupted job; see
+ *             {@link info.freelibrary.djatoka.view.CacheWarmer}
+ */
+@Deprecated
 public class TileCache {
 
     private static final Logger LOGGER = LoggerFactory
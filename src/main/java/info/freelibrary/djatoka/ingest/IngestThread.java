@@ -2,6 +2,7 @@
 package info.freelibrary.djatoka.ingest;
 
 import info.freelibrary.djatoka.Constants;
+import info.freelibrary.djatoka.view.IdentifierResolver;
 
 import info.freelibrary.util.FileUtils;
 import info.freelibrary.util.Logger;
@@ -21,6 +22,8 @@ import gov.lanl.adore.djatoka.DjatokaEncodeParam;
 import gov.lanl.adore.djatoka.DjatokaException;
 import gov.lanl.adore.djatoka.ICompress;
 import gov.lanl.adore.djatoka.kdu.KduCompressExe;
+import gov.lanl.adore.djatoka.openurl.IReferentResolver;
+import gov.lanl.adore.djatoka.openurl.ReferentManager;
 
 import java.io.File;
 import java.io.IOException;
@@ -349,9 +352,16 @@ public class IngestThread extends Thread implements Constants {
         String ptFileName = PairtreeUtils.encodeID(aID);
         File jp2PtFile = new File(ptDir, ptFileName);
 
+        IReferentResolver resolver = ReferentManager.getResolver();
+
         // Move the file into the Pairtree structure
         aFile.renameTo(jp2PtFile);
 
+        // The ID may have been requested, and found missing, before now
+        if (resolver instanceof IdentifierResolver) {
+            ((IdentifierResolver) resolver).invalidate(aID);
+        }
+
         if (LOGGER.isDebugEnabled()) {
             LOGGER.info("INGEST_TO_CACHE", aID, jp2PtFile.getAbsolutePath());
         }
@@ -29,6 +29,7 @@ package info.freelibrary.djatoka.io;
 import gov.lanl.adore.djatoka.io.FormatIOException;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
 import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.FileInputStream;
@@ -37,7 +38,9 @@ import java.io.InputStream;
 import java.io.OutputStream;
 
 /*
- * Holds an image read from a Netpbm PPM and PGM format image files.
+ * Holds an image read from a Netpbm PPM and PGM format image files. Colour
+ * images are read as TYPE_3BYTE_BGR images and greyscale images and bitmaps
+ * as TYPE_BYTE_GRAY images; 16-bit samples are scaled to 8 bits.
  */
 public class PNMImage {
 
@@ -94,48 +97,36 @@ public class PNMImage {
                 maxValue = readNumber(stream);
             }
 
-            int nBytes = (maxValue < 256) ? 1 : 2;
+            if (maxValue <= 0 || maxValue > 65535) {
+                throw new FormatIOException("Bad PNM maximum value: " +
+                        maxValue);
+            }
 
             /*
-             * Read pixel values into image.
+             * Read pixel values straight into the image's raster, in bulk
+             * rather than a pixel at a time.
              */
-            m_image =
-                    new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-
-            int nextByte = 0;
-            for (int y = 0; y < height; y++) {
-                int bitMask = 0;
-                for (int x = 0; x < width; x++) {
-                    int r, g, b, pixel;
-                    if (nBytes == 1) {
-                        if (isBitmap) {
-                            /*
-                             * Extract pixel from next bit.
-                             */
-                            if (bitMask == 0) {
-                                nextByte = stream.read();
-                                bitMask = 128;
-                            }
-                            r = g = b = (((nextByte & bitMask) != 0) ? 0 : 255);
-                            bitMask >>= 1;
-                        } else if (isGreyscale) {
-                            r = g = b = stream.read();
-                        } else {
-                            r = stream.read();
-                            g = stream.read();
-                            b = stream.read();
-                        }
-                    } else {
-                        if (isGreyscale) {
-                            r = g = b = stream.readShort();
-                        } else {
-                            r = stream.readShort();
-                            g = stream.readShort();
-                            b = stream.readShort();
-                        }
-                    }
-                    pixel = (r << 16) | (g << 8) | b;
-                    m_image.setRGB(x, y, pixel);
+            if (isBitmap || isGreyscale) {
+                m_image =
+                        new BufferedImage(width, height,
+                                BufferedImage.TYPE_BYTE_GRAY);
+            } else {
+                m_image =
+                        new BufferedImage(width, height,
+                                BufferedImage.TYPE_3BYTE_BGR);
+            }
+
+            byte[] data =
+                    ((DataBufferByte) m_image.getRaster().getDataBuffer())
+                            .getData();
+
+            if (isBitmap) {
+                readBitmap(stream, data, width, height);
+            } else {
+                readSamples(stream, data, maxValue);
+
+                if (!isGreyscale) {
+                    toBGR(data);
                 }
             }
         } finally {
@@ -146,6 +137,78 @@ public class PNMImage {
         }
     }
 
+    /**
+     * Reads 8-bit or 16-bit samples into the supplied array, scaling them to
+     * 8 bits if their maximum value isn't 255.
+     */
+    private static void readSamples(DataInputStream aStream, byte[] aData,
+            int aMaxValue) throws IOException {
+        if (aMaxValue < 256) {
+            aStream.readFully(aData);
+
+            if (aMaxValue != 255) {
+                for (int index = 0; index < aData.length; index++) {
+                    aData[index] = scale(aData[index] & 0xff, aMaxValue);
+                }
+            }
+        } else {
+            // Samples are two bytes, most significant first
+            byte[] row = new byte[Math.min(aData.length, 65536) * 2];
+            int offset = 0;
+
+            while (offset < aData.length) {
+                int count = Math.min(aData.length - offset, row.length / 2);
+
+                aStream.readFully(row, 0, count * 2);
+
+                for (int index = 0; index < count; index++) {
+                    int sample =
+                            ((row[index * 2] & 0xff) << 8) |
+                                    (row[index * 2 + 1] & 0xff);
+
+                    aData[offset++] = scale(sample, aMaxValue);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a bitmap, in which each row is padded to a whole byte and a set
+     * bit is black, into the supplied array of grey samples.
+     */
+    private static void readBitmap(DataInputStream aStream, byte[] aData,
+            int aWidth, int aHeight) throws IOException {
+        byte[] row = new byte[(aWidth + 7) / 8];
+        int offset = 0;
+
+        for (int y = 0; y < aHeight; y++) {
+            aStream.readFully(row);
+
+            for (int x = 0; x < aWidth; x++) {
+                boolean isBlack = (row[x >> 3] & (128 >> (x & 7))) != 0;
+
+                aData[offset++] = isBlack ? 0 : (byte) 255;
+            }
+        }
+    }
+
+    /**
+     * Swaps the red and blue samples of RGB pixels, as a
+     * <code>TYPE_3BYTE_BGR</code> raster stores them.
+     */
+    private static void toBGR(byte[] aData) {
+        for (int index = 0; index + 2 < aData.length; index += 3) {
+            byte red = aData[index];
+
+            aData[index] = aData[index + 2];
+            aData[index + 2] = red;
+        }
+    }
+
+    private static byte scale(int aSample, int aMaxValue) {
+        return (byte) ((aSample * 255 + aMaxValue / 2) / aMaxValue);
+    }
+
     /**
      * Read decimal number from stream.
      * 
@@ -0,0 +1,37 @@
+
+package info.freelibrary.djatoka.util;
+
+/**
+ * Decides whether a newly rendered image is worth keeping in a cache that's
+ * full. A cache records each request for a key with the policy and, before it
+ * evicts an entry to make room for a new one, asks the policy whether the new
+ * entry should displace the entry that would be evicted.
+ */
+public interface AdmissionPolicy {
+
+    /**
+     * Sizes the policy for a cache that holds about the supplied number of
+     * entries. What the policy has recorded so far may be discarded.
+     *
+     * @param aCapacity The number of entries the cache is expected to hold
+     */
+    void setCapacity(int aCapacity);
+
+    /**
+     * Records a request for the supplied key, whether or not it was found in
+     * the cache.
+     *
+     * @param aKey The requested key
+     */
+    void record(Object aKey);
+
+    /**
+     * Returns true if the candidate should displace the victim in the cache;
+     * else, false.
+     *
+     * @param aCandidate The key of the entry that's being added
+     * @param aVictim The key of the entry that would be evicted
+     * @return True if the candidate should be cached
+     */
+    boolean admit(Object aCandidate, Object aVictim);
+}
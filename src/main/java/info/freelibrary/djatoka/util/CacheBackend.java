@@ -0,0 +1,47 @@
+
+package info.freelibrary.djatoka.util;
+
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * Decides where a rendered tile is cached when several nodes serve the same
+ * images. Each tile, identified by the hash of its canonical tile key, is
+ * either cached on this node, by its OpenURL tile cache and view cache, or
+ * owned by another node that renders and caches it for the rest.
+ */
+public interface CacheBackend {
+
+    /**
+     * The header that marks a request one node made of another; it's always
+     * answered by the node it was sent to.
+     */
+    String PEER_HEADER = "X-Djatoka-Peer";
+
+    /**
+     * Configures the backend from the OpenURL layer's properties.
+     *
+     * @param aProps The OpenURL layer's properties
+     * @throws IOException If the backend's configuration is invalid
+     */
+    void setProperties(Properties aProps) throws IOException;
+
+    /**
+     * Returns true if the supplied tile should be rendered and cached on this
+     * node; else, false.
+     *
+     * @param aKey A tile's cache key
+     * @return True if the tile belongs on this node
+     */
+    boolean isLocal(String aKey);
+
+    /**
+     * Gets a tile from the node that owns it.
+     *
+     * @param aKey A tile's cache key
+     * @param aQuery The query of the OpenURL request for the tile
+     * @return The tile's bytes or null if the owner couldn't supply them
+     * @throws IOException If the owner can't be reached
+     */
+    byte[] get(String aKey, String aQuery) throws IOException;
+}
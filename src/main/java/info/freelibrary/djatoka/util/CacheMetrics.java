@@ -0,0 +1,312 @@
+
+package info.freelibrary.djatoka.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts the hits, misses and loads of one cache tier and keeps a histogram
+ * of how long its loads took. The size, byte size and eviction count belong
+ * to the cache itself; a tier that tracks them overrides the getters that
+ * report them. Registered metrics are published through JMX, under
+ * <code>info.freelibrary.djatoka:type=Cache,name=&lt;name&gt;</code>, and by
+ * the <code>/metrics</code> endpoint.
+ */
+public class CacheMetrics implements CacheMetricsMBean {
+
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(CacheMetrics.class);
+
+    private static final String DOMAIN = "info.freelibrary.djatoka";
+
+    /**
+     * The upper limits, in milliseconds, of the load time histogram's
+     * buckets; the last bucket holds everything slower.
+     */
+    private static final long[] BUCKET_LIMITS = new long[] {
+        1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000
+    };
+
+    private static final Map<String, CacheMetrics> REGISTRY =
+            new TreeMap<String, CacheMetrics>();
+
+    private final String myName;
+
+    private final AtomicLong myHits = new AtomicLong();
+
+    private final AtomicLong myMisses = new AtomicLong();
+
+    private final AtomicLong myLoadNanos = new AtomicLong();
+
+    private final AtomicLong myMaxLoadNanos = new AtomicLong();
+
+    private final AtomicLongArray myBuckets = new AtomicLongArray(
+            BUCKET_LIMITS.length + 1);
+
+    /**
+     * Creates metrics for the named cache tier.
+     *
+     * @param aName The name of the cache tier
+     */
+    public CacheMetrics(String aName) {
+        myName = aName;
+    }
+
+    /**
+     * Registers the supplied metrics, replacing any already registered under
+     * the same name.
+     *
+     * @param aMetrics The metrics of a cache tier
+     * @return The supplied metrics
+     */
+    public static <M extends CacheMetrics> M register(M aMetrics) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        synchronized (REGISTRY) {
+            REGISTRY.put(aMetrics.getName(), aMetrics);
+
+            try {
+                ObjectName name = getObjectName(aMetrics.getName());
+
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+
+                server.registerMBean(new StandardMBean(aMetrics,
+                        CacheMetricsMBean.class), name);
+            } catch (JMException details) {
+                if (LOGGER.isWarnEnabled()) {
+                    LOGGER.warn("Unable to register {} with JMX: {}", aMetrics
+                            .getName(), details.getMessage());
+                }
+            }
+        }
+
+        return aMetrics;
+    }
+
+    /**
+     * Unregisters the metrics with the supplied name.
+     *
+     * @param aName The name of a cache tier
+     */
+    public static void unregister(String aName) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        synchronized (REGISTRY) {
+            REGISTRY.remove(aName);
+
+            try {
+                ObjectName name = getObjectName(aName);
+
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+            } catch (JMException details) {
+                if (LOGGER.isWarnEnabled()) {
+                    LOGGER.warn("Unable to unregister {} from JMX: {}", aName,
+                            details.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets all the registered metrics, in order of their names.
+     *
+     * @return The registered metrics
+     */
+    public static List<CacheMetrics> getAll() {
+        synchronized (REGISTRY) {
+            return Collections.unmodifiableList(new ArrayList<CacheMetrics>(
+                    REGISTRY.values()));
+        }
+    }
+
+    /**
+     * Gets the name of the cache tier.
+     *
+     * @return The name of the cache tier
+     */
+    public String getName() {
+        return myName;
+    }
+
+    /**
+     * Records a lookup that was answered from the cache.
+     */
+    public void recordHit() {
+        myHits.incrementAndGet();
+    }
+
+    /**
+     * Records a lookup that wasn't answered from the cache.
+     */
+    public void recordMiss() {
+        myMisses.incrementAndGet();
+    }
+
+    /**
+     * Records the time it took to load an entry into the cache.
+     *
+     * @param aNanos The load time in nanoseconds
+     */
+    public void recordLoad(long aNanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(aNanos);
+        int bucket = 0;
+        long max;
+
+        while (bucket < BUCKET_LIMITS.length &&
+                millis > BUCKET_LIMITS[bucket]) {
+            bucket++;
+        }
+
+        myBuckets.incrementAndGet(bucket);
+        myLoadNanos.addAndGet(aNanos);
+
+        while (aNanos > (max = myMaxLoadNanos.get()) &&
+                !myMaxLoadNanos.compareAndSet(max, aNanos)) {
+            // Another load finished at the same time; check against it
+        }
+    }
+
+    @Override
+    public long getHitCount() {
+        return myHits.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return myMisses.get();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hits = myHits.get();
+        long lookups = hits + myMisses.get();
+
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return -1;
+    }
+
+    @Override
+    public long getSize() {
+        return -1;
+    }
+
+    @Override
+    public long getByteSize() {
+        return -1;
+    }
+
+    @Override
+    public long getLoadCount() {
+        long count = 0;
+
+        for (int index = 0; index < myBuckets.length(); index++) {
+            count += myBuckets.get(index);
+        }
+
+        return count;
+    }
+
+    @Override
+    public double getMeanLoadMillis() {
+        long count = getLoadCount();
+
+        return count == 0 ? 0 : myLoadNanos.get() / 1000000D / count;
+    }
+
+    @Override
+    public long getMaxLoadMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(myMaxLoadNanos.get());
+    }
+
+    @Override
+    public long getP50LoadMillis() {
+        return getLoadPercentile(0.5);
+    }
+
+    @Override
+    public long getP95LoadMillis() {
+        return getLoadPercentile(0.95);
+    }
+
+    @Override
+    public long getP99LoadMillis() {
+        return getLoadPercentile(0.99);
+    }
+
+    /**
+     * Gets the upper limits of the load time histogram's buckets. The
+     * histogram has one more bucket than there are limits, for the loads that
+     * were slower than the last limit.
+     *
+     * @return The bucket limits in milliseconds
+     */
+    public static long[] getBucketLimits() {
+        return BUCKET_LIMITS.clone();
+    }
+
+    /**
+     * Gets the number of loads in each of the load time histogram's buckets.
+     *
+     * @return The load time histogram
+     */
+    public long[] getLoadHistogram() {
+        long[] histogram = new long[myBuckets.length()];
+
+        for (int index = 0; index < histogram.length; index++) {
+            histogram[index] = myBuckets.get(index);
+        }
+
+        return histogram;
+    }
+
+    private long getLoadPercentile(double aFraction) {
+        long[] histogram = getLoadHistogram();
+        long count = 0;
+        long seen = 0;
+
+        for (long loads : histogram) {
+            count += loads;
+        }
+
+        if (count == 0) {
+            return 0;
+        }
+
+        for (int index = 0; index < BUCKET_LIMITS.length; index++) {
+            seen += histogram[index];
+
+            if (seen >= Math.ceil(count * aFraction)) {
+                return BUCKET_LIMITS[index];
+            }
+        }
+
+        return getMaxLoadMillis();
+    }
+
+    private static ObjectName getObjectName(String aName) throws JMException {
+        return new ObjectName(DOMAIN + ":type=Cache,name=" + aName);
+    }
+}
@@ -0,0 +1,95 @@
+
+package info.freelibrary.djatoka.util;
+
+/**
+ * The management interface of a cache tier's metrics.
+ */
+public interface CacheMetricsMBean {
+
+    /**
+     * Gets the number of lookups that were answered from the cache.
+     *
+     * @return The number of cache hits
+     */
+    long getHitCount();
+
+    /**
+     * Gets the number of lookups that weren't answered from the cache.
+     *
+     * @return The number of cache misses
+     */
+    long getMissCount();
+
+    /**
+     * Gets the fraction of lookups that were answered from the cache.
+     *
+     * @return The cache's hit ratio, from zero to one
+     */
+    double getHitRatio();
+
+    /**
+     * Gets the number of entries that have been evicted from the cache.
+     *
+     * @return The number of evictions or -1 if the cache doesn't count them
+     */
+    long getEvictionCount();
+
+    /**
+     * Gets the number of entries in the cache.
+     *
+     * @return The number of entries or -1 if the cache doesn't count them
+     */
+    long getSize();
+
+    /**
+     * Gets the number of bytes the cache's entries take up.
+     *
+     * @return The number of bytes or -1 if the cache doesn't count them
+     */
+    long getByteSize();
+
+    /**
+     * Gets the number of entries that have been loaded into the cache.
+     *
+     * @return The number of loads
+     */
+    long getLoadCount();
+
+    /**
+     * Gets the mean time it took to load an entry.
+     *
+     * @return The mean load time in milliseconds
+     */
+    double getMeanLoadMillis();
+
+    /**
+     * Gets the longest time it took to load an entry.
+     *
+     * @return The maximum load time in milliseconds
+     */
+    long getMaxLoadMillis();
+
+    /**
+     * Gets the time within which half the loads finished.
+     *
+     * @return The median load time in milliseconds, rounded up to the limit
+     *         of the histogram bucket it falls into
+     */
+    long getP50LoadMillis();
+
+    /**
+     * Gets the time within which ninety-five percent of the loads finished.
+     *
+     * @return The 95th percentile load time in milliseconds, rounded up to
+     *         the limit of the histogram bucket it falls into
+     */
+    long getP95LoadMillis();
+
+    /**
+     * Gets the time within which ninety-nine percent of the loads finished.
+     *
+     * @return The 99th percentile load time in milliseconds, rounded up to
+     *         the limit of the histogram bucket it falls into
+     */
+    long getP99LoadMillis();
+}
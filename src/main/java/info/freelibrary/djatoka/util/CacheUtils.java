@@ -20,7 +20,10 @@ public class CacheUtils {
      * @param aRegion A region to be cached
      * @param aRotation A rotation to be cached
      * @return The file name for the cached file
+     * @deprecated Equivalent requests get different names; use
+     *             {@link TileKey#getFileName()}
      */
+    @Deprecated
     public static final String getFileName(String aLevel, String aScale,
             String aRegion, float aRotation) {
         StringBuilder cfName = new StringBuilder("image_");
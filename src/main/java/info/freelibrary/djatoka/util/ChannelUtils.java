@@ -0,0 +1,151 @@
+
+package info.freelibrary.djatoka.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends files to servlet output streams. When the container's output stream
+ * can write a channel's contents itself (as Jetty's does), the file's channel
+ * is handed to it and the file isn't copied through the Java heap. Otherwise
+ * the file is sent with <code>FileChannel.transferTo</code> to a channel that
+ * wraps the stream, which still copies it through a small heap buffer but
+ * doesn't read the whole file into memory.
+ */
+public class ChannelUtils {
+
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(ChannelUtils.class);
+
+    private static final String SEND_CONTENT = "sendContent";
+
+    private static final ConcurrentMap<Class<?>, Method[]> SENDERS =
+            new ConcurrentHashMap<Class<?>, Method[]>();
+
+    /**
+     * Sends the supplied file to the supplied output stream.
+     *
+     * @param aFile The file to send
+     * @param aOutStream The output stream to send the file to
+     * @return The number of bytes that were sent
+     * @throws IOException If there is trouble reading or sending the file
+     */
+    public static long sendFile(File aFile, OutputStream aOutStream)
+            throws IOException {
+        FileInputStream inStream = new FileInputStream(aFile);
+
+        try {
+            return send(inStream.getChannel(), aOutStream);
+        } finally {
+            inStream.close();
+        }
+    }
+
+    /**
+     * Sends the contents of the supplied file channel to the supplied output
+     * stream. The channel is read from its start.
+     *
+     * @param aChannel The file channel to send
+     * @param aOutStream The output stream to send the file to
+     * @return The number of bytes that were sent
+     * @throws IOException If there is trouble reading or sending the file
+     */
+    public static long send(FileChannel aChannel, OutputStream aOutStream)
+            throws IOException {
+        Method sendContent = getSendContent(aOutStream.getClass());
+        long size = aChannel.size();
+
+        if (sendContent != null) {
+            try {
+                aChannel.position(0);
+                sendContent.invoke(aOutStream, aChannel);
+                return size;
+            } catch (IllegalAccessException details) {
+                LOGGER.debug(details.getMessage(), details);
+            } catch (InvocationTargetException details) {
+                Throwable cause = details.getCause();
+
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+
+                throw new IOException(cause);
+            }
+        }
+
+        return send(aChannel, 0, size, aOutStream);
+    }
+
+    /**
+     * Sends part of the supplied file channel to the supplied output stream.
+     * The channel's own position isn't changed, so several threads can send
+     * parts of the same channel at once. The bytes are copied through a heap
+     * buffer on their way to the stream.
+     *
+     * @param aChannel The file channel to send from
+     * @param aPosition The position of the first byte to send
+     * @param aLength The number of bytes to send
+     * @param aOutStream The output stream to send the bytes to
+     * @return The number of bytes that were sent
+     * @throws IOException If there is trouble reading or sending the file
+     */
+    public static long send(FileChannel aChannel, long aPosition,
+            long aLength, OutputStream aOutStream) throws IOException {
+        WritableByteChannel target = Channels.newChannel(aOutStream);
+        long position = 0;
+
+        while (position < aLength) {
+            long sent =
+                    aChannel.transferTo(aPosition + position, aLength -
+                            position, target);
+
+            // The file was truncated while we were sending it
+            if (sent <= 0) {
+                break;
+            }
+
+            position += sent;
+        }
+
+        return position;
+    }
+
+    private static Method getSendContent(Class<?> aClass) {
+        Method[] method = SENDERS.get(aClass);
+
+        if (method == null) {
+            method = new Method[1];
+
+            try {
+                // The container's own classes may not be visible to us
+                method[0] =
+                        aClass.getMethod(SEND_CONTENT,
+                                ReadableByteChannel.class);
+            } catch (NoSuchMethodException details) {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("{} can't send channels; using transferTo",
+                            aClass.getName());
+                }
+            }
+
+            SENDERS.putIfAbsent(aClass, method);
+        }
+
+        return method[0];
+    }
+}
@@ -0,0 +1,130 @@
+
+package info.freelibrary.djatoka.util;
+
+import java.io.File;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Answers conditional GET requests for images. Validators are derived from
+ * the source JP2's last modified time and size plus the parameters of the
+ * requested image, so they can be checked before any cache lookup or decode.
+ * <p/>
+ * The OpenURL services don't see the HTTP request they're answering, so the
+ * servlet that receives a request sets it as the current thread's request for
+ * the services to check against.
+ */
+public final class ConditionalGet {
+
+    private static final String IF_NONE_MATCH = "If-None-Match";
+
+    private static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private static final ThreadLocal<HttpServletRequest> REQUEST =
+            new ThreadLocal<HttpServletRequest>();
+
+    private ConditionalGet() {
+    }
+
+    /**
+     * Sets the request being answered on the current thread.
+     *
+     * @param aRequest The request being answered
+     */
+    public static void setRequest(HttpServletRequest aRequest) {
+        REQUEST.set(aRequest);
+    }
+
+    /**
+     * Clears the request set for the current thread.
+     */
+    public static void clearRequest() {
+        REQUEST.remove();
+    }
+
+    /**
+     * Gets the request being answered on the current thread.
+     *
+     * @return The current thread's request or null if one isn't set
+     */
+    public static HttpServletRequest getRequest() {
+        return REQUEST.get();
+    }
+
+    /**
+     * Gets the entity tag for a variant of the supplied source image. The
+     * variant is identified by a SHA1 hash, like {@link TileKey#getHash()},
+     * so two renders of the same source don't share an entity tag.
+     *
+     * @param aSource The source JP2 image
+     * @param aVariantHash A hash of the requested image's canonical key
+     * @return A quoted entity tag
+     */
+    public static String getETag(File aSource, String aVariantHash) {
+        StringBuilder eTag = new StringBuilder("\"");
+
+        eTag.append(Long.toHexString(aSource.lastModified())).append('-');
+        eTag.append(Long.toHexString(aSource.length())).append('-');
+        eTag.append(aVariantHash).append('"');
+
+        return eTag.toString();
+    }
+
+    /**
+     * Returns true if the supplied request's validators match the supplied
+     * entity tag and last modified time; else, false. An
+     * <code>If-None-Match</code> header takes precedence over an
+     * <code>If-Modified-Since</code> header.
+     *
+     * @param aRequest A request for an image
+     * @param aETag The image's current entity tag
+     * @param aLastModified The image's last modified time in milliseconds
+     * @return True if the client's copy of the image is still current
+     */
+    public static boolean isNotModified(HttpServletRequest aRequest,
+            String aETag, long aLastModified) {
+        String ifNoneMatch = aRequest.getHeader(IF_NONE_MATCH);
+        long ifModifiedSince;
+
+        if (ifNoneMatch != null) {
+            return matches(ifNoneMatch, aETag);
+        }
+
+        try {
+            ifModifiedSince = aRequest.getDateHeader(IF_MODIFIED_SINCE);
+        } catch (IllegalArgumentException details) {
+            return false; // Unparseable dates are ignored
+        }
+
+        // HTTP dates only have a resolution of seconds
+        return ifModifiedSince != -1 &&
+                aLastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    /**
+     * Returns true if the supplied <code>If-None-Match</code> header value
+     * matches the supplied entity tag; else, false. Entity tags are compared
+     * weakly, as they must be for GET requests.
+     *
+     * @param aIfNoneMatch The value of an <code>If-None-Match</code> header
+     * @param aETag An entity tag
+     * @return True if the header matches the entity tag
+     */
+    public static boolean matches(String aIfNoneMatch, String aETag) {
+        String eTag = stripWeakness(aETag);
+
+        for (String candidate : aIfNoneMatch.split(",")) {
+            candidate = candidate.trim();
+
+            if (candidate.equals("*") || stripWeakness(candidate).equals(eTag)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static String stripWeakness(String aETag) {
+        return aETag.startsWith("W/") ? aETag.substring(2) : aETag;
+    }
+}
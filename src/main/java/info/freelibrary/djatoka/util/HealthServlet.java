@@ -11,6 +11,15 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import gov.lanl.adore.djatoka.IExtract;
+import gov.lanl.adore.djatoka.kdu.jni.KduExtractPool;
+import gov.lanl.adore.djatoka.openurl.HotTileCache;
+import gov.lanl.adore.djatoka.openurl.OpenURLJP2KService;
+import gov.lanl.adore.djatoka.openurl.TileCacheManager;
+import gov.lanl.adore.djatoka.openurl.TileCacheWriter;
+import gov.lanl.adore.djatoka.util.ImageRecordCache;
+import info.freelibrary.djatoka.view.ViewCacheManager;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -72,12 +81,180 @@ public class HealthServlet extends HttpServlet {
             root.appendChild(getMemoryStats(memory, freeMemory, totalMemory));
             root.appendChild(getProcessorStats());
             root.appendChild(getThreadStats());
+            root.appendChild(getTileCacheStats());
+            root.appendChild(getExtractorStats());
+            root.appendChild(getViewCacheStats());
+            root.appendChild(getMetadataCacheStats());
         }
 
         serializer.write(response);
         out.close();
     }
 
+    private Element getTileCacheStats() {
+        TileCacheManager<String, String> cache =
+                OpenURLJP2KService.getTileCache();
+        HotTileCache hotTiles = OpenURLJP2KService.getHotTileCache();
+        TileCacheWriter writer = OpenURLJP2KService.getTileCacheWriter();
+        Element tileCache = new Element("tileCache");
+        Element rendersElem = new Element("renders");
+        Element coalescedElem = new Element("coalesced");
+        Element inFlightElem = new Element("inFlight");
+        long renders = OpenURLJP2KService.getTileRenderCount();
+        long coalesced = OpenURLJP2KService.getCoalescedRequestCount();
+        int inFlight = OpenURLJP2KService.getInFlightRenderCount();
+
+        rendersElem.appendChild(Long.toString(renders));
+        coalescedElem.appendChild(Long.toString(coalesced));
+        inFlightElem.appendChild(Integer.toString(inFlight));
+
+        tileCache.appendChild(rendersElem);
+        tileCache.appendChild(coalescedElem);
+        tileCache.appendChild(inFlightElem);
+
+        if (cache != null) {
+            Element sizeElem = new Element("size");
+            Element bytesElem = new Element("bytes");
+            Element evictionsElem = new Element("evictions");
+            Element rejectionsElem = new Element("rejections");
+
+            sizeElem.appendChild(Integer.toString(cache.size()));
+            bytesElem.appendChild(Long.toString(cache.getByteSize()));
+            bytesElem.addAttribute(new Attribute("max", Long.toString(cache
+                    .getMaxByteSize())));
+            evictionsElem.appendChild(Long.toString(cache.getEvictionCount()));
+            rejectionsElem.appendChild(Long.toString(cache
+                    .getRejectionCount()));
+
+            tileCache.appendChild(sizeElem);
+            tileCache.appendChild(bytesElem);
+            tileCache.appendChild(evictionsElem);
+            tileCache.appendChild(rejectionsElem);
+        }
+
+        if (writer != null) {
+            Element writesElem = new Element("writes");
+
+            writesElem.appendChild(Long.toString(writer.getWriteCount()));
+            writesElem.addAttribute(new Attribute("pending", Integer
+                    .toString(writer.getPendingCount())));
+            writesElem.addAttribute(new Attribute("skipped", Long
+                    .toString(writer.getSkipCount())));
+
+            tileCache.appendChild(writesElem);
+        }
+
+        if (hotTiles != null) {
+            Element memoryElem = new Element("memory");
+            Element sizeElem = new Element("size");
+            Element bytesElem = new Element("bytes");
+            Element hitsElem = new Element("hits");
+            Element missesElem = new Element("misses");
+            Element evictionsElem = new Element("evictions");
+
+            sizeElem.appendChild(Integer.toString(hotTiles.size()));
+            bytesElem.appendChild(Long.toString(hotTiles.getByteSize()));
+            bytesElem.addAttribute(new Attribute("max", Long.toString(hotTiles
+                    .getMaxByteSize())));
+            hitsElem.appendChild(Long.toString(hotTiles.getHitCount()));
+            missesElem.appendChild(Long.toString(hotTiles.getMissCount()));
+            evictionsElem.appendChild(Long.toString(hotTiles
+                    .getEvictionCount()));
+
+            memoryElem.appendChild(sizeElem);
+            memoryElem.appendChild(bytesElem);
+            memoryElem.appendChild(hitsElem);
+            memoryElem.appendChild(missesElem);
+            memoryElem.appendChild(evictionsElem);
+            tileCache.appendChild(memoryElem);
+        }
+
+        return tileCache;
+    }
+
+    private Element getExtractorStats() {
+        IExtract extractImpl = OpenURLJP2KService.getExtractImpl();
+        Element extractor = new Element("extractor");
+
+        if (extractImpl instanceof KduExtractPool) {
+            KduExtractPool pool = (KduExtractPool) extractImpl;
+            Element decodesElem = new Element("decodes");
+            Element fallbacksElem = new Element("fallbacks");
+
+            extractor.addAttribute(new Attribute("impl", "jni"));
+            extractor.addAttribute(new Attribute("threads", Integer
+                    .toString(pool.getThreadCount())));
+            decodesElem.appendChild(Long.toString(pool.getDecodeCount()));
+            decodesElem.addAttribute(new Attribute("queued", Integer
+                    .toString(pool.getQueuedCount())));
+            decodesElem.addAttribute(new Attribute("strips", Long
+                    .toString(pool.getStripCount())));
+            fallbacksElem.appendChild(Long.toString(pool.getFallbackCount()));
+
+            extractor.appendChild(decodesElem);
+            extractor.appendChild(fallbacksElem);
+        } else if (extractImpl != null) {
+            extractor.addAttribute(new Attribute("impl", "exe"));
+        }
+
+        return extractor;
+    }
+
+    private Element getViewCacheStats() {
+        ViewCacheManager manager = ViewCacheManager.getInstance();
+        Element viewCache = new Element("viewCache");
+
+        viewCache.addAttribute(new Attribute("managed", Boolean
+                .toString(manager != null)));
+
+        if (manager != null) {
+            Element bytesElem = new Element("bytes");
+            Element objectsElem = new Element("objects");
+            Element evictionsElem = new Element("evictions");
+            Element rejectionsElem = new Element("rejections");
+            Element lastScanElem = new Element("lastScan");
+
+            bytesElem.appendChild(Long.toString(manager.getByteSize()));
+            bytesElem.addAttribute(new Attribute("high", Long.toString(manager
+                    .getHighWatermark())));
+            bytesElem.addAttribute(new Attribute("low", Long.toString(manager
+                    .getLowWatermark())));
+            objectsElem.appendChild(Integer.toString(manager.getObjectCount()));
+            evictionsElem.appendChild(Long.toString(manager
+                    .getEvictionCount()));
+            evictionsElem.addAttribute(new Attribute("bytes", Long
+                    .toString(manager.getEvictedBytes())));
+            rejectionsElem.appendChild(Long.toString(manager
+                    .getRejectionCount()));
+            lastScanElem.appendChild(Long.toString(manager.getLastScan()));
+
+            viewCache.appendChild(bytesElem);
+            viewCache.appendChild(objectsElem);
+            viewCache.appendChild(evictionsElem);
+            viewCache.appendChild(rejectionsElem);
+            viewCache.appendChild(lastScanElem);
+        }
+
+        return viewCache;
+    }
+
+    private Element getMetadataCacheStats() {
+        Element metadataCache = new Element("metadataCache");
+        Element sizeElem = new Element("size");
+        Element hitsElem = new Element("hits");
+        Element missesElem = new Element("misses");
+
+        sizeElem.appendChild(Integer.toString(ImageRecordCache.size()));
+        hitsElem.appendChild(Long.toString(ImageRecordCache.getHitCount()));
+        missesElem.appendChild(Long.toString(ImageRecordCache.getMissCount()));
+
+        metadataCache.appendChild(sizeElem);
+        metadataCache.appendChild(hitsElem);
+        metadataCache.appendChild(missesElem);
+
+        return metadataCache;
+    }
+
     private Element getThreadStats() {
         Element threads = new Element("threads");
         ThreadMXBean mxBean = ManagementFactory.getThreadMXBean();
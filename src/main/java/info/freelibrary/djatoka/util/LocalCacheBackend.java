@@ -0,0 +1,25 @@
+
+package info.freelibrary.djatoka.util;
+
+import java.util.Properties;
+
+/**
+ * The cache backend of a node that works on its own: every tile is rendered
+ * and cached on this node's disk, by its OpenURL tile cache and view cache.
+ */
+public class LocalCacheBackend implements CacheBackend {
+
+    @Override
+    public void setProperties(Properties aProps) {
+    }
+
+    @Override
+    public boolean isLocal(String aKey) {
+        return true;
+    }
+
+    @Override
+    public byte[] get(String aKey, String aQuery) {
+        return null;
+    }
+}
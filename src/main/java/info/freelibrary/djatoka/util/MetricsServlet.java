@@ -0,0 +1,101 @@
+
+package info.freelibrary.djatoka.util;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import nu.xom.Attribute;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.Serializer;
+
+/**
+ * Reports the metrics of every registered cache tier as XML, for monitoring
+ * tools to poll. The same numbers are available through JMX.
+ */
+public class MetricsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 3518606479513532377L;
+
+    @Override
+    protected void doGet(HttpServletRequest aRequest,
+            HttpServletResponse aResponse) throws ServletException, IOException {
+        ServletOutputStream out = aResponse.getOutputStream();
+        Element root = new Element("metrics");
+        Serializer serializer = new Serializer(out);
+
+        for (CacheMetrics metrics : CacheMetrics.getAll()) {
+            root.appendChild(getCacheMetrics(metrics));
+        }
+
+        aResponse.setContentType("application/xml");
+        aResponse.setHeader("Cache-Control", "no-cache");
+
+        serializer.setIndent(2);
+        serializer.write(new Document(root));
+        out.close();
+    }
+
+    private Element getCacheMetrics(CacheMetrics aMetrics) {
+        Element cache = new Element("cache");
+        Element loads = new Element("loads");
+        long[] limits = CacheMetrics.getBucketLimits();
+        long[] histogram = aMetrics.getLoadHistogram();
+        long total = 0;
+
+        cache.addAttribute(new Attribute("name", aMetrics.getName()));
+        cache.appendChild(getElement("hits", aMetrics.getHitCount()));
+        cache.appendChild(getElement("misses", aMetrics.getMissCount()));
+        cache.appendChild(getElement("hitRatio", String.format("%.4f",
+                aMetrics.getHitRatio())));
+        cache.appendChild(getElement("evictions", aMetrics
+                .getEvictionCount()));
+        cache.appendChild(getElement("size", aMetrics.getSize()));
+        cache.appendChild(getElement("bytes", aMetrics.getByteSize()));
+
+        loads.addAttribute(new Attribute("count", Long.toString(aMetrics
+                .getLoadCount())));
+        loads.appendChild(getElement("meanMillis", String.format("%.2f",
+                aMetrics.getMeanLoadMillis())));
+        loads.appendChild(getElement("maxMillis", aMetrics
+                .getMaxLoadMillis()));
+        loads.appendChild(getElement("p50Millis", aMetrics
+                .getP50LoadMillis()));
+        loads.appendChild(getElement("p95Millis", aMetrics
+                .getP95LoadMillis()));
+        loads.appendChild(getElement("p99Millis", aMetrics
+                .getP99LoadMillis()));
+
+        // Buckets are cumulative; each counts the loads that took at most
+        // its limit
+        for (int index = 0; index < histogram.length; index++) {
+            Element bucket;
+            String limit =
+                    index < limits.length ? Long.toString(limits[index])
+                            : "+Inf";
+
+            total += histogram[index];
+            bucket = getElement("bucket", total);
+            bucket.addAttribute(new Attribute("le", limit));
+            loads.appendChild(bucket);
+        }
+
+        cache.appendChild(loads);
+        return cache;
+    }
+
+    private Element getElement(String aName, long aValue) {
+        return getElement(aName, Long.toString(aValue));
+    }
+
+    private Element getElement(String aName, String aValue) {
+        Element element = new Element(aName);
+        element.appendChild(aValue);
+        return element;
+    }
+}
@@ -0,0 +1,287 @@
+
+package info.freelibrary.djatoka.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cache backend that shares tiles between a group of peer nodes. Each tile
+ * is owned by one node, chosen by consistent hashing of its cache key, so
+ * adding or removing a node only moves the tiles of the node's neighbors on
+ * the hash ring. A node asks the owner for the tiles it doesn't own, over
+ * HTTP, and the owner renders and caches them. If the owner can't be reached,
+ * the node handles its tiles itself for a while before trying it again.
+ * <p/>
+ * The peers are listed by their base URLs in
+ * <code>OpenURLJP2KService.cachePeers</code>; each node names itself, with one
+ * of those URLs, in <code>OpenURLJP2KService.cachePeerSelf</code>, which can
+ * also be set as a system property.
+ */
+public class PeerCacheBackend implements CacheBackend {
+
+    /**
+     * The property that lists the peers' base URLs.
+     */
+    public static final String PEERS = "OpenURLJP2KService.cachePeers";
+
+    /**
+     * The property that holds this node's base URL.
+     */
+    public static final String SELF = "OpenURLJP2KService.cachePeerSelf";
+
+    /**
+     * The property that holds the number of milliseconds to wait on a peer.
+     */
+    public static final String TIMEOUT = "OpenURLJP2KService.cachePeerTimeout";
+
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(PeerCacheBackend.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String DEFAULT_TIMEOUT = "10000";
+
+    // The number of points each peer gets on the ring, to even out the load
+    private static final int VIRTUAL_NODES = 160;
+
+    private static final long RETRY_INTERVAL = 30000L;
+
+    private final ConcurrentMap<String, Long> myDownPeers =
+            new ConcurrentHashMap<String, Long>();
+
+    private final CacheMetrics myMetrics = CacheMetrics
+            .register(new CacheMetrics("peerCache"));
+
+    private volatile SortedMap<Long, String> myRing =
+            new TreeMap<Long, String>();
+
+    private volatile String mySelf;
+
+    private volatile int myTimeout;
+
+    @Override
+    public void setProperties(Properties aProps) throws IOException {
+        String peers = aProps.getProperty(PEERS, "");
+        // A system property lets nodes that share a build tell themselves apart
+        String self = System.getProperty(SELF, aProps.getProperty(SELF));
+        List<String> peerList = new ArrayList<String>();
+
+        for (String peer : peers.split(",")) {
+            if (peer.trim().length() > 0) {
+                peerList.add(trim(peer));
+            }
+        }
+
+        if (self == null || !peerList.contains(trim(self))) {
+            throw new IOException(SELF + " must be one of the " + PEERS);
+        }
+
+        setPeers(peerList, trim(self));
+
+        try {
+            myTimeout =
+                    Integer.parseInt(aProps.getProperty(TIMEOUT,
+                            DEFAULT_TIMEOUT));
+        } catch (NumberFormatException details) {
+            throw new IOException("Invalid " + TIMEOUT, details);
+        }
+    }
+
+    /**
+     * Sets the peers that share tiles.
+     *
+     * @param aPeers The peers' base URLs
+     * @param aSelf This node's base URL
+     */
+    public void setPeers(List<String> aPeers, String aSelf) {
+        SortedMap<Long, String> ring = new TreeMap<Long, String>();
+
+        for (String peer : aPeers) {
+            for (int index = 0; index < VIRTUAL_NODES; index++) {
+                ring.put(hash(peer + "#" + index), peer);
+            }
+        }
+
+        myRing = ring;
+        mySelf = aSelf;
+
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info("Sharing tiles with {} as {}", aPeers, aSelf);
+        }
+    }
+
+    /**
+     * Gets the peer that owns the supplied tile.
+     *
+     * @param aKey A tile's cache key
+     * @return The base URL of the tile's owner
+     */
+    public String getOwner(String aKey) {
+        SortedMap<Long, String> ring = myRing;
+        SortedMap<Long, String> tail;
+
+        if (ring.isEmpty()) {
+            return mySelf;
+        }
+
+        tail = ring.tailMap(hash(aKey));
+        return tail.isEmpty() ? ring.get(ring.firstKey()) : tail.get(tail
+                .firstKey());
+    }
+
+    @Override
+    public boolean isLocal(String aKey) {
+        String owner = getOwner(aKey);
+        return owner.equals(mySelf) || isDown(owner);
+    }
+
+    @Override
+    public byte[] get(String aKey, String aQuery) throws IOException {
+        String owner = getOwner(aKey);
+        long start = System.nanoTime();
+        HttpURLConnection connection;
+        byte[] bytes = null;
+
+        if (owner.equals(mySelf) || isDown(owner)) {
+            return null;
+        }
+
+        // Only a peer that can't be connected to is taken out of the ring
+        try {
+            URL url = new URL(owner + "/resolve?" + aQuery);
+
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(myTimeout);
+            connection.setReadTimeout(myTimeout);
+            connection.setRequestProperty(PEER_HEADER, mySelf);
+            connection.connect();
+        } catch (IOException details) {
+            myDownPeers.put(owner, System.currentTimeMillis() +
+                    RETRY_INTERVAL);
+
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Unable to reach peer {}; retrying in {} ms: {}",
+                        new Object[] {
+                            owner, RETRY_INTERVAL, details.getMessage()
+                        });
+            }
+
+            myMetrics.recordMiss();
+            throw details;
+        }
+
+        try {
+            int status = connection.getResponseCode();
+
+            if (status == HttpURLConnection.HTTP_OK) {
+                bytes = read(connection.getInputStream());
+            } else {
+                InputStream error = connection.getErrorStream();
+
+                // Reading the error to its end lets the connection be reused
+                if (error != null) {
+                    read(error);
+                }
+
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("{} answered {} for {}", new Object[] {
+                        owner, status, aKey
+                    });
+                }
+            }
+        } catch (IOException details) {
+            connection.disconnect();
+
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Peer {} failed to send {}: {}", new Object[] {
+                    owner, aKey, details.getMessage()
+                });
+            }
+
+            myMetrics.recordMiss();
+            throw details;
+        }
+
+        if (bytes == null || bytes.length == 0) {
+            myMetrics.recordMiss();
+            return null;
+        }
+
+        myMetrics.recordHit();
+        myMetrics.recordLoad(System.nanoTime() - start);
+        return bytes;
+    }
+
+    private boolean isDown(String aPeer) {
+        Long retry = myDownPeers.get(aPeer);
+
+        if (retry == null) {
+            return false;
+        }
+
+        if (retry.longValue() <= System.currentTimeMillis()) {
+            myDownPeers.remove(aPeer, retry);
+            return false;
+        }
+
+        return true;
+    }
+
+    private static byte[] read(InputStream aStream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+
+        try {
+            while ((read = aStream.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+        } finally {
+            aStream.close();
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static String trim(String aURL) {
+        String url = aURL.trim();
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    private static long hash(String aValue) {
+        MessageDigest md5;
+        byte[] digest;
+        long hash = 0;
+
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException details) {
+            // Should not be possible; JVMs must support MD5
+            throw new RuntimeException(details);
+        }
+
+        digest = md5.digest(aValue.getBytes(UTF_8));
+
+        for (int index = 0; index < 8; index++) {
+            hash = (hash << 8) | (digest[index] & 0xFF);
+        }
+
+        return hash;
+    }
+}
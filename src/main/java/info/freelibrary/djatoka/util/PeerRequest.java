@@ -0,0 +1,109 @@
+
+package info.freelibrary.djatoka.util;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * The part of a tile request that a peer needs to render the tile for this
+ * node: the OpenURL <code>/resolve</code> query and whether the request came
+ * from another peer.
+ * <p/>
+ * The OpenURL services don't see the HTTP request they're answering, so the
+ * OpenURL servlet sets one for the current thread, whether the request came
+ * from a client or was forwarded from the view layer. A forwarded request's
+ * query string is the view layer's, so the view layer sets the OpenURL query
+ * it forwards to as the {@link #QUERY} request attribute.
+ */
+public final class PeerRequest {
+
+    /**
+     * The request attribute that holds the OpenURL query of a forwarded
+     * request.
+     */
+    public static final String QUERY = PeerRequest.class.getName() + ".query";
+
+    private static final ThreadLocal<PeerRequest> REQUEST =
+            new ThreadLocal<PeerRequest>();
+
+    private final String myQuery;
+
+    private final boolean isFromPeer;
+
+    private PeerRequest(String aQuery, boolean aFromPeer) {
+        myQuery = aQuery;
+        isFromPeer = aFromPeer;
+    }
+
+    /**
+     * Sets the supplied request as the one being answered on the current
+     * thread.
+     *
+     * @param aRequest The request being answered
+     */
+    public static void set(HttpServletRequest aRequest) {
+        Object query = aRequest.getAttribute(QUERY);
+
+        REQUEST.set(new PeerRequest(query != null ? query.toString()
+                : aRequest.getQueryString(), aRequest
+                .getHeader(CacheBackend.PEER_HEADER) != null));
+    }
+
+    /**
+     * Clears the request set for the current thread.
+     */
+    public static void clear() {
+        REQUEST.remove();
+    }
+
+    /**
+     * Gets the request being answered on the current thread.
+     *
+     * @return The current thread's request or null if one isn't set
+     */
+    public static PeerRequest get() {
+        return REQUEST.get();
+    }
+
+    /**
+     * Gets a tile for the current thread's request from the peer that owns
+     * it. Null is returned if there isn't a request, if this node owns the
+     * tile, or if the request came from another peer; requests from peers are
+     * always answered locally, so a tile is never passed around the ring.
+     *
+     * @param aBackend The cache backend that knows the tile's owner
+     * @param aKey The tile's cache key
+     * @return The tile's bytes or null if they aren't fetched from a peer
+     * @throws IOException If the owning peer can't be reached
+     */
+    public static byte[] fetch(CacheBackend aBackend, String aKey)
+            throws IOException {
+        PeerRequest request = REQUEST.get();
+
+        if (request == null || request.isFromPeer() ||
+                request.myQuery == null || aBackend.isLocal(aKey)) {
+            return null;
+        }
+
+        return aBackend.get(aKey, request.myQuery);
+    }
+
+    /**
+     * Gets the OpenURL query of the request.
+     *
+     * @return The request's OpenURL query
+     */
+    public String getQuery() {
+        return myQuery;
+    }
+
+    /**
+     * Returns true if the request came from another peer; else, false.
+     *
+     * @return True if the request came from another peer
+     */
+    public boolean isFromPeer() {
+        return isFromPeer;
+    }
+}
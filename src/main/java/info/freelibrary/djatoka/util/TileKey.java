@@ -0,0 +1,405 @@
+
+package info.freelibrary.djatoka.util;
+
+import gov.lanl.adore.djatoka.DjatokaDecodeParam;
+import gov.lanl.adore.djatoka.util.ImageProcessingUtils;
+import gov.lanl.adore.djatoka.util.ImageRecord;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.StringTokenizer;
+
+/**
+ * The canonical cache key of a rendered image. The IIIF, legacy view and
+ * OpenURL front ends describe the same pixels in different ways (percentages
+ * or scaling factors, "full" or the image's own bounds); a key reduces a
+ * request to what's actually rendered: the reduce level, the region in full
+ * resolution pixels, the output size, the rotation, the compositing layer and
+ * the format. Equivalent requests get equal keys.
+ * <p/>
+ * Resolving a request needs the source image's dimensions. Without them, a
+ * key falls back to a normalized form of the request's own parameters. So do
+ * fractional regions, which the extractors round at the reduced resolution
+ * and <code>kdu_expand</code> rounds in its own way.
+ */
+public final class TileKey {
+
+    private static final String FULL = "full";
+
+    private static final ThreadLocal<MessageDigest> DIGESTS =
+            new ThreadLocal<MessageDigest>() {
+
+                @Override
+                protected MessageDigest initialValue() {
+                    try {
+                        return MessageDigest.getInstance("SHA1");
+                    } catch (NoSuchAlgorithmException details) {
+                        // All JVMs are required to support SHA1
+                        throw new RuntimeException(details);
+                    }
+                }
+            };
+
+    private final String myID;
+
+    private final String myName;
+
+    private final String myExtension;
+
+    private final boolean isResolved;
+
+    private String myHash;
+
+    private TileKey(String aID, String aName, String aExtension,
+            boolean aResolved) {
+        myID = aID;
+        myName = aName;
+        myExtension = aExtension;
+        isResolved = aResolved;
+    }
+
+    /**
+     * Creates the key of an image rendered with the supplied decode
+     * parameters.
+     *
+     * @param aID The ID of the source image
+     * @param aParams The parameters the image is rendered with
+     * @param aExtension The file extension of the rendered image's format
+     * @param aImage A record with the source image's dimensions or null if
+     *        they're not known
+     * @return The image's cache key
+     */
+    public static TileKey create(String aID, DjatokaDecodeParam aParams,
+            String aExtension, ImageRecord aImage) {
+        String ext = aExtension.toLowerCase();
+        String region = aParams.getRegion();
+
+        if (aImage != null && aImage.getWidth() > 0 &&
+                aImage.getHeight() > 0 &&
+                (region == null || !region.contains("."))) {
+            try {
+                return new TileKey(aID, resolve(aParams, aImage), ext, true);
+            } catch (RuntimeException details) {
+                // A malformed region; the renderer will report it
+            }
+        }
+
+        return new TileKey(aID, normalize(aParams), ext, false);
+    }
+
+    /**
+     * Creates decode parameters from OpenURL service values, as the OpenURL
+     * image service reads them. Any value may be null.
+     *
+     * @param aLevel A <code>svc.level</code> value
+     * @param aRegion A <code>svc.region</code> value
+     * @param aScale A <code>svc.scale</code> value
+     * @param aRotation A <code>svc.rotate</code> value
+     * @param aLayer A <code>svc.clayer</code> value
+     * @return Decode parameters for the service values
+     * @throws NumberFormatException If a value isn't a number
+     */
+    public static DjatokaDecodeParam getDecodeParam(String aLevel,
+            String aRegion, String aScale, String aRotation, String aLayer) {
+        DjatokaDecodeParam params = new DjatokaDecodeParam();
+
+        if (!isEmpty(aRegion) && !aRegion.equals(FULL)) {
+            params.setRegion(aRegion);
+        }
+
+        if (!isEmpty(aLevel)) {
+            params.setLevel(Integer.parseInt(aLevel));
+        }
+
+        if (!isEmpty(aRotation)) {
+            params.setRotationDegree(Integer.parseInt(aRotation));
+        }
+
+        if (!isEmpty(aScale) && !aScale.equals(FULL)) {
+            // Scaling to a width and height always preserves the aspect ratio
+            String[] v =
+                    (aScale.startsWith("!") ? aScale.substring(1) : aScale)
+                            .split(",");
+
+            if (v.length == 1) {
+                if (v[0].contains(".")) {
+                    params.setScalingFactor(Double.parseDouble(v[0]));
+                } else {
+                    params.setScalingDimensions(new int[] {
+                        -1, Integer.parseInt(v[0])
+                    });
+                }
+            } else if (v.length == 2) {
+                params.setScalingDimensions(new int[] {
+                    Integer.parseInt(v[0]), Integer.parseInt(v[1])
+                });
+            }
+        }
+
+        if (!isEmpty(aLayer) && Integer.parseInt(aLayer) > 0) {
+            params.setCompositingLayer(Integer.parseInt(aLayer));
+        }
+
+        return params;
+    }
+
+    /**
+     * Gets the ID of the source image.
+     *
+     * @return The source image's ID
+     */
+    public String getID() {
+        return myID;
+    }
+
+    /**
+     * Returns true if the key was resolved against the source image's
+     * dimensions; else, false.
+     *
+     * @return True if the key is resolved
+     */
+    public boolean isResolved() {
+        return isResolved;
+    }
+
+    /**
+     * Gets a file name for the rendered image that's unique within the source
+     * image's cache directory.
+     *
+     * @return A file name for the rendered image
+     */
+    public String getFileName() {
+        if (isResolved) {
+            return "image_" + myName + "." + myExtension;
+        }
+
+        // Unresolved regions and sizes may contain anything
+        return "image_" + getHash() + "." + myExtension;
+    }
+
+    /**
+     * Gets a hex-encoded SHA1 hash of the key.
+     *
+     * @return A hash of the key
+     */
+    public String getHash() {
+        if (myHash == null) {
+            myHash = getHash(toString());
+        }
+
+        return myHash;
+    }
+
+    /**
+     * Gets a hex-encoded SHA1 hash of the supplied string.
+     *
+     * @param aValue The string to hash
+     * @return A hash of the string
+     */
+    public static String getHash(String aValue) {
+        MessageDigest digest = DIGESTS.get();
+        StringBuilder hash = new StringBuilder(40);
+        byte[] bytes;
+
+        try {
+            bytes = digest.digest(aValue.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException details) {
+            // All JVMs are required to support UTF-8
+            throw new RuntimeException(details);
+        }
+
+        for (byte b : bytes) {
+            hash.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hash.append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return hash.toString();
+    }
+
+    @Override
+    public boolean equals(Object aObject) {
+        return aObject instanceof TileKey &&
+                toString().equals(aObject.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    /**
+     * Returns the canonical string form of the key.
+     *
+     * @return The key in string form
+     */
+    @Override
+    public String toString() {
+        return myID + "|" + (isResolved ? "" : "u_") + myName + "." +
+                myExtension;
+    }
+
+    /**
+     * Resolves the parameters against the source image the same way the
+     * extractor does, down to the pixels that are rendered.
+     */
+    private static String resolve(DjatokaDecodeParam aParams,
+            ImageRecord aImage) {
+        int width = aImage.getWidth();
+        int height = aImage.getHeight();
+        int levels = ImageProcessingUtils.getLevelCount(width, height);
+        int[] dims = aParams.getScalingDimensions();
+        int x = 0, y = 0, w = width, h = height;
+        int reduce = aParams.getLevelReductionFactor();
+        int factor, outWidth, outHeight;
+        StringBuilder name = new StringBuilder();
+
+        if (aImage.getDWTLevels() > 0 && aImage.getDWTLevels() < levels) {
+            levels = aImage.getDWTLevels();
+        }
+
+        if (aParams.getLevel() >= 0) {
+            reduce = Math.max(0, levels - aParams.getLevel());
+        } else if (aParams.getLevel() == -1 && aParams.getRegion() == null &&
+                dims != null) {
+            reduce =
+                    Math.max(0, levels -
+                            ImageProcessingUtils.getScalingLevel(width,
+                                    height, dims[0], dims[1]));
+        }
+
+        factor = 1 << reduce;
+
+        // Region offsets are in full resolution pixels, but its height and
+        // width are in pixels at the reduced resolution
+        if (aParams.getRegion() != null) {
+            StringTokenizer st =
+                    new StringTokenizer(aParams.getRegion(), "{},");
+
+            y = Integer.parseInt(st.nextToken().trim());
+            x = Integer.parseInt(st.nextToken().trim());
+            h = Integer.parseInt(st.nextToken().trim()) * factor;
+            w = Integer.parseInt(st.nextToken().trim()) * factor;
+
+            y = Math.min(Math.max(y, 0), height);
+            x = Math.min(Math.max(x, 0), width);
+            h = Math.min(h, height - y);
+            w = Math.min(w, width - x);
+        }
+
+        if (x == 0 && y == 0 && w == width && h == height) {
+            name.append('r').append(reduce).append('_').append(FULL);
+        } else {
+            name.append('r').append(reduce).append('_').append(x).append('-');
+            name.append(y).append('-').append(w).append('-').append(h);
+        }
+
+        outWidth = (w + factor - 1) / factor;
+        outHeight = (h + factor - 1) / factor;
+
+        double scale = getScale(aParams, outWidth, outHeight);
+
+        if (scale != 1.0) {
+            outWidth = Math.max(1, (int) Math.round(outWidth * scale));
+            outHeight = Math.max(1, (int) Math.round(outHeight * scale));
+        }
+
+        name.append('_').append(outWidth).append('x').append(outHeight);
+        appendRotationAndLayer(name, aParams);
+
+        return name.toString();
+    }
+
+    /**
+     * Gets the factor the extracted image is scaled by, as the extract
+     * processor and <code>ImageProcessingUtils</code> work it out.
+     */
+    private static double getScale(DjatokaDecodeParam aParams, int aWidth,
+            int aHeight) {
+        double factor = aParams.getScalingFactor();
+        int[] dims = aParams.getScalingDimensions();
+
+        if (factor != 1.0 && factor > 0 && factor < 3) {
+            return factor;
+        } else if (dims != null && dims.length == 2) {
+            int w = dims[0];
+            int h = dims[1];
+
+            if (w >= 3 * aWidth || h >= 3 * aHeight) {
+                return 1.0;
+            }
+
+            if (w == -1 || h == -1) {
+                int longSide = Math.max(w, h);
+
+                w = aWidth > aHeight ? longSide : 0;
+                h = aWidth > aHeight ? 0 : longSide;
+            }
+
+            if (w == 0 && h == 0) {
+                return 1.0;
+            } else if (w == 0) {
+                w = (int) Math.ceil(aWidth * ((double) h / aHeight));
+            } else if (h == 0) {
+                h = (int) Math.ceil(aHeight * ((double) w / aWidth));
+            }
+
+            return Math.min((double) h / aHeight, (double) w / aWidth);
+        }
+
+        return 1.0;
+    }
+
+    /**
+     * Normalizes the request's own parameters for when the source image's
+     * dimensions aren't known.
+     */
+    private static String normalize(DjatokaDecodeParam aParams) {
+        StringBuilder name = new StringBuilder();
+        int[] dims = aParams.getScalingDimensions();
+
+        name.append('l').append(aParams.getLevel()).append('_');
+
+        if (aParams.getRegion() == null) {
+            name.append(FULL);
+        } else {
+            StringTokenizer st =
+                    new StringTokenizer(aParams.getRegion(), "{},");
+
+            while (st.hasMoreTokens()) {
+                name.append(st.nextToken().trim());
+
+                if (st.hasMoreTokens()) {
+                    name.append('-');
+                }
+            }
+        }
+
+        if (aParams.getScalingFactor() != 1.0) {
+            name.append("_s").append(aParams.getScalingFactor());
+        } else if (dims != null && dims.length == 2) {
+            name.append('_').append(dims[0]).append('x').append(dims[1]);
+        }
+
+        appendRotationAndLayer(name, aParams);
+
+        return name.toString();
+    }
+
+    private static void appendRotationAndLayer(StringBuilder aName,
+            DjatokaDecodeParam aParams) {
+        int rotation = ((aParams.getRotationDegree() % 360) + 360) % 360;
+
+        if (rotation != 0) {
+            aName.append('_').append(rotation);
+        }
+
+        if (aParams.getCompositingLayer() > 0) {
+            aName.append("_l").append(aParams.getCompositingLayer());
+        }
+    }
+
+    private static boolean isEmpty(String aString) {
+        return aString == null || aString.equals("");
+    }
+}
@@ -0,0 +1,173 @@
+
+package info.freelibrary.djatoka.util;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An admission policy that only lets a new entry displace an old one if the
+ * new entry has been requested more often, recently. Request frequencies are
+ * estimated with a count-min sketch of 4-bit counters, so the policy keeps
+ * track of keys that aren't in the cache at the cost of a few bytes per
+ * cached entry. Once the sketch has seen ten requests per cached entry, every
+ * counter is halved so old popularity fades.
+ * <p/>
+ * Tiles that are only requested once, like those of a crawler or of a single
+ * deep zoom into a rarely viewed image, never get past the tiles that are
+ * requested again and again.
+ */
+public class TinyLFU implements AdmissionPolicy {
+
+    private static final int DEFAULT_CAPACITY = 10000;
+
+    private static final int MAX_COUNT = 15;
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private static final int[] SEEDS = new int[] {
+        0x97cb3127, 0xb4b82e6d, 0x8c1a7b4f, 0x6e6f7215
+    };
+
+    private final AtomicInteger mySize = new AtomicInteger();
+
+    private final AtomicBoolean isResetting = new AtomicBoolean();
+
+    private volatile AtomicLongArray myTable;
+
+    private volatile int mySampleSize;
+
+    /**
+     * Creates a policy sized for a cache of ten thousand entries.
+     */
+    public TinyLFU() {
+        setCapacity(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a policy sized for a cache of the supplied number of entries.
+     *
+     * @param aCapacity The number of entries the cache is expected to hold
+     */
+    public TinyLFU(int aCapacity) {
+        setCapacity(aCapacity);
+    }
+
+    @Override
+    public void setCapacity(int aCapacity) {
+        int capacity = Math.min(Math.max(aCapacity, 64), 1 << 26);
+        int length = Integer.highestOneBit(capacity - 1) << 1;
+
+        // Each word holds sixteen counters; a key uses four of them
+        myTable = new AtomicLongArray(length);
+        mySampleSize = capacity * 10;
+        mySize.set(0);
+    }
+
+    @Override
+    public void record(Object aKey) {
+        AtomicLongArray table = myTable;
+        int hash = spread(aKey.hashCode());
+        boolean added = false;
+
+        for (int index = 0; index < SEEDS.length; index++) {
+            added |= increment(table, hash, index);
+        }
+
+        if (added && mySize.incrementAndGet() >= mySampleSize) {
+            reset(table);
+        }
+    }
+
+    @Override
+    public boolean admit(Object aCandidate, Object aVictim) {
+        return frequency(aCandidate) > frequency(aVictim);
+    }
+
+    /**
+     * Gets the estimated number of recent requests for the supplied key.
+     *
+     * @param aKey A key
+     * @return The key's estimated frequency, from zero to fifteen
+     */
+    public int frequency(Object aKey) {
+        AtomicLongArray table = myTable;
+        int hash = spread(aKey.hashCode());
+        int frequency = MAX_COUNT;
+
+        for (int index = 0; index < SEEDS.length; index++) {
+            int slot = slot(table, hash, index);
+            int offset = offset(hash, index);
+
+            frequency =
+                    Math.min(frequency,
+                            (int) ((table.get(slot) >>> offset) & 0xF));
+        }
+
+        return frequency;
+    }
+
+    private boolean increment(AtomicLongArray aTable, int aHash, int aIndex) {
+        int slot = slot(aTable, aHash, aIndex);
+        long mask = 0xFL << offset(aHash, aIndex);
+
+        while (true) {
+            long word = aTable.get(slot);
+
+            if ((word & mask) == mask) {
+                return false; // The counter is saturated
+            }
+
+            if (aTable.compareAndSet(slot, word, word + (mask & -mask))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Halves every counter. Requests recorded while the counters are being
+     * halved may be halved too, which only makes them fade a little sooner.
+     */
+    private void reset(AtomicLongArray aTable) {
+        if (!isResetting.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            for (int slot = 0; slot < aTable.length(); slot++) {
+                long word;
+
+                do {
+                    word = aTable.get(slot);
+                } while (!aTable.compareAndSet(slot, word, (word >>> 1) &
+                        RESET_MASK));
+            }
+
+            mySize.set(mySampleSize / 2);
+        } finally {
+            isResetting.set(false);
+        }
+    }
+
+    private static int slot(AtomicLongArray aTable, int aHash, int aIndex) {
+        int hash = (aHash + SEEDS[aIndex]) * SEEDS[aIndex];
+        hash += hash >>> 16;
+        return hash & (aTable.length() - 1);
+    }
+
+    private static int offset(int aHash, int aIndex) {
+        // Each of the key's four counters sits in a different quarter of its
+        // word, so counters of the same key never share bits
+        return ((aIndex << 2) + ((aHash >>> (aIndex << 3)) & 3)) << 2;
+    }
+
+    private static int spread(int aHash) {
+        int hash = aHash;
+
+        hash ^= hash >>> 16;
+        hash *= 0x45d9f3b;
+        hash ^= hash >>> 16;
+
+        return hash;
+    }
+}
@@ -0,0 +1,335 @@
+
+package info.freelibrary.djatoka.view;
+
+import gov.lanl.adore.djatoka.DjatokaDecodeParam;
+
+import info.freelibrary.djatoka.Constants;
+import info.freelibrary.djatoka.iiif.IIIFException;
+import info.freelibrary.djatoka.iiif.IIIFRequest;
+import info.freelibrary.djatoka.iiif.ImageRequest;
+import info.freelibrary.djatoka.util.TileKey;
+
+import info.freelibrary.util.StringUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the image requests out of a web server's access log, in the common or
+ * combined log format, and maps each one to the canonical key of the image
+ * the server would cache for it. Requests to <code>/iiif</code>, the legacy
+ * <code>/view</code> paths and the OpenURL <code>/resolve</code> path are
+ * understood; everything else, and any request that wasn't answered with an
+ * image, is skipped.
+ * <p/>
+ * The source images aren't opened, so keys are built from the requests'
+ * normalized parameters rather than resolved against the images' dimensions.
+ */
+public final class AccessLog implements Constants {
+
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(AccessLog.class);
+
+    // The request's path, its status and the number of bytes sent
+    private static final Pattern LINE = Pattern
+            .compile("^\\S+ \\S+ \\S+ \\[[^\\]]*\\] " +
+                    "\"(?:GET|HEAD) (\\S+)[^\"]*\" (\\d{3}) (\\d+|-).*");
+
+    private static final String CHARSET = "UTF-8";
+
+    private static final String IIIF_PREFIX = "iiif";
+
+    private static final String RESOLVE_PATH = "/resolve?";
+
+    private static final String GET_REGION = "info:lanl-repo/svc/getRegion";
+
+    private static final String[] VIEW_PATHS = new String[] {
+        "/view/thumbnail/", "/view/carousel/", "/view/image/",
+        "/view/fullSize/", "/view/zoom/"
+    };
+
+    // The levels the view servlets are configured with in web.xml
+    private static final String[] VIEW_LEVELS = new String[] {
+        "1", "2", "3", "100", null
+    };
+
+    private AccessLog() {
+    }
+
+    /**
+     * Reads the image requests in the supplied access log; logs whose names
+     * end with <code>.gz</code> are read as gzipped files.
+     *
+     * @param aFile An access log
+     * @return The image requests in the log, in the order they were made
+     * @throws IOException If the log can't be read
+     */
+    public static List<Entry> read(File aFile) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        InputStream stream = new FileInputStream(aFile);
+        BufferedReader reader;
+        String line;
+
+        if (aFile.getName().endsWith(".gz")) {
+            stream = new GZIPInputStream(stream);
+        }
+
+        reader = new BufferedReader(new InputStreamReader(stream, CHARSET));
+
+        try {
+            while ((line = reader.readLine()) != null) {
+                Entry entry = parse(line);
+
+                if (entry != null) {
+                    entries.add(entry);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return entries;
+    }
+
+    /**
+     * Parses a line of an access log.
+     *
+     * @param aLine A line of an access log
+     * @return The image request on the line or null if there isn't one
+     */
+    public static Entry parse(String aLine) {
+        Matcher matcher = LINE.matcher(aLine);
+        TileKey key;
+        String path;
+
+        if (!matcher.matches() || !matcher.group(2).equals("200")) {
+            return null;
+        }
+
+        path = matcher.group(1);
+
+        try {
+            key = getTileKey(path);
+        } catch (RuntimeException details) {
+            key = null; // A malformed request; the server would reject it too
+        }
+
+        if (key == null) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Skipping request: {}", path);
+            }
+
+            return null;
+        }
+
+        return new Entry(path, key, matcher.group(3).equals("-") ? 0 : Long
+                .parseLong(matcher.group(3)));
+    }
+
+    /**
+     * Gets the key of the image that's cached for the supplied request path,
+     * as the servlet that answers it builds it.
+     *
+     * @param aPath The path and query of a request
+     * @return The key of the requested image or null if the request isn't for
+     *         an image
+     */
+    static TileKey getTileKey(String aPath) {
+        int index;
+
+        if ((index = aPath.indexOf(RESOLVE_PATH)) != -1) {
+            return getResolveKey(aPath.substring(index +
+                    RESOLVE_PATH.length()));
+        }
+
+        if ((index = aPath.indexOf("/" + IIIF_PREFIX + "/")) != -1) {
+            return getIIIFKey(aPath.substring(index));
+        }
+
+        for (int vIndex = 0; vIndex < VIEW_PATHS.length; vIndex++) {
+            if ((index = aPath.indexOf(VIEW_PATHS[vIndex])) != -1) {
+                // The path that's left after the servlet's own path
+                String path =
+                        aPath.substring(index + VIEW_PATHS[vIndex].length() -
+                                1);
+
+                return getViewKey(path, VIEW_LEVELS[vIndex]);
+            }
+        }
+
+        return null;
+    }
+
+    private static TileKey getIIIFKey(String aPath) {
+        IIIFRequest iiif;
+
+        try {
+            iiif =
+                    IIIFRequest.Builder.getRequest(new URL("http://localhost" +
+                            aPath), IIIF_PREFIX);
+        } catch (MalformedURLException details) {
+            return null;
+        } catch (IIIFException details) {
+            return null;
+        }
+
+        if (!(iiif instanceof ImageRequest)) {
+            return null; // An info request
+        }
+
+        ImageRequest request = (ImageRequest) iiif;
+        DjatokaDecodeParam params =
+                ImageServlet.getDecodeParam(null, ImageServlet
+                        .getRegion(request.getRegion()), request.getSize()
+                        .toString(), request.getRotation());
+
+        return TileKey.create(ImageServlet.getID(getIIIFPath(aPath)), params,
+                DEFAULT_VIEW_EXT, null);
+    }
+
+    /**
+     * Gets the part of an IIIF path that follows the service prefix, as the
+     * IIIF servlet sees it.
+     */
+    private static String getIIIFPath(String aPath) {
+        String path = aPath.substring(IIIF_PREFIX.length() + 1);
+        int query = path.indexOf('?');
+
+        return query == -1 ? path : path.substring(0, query);
+    }
+
+    private static TileKey getViewKey(String aPath, String aLevel) {
+        String path = aPath;
+        String level = aLevel;
+        String[] regionCoords;
+        String region, scale;
+        int query = path.indexOf('?');
+
+        if (query != -1) {
+            path = path.substring(0, query);
+        }
+
+        if (path.endsWith("/info.xml") || path.endsWith("/info.json") ||
+                path.equals("/random") || path.length() < 2) {
+            return null;
+        }
+
+        regionCoords = ImageServlet.getRegion(path);
+        scale = ImageServlet.getScale(path);
+        region =
+                regionCoords.length == 4 ? StringUtils.toString(regionCoords,
+                        ',') : "";
+
+        if (level == null && scale == null) {
+            level = DEFAULT_VIEW_LEVEL;
+        }
+
+        return TileKey.create(ImageServlet.getID(path), ImageServlet
+                .getDecodeParam(level, region, scale, 0.0f), DEFAULT_VIEW_EXT,
+                null);
+    }
+
+    private static TileKey getResolveKey(String aQuery) {
+        Map<String, String> values = new HashMap<String, String>();
+        String format;
+        String id;
+
+        for (String pair : aQuery.split("&")) {
+            int index = pair.indexOf('=');
+
+            if (index > 0) {
+                try {
+                    values.put(pair.substring(0, index), URLDecoder.decode(
+                            pair.substring(index + 1), CHARSET));
+                } catch (UnsupportedEncodingException details) {
+                    // All JVMs are required to support UTF-8
+                    throw new RuntimeException(details);
+                }
+            }
+        }
+
+        id = values.get("rft_id");
+
+        if (id == null || !GET_REGION.equals(values.get("svc_id"))) {
+            return null;
+        }
+
+        format = values.get("svc.format");
+
+        return TileKey.create(id, TileKey.getDecodeParam(values
+                .get("svc.level"), values.get("svc.region"), values
+                .get("svc.scale"), values.get("svc.rotate"), values
+                .get("svc.clayer")), getExtension(format), null);
+    }
+
+    private static String getExtension(String aFormat) {
+        String format = aFormat == null ? DEFAULT_VIEW_FORMAT : aFormat;
+        String ext = format.substring(format.indexOf('/') + 1);
+
+        return ext.equals("jpeg") ? DEFAULT_VIEW_EXT : ext;
+    }
+
+    /**
+     * An image request read from an access log.
+     */
+    public static final class Entry {
+
+        private final String myPath;
+
+        private final TileKey myKey;
+
+        private final long mySize;
+
+        private Entry(String aPath, TileKey aKey, long aSize) {
+            myPath = aPath;
+            myKey = aKey;
+            mySize = aSize;
+        }
+
+        /**
+         * Gets the path and query of the request.
+         *
+         * @return The request's path and query
+         */
+        public String getPath() {
+            return myPath;
+        }
+
+        /**
+         * Gets the key of the requested image.
+         *
+         * @return The requested image's cache key
+         */
+        public TileKey getKey() {
+            return myKey;
+        }
+
+        /**
+         * Gets the number of bytes the server sent in response to the
+         * request.
+         *
+         * @return The size of the response
+         */
+        public long getSize() {
+            return mySize;
+        }
+    }
+}
@@ -0,0 +1,583 @@
+
+package info.freelibrary.djatoka.view;
+
+import info.freelibrary.djatoka.util.AdmissionPolicy;
+import info.freelibrary.djatoka.util.TinyLFU;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replays the image requests in access logs through simulated caches, to find
+ * out what hit ratio a cache of a given size and eviction policy would have
+ * had on real traffic. LRU, LFU and TinyLFU (LRU with the TinyLFU admission
+ * policy the tile caches use) caches are simulated at each of the supplied
+ * capacities; a capacity is either a number of tiles, like
+ * <code>OpenURLJP2KService.cacheSize</code>, or a number of bytes with a
+ * <code>k</code>, <code>m</code> or <code>g</code> suffix, like the view cache
+ * quota and the in-memory tile cache. Both the share of requests and the share
+ * of bytes that are served from the cache are reported.
+ * <p/>
+ * The requests can also be replayed against a running server, at a fixed
+ * rate, to see how it copes with them.
+ */
+public final class CacheSimulator {
+
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(CacheSimulator.class);
+
+    /** The least recently used policy */
+    public static final String LRU = "LRU";
+
+    /** The least frequently used policy */
+    public static final String LFU = "LFU";
+
+    /** The least recently used policy with TinyLFU admission */
+    public static final String TINY_LFU = "TinyLFU";
+
+    private static final String DEFAULT_POLICIES = LRU + "," + LFU + "," +
+            TINY_LFU;
+
+    private static final String DEFAULT_CAPACITIES = "1000,10000,64m,512m,10g";
+
+    private CacheSimulator() {
+    }
+
+    /**
+     * Runs the simulation from the command line.
+     *
+     * @param args The command line arguments
+     */
+    public static void main(String[] args) {
+        CommandLineParser parser = new PosixParser();
+        Options options = new Options();
+
+        options.addOption("l", "log", true,
+                "Access log to read; may be repeated and may be gzipped.");
+        options.addOption("c", "capacities", true,
+                "Comma separated cache capacities, as tiles or as bytes with "
+                        + "a k, m or g suffix. Default: " + DEFAULT_CAPACITIES);
+        options.addOption("p", "policies", true,
+                "Comma separated eviction policies. Default: " +
+                        DEFAULT_POLICIES);
+        options.addOption("s", "server", true,
+                "Base URL of a running server to replay the requests against.");
+        options.addOption("r", "rate", true,
+                "Requests per second to replay at. Default: 10");
+
+        try {
+            if (args.length == 0) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp(CacheSimulator.class.getName(), options);
+                System.exit(0);
+            }
+
+            CommandLine line = parser.parse(options, args);
+            List<AccessLog.Entry> entries = new ArrayList<AccessLog.Entry>();
+            String[] logs = line.getOptionValues("l");
+
+            if (logs == null) {
+                throw new ParseException("An access log is required");
+            }
+
+            for (String log : logs) {
+                entries.addAll(AccessLog.read(new File(log)));
+            }
+
+            if (LOGGER.isInfoEnabled()) {
+                LOGGER.info("Read {} image requests", entries.size());
+            }
+
+            report(entries, line.getOptionValue("p", DEFAULT_POLICIES).split(
+                    ","), line.getOptionValue("c", DEFAULT_CAPACITIES).split(
+                    ","), System.out);
+
+            if (line.hasOption("s")) {
+                replay(entries, line.getOptionValue("s"), Double
+                        .parseDouble(line.getOptionValue("r", "10")),
+                        System.out);
+            }
+        } catch (ParseException details) {
+            LOGGER.error("Parse exception: {}", details.getMessage(), details);
+        } catch (NumberFormatException details) {
+            LOGGER.error("Invalid number: {}", details.getMessage(), details);
+        } catch (IOException details) {
+            LOGGER.error("Unable to read access log: {}", details
+                    .getMessage(), details);
+        } catch (InterruptedException details) {
+            LOGGER.error("Replay interrupted", details);
+        }
+    }
+
+    /**
+     * Simulates each of the supplied policies at each of the supplied
+     * capacities and prints a report of the results.
+     *
+     * @param aEntries The requests to simulate
+     * @param aPolicies The names of the policies to simulate
+     * @param aCapacities The capacities to simulate, as tiles or bytes
+     * @param aOut Where the report is printed
+     */
+    public static void report(List<AccessLog.Entry> aEntries,
+            String[] aPolicies, String[] aCapacities, PrintStream aOut) {
+        Map<String, Long> sizes = new HashMap<String, Long>();
+        long bytes = 0;
+
+        for (AccessLog.Entry entry : aEntries) {
+            sizes.put(entry.getKey().toString(), entry.getSize());
+            bytes += entry.getSize();
+        }
+
+        long uniqueBytes = 0;
+
+        for (Long size : sizes.values()) {
+            uniqueBytes += size;
+        }
+
+        aOut.println(String.format(Locale.US,
+                "%d requests for %d distinct tiles (%s, %s distinct)",
+                aEntries.size(), sizes.size(), toSize(bytes),
+                toSize(uniqueBytes)));
+        aOut.println(String.format(Locale.US, "%-10s %12s %10s %10s",
+                "policy", "capacity", "hits", "byte hits"));
+
+        for (String policy : aPolicies) {
+            for (String capacity : aCapacities) {
+                Result result =
+                        simulate(aEntries, policy.trim(), capacity.trim());
+
+                aOut.println(String.format(Locale.US,
+                        "%-10s %12s %9.2f%% %9.2f%%", policy.trim(), capacity
+                                .trim(), result.getHitRatio() * 100, result
+                                .getByteHitRatio() * 100));
+            }
+        }
+    }
+
+    /**
+     * Simulates a cache with the supplied policy and capacity.
+     *
+     * @param aEntries The requests to simulate
+     * @param aPolicy The name of the cache's policy
+     * @param aCapacity The cache's capacity, as tiles or bytes
+     * @return The result of the simulation
+     * @throws IllegalArgumentException If the policy isn't known
+     */
+    public static Result simulate(List<AccessLog.Entry> aEntries,
+            String aPolicy, String aCapacity) {
+        long maxBytes = Long.MAX_VALUE;
+        int maxTiles = Integer.MAX_VALUE;
+        long capacity = parseCapacity(aCapacity);
+        SimulatedCache cache;
+        Result result = new Result();
+
+        if (isBytes(aCapacity)) {
+            maxBytes = capacity;
+        } else {
+            maxTiles = (int) Math.min(capacity, Integer.MAX_VALUE);
+        }
+
+        if (LRU.equalsIgnoreCase(aPolicy)) {
+            cache = new LRUCache(maxBytes, maxTiles, null);
+        } else if (LFU.equalsIgnoreCase(aPolicy)) {
+            cache = new LFUCache(maxBytes, maxTiles);
+        } else if (TINY_LFU.equalsIgnoreCase(aPolicy)) {
+            long tiles = maxTiles;
+
+            if (maxTiles == Integer.MAX_VALUE) {
+                tiles = maxBytes / Math.max(1, getAverageSize(aEntries));
+            }
+
+            cache =
+                    new LRUCache(maxBytes, maxTiles, new TinyLFU((int) Math
+                            .max(1, Math.min(tiles, Integer.MAX_VALUE))));
+        } else {
+            throw new IllegalArgumentException("Unknown policy: " + aPolicy);
+        }
+
+        for (AccessLog.Entry entry : aEntries) {
+            result.record(entry.getSize(), cache.access(entry.getKey()
+                    .toString(), entry.getSize()));
+        }
+
+        return result;
+    }
+
+    /**
+     * Sends the requests to a running server at a fixed rate and prints the
+     * statuses and response times it answered with.
+     *
+     * @param aEntries The requests to send
+     * @param aServer The server's base URL
+     * @param aRate The number of requests to send a second
+     * @param aOut Where the report is printed
+     * @throws InterruptedException If interrupted while waiting to send
+     */
+    public static void replay(List<AccessLog.Entry> aEntries, String aServer,
+            double aRate, PrintStream aOut) throws InterruptedException {
+        Map<Integer, Integer> statuses = new TreeMap<Integer, Integer>();
+        long interval = (long) (1000000000L / Math.max(aRate, 0.001));
+        String server =
+                aServer.endsWith("/") ? aServer.substring(0,
+                        aServer.length() - 1) : aServer;
+        long next = System.nanoTime();
+        long[] times = new long[aEntries.size()];
+        int index = 0;
+
+        for (AccessLog.Entry entry : aEntries) {
+            long wait = next - System.nanoTime();
+            long start;
+            int status;
+
+            if (wait > 0) {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            }
+
+            next += interval;
+            start = System.nanoTime();
+            status = get(server + getServerPath(entry.getPath()));
+            times[index++] = System.nanoTime() - start;
+
+            Integer count = statuses.get(status);
+            statuses.put(status, count == null ? 1 : count + 1);
+        }
+
+        Arrays.sort(times);
+
+        aOut.println(String.format(Locale.US,
+                "Replayed %d requests: %s; median %d ms, p95 %d ms, max %d ms",
+                times.length, statuses, getPercentile(times, 50),
+                getPercentile(times, 95), getPercentile(times, 100)));
+    }
+
+    private static int get(String aURL) {
+        HttpURLConnection connection = null;
+
+        try {
+            connection = (HttpURLConnection) new URL(aURL).openConnection();
+
+            int status = connection.getResponseCode();
+            InputStream stream =
+                    status < 400 ? connection.getInputStream() : connection
+                            .getErrorStream();
+
+            // Read the whole response, as a client would
+            if (stream != null) {
+                byte[] buffer = new byte[8192];
+
+                try {
+                    while (stream.read(buffer) != -1) {
+                        // Discarded
+                    }
+                } finally {
+                    stream.close();
+                }
+            }
+
+            return status;
+        } catch (IOException details) {
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Request failed: {} ({})", aURL, details
+                        .getMessage());
+            }
+
+            return -1;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Gets the part of a logged path that follows the server's context path.
+     */
+    private static String getServerPath(String aPath) {
+        for (String path : new String[] {
+            "/resolve?", "/iiif/", "/view/"
+        }) {
+            int index = aPath.indexOf(path);
+
+            if (index != -1) {
+                return aPath.substring(index);
+            }
+        }
+
+        return aPath;
+    }
+
+    private static long getPercentile(long[] aSortedTimes, int aPercentile) {
+        int index;
+
+        if (aSortedTimes.length == 0) {
+            return 0;
+        }
+
+        index = (int) Math.ceil(aSortedTimes.length * aPercentile / 100.0) - 1;
+        return aSortedTimes[Math.max(0, index)] / 1000000;
+    }
+
+    private static long getAverageSize(List<AccessLog.Entry> aEntries) {
+        long bytes = 0;
+
+        for (AccessLog.Entry entry : aEntries) {
+            bytes += entry.getSize();
+        }
+
+        return aEntries.isEmpty() ? 0 : bytes / aEntries.size();
+    }
+
+    private static boolean isBytes(String aCapacity) {
+        char unit =
+                Character.toLowerCase(aCapacity
+                        .charAt(aCapacity.length() - 1));
+
+        return unit == 'k' || unit == 'm' || unit == 'g';
+    }
+
+    static long parseCapacity(String aCapacity) {
+        String capacity = aCapacity.toLowerCase(Locale.US);
+
+        if (capacity.endsWith("k")) {
+            return Long.parseLong(strip(capacity)) << 10;
+        } else if (capacity.endsWith("m")) {
+            return Long.parseLong(strip(capacity)) << 20;
+        } else if (capacity.endsWith("g")) {
+            return Long.parseLong(strip(capacity)) << 30;
+        }
+
+        return Long.parseLong(capacity);
+    }
+
+    private static String strip(String aCapacity) {
+        return aCapacity.substring(0, aCapacity.length() - 1);
+    }
+
+    private static String toSize(long aBytes) {
+        if (aBytes >= 1L << 30) {
+            return String.format(Locale.US, "%.1f GB", aBytes /
+                    (double) (1L << 30));
+        } else if (aBytes >= 1L << 20) {
+            return String.format(Locale.US, "%.1f MB", aBytes /
+                    (double) (1L << 20));
+        }
+
+        return String.format(Locale.US, "%.1f KB", aBytes / 1024.0);
+    }
+
+    /**
+     * The hits and misses of a simulated cache.
+     */
+    public static final class Result {
+
+        private long myRequests;
+
+        private long myHits;
+
+        private long myBytes;
+
+        private long myByteHits;
+
+        private void record(long aSize, boolean aHit) {
+            myRequests += 1;
+            myBytes += aSize;
+
+            if (aHit) {
+                myHits += 1;
+                myByteHits += aSize;
+            }
+        }
+
+        /**
+         * Gets the number of requests that were found in the cache.
+         *
+         * @return The number of hits
+         */
+        public long getHitCount() {
+            return myHits;
+        }
+
+        /**
+         * Gets the share of requests that were found in the cache.
+         *
+         * @return The hit ratio
+         */
+        public double getHitRatio() {
+            return myRequests == 0 ? 0 : (double) myHits / myRequests;
+        }
+
+        /**
+         * Gets the share of requested bytes that were found in the cache.
+         *
+         * @return The byte hit ratio
+         */
+        public double getByteHitRatio() {
+            return myBytes == 0 ? 0 : (double) myByteHits / myBytes;
+        }
+    }
+
+    private abstract static class SimulatedCache {
+
+        final long myMaxBytes;
+
+        final int myMaxTiles;
+
+        long myBytes;
+
+        SimulatedCache(long aMaxBytes, int aMaxTiles) {
+            myMaxBytes = aMaxBytes;
+            myMaxTiles = aMaxTiles;
+        }
+
+        // Requests a tile, caching it if it's missing; true if it was cached
+        abstract boolean access(String aKey, long aSize);
+
+        boolean isFull(int aTiles, long aSize) {
+            return aTiles + 1 > myMaxTiles || myBytes + aSize > myMaxBytes;
+        }
+    }
+
+    /**
+     * A least recently used cache, with an optional admission policy that
+     * decides, as the tile caches' do, whether a new tile should displace the
+     * least recently used one.
+     */
+    private static final class LRUCache extends SimulatedCache {
+
+        private final LinkedHashMap<String, Long> myTiles =
+                new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+        private final AdmissionPolicy myPolicy;
+
+        LRUCache(long aMaxBytes, int aMaxTiles, AdmissionPolicy aPolicy) {
+            super(aMaxBytes, aMaxTiles);
+            myPolicy = aPolicy;
+        }
+
+        @Override
+        boolean access(String aKey, long aSize) {
+            Iterator<Map.Entry<String, Long>> iterator;
+
+            if (myPolicy != null) {
+                myPolicy.record(aKey);
+            }
+
+            if (myTiles.get(aKey) != null) {
+                return true;
+            }
+
+            if (aSize > myMaxBytes) {
+                return false;
+            }
+
+            // Like the tile caches, only the first victim is compared
+            if (myPolicy != null && isFull(myTiles.size(), aSize) &&
+                    !myTiles.isEmpty() &&
+                    !myPolicy.admit(aKey, myTiles.keySet().iterator().next())) {
+                return false;
+            }
+
+            iterator = myTiles.entrySet().iterator();
+
+            while (isFull(myTiles.size(), aSize) && iterator.hasNext()) {
+                myBytes -= iterator.next().getValue();
+                iterator.remove();
+            }
+
+            myTiles.put(aKey, aSize);
+            myBytes += aSize;
+            return false;
+        }
+    }
+
+    /**
+     * A least frequently used cache; ties are broken by evicting the tile
+     * that was cached first.
+     */
+    private static final class LFUCache extends SimulatedCache {
+
+        private final Map<String, long[]> myTiles =
+                new HashMap<String, long[]>();
+
+        // Each tile's frequency, order of insertion and key, in eviction order
+        private final TreeSet<Object[]> myOrder = new TreeSet<Object[]>(
+                new Comparator<Object[]>() {
+
+                    public int compare(Object[] aFirst, Object[] aSecond) {
+                        int result =
+                                Long.compare((Long) aFirst[0],
+                                        (Long) aSecond[0]);
+
+                        return result != 0 ? result : Long.compare(
+                                (Long) aFirst[1], (Long) aSecond[1]);
+                    }
+                });
+
+        private long mySequence;
+
+        LFUCache(long aMaxBytes, int aMaxTiles) {
+            super(aMaxBytes, aMaxTiles);
+        }
+
+        @Override
+        boolean access(String aKey, long aSize) {
+            long[] tile = myTiles.get(aKey);
+
+            if (tile != null) {
+                myOrder.remove(getOrder(aKey, tile));
+                tile[0] += 1;
+                myOrder.add(getOrder(aKey, tile));
+                return true;
+            }
+
+            if (aSize > myMaxBytes) {
+                return false;
+            }
+
+            while (isFull(myTiles.size(), aSize) && !myOrder.isEmpty()) {
+                Object[] victim = myOrder.pollFirst();
+                myBytes -= myTiles.remove(victim[2])[2];
+            }
+
+            tile = new long[] {
+                1, mySequence++, aSize
+            };
+
+            myTiles.put(aKey, tile);
+            myOrder.add(getOrder(aKey, tile));
+            myBytes += aSize;
+            return false;
+        }
+
+        private static Object[] getOrder(String aKey, long[] aTile) {
+            return new Object[] {
+                aTile[0], aTile[1], aKey
+            };
+        }
+    }
+}
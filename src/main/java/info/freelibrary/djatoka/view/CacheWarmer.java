@@ -0,0 +1,602 @@
+
+package info.freelibrary.djatoka.view;
+
+import gov.lanl.adore.djatoka.DjatokaDecodeParam;
+import gov.lanl.adore.djatoka.DjatokaException;
+import gov.lanl.adore.djatoka.DjatokaExtractProcessor;
+import gov.lanl.adore.djatoka.IExtract;
+import gov.lanl.adore.djatoka.kdu.KduExtractExe;
+import gov.lanl.adore.djatoka.kdu.jni.KduExtractPool;
+import gov.lanl.adore.djatoka.openurl.OpenURLJP2KService;
+import gov.lanl.adore.djatoka.util.ImageRecord;
+import gov.lanl.adore.djatoka.util.ImageRecordCache;
+
+import info.freelibrary.djatoka.Constants;
+import info.freelibrary.djatoka.util.CacheUtils;
+import info.freelibrary.djatoka.util.TileKey;
+
+import info.freelibrary.util.PairtreeObject;
+import info.freelibrary.util.PairtreeRoot;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+/**
+ * Warms the view cache from inside the server. Where the old
+ * <code>TileCache</code> tool requested every tile of every image over HTTP,
+ * the warmer decodes the tiles of an image's pyramid itself, on a small pool
+ * of threads, and publishes them straight into the Pairtree view cache. Tiles
+ * that are already cached are skipped. The decodes share the server's
+ * extractor with live renders, so the warmer only ever has a quarter of the
+ * extractor's threads decoding, leaving the rest to viewers however long the
+ * job runs.
+ * <p/>
+ * Each image is recorded in a checkpoint file once its pyramid has been
+ * cached, so a job that's stopped (or a server that's restarted) picks up
+ * where it left off the next time the same job is started.
+ */
+public class CacheWarmer implements Runnable, Constants {
+
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(CacheWarmer.class);
+
+    /** Warm-up decodes take at most one in this many extractor threads */
+    private static final int DECODE_SHARE = 4;
+
+    private static CacheWarmer myWarmer;
+
+    private final File myIDFile;
+
+    private final int myColumn;
+
+    private final File myCacheDir;
+
+    private final File myCheckpoint;
+
+    private final int myThreadCount;
+
+    private final IdentifierResolver myResolver;
+
+    private final DjatokaExtractProcessor myExtractor;
+
+    private final Semaphore myDecodes;
+
+    private final AtomicLong myImageCount = new AtomicLong();
+
+    private final AtomicLong myResumedCount = new AtomicLong();
+
+    private final AtomicLong myFailedImageCount = new AtomicLong();
+
+    private final AtomicLong myRenderedCount = new AtomicLong();
+
+    private final AtomicLong mySkippedCount = new AtomicLong();
+
+    private final AtomicLong myFailedTileCount = new AtomicLong();
+
+    private volatile String myCurrentID;
+
+    private volatile boolean isStopped;
+
+    private volatile boolean isFinished;
+
+    private volatile long myStarted;
+
+    private volatile long myFinished;
+
+    private ExecutorService myWorkers;
+
+    private Semaphore myQueue;
+
+    /**
+     * Creates a warm-up job for the IDs in a column of a CSV file.
+     *
+     * @param aIDFile A CSV file with the IDs of the images to cache
+     * @param aColumn The 1-based column of the file that holds the IDs
+     * @param aCacheDir The root directory of the Pairtree view cache
+     * @param aCheckpoint The file that records the images that are done
+     * @param aThreadCount The number of tiles rendered at the same time
+     * @param aResolver The resolver that finds an ID's local JP2 file
+     */
+    public CacheWarmer(File aIDFile, int aColumn, File aCacheDir,
+            File aCheckpoint, int aThreadCount, IdentifierResolver aResolver) {
+        if (aColumn < 1) {
+            throw new IllegalArgumentException("Columns start at 1: " +
+                    aColumn);
+        }
+
+        if (aThreadCount < 1) {
+            throw new IllegalArgumentException(
+                    "A job needs at least one thread: " + aThreadCount);
+        }
+
+        myIDFile = aIDFile;
+        myColumn = aColumn;
+        myCacheDir = aCacheDir;
+        myCheckpoint = aCheckpoint;
+        myThreadCount = aThreadCount;
+        myResolver = aResolver;
+        // Share the server's extractor, and its worker threads, if it has one
+        IExtract extractImpl = OpenURLJP2KService.getExtractImpl();
+        myExtractor =
+                new DjatokaExtractProcessor(extractImpl != null ? extractImpl
+                        : new KduExtractExe());
+        myDecodes = new Semaphore(getDecodeLimit(extractImpl, aThreadCount));
+    }
+
+    /**
+     * Starts a warm-up job in the background, unless one is already running.
+     *
+     * @param aWarmer The job to start
+     * @return The job that's running, which is the supplied job if no other
+     *         job was running
+     */
+    public static synchronized CacheWarmer start(CacheWarmer aWarmer) {
+        if (myWarmer != null && !myWarmer.isFinished) {
+            return myWarmer;
+        }
+
+        Thread thread = new Thread(aWarmer, "cache-warmer");
+
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        myWarmer = aWarmer;
+        aWarmer.myStarted = System.currentTimeMillis();
+        thread.start();
+
+        return aWarmer;
+    }
+
+    /**
+     * Stops the running warm-up job, if there is one. Tiles that are being
+     * rendered are finished first.
+     */
+    public static synchronized void stop() {
+        if (myWarmer != null) {
+            myWarmer.isStopped = true;
+        }
+    }
+
+    /**
+     * Gets the most recently started warm-up job.
+     *
+     * @return The most recent job or null if no job has been started
+     */
+    public static synchronized CacheWarmer getInstance() {
+        return myWarmer;
+    }
+
+    @Override
+    public void run() {
+        Set<String> done = readCheckpoint();
+        CSVReader reader = null;
+        Writer checkpoint = null;
+
+        myWorkers =
+                Executors.newFixedThreadPool(myThreadCount,
+                        new WorkerFactory());
+        myQueue = new Semaphore(myThreadCount * 2);
+
+        try {
+            String[] row;
+
+            reader = new CSVReader(new FileReader(myIDFile));
+            checkpoint = new FileWriter(myCheckpoint, true);
+
+            while (!isStopped && (row = reader.readNext()) != null) {
+                if (row.length < myColumn || row[myColumn - 1].equals("")) {
+                    continue;
+                }
+
+                String id = row[myColumn - 1].trim();
+
+                if (done.contains(id)) {
+                    myResumedCount.incrementAndGet();
+                    continue;
+                }
+
+                myCurrentID = id;
+
+                if (warmImage(id) && !isStopped) {
+                    checkpoint.write(id);
+                    checkpoint.write('\n');
+                    checkpoint.flush();
+                    done.add(id);
+                    myImageCount.incrementAndGet();
+                } else if (!isStopped) {
+                    myFailedImageCount.incrementAndGet();
+                }
+            }
+        } catch (IOException details) {
+            LOGGER.error("Cache warm-up failed: {}", details.getMessage(),
+                    details);
+        } catch (InterruptedException details) {
+            LOGGER.warn("Cache warm-up interrupted");
+        } finally {
+            myWorkers.shutdown();
+            myCurrentID = null;
+            close(reader);
+            close(checkpoint);
+
+            myFinished = System.currentTimeMillis();
+            isFinished = true;
+
+            if (LOGGER.isInfoEnabled()) {
+                LOGGER.info("Cache warm-up {}: {} images, {} tiles rendered",
+                        isStopped ? "stopped" : "finished", myImageCount
+                                .get(), myRenderedCount.get());
+            }
+        }
+    }
+
+    /**
+     * Returns true if the job has been asked to stop; else, false.
+     *
+     * @return True if the job has been stopped
+     */
+    public boolean isStopped() {
+        return isStopped;
+    }
+
+    /**
+     * Returns true if the job is no longer running; else, false.
+     *
+     * @return True if the job has finished or stopped
+     */
+    public boolean isFinished() {
+        return isFinished;
+    }
+
+    /**
+     * Gets the CSV file of IDs the job is caching.
+     *
+     * @return The job's ID file
+     */
+    public File getIDFile() {
+        return myIDFile;
+    }
+
+    /**
+     * Gets the ID of the image that's being cached.
+     *
+     * @return The current image's ID or null if the job isn't running
+     */
+    public String getCurrentID() {
+        return myCurrentID;
+    }
+
+    /**
+     * Gets the time the job was started.
+     *
+     * @return The job's start time in milliseconds
+     */
+    public long getStarted() {
+        return myStarted;
+    }
+
+    /**
+     * Gets the time the job finished or stopped.
+     *
+     * @return The job's end time in milliseconds or zero if it's running
+     */
+    public long getFinished() {
+        return myFinished;
+    }
+
+    /**
+     * Gets the number of images that have been cached by this run of the job.
+     *
+     * @return The number of images cached
+     */
+    public long getImageCount() {
+        return myImageCount.get();
+    }
+
+    /**
+     * Gets the number of images skipped because the checkpoint file already
+     * recorded them as done.
+     *
+     * @return The number of images resumed past
+     */
+    public long getResumedCount() {
+        return myResumedCount.get();
+    }
+
+    /**
+     * Gets the number of images that couldn't be found or fully cached.
+     *
+     * @return The number of failed images
+     */
+    public long getFailedImageCount() {
+        return myFailedImageCount.get();
+    }
+
+    /**
+     * Gets the number of tiles that have been rendered into the view cache.
+     *
+     * @return The number of rendered tiles
+     */
+    public long getRenderedCount() {
+        return myRenderedCount.get();
+    }
+
+    /**
+     * Gets the number of tiles that were already in the view cache.
+     *
+     * @return The number of skipped tiles
+     */
+    public long getSkippedCount() {
+        return mySkippedCount.get();
+    }
+
+    /**
+     * Gets the number of tiles that couldn't be rendered or cached.
+     *
+     * @return The number of failed tiles
+     */
+    public long getFailedTileCount() {
+        return myFailedTileCount.get();
+    }
+
+    /**
+     * Caches the pyramid of the supplied image, returning true if every tile
+     * ended up in the view cache.
+     */
+    private boolean warmImage(String aID) throws IOException,
+            InterruptedException {
+        File source = myResolver.getImageFile(aID);
+        List<Future<Boolean>> tiles = new ArrayList<Future<Boolean>>();
+        PairtreeObject cacheObject;
+        ImageRecord image;
+        boolean cached = true;
+
+        if (source == null || !source.exists()) {
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("No local JP2 to cache for: {}", aID);
+            }
+
+            return false;
+        }
+
+        try {
+            image = ImageRecordCache.getImageRecord(source);
+        } catch (IOException details) {
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Unable to read JP2 header of {}: {}", aID,
+                        details.getMessage());
+            }
+
+            return false;
+        }
+
+        cacheObject = new PairtreeRoot(myCacheDir).getObject(aID);
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Caching {} ({}x{})", aID, image.getWidth(), image
+                    .getHeight());
+        }
+
+        for (String query : CacheUtils.getCachingQueries(image.getHeight(),
+                image.getWidth())) {
+            if (isStopped) {
+                break;
+            }
+
+            myQueue.acquire();
+
+            try {
+                tiles.add(myWorkers.submit(new Tile(aID, source, image,
+                        query, cacheObject)));
+            } catch (RuntimeException details) {
+                myQueue.release();
+                throw details;
+            }
+        }
+
+        for (Future<Boolean> tile : tiles) {
+            try {
+                cached &= tile.get();
+            } catch (ExecutionException details) {
+                cached = false;
+            }
+        }
+
+        return cached && !isStopped;
+    }
+
+    /**
+     * Gets the number of tiles the job may decode at the same time: a share
+     * of the threads of the extractor it has in common with live renders.
+     */
+    private static int getDecodeLimit(IExtract aExtractImpl, int aThreadCount) {
+        int threads;
+
+        if (aExtractImpl instanceof KduExtractPool) {
+            threads = ((KduExtractPool) aExtractImpl).getThreadCount();
+        } else {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        return Math.min(aThreadCount, Math.max(1, threads / DECODE_SHARE));
+    }
+
+    private Set<String> readCheckpoint() {
+        Set<String> done = new HashSet<String>();
+        BufferedReader reader = null;
+
+        if (!myCheckpoint.exists()) {
+            return done;
+        }
+
+        try {
+            String id;
+
+            reader = new BufferedReader(new FileReader(myCheckpoint));
+
+            while ((id = reader.readLine()) != null) {
+                if (id.length() > 0) {
+                    done.add(id);
+                }
+            }
+
+            if (LOGGER.isInfoEnabled()) {
+                LOGGER.info("Resuming cache warm-up past {} images in {}",
+                        done.size(), myCheckpoint);
+            }
+        } catch (IOException details) {
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Unable to read checkpoint {}: {}", myCheckpoint,
+                        details.getMessage());
+            }
+        } finally {
+            close(reader);
+        }
+
+        return done;
+    }
+
+    private static void close(Closeable aCloseable) {
+        if (aCloseable != null) {
+            try {
+                aCloseable.close();
+            } catch (IOException details) {
+                LOGGER.debug(details.getMessage(), details);
+            }
+        }
+    }
+
+    /**
+     * Renders one tile of an image's pyramid into the view cache.
+     */
+    private class Tile implements Callable<Boolean> {
+
+        private final String myID;
+
+        private final File mySource;
+
+        private final ImageRecord myImage;
+
+        private final String myQuery;
+
+        private final PairtreeObject myCacheObject;
+
+        private Tile(String aID, File aSource, ImageRecord aImage,
+                String aQuery, PairtreeObject aCacheObject) {
+            myID = aID;
+            mySource = aSource;
+            myImage = aImage;
+            myQuery = aQuery;
+            myCacheObject = aCacheObject;
+        }
+
+        @Override
+        public Boolean call() throws InterruptedException {
+            try {
+                return render();
+            } finally {
+                myQueue.release();
+            }
+        }
+
+        private boolean render() throws InterruptedException {
+            // Queries take the form of the legacy view paths: /region/scale
+            String[] parts = myQuery.split("/");
+            String region = parts[1].equals("all") ? "" : parts[1];
+            DjatokaDecodeParam params =
+                    ImageServlet.getDecodeParam(null, region, parts[2], 0.0f);
+            TileKey key =
+                    TileKey.create(myID, params, DEFAULT_VIEW_EXT, myImage);
+            File target = new File(myCacheObject, key.getFileName());
+            ByteArrayOutputStream bytes;
+
+            // Tiles that another peer owns are left for it to cache
+            if (ViewCache.contains(target) ||
+                    !OpenURLJP2KService.getCacheBackend().isLocal(
+                            key.getHash() + DEFAULT_VIEW_EXT)) {
+                mySkippedCount.incrementAndGet();
+                return true;
+            }
+
+            bytes = new ByteArrayOutputStream();
+            myDecodes.acquire();
+
+            // The extractor adjusts the parameters it's given, so use new ones
+            try {
+                if (isStopped) {
+                    return false;
+                }
+
+                myExtractor.extractImage(mySource.getAbsolutePath(), bytes,
+                        ImageServlet.getDecodeParam(null, region, parts[2],
+                                0.0f), DEFAULT_VIEW_FORMAT);
+            } catch (DjatokaException details) {
+                if (LOGGER.isWarnEnabled()) {
+                    LOGGER.warn("Unable to render {}{}: {}", myID, myQuery,
+                            details.getMessage());
+                }
+
+                myFailedTileCount.incrementAndGet();
+                return false;
+            } finally {
+                myDecodes.release();
+            }
+
+            ViewCache.setTarget(target);
+
+            try {
+                if (ViewCache.publish(bytes.toByteArray(), true)) {
+                    myRenderedCount.incrementAndGet();
+                    return true;
+                }
+            } finally {
+                ViewCache.clearTarget();
+            }
+
+            myFailedTileCount.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Creates the daemon threads that render tiles.
+     */
+    private static class WorkerFactory implements ThreadFactory {
+
+        private final AtomicInteger myCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable aRunnable) {
+            Thread thread =
+                    new Thread(aRunnable, "cache-warmer-" +
+                            myCount.incrementAndGet());
+
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+
+package info.freelibrary.djatoka.view;
+
+import gov.lanl.adore.djatoka.openurl.IReferentResolver;
+import gov.lanl.adore.djatoka.openurl.ReferentManager;
+import gov.lanl.adore.djatoka.openurl.ResolverException;
+import gov.lanl.util.AccessManager;
+
+import info.freelibrary.djatoka.Constants;
+
+import info.freelibrary.util.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.Properties;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import nu.xom.Attribute;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.Serializer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Starts, stops, and reports on cache warm-up jobs. A GET returns the status
+ * of the most recent job. A POST with an <code>ids</code> parameter (the path
+ * of a CSV file, relative to the configured warm directory) and an optional
+ * <code>column</code> parameter (1-based, the default is 1) starts a job;
+ * adding <code>restart</code> discards the job's checkpoint so every image is
+ * checked again. A POST with a <code>stop</code> parameter stops the running
+ * job.
+ * <p/>
+ * Requests are checked against a <code>warm-access.txt</code> file on the
+ * classpath, in the same format as the OpenURL layer's
+ * <code>access.txt</code>; without one, only requests from the server itself
+ * are allowed.
+ */
+public class CacheWarmerServlet extends HttpServlet implements Constants {
+
+    private static final long serialVersionUID = 2994061582843707253L;
+
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(CacheWarmerServlet.class);
+
+    private static final String DEFAULT_THREADS = "2";
+
+    private static final String ACCESS_FILE = "warm-access.txt";
+
+    private final Properties myProps = new Properties();
+
+    private AccessManager myAccessManager;
+
+    @Override
+    public void init() throws ServletException {
+        InputStream is = getClass().getResourceAsStream("/" + PROPERTIES_FILE);
+
+        if (is != null) {
+            try {
+                myProps.loadFromXML(is);
+            } catch (IOException details) {
+                throw new ServletException(details);
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+        }
+
+        URL access = getClass().getClassLoader().getResource(ACCESS_FILE);
+
+        if (access != null) {
+            myAccessManager = new AccessManager(access.getFile());
+        }
+    }
+
+    @Override
+    public void destroy() {
+        CacheWarmer.stop();
+        super.destroy();
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest aRequest,
+            HttpServletResponse aResponse) throws ServletException, IOException {
+        if (!isAllowed(aRequest)) {
+            aResponse.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+
+        writeStatus(aResponse);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest aRequest,
+            HttpServletResponse aResponse) throws ServletException, IOException {
+        String ids = aRequest.getParameter("ids");
+
+        if (!isAllowed(aRequest)) {
+            aResponse.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+
+        if (aRequest.getParameter("stop") != null) {
+            CacheWarmer.stop();
+        } else if (ids != null) {
+            String column = aRequest.getParameter("column");
+            boolean restart = aRequest.getParameter("restart") != null;
+            File idFile = getIDFile(ids);
+
+            if (idFile == null || !idFile.isFile() || !idFile.canRead()) {
+                aResponse.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                        "ID file can't be read");
+                return;
+            }
+
+            try {
+                startJob(idFile, column == null ? 1 : Integer
+                        .parseInt(column), restart);
+            } catch (NumberFormatException details) {
+                aResponse.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                        "Invalid column: " + column);
+                return;
+            } catch (ResolverException details) {
+                throw new ServletException(details);
+            }
+        } else {
+            aResponse.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    "Either an 'ids' or a 'stop' parameter is required");
+            return;
+        }
+
+        writeStatus(aResponse);
+    }
+
+    /**
+     * Returns true if the request comes from a host that may warm the cache.
+     */
+    private boolean isAllowed(HttpServletRequest aRequest) {
+        String host = aRequest.getRemoteAddr();
+
+        if (myAccessManager != null) {
+            return myAccessManager.checkAccess(host);
+        }
+
+        try {
+            return InetAddress.getByName(host).isLoopbackAddress();
+        } catch (UnknownHostException details) {
+            return false;
+        }
+    }
+
+    /**
+     * Resolves the supplied ID file path against the warm directory, or
+     * returns null if it's absolute or would be outside of the directory.
+     */
+    private File getIDFile(String aPath) throws IOException {
+        String dir = myProps.getProperty(WARM_DIR);
+        File warmDir;
+        File idFile;
+
+        if (dir == null || dir.isEmpty() || new File(aPath).isAbsolute()) {
+            return null;
+        }
+
+        for (String name : aPath.split("[/\\\\]")) {
+            if (name.equals("..")) {
+                return null;
+            }
+        }
+
+        warmDir = new File(dir).getCanonicalFile();
+        idFile = new File(warmDir, aPath).getCanonicalFile();
+
+        // A symbolic link could still lead out of the directory
+        if (!idFile.getPath().startsWith(warmDir.getPath() + File.separator)) {
+            return null;
+        }
+
+        return idFile;
+    }
+
+    private void startJob(File aIDFile, int aColumn, boolean aRestart)
+            throws ResolverException {
+        String cache = myProps.getProperty(VIEW_CACHE_DIR, System
+                .getProperty("java.io.tmpdir"));
+        File cacheDir = new File(cache);
+        File checkpointDir =
+                new File(myProps.getProperty(WARM_CHECKPOINT_DIR, cache));
+        File checkpoint =
+                new File(checkpointDir, aIDFile.getName() + ".checkpoint");
+        int threads =
+                Integer.parseInt(myProps.getProperty(WARM_THREADS,
+                        DEFAULT_THREADS));
+        CacheWarmer warmer = CacheWarmer.getInstance();
+
+        if (warmer != null && !warmer.isFinished()) {
+            if (LOGGER.isInfoEnabled()) {
+                LOGGER.info("A cache warm-up job is already running: {}",
+                        warmer.getIDFile());
+            }
+
+            return;
+        }
+
+        if (aRestart && checkpoint.exists() && !checkpoint.delete() &&
+                LOGGER.isWarnEnabled()) {
+            LOGGER.warn("Checkpoint not deleted: {}", checkpoint);
+        }
+
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info("Starting cache warm-up of {} with {} threads",
+                    aIDFile, threads);
+        }
+
+        CacheWarmer.start(new CacheWarmer(aIDFile, aColumn, cacheDir,
+                checkpoint, threads, getResolver()));
+    }
+
+    private IdentifierResolver getResolver() throws ResolverException {
+        IReferentResolver resolver = ReferentManager.getResolver();
+
+        // Share the OpenURL layer's resolver if it has been started
+        if (resolver instanceof IdentifierResolver) {
+            return (IdentifierResolver) resolver;
+        }
+
+        IdentifierResolver idResolver = new IdentifierResolver();
+        idResolver.setProperties(myProps);
+        return idResolver;
+    }
+
+    private void writeStatus(HttpServletResponse aResponse) throws IOException {
+        CacheWarmer warmer = CacheWarmer.getInstance();
+        ServletOutputStream out = aResponse.getOutputStream();
+        Element root = new Element("cacheWarmer");
+        Serializer serializer = new Serializer(out);
+
+        aResponse.setContentType("application/xml");
+        serializer.setIndent(2);
+
+        if (warmer == null) {
+            root.addAttribute(new Attribute("state", "idle"));
+        } else {
+            Element images = new Element("images");
+            Element tiles = new Element("tiles");
+            String state;
+
+            if (warmer.isFinished()) {
+                state = warmer.isStopped() ? "stopped" : "finished";
+            } else {
+                state = warmer.isStopped() ? "stopping" : "running";
+            }
+
+            root.addAttribute(new Attribute("state", state));
+            root.appendChild(getElement("ids", warmer.getIDFile().getName()));
+
+            if (warmer.getCurrentID() != null) {
+                root.appendChild(getElement("current", warmer.getCurrentID()));
+            }
+
+            root.appendChild(getElement("started", warmer.getStarted()));
+            root.appendChild(getElement("finished", warmer.getFinished()));
+
+            images.appendChild(getElement("cached", warmer.getImageCount()));
+            images.appendChild(getElement("resumed", warmer
+                    .getResumedCount()));
+            images.appendChild(getElement("failed", warmer
+                    .getFailedImageCount()));
+            tiles.appendChild(getElement("rendered", warmer
+                    .getRenderedCount()));
+            tiles.appendChild(getElement("skipped", warmer.getSkippedCount()));
+            tiles.appendChild(getElement("failed", warmer
+                    .getFailedTileCount()));
+
+            root.appendChild(images);
+            root.appendChild(tiles);
+        }
+
+        serializer.write(new Document(root));
+        out.close();
+    }
+
+    private Element getElement(String aName, long aValue) {
+        return getElement(aName, Long.toString(aValue));
+    }
+
+    private Element getElement(String aName, String aValue) {
+        Element element = new Element(aName);
+        element.appendChild(aValue);
+        return element;
+    }
+}
@@ -44,6 +44,17 @@ public class IdentifierResolver implements IReferentResolver, Constants {
     private static final Logger LOGGER = LoggerFactory
             .getLogger(IdentifierResolver.class);
 
+    private static final String NEGATIVE_CACHE_SIZE =
+            "djatoka.resolver.negativeCache.size";
+
+    private static final String NEGATIVE_CACHE_TTL =
+            "djatoka.resolver.negativeCache.ttl";
+
+    private static final String DEFAULT_NEGATIVE_CACHE_SIZE = "10000";
+
+    // The number of seconds an unresolvable ID is remembered for
+    private static final String DEFAULT_NEGATIVE_CACHE_TTL = "300";
+
     private IReferentMigrator myMigrator = new DjatokaImageMigrator();
 
     private Map<String, ImageRecord> myRemoteImages;
@@ -54,6 +65,8 @@ public class IdentifierResolver implements IReferentResolver, Constants {
 
     private File myJP2Dir;
 
+    private NegativeCache myUnresolvables;
+
     /**
      * Gets the image record for the requested image.
      * 
@@ -91,16 +104,18 @@ public class IdentifierResolver implements IReferentResolver, Constants {
             image = getCachedImage(referent);
 
             // Otherwise, we retrieve the image from the remote source
-            if (image == null) {
+            if (image == null && !isUnresolvable(decodedRequest)) {
                 image = getRemoteImage(referent, aRequest);
+                recordUnresolvable(decodedRequest, image);
             }
         } else {
             image = getCachedImage(decodedRequest);
 
             // If we can't find the "non-remote" image in our local cache,
             // make one last ditch attempt to find it as a remote image...
-            if (image == null) {
-                for (int index = 0; index < myIngestGuesses.size(); index++) {
+            if (image == null && !isUnresolvable(decodedRequest)) {
+                for (int index = 0; image == null &&
+                        index < myIngestGuesses.size(); index++) {
                     String urlPattern = myIngestGuesses.get(index);
                     String url = StringUtils.format(urlPattern, decodedRequest);
 
@@ -111,6 +126,8 @@ public class IdentifierResolver implements IReferentResolver, Constants {
 
                     image = getRemoteImage(aRequest, url);
                 }
+
+                recordUnresolvable(decodedRequest, image);
             }
         }
 
@@ -129,6 +146,64 @@ public class IdentifierResolver implements IReferentResolver, Constants {
         return getImageRecord(id);
     }
 
+    /**
+     * Gets the local JP2 file for the requested image without retrieving the
+     * image from a remote source.
+     *
+     * @param aRequest An image request
+     * @return The local JP2 file or null if the image isn't stored locally
+     */
+    public File getImageFile(String aRequest) {
+        ImageRecord image;
+        String referent;
+
+        try {
+            referent = URLDecoder.decode(aRequest, "UTF-8");
+            referent = URLDecoder.decode(referent, "UTF-8");
+
+            if (isResolvableURI(aRequest)) {
+                referent = parseReferent(referent);
+            }
+        } catch (UnsupportedEncodingException details) {
+            // Should not be possible; JVMs must support UTF-8
+            throw new RuntimeException(details);
+        }
+
+        image = getCachedImage(referent);
+
+        // Guessed remote images are recorded under the undecoded request
+        if (image == null && myRemoteImages != null) {
+            image = myRemoteImages.get(referent);
+
+            if (image == null) {
+                image = myRemoteImages.get(aRequest);
+            }
+        }
+
+        return image == null ? null : new File(image.getImageFile());
+    }
+
+    /**
+     * Forgets that the supplied ID couldn't be resolved. This should be
+     * called when an image is ingested.
+     *
+     * @param aID The ID of an image that may now be resolvable
+     */
+    public void invalidate(String aID) {
+        if (myUnresolvables != null) {
+            myUnresolvables.remove(aID);
+        }
+    }
+
+    /**
+     * Forgets all the IDs that couldn't be resolved.
+     */
+    public void invalidateAll() {
+        if (myUnresolvables != null) {
+            myUnresolvables.clear();
+        }
+    }
+
     /**
      * Gets the referent migrator for this resolver.
      */
@@ -168,6 +243,45 @@ public class IdentifierResolver implements IReferentResolver, Constants {
 
         myIngestSources.addAll(Arrays.asList(sources.split("\\s+")));
         myIngestGuesses.addAll(Arrays.asList(guesses.split("\\s+")));
+
+        int size =
+                Integer.parseInt(aProps.getProperty(NEGATIVE_CACHE_SIZE,
+                        DEFAULT_NEGATIVE_CACHE_SIZE));
+        long ttl =
+                Long.parseLong(aProps.getProperty(NEGATIVE_CACHE_TTL,
+                        DEFAULT_NEGATIVE_CACHE_TTL));
+
+        // A size or time-to-live of zero turns the negative cache off
+        if (size > 0 && ttl > 0) {
+            myUnresolvables = new NegativeCache(size, ttl * 1000);
+        }
+    }
+
+    /**
+     * Returns true if the supplied ID recently couldn't be found at a remote
+     * source. Images that have been ingested since are still found in the
+     * Pairtree, which is checked first.
+     */
+    private boolean isUnresolvable(String aID) {
+        if (myUnresolvables != null && myUnresolvables.contains(aID)) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Recently failed to resolve: {}", aID);
+            }
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Remembers an ID that couldn't be found at a remote source, so bots
+     * asking for garbage IDs don't hit remote sources each time.
+     */
+    private void recordUnresolvable(String aID, ImageRecord aImage) {
+        if (aImage == null && myUnresolvables != null) {
+            myUnresolvables.add(aID);
+        }
     }
 
     private boolean isResolvableURI(String aReferentID) {
@@ -5,10 +5,22 @@ import info.freelibrary.djatoka.iiif.Region;
 import info.freelibrary.djatoka.iiif.ImageRequest;
 import info.freelibrary.djatoka.iiif.IIIFRequest;
 
-import gov.lanl.adore.djatoka.openurl.OpenURLJP2KService;
-
 import info.freelibrary.djatoka.Constants;
+import info.freelibrary.djatoka.util.AdmissionPolicy;
+import info.freelibrary.djatoka.util.CacheMetrics;
 import info.freelibrary.djatoka.util.CacheUtils;
+import info.freelibrary.djatoka.util.ChannelUtils;
+import info.freelibrary.djatoka.util.ConditionalGet;
+import info.freelibrary.djatoka.util.PeerRequest;
+import info.freelibrary.djatoka.util.TileKey;
+
+import gov.lanl.adore.djatoka.DjatokaDecodeParam;
+import gov.lanl.adore.djatoka.openurl.IReferentResolver;
+import gov.lanl.adore.djatoka.openurl.OpenURLJP2KService;
+import gov.lanl.adore.djatoka.openurl.ReferentManager;
+import gov.lanl.adore.djatoka.openurl.ResolverException;
+import gov.lanl.adore.djatoka.util.ImageRecord;
+import gov.lanl.adore.djatoka.util.ImageRecordCache;
 
 import info.freelibrary.util.IOUtils;
 import info.freelibrary.util.PairtreeObject;
@@ -18,7 +30,9 @@ import info.freelibrary.util.StringUtils;
 
 import java.awt.image.BufferedImage;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -28,6 +42,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
 import java.util.Properties;
 
 import javax.imageio.IIOException;
@@ -40,7 +55,6 @@ import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpSession;
 
 import nu.xom.Attribute;
 import nu.xom.Builder;
@@ -82,6 +96,34 @@ public class ImageServlet extends HttpServlet implements Constants {
 
     private static final String CHARSET = "UTF-8";
 
+    // Used to guess how many images a view cache of a given size will hold
+    private static final long AVERAGE_OBJECT_BYTES = 1048576;
+
+    // Enough for the info responses of every canvas of a busy collection
+    private static final InfoCache INFO_CACHE = new InfoCache(10000);
+
+    private static final CacheMetrics VIEW_METRICS = new CacheMetrics(
+            "viewCache") {
+
+        @Override
+        public long getSize() {
+            ViewCacheManager manager = ViewCacheManager.getInstance();
+            return manager == null ? -1 : manager.getObjectCount();
+        }
+
+        @Override
+        public long getByteSize() {
+            ViewCacheManager manager = ViewCacheManager.getInstance();
+            return manager == null ? -1 : manager.getByteSize();
+        }
+
+        @Override
+        public long getEvictionCount() {
+            ViewCacheManager manager = ViewCacheManager.getInstance();
+            return manager == null ? -1 : manager.getEvictionCount();
+        }
+    };
+
     private static String myFormatExt;
 
     private static String myCache;
@@ -97,28 +139,36 @@ public class ImageServlet extends HttpServlet implements Constants {
         String id = getID(path);
 
         if (reqURI.endsWith("/info.xml") || reqURI.endsWith("/info.json")) {
+            String infoFile = reqURI.substring(reqURI.lastIndexOf('/') + 1);
+            boolean gzip = acceptsGzip(aRequest);
+            String variant = infoFile;
+
+            // The JSON's @id is built from the host the request was sent to
+            if (infoFile.equals("info.json")) {
+                aResponse.setHeader("Vary", "Accept-Encoding, Host");
+                variant += ";" + getServiceBase(aRequest);
+            } else {
+                aResponse.setHeader("Vary", "Accept-Encoding");
+            }
+
+            // The gzipped response is a different entity from the plain one
+            if (isNotModified(id, TileKey.getHash(gzip ? variant + ";gzip"
+                    : variant), aRequest, aResponse)) {
+                return;
+            }
+
             try {
                 int[] dims = getHeightWidth(aRequest, aResponse);
-                ImageInfo imageInfo = new ImageInfo(id, dims[0], dims[1]);
+                InfoCache.Info info = getInfo(id, infoFile, dims, aRequest);
+                byte[] bytes = gzip ? info.getGzippedBytes() : info.getBytes();
                 ServletOutputStream outStream = aResponse.getOutputStream();
 
-                if (reqURI.endsWith("/info.xml")) {
-                    imageInfo.toStream(outStream);
-                } else {
-                    StringBuilder serviceSb = new StringBuilder();
-
-                    serviceSb.append(aRequest.getScheme()).append("://");
-                    serviceSb.append(aRequest.getServerName()).append(":");
-                    serviceSb.append(aRequest.getServerPort());
-
-                    String service = serviceSb.toString();
-                    String prefix = iiif.getServicePrefix();
-
-                    imageInfo.addFormat("jpg"); // FIXME: Configurable options
-
-                    outStream.print(imageInfo.toJSON(service, prefix));
+                if (gzip) {
+                    aResponse.setHeader("Content-Encoding", "gzip");
                 }
 
+                aResponse.setContentLength(bytes.length);
+                outStream.write(bytes);
                 outStream.close();
             } catch (FileNotFoundException details) {
                 aResponse.sendError(HttpServletResponse.SC_NOT_FOUND, id +
@@ -133,26 +183,17 @@ public class ImageServlet extends HttpServlet implements Constants {
             String size = imageRequest.getSize().toString();
             Region iiifRegion = imageRequest.getRegion();
             float rotation = imageRequest.getRotation();
-            String region;
+            String region = getRegion(iiifRegion);
 
-            // Djatoka expects a different order from what OpenSeadragon sends
-            // so we have to reconstruct rather than use Region's toString().
-            if (iiifRegion.isFullSize()) {
-                region = "";
-            } else {
-                StringBuilder rsb = new StringBuilder();
-                rsb.append(iiifRegion.getY()).append(',');
-                rsb.append(iiifRegion.getX()).append(',');
-                rsb.append(iiifRegion.getHeight()).append(',');
-                rsb.append(iiifRegion.getWidth());
-
-                // Now, we have the string order that Djatoka wants
-                region = rsb.toString();
+            TileKey key = getTileKey(id, level, region, size, rotation);
+
+            if (isNotModified(id, key.getHash(), aRequest, aResponse)) {
+                return;
             }
 
             if (myCache != null) {
-                checkImageCache(id, level, size, region, rotation, aRequest,
-                        aResponse);
+                checkImageCache(id, key, level, size, region, rotation,
+                        aRequest, aResponse);
             } else {
                 if (LOGGER.isWarnEnabled()) {
                     LOGGER.warn("Cache isn't configured correctly");
@@ -195,10 +236,16 @@ public class ImageServlet extends HttpServlet implements Constants {
                 LOGGER.debug("Request: " + request.toString());
             }
 
+            TileKey key = getTileKey(id, level, region, scale, 0.0f);
+
+            if (isNotModified(id, key.getHash(), aRequest, aResponse)) {
+                return;
+            }
+
             if (myCache != null) {
                 // Older freelib-djatoka didn't support rotations; use 0.0f
-                checkImageCache(id, level, scale, region, 0.0f, aRequest,
-                        aResponse);
+                checkImageCache(id, key, level, scale, region, 0.0f,
+                        aRequest, aResponse);
             } else {
                 if (LOGGER.isWarnEnabled()) {
                     LOGGER.warn("Cache isn't configured correctly");
@@ -215,6 +262,8 @@ public class ImageServlet extends HttpServlet implements Constants {
     public void init() throws ServletException {
         InputStream is = getClass().getResourceAsStream("/" + PROPERTIES_FILE);
 
+        CacheMetrics.register(VIEW_METRICS);
+
         if (is != null) {
             try {
                 Properties props = new Properties();
@@ -233,6 +282,8 @@ public class ImageServlet extends HttpServlet implements Constants {
                     LOGGER.debug("Cache directory set to {}", myCache);
                 }
 
+                startCacheManager(props);
+
                 if (props.containsKey(VIEW_FORMAT_EXT)) {
                     myFormatExt =
                             props.getProperty(VIEW_FORMAT_EXT, DEFAULT_VIEW_EXT);
@@ -252,6 +303,53 @@ public class ImageServlet extends HttpServlet implements Constants {
         }
     }
 
+    @Override
+    public void destroy() {
+        ViewCacheManager.stop();
+        TilePack.evictAll();
+        CacheMetrics.unregister(VIEW_METRICS.getName());
+        super.destroy();
+    }
+
+    private void startCacheManager(Properties aProps) throws IOException {
+        String highWatermark =
+                aProps.getProperty(VIEW_CACHE_HIGH_WATERMARK, "0");
+        String lowWatermark =
+                aProps.getProperty(VIEW_CACHE_LOW_WATERMARK, highWatermark);
+        long high = Long.parseLong(highWatermark);
+        long low = Long.parseLong(lowWatermark);
+
+        String policyClass = aProps.getProperty(VIEW_CACHE_ADMISSION);
+
+        // Without a high watermark the cache is allowed to grow unchecked
+        if (high > 0) {
+            ViewCacheManager manager =
+                    ViewCacheManager.start(new PairtreeRoot(new File(myCache)),
+                            high, low, VIEW_CACHE_CHECK_INTERVAL);
+
+            if (policyClass != null && !policyClass.equals("")) {
+                manager.setAdmissionPolicy(getAdmissionPolicy(policyClass,
+                        high));
+            }
+        }
+    }
+
+    private AdmissionPolicy getAdmissionPolicy(String aClassName,
+            long aHighWatermark) throws IOException {
+        AdmissionPolicy policy;
+
+        try {
+            policy = (AdmissionPolicy) Class.forName(aClassName).newInstance();
+        } catch (Exception details) {
+            throw new IOException("Unable to load admission policy: " +
+                    aClassName, details);
+        }
+
+        policy.setCapacity((int) Math.min(aHighWatermark /
+                AVERAGE_OBJECT_BYTES, Integer.MAX_VALUE));
+        return policy;
+    }
+
     @Override
     protected void doHead(HttpServletRequest aRequest,
             HttpServletResponse aResponse) throws ServletException, IOException {
@@ -272,8 +370,133 @@ public class ImageServlet extends HttpServlet implements Constants {
 
     @Override
     protected long getLastModified(HttpServletRequest aRequest) {
-        // TODO: really implement this using our cached files?
-        return super.getLastModified(aRequest);
+        String reqURI = aRequest.getRequestURI();
+        String path = reqURI.substring(aRequest.getServletPath().length());
+        File source;
+
+        // doGet() checks If-None-Match, which overrides If-Modified-Since
+        if (aRequest.getHeader("If-None-Match") != null) {
+            return -1;
+        }
+
+        source = getSourceImage(getID(path));
+
+        if (source == null || source.lastModified() == 0) {
+            return super.getLastModified(aRequest);
+        }
+
+        return source.lastModified();
+    }
+
+    /**
+     * Sets the validators for the requested image and, if the client's copy
+     * is still current, answers the request with a 304 (Not Modified).
+     */
+    private boolean isNotModified(String aID, String aVariantHash,
+            HttpServletRequest aRequest, HttpServletResponse aResponse) {
+        File source = getSourceImage(aID);
+        long lastModified;
+        String eTag;
+
+        if (source == null || (lastModified = source.lastModified()) == 0) {
+            return false;
+        }
+
+        eTag = ConditionalGet.getETag(source, aVariantHash);
+        aResponse.setHeader("ETag", eTag);
+        aResponse.setDateHeader("Last-Modified", lastModified);
+
+        if (ConditionalGet.isNotModified(aRequest, eTag, lastModified)) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("{} ({}) not modified", aID, aVariantHash);
+            }
+
+            aResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Gets the canonical key of the image that serveNewImage() would request
+     * from the OpenURL layer.
+     */
+    private TileKey getTileKey(String aID, String aLevel, String aRegion,
+            String aScale, float aRotation) {
+        DjatokaDecodeParam params =
+                getDecodeParam(aLevel, aRegion, aScale, aRotation);
+
+        return TileKey.create(aID, params, DEFAULT_VIEW_EXT,
+                getImageInfo(aID));
+    }
+
+    /**
+     * Gets an IIIF region in the order that djatoka expects, which is
+     * different from the order OpenSeadragon sends, or an empty string for
+     * the full image.
+     */
+    static String getRegion(Region aRegion) {
+        StringBuilder rsb;
+
+        if (aRegion.isFullSize()) {
+            return "";
+        }
+
+        // We have to reconstruct rather than use Region's toString()
+        rsb = new StringBuilder();
+        rsb.append(aRegion.getY()).append(',');
+        rsb.append(aRegion.getX()).append(',');
+        rsb.append(aRegion.getHeight()).append(',');
+        rsb.append(aRegion.getWidth());
+
+        return rsb.toString();
+    }
+
+    /**
+     * Gets the decode parameters of the OpenURL request that serveNewImage()
+     * would make.
+     */
+    static DjatokaDecodeParam getDecodeParam(String aLevel, String aRegion,
+            String aScale, float aRotation) {
+        String rotation = Integer.toString((int) aRotation);
+
+        if (aScale == null) {
+            return TileKey.getDecodeParam(aLevel, null, null, rotation, null);
+        }
+
+        return TileKey.getDecodeParam(null, aRegion, aScale.equals("full")
+                ? "1.0" : aScale, rotation, null);
+    }
+
+    private ImageRecord getImageInfo(String aID) {
+        File source = getSourceImage(aID);
+
+        if (source == null) {
+            return null;
+        }
+
+        try {
+            return ImageRecordCache.getImageRecord(source);
+        } catch (IOException details) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Unable to read JP2 header: {}", details
+                        .getMessage());
+            }
+
+            return null;
+        }
+    }
+
+    private File getSourceImage(String aID) {
+        IReferentResolver resolver = ReferentManager.getResolver();
+
+        // Until the OpenURL layer has started, there's nothing to check with
+        if (resolver instanceof IdentifierResolver) {
+            return ((IdentifierResolver) resolver).getImageFile(aID);
+        }
+
+        return null;
     }
 
     private int[] getHeightWidth(HttpServletRequest aRequest,
@@ -282,8 +505,14 @@ public class ImageServlet extends HttpServlet implements Constants {
         String servletPath = aRequest.getServletPath();
         String path = reqURI.substring(servletPath.length());
         String id = getID(path);
+        int[] dimensions = getHeaderDimensions(id);
         int width = 0, height = 0;
 
+        // The JP2 header has them; there's no need to decode the whole image
+        if (dimensions != null) {
+            return dimensions;
+        }
+
         if (myCache != null) {
             OutputStream outStream = null;
             InputStream inStream = null;
@@ -401,6 +630,130 @@ public class ImageServlet extends HttpServlet implements Constants {
         };
     }
 
+    /**
+     * Gets the height and width of the requested image from its JP2 header,
+     * resolving the image first if it hasn't been already. Returns null if
+     * the OpenURL layer hasn't started or the header can't be read.
+     */
+    private int[] getHeaderDimensions(String aID) throws FileNotFoundException {
+        IReferentResolver resolver = ReferentManager.getResolver();
+        ImageRecord image;
+
+        if (!(resolver instanceof IdentifierResolver)) {
+            return null;
+        }
+
+        try {
+            image = ((IdentifierResolver) resolver).getImageRecord(aID);
+        } catch (ResolverException details) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Unable to resolve {}: {}", aID, details
+                        .getMessage());
+            }
+
+            image = null;
+        }
+
+        if (image == null || image.getImageFile() == null) {
+            throw new FileNotFoundException(aID + " not found");
+        }
+
+        try {
+            image = ImageRecordCache.getImageRecord(new File(image
+                    .getImageFile()));
+        } catch (IOException details) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Unable to read JP2 header: {}", details
+                        .getMessage());
+            }
+
+            return null;
+        }
+
+        if (image.getWidth() <= 0 || image.getHeight() <= 0) {
+            return null;
+        }
+
+        return new int[] {
+            image.getHeight(), image.getWidth()
+        };
+    }
+
+    /**
+     * Gets the encoded info response for the supplied image, building and
+     * caching it if it hasn't been already.
+     */
+    private InfoCache.Info getInfo(String aID, String aInfoFile,
+            int[] aDimensions, HttpServletRequest aRequest) throws IOException {
+        IIIFRequest iiif = (IIIFRequest) aRequest.getAttribute(IIIFRequest.KEY);
+        boolean json = aInfoFile.equals("info.json");
+        String service = null;
+        String prefix = null;
+        InfoCache.Info info;
+        String key;
+
+        if (json) {
+            service = getServiceBase(aRequest);
+            prefix = iiif.getServicePrefix();
+        }
+
+        key = InfoCache.getKey(aID, aInfoFile, service, prefix);
+        info = INFO_CACHE.get(key, aDimensions[0], aDimensions[1]);
+
+        if (info == null) {
+            ImageInfo imageInfo =
+                    new ImageInfo(aID, aDimensions[0], aDimensions[1]);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+            if (json) {
+                imageInfo.addFormat("jpg"); // FIXME: Configurable options
+                bytes.write(imageInfo.toJSON(service, prefix).getBytes(
+                        CHARSET));
+            } else {
+                imageInfo.toStream(bytes);
+            }
+
+            info = INFO_CACHE.put(key, aDimensions[0], aDimensions[1], bytes
+                    .toByteArray());
+        }
+
+        return info;
+    }
+
+    /**
+     * Gets the scheme, host and port the request was sent to, which the IIIF
+     * info response's identifiers start with.
+     */
+    private static String getServiceBase(HttpServletRequest aRequest) {
+        StringBuilder service = new StringBuilder();
+
+        service.append(aRequest.getScheme()).append("://");
+        service.append(aRequest.getServerName()).append(":");
+        service.append(aRequest.getServerPort());
+
+        return service.toString();
+    }
+
+    private static boolean acceptsGzip(HttpServletRequest aRequest) {
+        String encodings = aRequest.getHeader("Accept-Encoding");
+
+        if (encodings == null) {
+            return false;
+        }
+
+        for (String encoding : encodings.split(",")) {
+            String[] parts = encoding.trim().split(";");
+
+            if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                // A quality of zero means the client won't take it
+                return parts.length == 1 || !parts[1].trim().matches(
+                        "q\\s*=\\s*0(\\.0*)?");
+            }
+        }
+
+        return false;
+    }
+
     private String getFullSizeImageURL(HttpServletRequest aRequest) {
         StringBuilder url = new StringBuilder();
         url.append(aRequest.getScheme()).append("://");
@@ -409,35 +762,151 @@ public class ImageServlet extends HttpServlet implements Constants {
         return url.append("view/fullSize/").toString();
     }
 
-    private void checkImageCache(String aID, String aLevel, String aScale,
-            String aRegion, float aRotation, HttpServletRequest aRequest,
-            HttpServletResponse aResponse) throws IOException, ServletException {
-        PairtreeRoot cacheDir = new PairtreeRoot(new File(myCache));
-        PairtreeObject cacheObject = cacheDir.getObject(aID);
-        String fileName =
-                CacheUtils.getFileName(aLevel, aScale, aRegion, aRotation);
-        File imageFile = new File(cacheObject, fileName);
-
-        if (imageFile.exists()) {
-            aResponse.setHeader("Content-Length", "" + imageFile.length());
-            aResponse.setHeader("Cache-Control", "public, max-age=4838400");
-            aResponse.setContentType("image/jpg");
+    private void checkImageCache(String aID, TileKey aKey, String aLevel,
+            String aScale, String aRegion, float aRotation,
+            HttpServletRequest aRequest, HttpServletResponse aResponse)
+            throws IOException, ServletException {
+        PairtreeRoot cacheDir;
+        PairtreeObject cacheObject;
+        File imageFile;
+
+        // Tiles that another node owns are cached there, not in our cache
+        if (!OpenURLJP2KService.getCacheBackend().isLocal(
+                aKey.getHash() + DEFAULT_VIEW_EXT)) {
+            serveNewImage(aID, aLevel, aRegion, aScale, aRotation, aRequest,
+                    aResponse);
+            return;
+        }
 
-            ServletOutputStream outStream = aResponse.getOutputStream();
-            IOUtils.copyStream(imageFile, outStream);
-            IOUtils.closeQuietly(outStream);
+        cacheDir = new PairtreeRoot(new File(myCache));
+        cacheObject = cacheDir.getObject(aID);
+        imageFile = new File(cacheObject, aKey.getFileName());
+
+        if (servePackedImage(cacheObject, imageFile, aResponse)) {
+            return;
+        }
+
+        // Caches written before tiles were packed hold a file per image
+        FileInputStream imageStream = openCachedImage(imageFile);
+        File cachedFile = imageFile;
+
+        // and those written before tiles had canonical keys are named after
+        // the request
+        if (imageStream == null) {
+            cachedFile =
+                    getLegacyImageFile(cacheObject, aLevel, aScale, aRegion,
+                            aRotation);
+            imageStream = openCachedImage(cachedFile);
+        }
+
+        if (imageStream != null) {
+            ViewCacheManager manager = ViewCacheManager.getInstance();
+            FileChannel channel = imageStream.getChannel();
+
+            VIEW_METRICS.recordHit();
+
+            if (manager != null) {
+                manager.touch(cacheObject);
+            }
+
+            try {
+                aResponse.setHeader("Content-Length", "" + channel.size());
+                aResponse.setHeader("Cache-Control", "public, max-age=4838400");
+                aResponse.setContentType("image/jpg");
+
+                ServletOutputStream outStream = aResponse.getOutputStream();
+                ChannelUtils.send(channel, outStream);
+                IOUtils.closeQuietly(outStream);
+            } finally {
+                IOUtils.closeQuietly(imageStream);
+            }
 
             if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("{} served from Pairtree cache", imageFile);
+                LOGGER.debug("{} served from Pairtree cache", cachedFile);
             }
         } else {
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("{} not found in cache", imageFile);
             }
 
-            serveNewImage(aID, aLevel, aRegion, aScale, aRotation, aRequest,
-                    aResponse);
-            cacheNewImage(aRequest, aID + "_" + fileName, imageFile);
+            long start = System.nanoTime();
+
+            VIEW_METRICS.recordMiss();
+
+            // The OpenURL layer publishes what it renders into our cache
+            ViewCache.setTarget(imageFile);
+
+            try {
+                serveNewImage(aID, aLevel, aRegion, aScale, aRotation,
+                        aRequest, aResponse);
+            } finally {
+                ViewCache.clearTarget();
+                VIEW_METRICS.recordLoad(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Serves the requested image from its Pairtree object's tile pack, if
+     * it's been packed there.
+     */
+    private boolean servePackedImage(File aCacheObject, File aImageFile,
+            HttpServletResponse aResponse) throws IOException {
+        TilePack pack = TilePack.open(aCacheObject, false);
+        int length;
+
+        if (pack == null) {
+            return false;
+        }
+
+        try {
+            if ((length = pack.getLength(aImageFile.getName())) < 0) {
+                return false;
+            }
+
+            ViewCacheManager manager = ViewCacheManager.getInstance();
+
+            if (manager != null) {
+                manager.touch(aCacheObject);
+            }
+
+            VIEW_METRICS.recordHit();
+
+            aResponse.setHeader("Content-Length", Integer.toString(length));
+            aResponse.setHeader("Cache-Control", "public, max-age=4838400");
+            aResponse.setContentType("image/jpg");
+
+            ServletOutputStream outStream = aResponse.getOutputStream();
+            pack.send(aImageFile.getName(), outStream);
+            IOUtils.closeQuietly(outStream);
+        } finally {
+            pack.release();
+        }
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("{} served from tile pack", aImageFile);
+        }
+
+        return true;
+    }
+
+    /**
+     * Gets the file that a cache written before images had canonical keys
+     * would hold the requested image in.
+     */
+    @SuppressWarnings("deprecation")
+    private static File getLegacyImageFile(File aCacheObject, String aLevel,
+            String aScale, String aRegion, float aRotation) {
+        return new File(aCacheObject, CacheUtils.getFileName(aLevel,
+                aScale == null ? "" : aScale, aRegion, aRotation));
+    }
+
+    private FileInputStream openCachedImage(File aImageFile) {
+        // Opening rather than checking keeps eviction from racing our read
+        try {
+            return aImageFile.exists() ? new FileInputStream(aImageFile) : null;
+        } catch (FileNotFoundException details) {
+            return null;
         }
     }
 
@@ -467,7 +936,10 @@ public class ImageServlet extends HttpServlet implements Constants {
             url = StringUtils.format(REGION_URL, values);
         }
 
-        // Right now we just let the OpenURL interface do the work
+        // Right now we just let the OpenURL interface do the work; a peer
+        // that owns the tile is asked with the OpenURL query, not ours
+        aRequest.setAttribute(PeerRequest.QUERY, url.substring(url
+                .indexOf('?') + 1));
         dispatcher = aRequest.getRequestDispatcher(url);
 
         if (LOGGER.isDebugEnabled()) {
@@ -477,58 +949,13 @@ public class ImageServlet extends HttpServlet implements Constants {
         dispatcher.forward(aRequest, aResponse);
     }
 
-    private void cacheNewImage(HttpServletRequest aRequest, String aKey,
-            File aDestFile) {
-        HttpSession session = aRequest.getSession();
-        String fileName = (String) session.getAttribute(aKey);
-
-        if (fileName != null) {
-            String cacheName = (String) session.getAttribute(fileName);
-            File cachedFile = new File(fileName);
-
-            // This moves the newly created file from the adore-djatoka cache
-            // to the freelib-djatoka cache (which is pure-FS/Pairtree-based)
-            if (cachedFile.exists() && aDestFile != null) {
-                if (LOGGER.isDebugEnabled()) {
-                    LOGGER.debug("Renaming cache file from {} to {}",
-                            cachedFile, aDestFile);
-                }
-
-                if (!cachedFile.renameTo(aDestFile) && LOGGER.isDebugEnabled()) {
-                    LOGGER.debug("Unable to move cache file: {}", cachedFile);
-                } else {
-                    // This is the temp file cache used by the OpenURL layer
-                    if (!OpenURLJP2KService.removeFromTileCache(cacheName) &&
-                            LOGGER.isDebugEnabled()) {
-                        LOGGER.debug(
-                                "Unable to remove OpenURL cache file link: {}",
-                                fileName);
-                    } else {
-                        session.removeAttribute(aKey);
-                        session.removeAttribute(fileName);
-                    }
-                }
-            } else if (LOGGER.isWarnEnabled() && !cachedFile.exists()) {
-                LOGGER.warn(
-                        "Session had a cache file ({}), but it didn't exist",
-                        cachedFile.getAbsoluteFile());
-            } else if (LOGGER.isWarnEnabled()) {
-                LOGGER.warn("Location for destination cache file was null");
-            }
-        } else if (LOGGER.isWarnEnabled()) {
-            LOGGER.warn(
-                    "Couldn't cache ({} = {}); session lacked new image information",
-                    aKey, aDestFile.getAbsolutePath());
-        }
-    }
-
     /*
      * Working towards:
      * http://www.example.org/service/abcd1234/80,15,60,75/pct:100/0/color.jpg
      * /domain /service /ark /region /scale /rotation /filename /ext
      */
 
-    private String getID(String aPath) {
+    static String getID(String aPath) {
         String path;
 
         if (aPath.startsWith("/")) {
@@ -552,7 +979,7 @@ public class ImageServlet extends HttpServlet implements Constants {
         return path;
     }
 
-    private String[] getRegion(String aPathInfo) {
+    static String[] getRegion(String aPathInfo) {
         String[] coordArray = new String[] {};
 
         if (aPathInfo.contains("/")) {
@@ -579,7 +1006,7 @@ public class ImageServlet extends HttpServlet implements Constants {
         return coordArray;
     }
 
-    private String getScale(String aPathInfo) {
+    static String getScale(String aPathInfo) {
         String scale = null;
 
         if (aPathInfo.contains("/")) {
@@ -0,0 +1,177 @@
+
+package info.freelibrary.djatoka.view;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the encoded bytes of info responses, and a gzipped copy of them, so
+ * repeated requests for an image's info.json or info.xml don't build and
+ * serialize a new document each time. A response only depends on the image's
+ * identifier and dimensions and on the service it's served from, so entries
+ * are keyed by all but the dimensions and are only used while the image's
+ * dimensions, which are read from its current JP2 header, still match. The
+ * cache holds a bounded number of responses; the least recently used are
+ * dropped first.
+ */
+final class InfoCache {
+
+    private final Map<String, Info> myEntries;
+
+    /**
+     * Creates an info response cache.
+     *
+     * @param aMaxSize The maximum number of responses to keep
+     */
+    InfoCache(final int aMaxSize) {
+        myEntries = new LinkedHashMap<String, Info>(16, 0.75F, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, Info> aEntry) {
+                return size() > aMaxSize;
+            }
+        };
+    }
+
+    /**
+     * Gets the cached response for the supplied key, if it was created for an
+     * image of the supplied dimensions.
+     *
+     * @param aKey A key for the response
+     * @param aHeight The image's current height
+     * @param aWidth The image's current width
+     * @return The cached response or null if there isn't a current one
+     */
+    synchronized Info get(String aKey, int aHeight, int aWidth) {
+        Info info = myEntries.get(aKey);
+
+        if (info == null) {
+            return null;
+        }
+
+        if (info.myHeight != aHeight || info.myWidth != aWidth) {
+            myEntries.remove(aKey);
+            return null;
+        }
+
+        return info;
+    }
+
+    /**
+     * Caches the supplied response.
+     *
+     * @param aKey A key for the response
+     * @param aHeight The height of the image the response describes
+     * @param aWidth The width of the image the response describes
+     * @param aBytes The encoded response
+     * @return The cached response
+     * @throws IOException If the response can't be compressed
+     */
+    Info put(String aKey, int aHeight, int aWidth, byte[] aBytes)
+            throws IOException {
+        Info info = new Info(aHeight, aWidth, aBytes, gzip(aBytes));
+
+        synchronized (this) {
+            myEntries.put(aKey, info);
+        }
+
+        return info;
+    }
+
+    /**
+     * Removes all the cached responses.
+     */
+    synchronized void clear() {
+        myEntries.clear();
+    }
+
+    /**
+     * Gets the number of cached responses.
+     *
+     * @return The number of cached responses
+     */
+    synchronized int size() {
+        return myEntries.size();
+    }
+
+    /**
+     * Gets a key for the response in the supplied format for the supplied
+     * image, as served from the supplied service.
+     *
+     * @param aID An image ID
+     * @param aFormat The name of the info file
+     * @param aService The service's base URL
+     * @param aPrefix The service's IIIF prefix
+     * @return A key for the response
+     */
+    static String getKey(String aID, String aFormat, String aService,
+            String aPrefix) {
+        StringBuilder key = new StringBuilder(aFormat).append(' ');
+
+        // XML responses don't mention the service
+        if (aService != null) {
+            key.append(aService).append('/').append(aPrefix).append(' ');
+        }
+
+        return key.append(aID).toString();
+    }
+
+    private static byte[] gzip(byte[] aBytes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+
+        try {
+            gzip.write(aBytes);
+        } finally {
+            gzip.close();
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * An encoded info response.
+     */
+    static final class Info {
+
+        private final int myHeight;
+
+        private final int myWidth;
+
+        private final byte[] myBytes;
+
+        private final byte[] myGzippedBytes;
+
+        private Info(int aHeight, int aWidth, byte[] aBytes,
+                byte[] aGzippedBytes) {
+            myHeight = aHeight;
+            myWidth = aWidth;
+            myBytes = aBytes;
+            myGzippedBytes = aGzippedBytes;
+        }
+
+        /**
+         * Gets the encoded response.
+         *
+         * @return The response's bytes
+         */
+        byte[] getBytes() {
+            return myBytes;
+        }
+
+        /**
+         * Gets the gzipped response.
+         *
+         * @return The response's gzipped bytes
+         */
+        byte[] getGzippedBytes() {
+            return myGzippedBytes;
+        }
+    }
+}
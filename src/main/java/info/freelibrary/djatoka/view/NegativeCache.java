@@ -0,0 +1,110 @@
+
+package info.freelibrary.djatoka.view;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Remembers identifiers that couldn't be resolved, so repeated requests for
+ * them don't go back to remote sources every time. Entries expire after a
+ * time-to-live plus a random jitter of up to a fifth of it, so a burst of
+ * failures doesn't expire, and get retried, all at once. The cache holds a
+ * bounded number of identifiers; the oldest are dropped first.
+ */
+final class NegativeCache {
+
+    private static final int JITTER_DIVISOR = 5;
+
+    private final Map<String, Long> myEntries;
+
+    private final long myTTL;
+
+    /**
+     * Creates a negative cache.
+     *
+     * @param aMaxSize The maximum number of identifiers to remember
+     * @param aTTL The number of milliseconds to remember an identifier for
+     */
+    NegativeCache(final int aMaxSize, long aTTL) {
+        myTTL = aTTL;
+        myEntries = new LinkedHashMap<String, Long>(16, 0.75F, false) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, Long> aEntry) {
+                return size() > aMaxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns true if the supplied identifier is known to be unresolvable;
+     * else, false.
+     *
+     * @param aID An identifier
+     * @return True if the identifier recently failed to resolve
+     */
+    synchronized boolean contains(String aID) {
+        Long expires = myEntries.get(aID);
+
+        if (expires == null) {
+            return false;
+        }
+
+        if (expires.longValue() <= System.currentTimeMillis()) {
+            myEntries.remove(aID);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Remembers that the supplied identifier couldn't be resolved.
+     *
+     * @param aID An identifier
+     */
+    void add(String aID) {
+        long jitter = myTTL / JITTER_DIVISOR;
+        long expires = System.currentTimeMillis() + myTTL;
+
+        if (jitter > 0) {
+            expires += ThreadLocalRandom.current().nextLong(jitter);
+        }
+
+        synchronized (this) {
+            // Re-adding moves the identifier to the back of the line
+            myEntries.remove(aID);
+            myEntries.put(aID, expires);
+        }
+    }
+
+    /**
+     * Forgets the supplied identifier.
+     *
+     * @param aID An identifier
+     */
+    synchronized void remove(String aID) {
+        myEntries.remove(aID);
+    }
+
+    /**
+     * Forgets all identifiers.
+     */
+    synchronized void clear() {
+        myEntries.clear();
+    }
+
+    /**
+     * Gets the number of identifiers that are remembered, including any that
+     * have expired but haven't been looked up since.
+     *
+     * @return The number of identifiers in the cache
+     */
+    synchronized int size() {
+        return myEntries.size();
+    }
+}
@@ -0,0 +1,482 @@
+
+package info.freelibrary.djatoka.view;
+
+import info.freelibrary.djatoka.util.ChannelUtils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The cached tiles of one image, packed into a single append-only data file
+ * with a compact index beside it, instead of one file per tile. Tiles are
+ * read with positional reads, so every request for a tile of the same image
+ * shares one open file handle. A tile's index record is only written after
+ * its bytes are, and records that point past the end of the data file are
+ * dropped when the pack is opened, so a pack that was being written when the
+ * server was killed loses at most the tile that was being added. The data
+ * isn't forced to disk before its index record is written, though; after a
+ * power failure, a pack's last tiles may need to be evicted by hand.
+ * <p/>
+ * Packs are opened through {@link #open(File, boolean)}, which keeps a
+ * bounded number of them open, and have to be released when they're no
+ * longer being used. A pack's files are opened and its index read outside of
+ * the lock that guards the open packs, so a slow disk only holds up requests
+ * for the pack that's being opened.
+ */
+final class TilePack {
+
+    /**
+     * The name of a pack's data file.
+     */
+    static final String DATA_FILE = "tiles.pack";
+
+    /**
+     * The name of a pack's index file.
+     */
+    static final String INDEX_FILE = "tiles.pidx";
+
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(TilePack.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAX_OPEN = 256;
+
+    // Each index record is the key's length, the key, an offset and a length
+    private static final int RECORD_OVERHEAD = 2 + 8 + 4;
+
+    private static final Map<String, TilePack> OPEN_PACKS =
+            new LinkedHashMap<String, TilePack>(64, 0.75F, true) {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, TilePack> aEntry) {
+                    if (size() > MAX_OPEN) {
+                        aEntry.getValue().retire();
+                        return true;
+                    }
+
+                    return false;
+                }
+            };
+
+    // The packs that are being opened, so each is only opened once
+    private static final ConcurrentMap<String, FutureTask<TilePack>> OPENING =
+            new ConcurrentHashMap<String, FutureTask<TilePack>>();
+
+    // Guarded by OPEN_PACKS; counts the evictions, so a pack that was being
+    // opened while it was evicted isn't kept open
+    private static long evictions;
+
+    private final Map<String, long[]> myTiles = new HashMap<String, long[]>();
+
+    private final File myDir;
+
+    private final RandomAccessFile myData;
+
+    private final RandomAccessFile myIndex;
+
+    private long myDataSize;
+
+    // Guarded by OPEN_PACKS
+    private int myUsers;
+
+    // Guarded by OPEN_PACKS
+    private boolean isRetired;
+
+    private TilePack(File aDir) throws IOException {
+        myDir = aDir;
+        myData = new RandomAccessFile(new File(aDir, DATA_FILE), "rw");
+
+        try {
+            myIndex = new RandomAccessFile(new File(aDir, INDEX_FILE), "rw");
+        } catch (IOException details) {
+            myData.close();
+            throw details;
+        }
+
+        try {
+            load();
+        } catch (IOException details) {
+            close();
+            throw details;
+        }
+    }
+
+    /**
+     * Opens the pack in the supplied Pairtree object directory. The pack has
+     * to be released when the caller is done with it.
+     *
+     * @param aDir A Pairtree object directory
+     * @param aCreate True if the pack should be created if it doesn't exist
+     * @return The pack or null if there isn't one and it wasn't created
+     * @throws IOException If the pack can't be opened
+     */
+    static TilePack open(final File aDir, final boolean aCreate)
+            throws IOException {
+        final String path = aDir.getPath();
+
+        while (true) {
+            synchronized (OPEN_PACKS) {
+                TilePack pack = OPEN_PACKS.get(path);
+
+                if (pack != null) {
+                    pack.myUsers++;
+                    return pack;
+                }
+            }
+
+            if (!aCreate && !new File(aDir, INDEX_FILE).exists()) {
+                return null;
+            }
+
+            FutureTask<TilePack> open =
+                    new FutureTask<TilePack>(new Callable<TilePack>() {
+
+                        public TilePack call() throws IOException {
+                            return load(aDir, aCreate);
+                        }
+                    });
+            FutureTask<TilePack> inFlight = OPENING.putIfAbsent(path, open);
+
+            if (inFlight != null) {
+                // Wait for it and then take a reference to the open pack
+                getPack(inFlight);
+                continue;
+            }
+
+            try {
+                open.run();
+                return getPack(open);
+            } finally {
+                OPENING.remove(path, open);
+            }
+        }
+    }
+
+    /**
+     * Opens a pack and adds it to the open packs, with a reference held for
+     * the request that opened it.
+     */
+    private static TilePack load(File aDir, boolean aCreate)
+            throws IOException {
+        TilePack pack;
+        long evicted;
+
+        synchronized (OPEN_PACKS) {
+            evicted = evictions;
+        }
+
+        if (aCreate && !aDir.exists() && !aDir.mkdirs()) {
+            throw new IOException("Dirs not created: " + aDir);
+        }
+
+        pack = new TilePack(aDir);
+
+        synchronized (OPEN_PACKS) {
+            pack.myUsers++;
+
+            // Its files may be on their way out; use it just this once
+            if (evicted != evictions) {
+                pack.isRetired = true;
+            } else {
+                OPEN_PACKS.put(aDir.getPath(), pack);
+            }
+        }
+
+        return pack;
+    }
+
+    private static TilePack getPack(FutureTask<TilePack> aOpen)
+            throws IOException {
+        try {
+            return aOpen.get();
+        } catch (InterruptedException details) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(details.getMessage());
+        } catch (ExecutionException details) {
+            Throwable cause = details.getCause();
+
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Closes the pack in the supplied Pairtree object directory, once the
+     * requests that are using it release it. This should be called before
+     * the pack's files are deleted.
+     *
+     * @param aDir A Pairtree object directory
+     */
+    static void evict(File aDir) {
+        synchronized (OPEN_PACKS) {
+            TilePack pack = OPEN_PACKS.remove(aDir.getPath());
+
+            evictions++;
+
+            if (pack != null) {
+                pack.retire();
+            }
+        }
+    }
+
+    /**
+     * Closes all the open packs, once the requests that are using them
+     * release them.
+     */
+    static void evictAll() {
+        synchronized (OPEN_PACKS) {
+            evictions++;
+
+            for (TilePack pack : OPEN_PACKS.values()) {
+                pack.retire();
+            }
+
+            OPEN_PACKS.clear();
+        }
+    }
+
+    /**
+     * Releases the pack; it mustn't be used again without opening it again.
+     */
+    void release() {
+        synchronized (OPEN_PACKS) {
+            if (--myUsers == 0 && isRetired) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Returns true if the pack holds the tile with the supplied key; else,
+     * false.
+     *
+     * @param aKey The tile's cache file name
+     * @return True if the tile is in the pack
+     */
+    synchronized boolean contains(String aKey) {
+        return myTiles.containsKey(aKey);
+    }
+
+    /**
+     * Gets the number of bytes in the tile with the supplied key.
+     *
+     * @param aKey The tile's cache file name
+     * @return The tile's length or -1 if it isn't in the pack
+     */
+    synchronized int getLength(String aKey) {
+        long[] tile = myTiles.get(aKey);
+        return tile == null ? -1 : (int) tile[1];
+    }
+
+    /**
+     * Gets the number of tiles in the pack.
+     *
+     * @return The number of tiles in the pack
+     */
+    synchronized int size() {
+        return myTiles.size();
+    }
+
+    /**
+     * Reads the tile with the supplied key.
+     *
+     * @param aKey The tile's cache file name
+     * @return The tile's bytes or null if it isn't in the pack
+     * @throws IOException If the tile can't be read
+     */
+    byte[] read(String aKey) throws IOException {
+        long[] tile;
+
+        synchronized (this) {
+            tile = myTiles.get(aKey);
+        }
+
+        if (tile == null) {
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) tile[1]);
+        FileChannel channel = myData.getChannel();
+
+        while (buffer.hasRemaining()) {
+            long position = tile[0] + buffer.position();
+
+            if (channel.read(buffer, position) < 0) {
+                throw new EOFException("Tile pack truncated: " + myDir);
+            }
+        }
+
+        return buffer.array();
+    }
+
+    /**
+     * Sends the tile with the supplied key to the supplied output stream.
+     *
+     * @param aKey The tile's cache file name
+     * @param aOutStream The output stream to send the tile to
+     * @return The number of bytes sent or -1 if the tile isn't in the pack
+     * @throws IOException If the tile can't be read or sent
+     */
+    long send(String aKey, OutputStream aOutStream) throws IOException {
+        long[] tile;
+
+        synchronized (this) {
+            tile = myTiles.get(aKey);
+        }
+
+        if (tile == null) {
+            return -1;
+        }
+
+        return ChannelUtils.send(myData.getChannel(), tile[0], tile[1],
+                aOutStream);
+    }
+
+    /**
+     * Adds a tile to the pack. A tile that's already in the pack isn't added
+     * again.
+     *
+     * @param aKey The tile's cache file name
+     * @param aBytes The tile's bytes
+     * @return True if the tile was added; else, false
+     * @throws IOException If the tile can't be written
+     */
+    synchronized boolean append(String aKey, byte[] aBytes) throws IOException {
+        byte[] key = aKey.getBytes(UTF_8);
+        long offset = myDataSize;
+        ByteBuffer record;
+
+        if (myTiles.containsKey(aKey)) {
+            return false;
+        }
+
+        write(myData.getChannel(), ByteBuffer.wrap(aBytes), offset);
+
+        record = ByteBuffer.allocate(RECORD_OVERHEAD + key.length);
+        record.putShort((short) key.length).put(key);
+        record.putLong(offset).putInt(aBytes.length).flip();
+        write(myIndex.getChannel(), record, myIndex.length());
+
+        myDataSize += aBytes.length;
+        myTiles.put(aKey, new long[] {
+            offset, aBytes.length
+        });
+
+        return true;
+    }
+
+    /**
+     * Reads the pack's index, dropping any record that was only partly
+     * written or that points past the end of the data file.
+     */
+    private void load() throws IOException {
+        DataInputStream in =
+                new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(new File(myDir, INDEX_FILE))));
+        long dataLength = myData.length();
+        long indexLength = 0;
+
+        try {
+            while (true) {
+                byte[] key = new byte[in.readUnsignedShort()];
+                long offset;
+                int length;
+
+                in.readFully(key);
+                offset = in.readLong();
+                length = in.readInt();
+
+                if (offset < 0 || length < 0 || offset + length > dataLength) {
+                    break;
+                }
+
+                myTiles.put(new String(key, UTF_8), new long[] {
+                    offset, length
+                });
+                myDataSize = Math.max(myDataSize, offset + length);
+                indexLength += RECORD_OVERHEAD + key.length;
+            }
+        } catch (EOFException details) {
+            // The end of the index or a record that was cut short
+        } finally {
+            in.close();
+        }
+
+        if (myIndex.length() > indexLength) {
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Truncating damaged tile pack index: {}", myDir);
+            }
+
+            myIndex.setLength(indexLength);
+        }
+
+        // Bytes past the last indexed tile belong to a tile that wasn't
+        // finished; they're overwritten by the next one
+        if (dataLength > myDataSize) {
+            myData.setLength(myDataSize);
+        }
+    }
+
+    private void retire() {
+        isRetired = true;
+
+        if (myUsers == 0) {
+            close();
+        }
+    }
+
+    private void close() {
+        try {
+            myData.close();
+        } catch (IOException details) {
+            LOGGER.debug(details.getMessage(), details);
+        }
+
+        try {
+            myIndex.close();
+        } catch (IOException details) {
+            LOGGER.debug(details.getMessage(), details);
+        }
+    }
+
+    private static void write(FileChannel aChannel, ByteBuffer aBuffer,
+            long aPosition) throws IOException {
+        long position = aPosition;
+
+        while (aBuffer.hasRemaining()) {
+            position += aChannel.write(aBuffer, position);
+        }
+    }
+}
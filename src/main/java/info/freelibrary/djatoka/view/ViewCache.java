@@ -0,0 +1,227 @@
+
+package info.freelibrary.djatoka.view;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes rendered images into the Pairtree-based view cache. The view
+ * layer names the cache file it wants filled before it hands a request off to
+ * the OpenURL layer, and the OpenURL layer publishes the image it renders
+ * under that name into the tile pack of the file's Pairtree object. Nothing
+ * about the publication is kept in the HTTP session; the target only lives
+ * for the length of the request's thread.
+ */
+public final class ViewCache {
+
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(ViewCache.class);
+
+    private static final ThreadLocal<File> TARGET = new ThreadLocal<File>();
+
+    private ViewCache() {
+    }
+
+    /**
+     * Sets the view cache file that an image rendered on the current thread
+     * should be published to.
+     *
+     * @param aFile The view cache file to publish to
+     */
+    public static void setTarget(File aFile) {
+        TARGET.set(aFile);
+    }
+
+    /**
+     * Clears the view cache file set for the current thread.
+     */
+    public static void clearTarget() {
+        TARGET.remove();
+    }
+
+    /**
+     * Returns true if an image rendered on the current thread should be
+     * published to the view cache; else, false.
+     *
+     * @return True if there is a view cache file to publish to
+     */
+    public static boolean hasTarget() {
+        return TARGET.get() != null;
+    }
+
+    /**
+     * Returns true if the supplied view cache file is cached, either in its
+     * Pairtree object's tile pack or, for caches written before tiles were
+     * packed, as a file of its own; else, false.
+     *
+     * @param aFile A view cache file
+     * @return True if the file is cached
+     */
+    public static boolean contains(File aFile) {
+        TilePack pack = null;
+
+        try {
+            pack = TilePack.open(aFile.getParentFile(), false);
+
+            if (pack != null && pack.contains(aFile.getName())) {
+                return true;
+            }
+        } catch (IOException details) {
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Unable to open tile pack for {}: {}", aFile,
+                        details.getMessage());
+            }
+        } finally {
+            if (pack != null) {
+                pack.release();
+            }
+        }
+
+        return aFile.length() > 0;
+    }
+
+    /**
+     * Publishes a rendered image by moving the contents of its file into the
+     * view cache. The file is deleted once it's been published.
+     *
+     * @param aImageFile A rendered image file
+     * @return True if the file was moved into the view cache; else, false
+     */
+    public static boolean publish(File aImageFile) {
+        File target = TARGET.get();
+        byte[] bytes;
+
+        if (target == null || !aImageFile.exists() || !admitted(target)) {
+            return false;
+        }
+
+        try {
+            bytes = Files.readAllBytes(aImageFile.toPath());
+        } catch (IOException details) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Unable to read cache file {}: {}", aImageFile,
+                        details.getMessage());
+            }
+
+            return false;
+        }
+
+        if (bytes.length == 0 || !pack(target, bytes)) {
+            return false;
+        }
+
+        if (!aImageFile.delete() && LOGGER.isWarnEnabled()) {
+            LOGGER.warn("File not deleted: {}", aImageFile);
+        }
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Moved {} into the view cache: {}", aImageFile,
+                    target);
+        }
+
+        return true;
+    }
+
+    /**
+     * Publishes a rendered image by writing its bytes into the view cache.
+     *
+     * @param aImage The bytes of a rendered image
+     * @return True if the image was written into the view cache; else, false
+     */
+    public static boolean publish(byte[] aImage) {
+        return publish(aImage, false);
+    }
+
+    /**
+     * Publishes a rendered image by writing its bytes into the view cache,
+     * optionally skipping the view cache's admission policy. Images that are
+     * cached on purpose, rather than because they were requested, should
+     * skip it.
+     *
+     * @param aImage The bytes of a rendered image
+     * @param aForced True if the admission policy should be skipped
+     * @return True if the image was written into the view cache; else, false
+     */
+    public static boolean publish(byte[] aImage, boolean aForced) {
+        File target = TARGET.get();
+
+        if (target == null || aImage == null || aImage.length == 0 ||
+                (!aForced && !admitted(target))) {
+            return false;
+        }
+
+        if (pack(target, aImage)) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Wrote {} bytes into the view cache: {}",
+                        aImage.length, target);
+            }
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Appends an image to the tile pack of the target's Pairtree object; the
+     * target's name is the image's key in the pack.
+     */
+    private static boolean pack(File aTarget, byte[] aImage) {
+        TilePack pack = null;
+
+        try {
+            pack = TilePack.open(aTarget.getParentFile(), true);
+
+            // Another request may have packed the same image already
+            if (pack.append(aTarget.getName(), aImage)) {
+                added(aTarget, aImage.length);
+            }
+
+            TARGET.remove();
+            return true;
+        } catch (IOException details) {
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Unable to write view cache file {}: {}", aTarget,
+                        details.getMessage());
+            }
+
+            return false;
+        } finally {
+            if (pack != null) {
+                pack.release();
+            }
+        }
+    }
+
+    /**
+     * Checks the target with the view cache's admission policy. A target
+     * that's turned away is cleared, so the rest of the request doesn't try to
+     * publish to it again.
+     */
+    private static boolean admitted(File aTarget) {
+        ViewCacheManager manager = ViewCacheManager.getInstance();
+
+        if (manager == null || manager.admits(aTarget)) {
+            return true;
+        }
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Not admitted to the view cache: {}", aTarget);
+        }
+
+        TARGET.remove();
+        return false;
+    }
+
+    private static void added(File aTarget, long aLength) {
+        ViewCacheManager manager = ViewCacheManager.getInstance();
+
+        if (manager != null) {
+            manager.added(aTarget, aLength);
+        }
+    }
+}
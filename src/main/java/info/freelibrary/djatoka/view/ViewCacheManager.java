@@ -0,0 +1,523 @@
+
+package info.freelibrary.djatoka.view;
+
+import info.freelibrary.djatoka.util.AdmissionPolicy;
+
+import java.io.File;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the Pairtree-based view cache within a disk quota. A background
+ * thread tracks how many bytes each Pairtree object takes up and when it was
+ * last used; when the cache grows past its high watermark, the least recently
+ * used objects are deleted until it's back under its low watermark.
+ * <p/>
+ * Serving an image from the cache only records the object's access time if
+ * the last recorded time is more than a minute old, so most cache hits don't
+ * write anything. The whole cache is rescanned periodically to correct for
+ * changes that weren't seen as they happened.
+ * <p/>
+ * An optional admission policy keeps rarely viewed images from displacing
+ * popular ones. Once the cache is past its low watermark, a new object is only
+ * let in if the policy prefers it to the least recently used object. Objects
+ * are recorded with the policy at most once per check of the cache, so an
+ * image counts as popular when it's viewed again and again, not when a
+ * single view of it loads many tiles.
+ */
+public class ViewCacheManager implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(ViewCacheManager.class);
+
+    private static final long ACCESS_GRANULARITY = 60000L;
+
+    private static final int RESCAN_INTERVAL = 60;
+
+    private static final ThreadFactory THREADS = new ThreadFactory() {
+
+        public Thread newThread(Runnable aRunnable) {
+            Thread thread = new Thread(aRunnable, "view-cache-manager");
+
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+
+            return thread;
+        }
+    };
+
+    private static ViewCacheManager myManager;
+
+    private final ConcurrentMap<String, CachedObject> myObjects =
+            new ConcurrentHashMap<String, CachedObject>();
+
+    private final AtomicLong myBytes = new AtomicLong();
+
+    private final AtomicLong myEvictions = new AtomicLong();
+
+    private final AtomicLong myEvictedBytes = new AtomicLong();
+
+    private final AtomicLong myRejections = new AtomicLong();
+
+    private final ConcurrentMap<String, Boolean> myCandidates =
+            new ConcurrentHashMap<String, Boolean>();
+
+    private final File myRoot;
+
+    private final long myHighWatermark;
+
+    private final long myLowWatermark;
+
+    private ScheduledExecutorService myExecutor;
+
+    private volatile long myLastScan;
+
+    private volatile AdmissionPolicy myAdmission;
+
+    private volatile String myVictim;
+
+    private int myCycles;
+
+    /**
+     * Creates a manager for the view cache in the supplied directory.
+     *
+     * @param aRoot The root directory of the view cache
+     * @param aHighWatermark The number of bytes at which eviction starts
+     * @param aLowWatermark The number of bytes eviction brings the cache down
+     *        to
+     */
+    public ViewCacheManager(File aRoot, long aHighWatermark,
+            long aLowWatermark) {
+        myRoot = aRoot;
+        myHighWatermark = aHighWatermark;
+        myLowWatermark = Math.min(aLowWatermark, aHighWatermark);
+    }
+
+    /**
+     * Starts the process-wide view cache manager if it's not already running.
+     *
+     * @param aRoot The root directory of the view cache
+     * @param aHighWatermark The number of bytes at which eviction starts
+     * @param aLowWatermark The number of bytes eviction brings the cache down
+     *        to
+     * @param aInterval The number of seconds between checks of the cache size
+     * @return The running view cache manager
+     */
+    public static synchronized ViewCacheManager start(File aRoot,
+            long aHighWatermark, long aLowWatermark, long aInterval) {
+        if (myManager == null) {
+            ViewCacheManager manager =
+                    new ViewCacheManager(aRoot, aHighWatermark, aLowWatermark);
+
+            manager.myExecutor =
+                    Executors.newSingleThreadScheduledExecutor(THREADS);
+            manager.myExecutor.scheduleWithFixedDelay(manager, 0, aInterval,
+                    TimeUnit.SECONDS);
+
+            if (LOGGER.isInfoEnabled()) {
+                LOGGER.info("Managing view cache {} [high: {}, low: {}]",
+                        new Object[] {
+                            aRoot, aHighWatermark, aLowWatermark
+                        });
+            }
+
+            myManager = manager;
+        }
+
+        return myManager;
+    }
+
+    /**
+     * Stops the process-wide view cache manager.
+     */
+    public static synchronized void stop() {
+        if (myManager != null) {
+            myManager.myExecutor.shutdownNow();
+            myManager = null;
+        }
+    }
+
+    /**
+     * Gets the process-wide view cache manager.
+     *
+     * @return The view cache manager or null if one isn't running
+     */
+    public static ViewCacheManager getInstance() {
+        return myManager;
+    }
+
+    /**
+     * Records that an image in the supplied Pairtree object was served.
+     *
+     * @param aObjectDir The Pairtree object directory of the served image
+     */
+    public void touch(File aObjectDir) {
+        CachedObject object = myObjects.get(aObjectDir.getPath());
+
+        if (object != null) {
+            long now = System.currentTimeMillis();
+
+            if (now - object.myLastAccess > ACCESS_GRANULARITY) {
+                AdmissionPolicy policy = myAdmission;
+
+                object.myLastAccess = now;
+
+                if (policy != null) {
+                    policy.record(object.myPath);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if the supplied file may be added to the view cache; else,
+     * false. Files of objects that are already in the cache are always let
+     * in; files of new objects have to get past the admission policy once the
+     * cache is past its low watermark.
+     *
+     * @param aFile A file that's about to be added
+     * @return True if the file should be added
+     */
+    public boolean admits(File aFile) {
+        AdmissionPolicy policy = myAdmission;
+        String path = aFile.getParentFile().getPath();
+        String victim = myVictim;
+
+        if (policy == null || myObjects.containsKey(path)) {
+            return true;
+        }
+
+        if (myCandidates.putIfAbsent(path, Boolean.TRUE) == null) {
+            policy.record(path);
+        }
+
+        if (victim == null || myBytes.get() <= myLowWatermark ||
+                policy.admit(path, victim)) {
+            return true;
+        }
+
+        myRejections.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Sets the policy that decides whether a new object may be added to the
+     * view cache once it's past its low watermark.
+     *
+     * @param aPolicy The admission policy or null to admit every object
+     */
+    public void setAdmissionPolicy(AdmissionPolicy aPolicy) {
+        myAdmission = aPolicy;
+    }
+
+    /**
+     * Records that a file was added to the view cache.
+     *
+     * @param aFile The file that was added
+     * @param aSize The number of bytes the file takes up
+     */
+    public void added(File aFile, long aSize) {
+        String path = aFile.getParentFile().getPath();
+        CachedObject object = myObjects.get(path);
+
+        if (object == null) {
+            CachedObject newObject = new CachedObject(path);
+
+            object = myObjects.putIfAbsent(path, newObject);
+
+            if (object == null) {
+                object = newObject;
+            }
+        }
+
+        object.myBytes.addAndGet(aSize);
+        object.myLastAccess = System.currentTimeMillis();
+        myBytes.addAndGet(aSize);
+    }
+
+    /**
+     * Gets the number of bytes the view cache takes up on disk.
+     *
+     * @return The number of bytes in the view cache
+     */
+    public long getByteSize() {
+        return myBytes.get();
+    }
+
+    /**
+     * Gets the number of Pairtree objects in the view cache.
+     *
+     * @return The number of objects in the view cache
+     */
+    public int getObjectCount() {
+        return myObjects.size();
+    }
+
+    /**
+     * Gets the size at which the manager starts evicting from the view cache.
+     *
+     * @return The view cache's high watermark in bytes
+     */
+    public long getHighWatermark() {
+        return myHighWatermark;
+    }
+
+    /**
+     * Gets the size the manager evicts the view cache down to.
+     *
+     * @return The view cache's low watermark in bytes
+     */
+    public long getLowWatermark() {
+        return myLowWatermark;
+    }
+
+    /**
+     * Gets the number of Pairtree objects that have been evicted.
+     *
+     * @return The number of evicted objects
+     */
+    public long getEvictionCount() {
+        return myEvictions.get();
+    }
+
+    /**
+     * Gets the number of bytes that have been evicted.
+     *
+     * @return The number of evicted bytes
+     */
+    public long getEvictedBytes() {
+        return myEvictedBytes.get();
+    }
+
+    /**
+     * Gets the number of files the admission policy kept out of the cache.
+     *
+     * @return The number of rejected files
+     */
+    public long getRejectionCount() {
+        return myRejections.get();
+    }
+
+    /**
+     * Gets the time the view cache was last scanned.
+     *
+     * @return The time of the last scan in milliseconds or zero if the cache
+     *         hasn't been scanned yet
+     */
+    public long getLastScan() {
+        return myLastScan;
+    }
+
+    /**
+     * Checks the size of the view cache and evicts from it if needed.
+     */
+    public void run() {
+        try {
+            if (myCycles++ % RESCAN_INTERVAL == 0) {
+                scan();
+            }
+
+            if (myBytes.get() > myHighWatermark) {
+                evict();
+            }
+
+            if (myAdmission != null) {
+                myCandidates.clear();
+                myVictim = findVictim();
+            }
+        } catch (RuntimeException details) {
+            // Don't let one bad run stop the scheduled ones that follow it
+            LOGGER.error("View cache manager failed: " + details.getMessage(),
+                    details);
+        }
+    }
+
+    /**
+     * Walks the view cache and records the size and last modified time of
+     * each Pairtree object in it. The results are merged into the objects that
+     * are being tracked, so files added while the scan runs aren't lost.
+     */
+    public void scan() {
+        Map<String, CachedObject> objects = new HashMap<String, CachedObject>();
+        Deque<File> dirs = new ArrayDeque<File>();
+        long started = System.currentTimeMillis();
+        long total = 0;
+
+        dirs.push(myRoot);
+
+        while (!dirs.isEmpty()) {
+            File dir = dirs.pop();
+            File[] files = dir.listFiles();
+            CachedObject object = null;
+
+            for (File file : files == null ? new File[0] : files) {
+                if (file.isDirectory()) {
+                    dirs.push(file);
+                } else if (!dir.equals(myRoot)) {
+                    // Files in the root are the Pairtree's own, not images
+                    if (object == null) {
+                        object = new CachedObject(file.getParent());
+                        object.myLastAccess = 0;
+                        objects.put(object.myPath, object);
+                    }
+
+                    object.myBytes.addAndGet(file.length());
+                    object.myLastAccess =
+                            Math.max(object.myLastAccess, file.lastModified());
+                    total += file.length();
+                }
+            }
+        }
+
+        // Merge into the live map, which files may have been added to since
+        for (CachedObject object : objects.values()) {
+            CachedObject known = myObjects.putIfAbsent(object.myPath, object);
+
+            if (known == null) {
+                myBytes.addAndGet(object.myBytes.get());
+            } else {
+                long bytes = object.myBytes.get();
+
+                myBytes.addAndGet(bytes - known.myBytes.getAndSet(bytes));
+
+                // Keep access times that are more recent than the files' times
+                if (object.myLastAccess > known.myLastAccess) {
+                    known.myLastAccess = object.myLastAccess;
+                }
+            }
+        }
+
+        // Forget objects that are gone, unless they were added during the scan
+        for (CachedObject known : myObjects.values()) {
+            if (!objects.containsKey(known.myPath) &&
+                    known.myLastAccess <= started &&
+                    myObjects.remove(known.myPath, known)) {
+                myBytes.addAndGet(-known.myBytes.get());
+            }
+        }
+
+        myLastScan = System.currentTimeMillis();
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Scanned {} bytes in {} view cache objects in {} ms",
+                    new Object[] {
+                        total, objects.size(), myLastScan - started
+                    });
+        }
+    }
+
+    /**
+     * Deletes the least recently used Pairtree objects from the view cache
+     * until it's under its low watermark.
+     */
+    public void evict() {
+        List<CachedObject> objects =
+                new ArrayList<CachedObject>(myObjects.values());
+
+        // Copy the access times so they can't change while we sort
+        for (CachedObject object : objects) {
+            object.mySortTime = object.myLastAccess;
+        }
+
+        Collections.sort(objects, new Comparator<CachedObject>() {
+
+            public int compare(CachedObject aFirst, CachedObject aSecond) {
+                return aFirst.mySortTime < aSecond.mySortTime ? -1
+                        : aFirst.mySortTime == aSecond.mySortTime ? 0 : 1;
+            }
+        });
+
+        for (CachedObject object : objects) {
+            if (myBytes.get() <= myLowWatermark) {
+                break;
+            }
+
+            File dir = new File(object.myPath);
+            File[] files = dir.listFiles();
+
+            myObjects.remove(object.myPath);
+
+            // Requests still reading the object's pack can finish with it
+            TilePack.evict(dir);
+
+            for (File file : files == null ? new File[0] : files) {
+                long length = file.length();
+
+                if (file.isFile()) {
+                    if (file.delete()) {
+                        myEvictedBytes.addAndGet(length);
+                    } else if (LOGGER.isWarnEnabled()) {
+                        LOGGER.warn("Failed to delete file: {}", file);
+                    }
+                }
+            }
+
+            // Leaves the directory alone if something was written to it
+            if (!dir.delete() && LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Didn't remove view cache directory: {}", dir);
+            }
+
+            myBytes.addAndGet(-object.myBytes.get());
+            myEvictions.incrementAndGet();
+        }
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("View cache is now {} bytes", myBytes.get());
+        }
+    }
+
+    /**
+     * Finds the object that would be evicted next, if the cache is past the
+     * point where new objects have to get past the admission policy.
+     */
+    private String findVictim() {
+        CachedObject victim = null;
+
+        if (myBytes.get() <= myLowWatermark) {
+            return null;
+        }
+
+        for (CachedObject object : myObjects.values()) {
+            if (victim == null || object.myLastAccess < victim.myLastAccess) {
+                victim = object;
+            }
+        }
+
+        return victim == null ? null : victim.myPath;
+    }
+
+    /**
+     * The size and last access time of a Pairtree object in the view cache.
+     */
+    private static final class CachedObject {
+
+        private final String myPath;
+
+        private final AtomicLong myBytes = new AtomicLong();
+
+        private volatile long myLastAccess = System.currentTimeMillis();
+
+        private long mySortTime;
+
+        private CachedObject(String aPath) {
+            myPath = aPath;
+        }
+    }
+}
@@ -168,6 +168,22 @@ public class OpenURLResponse {
         this.headerMap = headerMap;
     }
 
+    /**
+     * @param status
+     * @param contentType
+     * @param is
+     * @param sessionMap
+     * @param headerMap
+     */
+    public OpenURLResponse(int status, String contentType, InputStream is,
+            Map sessionMap, Map headerMap) {
+        this.status = status;
+        this.contentType = contentType;
+        this.is = is;
+        this.sessionMap = sessionMap;
+        this.headerMap = headerMap;
+    }
+
     /**
      * Constructs a proxy for an HTTP OutputStream response
      * 
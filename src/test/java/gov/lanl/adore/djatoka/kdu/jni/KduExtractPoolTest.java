@@ -0,0 +1,210 @@
+package gov.lanl.adore.djatoka.kdu.jni;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import gov.lanl.adore.djatoka.DjatokaDecodeParam;
+import gov.lanl.adore.djatoka.DjatokaException;
+import gov.lanl.adore.djatoka.IExtract;
+import gov.lanl.adore.djatoka.io.FormatIOException;
+import gov.lanl.adore.djatoka.io.IWriter;
+import gov.lanl.adore.djatoka.io.writer.JPGWriter;
+import gov.lanl.adore.djatoka.util.ImageRecord;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class KduExtractPoolTest {
+
+    private static final BufferedImage NATIVE = new BufferedImage(1, 1,
+            BufferedImage.TYPE_INT_RGB);
+
+    private static final BufferedImage FALLBACK = new BufferedImage(1, 1,
+            BufferedImage.TYPE_INT_RGB);
+
+    /**
+     * Tests that regions are decoded on the workers, no more at a time than
+     * there are workers.
+     */
+    @Test
+    public void testDecode() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final KduExtractPool pool = new KduExtractPool(2, new Fallback()) {
+
+            @Override
+            protected BufferedImage decode(String aFile,
+                    DjatokaDecodeParam aParams) {
+                int count = running.incrementAndGet();
+
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(maxRunning.get(), count));
+                }
+
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException details) {
+                    Thread.currentThread().interrupt();
+                }
+
+                running.decrementAndGet();
+                return NATIVE;
+            }
+        };
+        ExecutorService requests = Executors.newFixedThreadPool(8);
+        List<Future<BufferedImage>> results =
+                new ArrayList<Future<BufferedImage>>();
+
+        for (int index = 0; index < 32; index++) {
+            results.add(requests.submit(new Callable<BufferedImage>() {
+
+                public BufferedImage call() throws DjatokaException {
+                    return pool.process("a.jp2", new DjatokaDecodeParam());
+                }
+            }));
+        }
+
+        for (Future<BufferedImage> result : results) {
+            assertSame(NATIVE, result.get());
+        }
+
+        requests.shutdown();
+        pool.shutdown();
+
+        assertTrue(maxRunning.get() <= 2);
+        assertEquals(32, pool.getDecodeCount());
+        assertEquals(0, pool.getFallbackCount());
+    }
+
+    /**
+     * Tests that a region the native decoder fails on is extracted by the
+     * fallback.
+     */
+    @Test
+    public void testFallback() throws Exception {
+        KduExtractPool pool = new KduExtractPool(1, new Fallback()) {
+
+            @Override
+            protected BufferedImage decode(String aFile,
+                    DjatokaDecodeParam aParams) throws DjatokaException {
+                throw new DjatokaException("Region out of bounds");
+            }
+        };
+
+        assertSame(FALLBACK, pool.process("a.jp2", new DjatokaDecodeParam()));
+        assertEquals(0, pool.getDecodeCount());
+        assertEquals(1, pool.getFallbackCount());
+
+        pool.shutdown();
+    }
+
+    /**
+     * Tests that the native decoder isn't tried again once it can't be
+     * linked.
+     */
+    @Test
+    public void testLinkError() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        KduExtractPool pool = new KduExtractPool(1, new Fallback()) {
+
+            @Override
+            protected BufferedImage decode(String aFile,
+                    DjatokaDecodeParam aParams) {
+                attempts.incrementAndGet();
+                throw new UnsatisfiedLinkError("kdu_jni");
+            }
+        };
+
+        assertSame(FALLBACK, pool.process("a.jp2", new DjatokaDecodeParam()));
+        assertSame(FALLBACK, pool.process("b.jp2", new DjatokaDecodeParam()));
+        assertEquals(1, attempts.get());
+        assertEquals(2, pool.getFallbackCount());
+
+        pool.shutdown();
+    }
+
+    /**
+     * Tests that a region that's written as it's decoded is counted, that
+     * one that can't be extracted is left to be extracted whole, and that one
+     * that was only partly written is reported.
+     */
+    @Test
+    public void testWrite() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        KduExtractPool pool = new KduExtractPool(1, new Fallback()) {
+
+            @Override
+            protected boolean write(String aFile, DjatokaDecodeParam aParams,
+                    IWriter aWriter, OutputStream aOutStream)
+                    throws DjatokaException {
+                switch (attempts.incrementAndGet()) {
+                    case 1:
+                        return true;
+                    case 2:
+                        throw new DjatokaException("Region out of bounds");
+                    default:
+                        throw new FormatIOException("Unable to write");
+                }
+            }
+        };
+        IWriter writer = new JPGWriter();
+        OutputStream out = new ByteArrayOutputStream();
+
+        assertTrue(pool.extract("a.jp2", new DjatokaDecodeParam(), writer,
+                out));
+        assertFalse(pool.extract("a.jp2", new DjatokaDecodeParam(), writer,
+                out));
+
+        try {
+            pool.extract("a.jp2", new DjatokaDecodeParam(), writer, out);
+            fail("Partly written region wasn't reported");
+        } catch (FormatIOException details) {
+            assertEquals("Unable to write", details.getMessage());
+        }
+
+        assertEquals(1, pool.getDecodeCount());
+        assertEquals(1, pool.getStripCount());
+        assertEquals(0, pool.getFallbackCount());
+
+        pool.shutdown();
+    }
+
+    private static class Fallback implements IExtract {
+
+        public BufferedImage process(String aInput, DjatokaDecodeParam aParams) {
+            return FALLBACK;
+        }
+
+        public BufferedImage process(InputStream aInput,
+                DjatokaDecodeParam aParams) {
+            return FALLBACK;
+        }
+
+        public BufferedImage process(ImageRecord aInput,
+                DjatokaDecodeParam aParams) {
+            return FALLBACK;
+        }
+
+        public ImageRecord getMetadata(ImageRecord aRecord) {
+            return aRecord;
+        }
+
+        public String[] getXMLBox(ImageRecord aRecord) {
+            return new String[0];
+        }
+    }
+}
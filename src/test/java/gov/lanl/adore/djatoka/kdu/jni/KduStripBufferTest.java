@@ -0,0 +1,198 @@
+package gov.lanl.adore.djatoka.kdu.jni;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import gov.lanl.adore.djatoka.DjatokaException;
+import gov.lanl.adore.djatoka.io.IWriter;
+import gov.lanl.adore.djatoka.io.writer.JPGWriter;
+import gov.lanl.adore.djatoka.io.writer.PNGWriter;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class KduStripBufferTest {
+
+    private static final int WIDTH = 301;
+
+    private static final int HEIGHT = 203;
+
+    /**
+     * Tests that each strip is decoded once, in order, as its rows are read.
+     */
+    @Test
+    public void testRead() {
+        int[] tops = new int[] { 0, 64, 128, 192, HEIGHT };
+        Strips strips = new Strips(1, tops, -1);
+        Raster raster = createImage(strips, 1).getRaster();
+
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals(getSample(x, y, 0), raster.getSample(x, y, 0));
+            }
+        }
+
+        assertEquals(4, strips.getStripCount());
+        assertEquals(toList(0, 64, 128, 192), strips.myDecoded);
+    }
+
+    /**
+     * Tests that the strips a read skips over are still decoded, in order.
+     */
+    @Test
+    public void testSkip() {
+        Strips strips = new Strips(1, new int[] { 0, 50, 100, HEIGHT }, -1);
+        Raster raster = createImage(strips, 1).getRaster();
+
+        assertEquals(getSample(7, 150, 0), raster.getSample(7, 150, 0));
+        assertEquals(toList(0, 50, 100), strips.myDecoded);
+    }
+
+    /**
+     * Tests that rows above the current strip can't be read again.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testReadBack() {
+        Strips strips = new Strips(1, new int[] { 0, 100, HEIGHT }, -1);
+        Raster raster = createImage(strips, 1).getRaster();
+
+        raster.getSample(0, 150, 0);
+        raster.getSample(0, 50, 0);
+    }
+
+    /**
+     * Tests that a strip that can't be decoded stops the read and is kept.
+     */
+    @Test
+    public void testFailure() {
+        Strips strips = new Strips(1, new int[] { 0, 100, HEIGHT }, 100);
+        Raster raster = createImage(strips, 1).getRaster();
+
+        raster.getSample(0, 99, 0);
+
+        try {
+            raster.getSample(0, 100, 0);
+            fail("Read a strip that couldn't be decoded");
+        } catch (IllegalStateException details) {
+            assertNotNull(strips.getFailure());
+        }
+    }
+
+    /**
+     * Tests that the JPEG and PNG writers read strips to the same output as
+     * an image that's held whole.
+     */
+    @Test
+    public void testWrite() throws Exception {
+        int[] tops = new int[] { 0, 30, 60, 90, 120, 150, 180, HEIGHT };
+        IWriter[] writers = new IWriter[] { new JPGWriter(), new PNGWriter() };
+
+        for (IWriter writer : writers) {
+            for (int pixelSize = 1; pixelSize <= 3; pixelSize += 2) {
+                Strips strips = new Strips(pixelSize, tops, -1);
+                BufferedImage whole =
+                        new BufferedImage(WIDTH, HEIGHT,
+                                pixelSize == 1 ? BufferedImage.TYPE_BYTE_GRAY
+                                        : BufferedImage.TYPE_3BYTE_BGR);
+                ByteArrayOutputStream expected = new ByteArrayOutputStream();
+                ByteArrayOutputStream found = new ByteArrayOutputStream();
+
+                for (int y = 0; y < HEIGHT; y++) {
+                    for (int x = 0; x < WIDTH; x++) {
+                        for (int band = 0; band < pixelSize; band++) {
+                            whole.getRaster().setSample(x, y, band,
+                                    getSample(x, y, band));
+                        }
+                    }
+                }
+
+                writer.write(whole, expected);
+                writer.write(createImage(strips, pixelSize), found);
+
+                assertArrayEquals(expected.toByteArray(), found.toByteArray());
+                assertEquals(toList(0, 30, 60, 90, 120, 150, 180),
+                        strips.myDecoded);
+            }
+        }
+    }
+
+    private static int getSample(int aX, int aY, int aBand) {
+        return (aX * 3 + aY * 7 + aBand * 50) & 0xff;
+    }
+
+    private static List<Integer> toList(int... aValues) {
+        List<Integer> list = new ArrayList<Integer>();
+
+        for (int value : aValues) {
+            list.add(value);
+        }
+
+        return list;
+    }
+
+    private static BufferedImage createImage(DataBuffer aBuffer,
+            int aPixelSize) {
+        int[] offsets =
+                aPixelSize == 1 ? new int[] { 0 } : new int[] { 2, 1, 0 };
+        ColorSpace space =
+                ColorSpace.getInstance(aPixelSize == 1 ? ColorSpace.CS_GRAY
+                        : ColorSpace.CS_sRGB);
+
+        return new BufferedImage(new ComponentColorModel(space, false, false,
+                Transparency.OPAQUE, DataBuffer.TYPE_BYTE), Raster
+                .createWritableRaster(new PixelInterleavedSampleModel(
+                        DataBuffer.TYPE_BYTE, WIDTH, HEIGHT, aPixelSize, WIDTH *
+                                aPixelSize, offsets), aBuffer, null), false,
+                null);
+    }
+
+    /**
+     * Strips of a test pattern, in BGR order, one of which can fail.
+     */
+    private static class Strips extends KduStripBuffer {
+
+        private final List<Integer> myDecoded = new ArrayList<Integer>();
+
+        private final int myPixelSize;
+
+        private final int myFailure;
+
+        private Strips(int aPixelSize, int[] aTops, int aFailure) {
+            super(WIDTH * aPixelSize, aTops);
+            myPixelSize = aPixelSize;
+            myFailure = aFailure;
+        }
+
+        @Override
+        protected void decode(int aTop, int aRows, byte[] aStrip)
+                throws DjatokaException {
+            if (aTop == myFailure) {
+                throw new DjatokaException("Unable to decompress");
+            }
+
+            int index = 0;
+
+            myDecoded.add(aTop);
+
+            for (int y = aTop; y < aTop + aRows; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    for (int band = myPixelSize - 1; band >= 0; band--) {
+                        aStrip[index++] = (byte) getSample(x, y, band);
+                    }
+                }
+            }
+        }
+    }
+}
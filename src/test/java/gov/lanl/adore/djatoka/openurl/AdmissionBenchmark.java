@@ -0,0 +1,143 @@
+
+package gov.lanl.adore.djatoka.openurl;
+
+import info.freelibrary.djatoka.util.TinyLFU;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the tile cache's hit rate with and without the TinyLFU admission
+ * policy. It replays an access log if one is supplied (the path of each GET
+ * request is used as the tile's key) or, without one, a synthetic trace of
+ * Zipf-distributed tile requests that a crawler passes over in bursts. Run it
+ * with:
+ * <p/>
+ * <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=gov.lanl.adore.djatoka.openurl.AdmissionBenchmark
+ * [-Dexec.args=/path/to/access.log]</code>
+ */
+public class AdmissionBenchmark {
+
+    private static final int TILES = 100000;
+
+    private static final int REQUESTS = 1000000;
+
+    private static final double SKEW = 0.9;
+
+    /**
+     * Runs the admission policy benchmark.
+     *
+     * @param args An optional access log to replay
+     * @throws IOException If the access log can't be read
+     */
+    public static void main(String[] args) throws IOException {
+        List<String> trace =
+                args.length > 0 ? readLog(args[0]) : getSyntheticTrace();
+
+        System.out.println("requests: " + trace.size());
+        System.out.println("cache size\tLRU hit %\tTinyLFU hit %\tdelta");
+
+        for (int size = 1000; size <= 64000; size <<= 1) {
+            double lru = replay(trace, size, false);
+            double tinyLFU = replay(trace, size, true);
+
+            System.out.println(String.format("%d\t\t%.2f\t\t%.2f\t\t%+.2f",
+                    size, lru, tinyLFU, tinyLFU - lru));
+        }
+    }
+
+    private static double replay(List<String> aTrace, int aSize,
+            boolean aAdmission) {
+        TileCacheManager<String, String> cache =
+                new TileCacheManager<String, String>(Long.MAX_VALUE, aSize);
+        long hits = 0;
+
+        if (aAdmission) {
+            cache.setAdmissionPolicy(new TinyLFU(aSize));
+        }
+
+        for (String key : aTrace) {
+            if (cache.get(key) != null) {
+                hits++;
+            } else {
+                cache.offer(key, key, 1);
+            }
+        }
+
+        return hits * 100.0 / aTrace.size();
+    }
+
+    private static List<String> readLog(String aPath) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(aPath));
+        List<String> trace = new ArrayList<String>();
+
+        try {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                int start = line.indexOf("\"GET ");
+
+                if (start != -1) {
+                    int end = line.indexOf(' ', start + 5);
+                    trace.add(line.substring(start + 5, end == -1 ? line
+                            .length() : end));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return trace;
+    }
+
+    private static List<String> getSyntheticTrace() {
+        List<String> trace = new ArrayList<String>(REQUESTS);
+        double[] cumulative = new double[TILES];
+        Random random = new Random(42);
+        double total = 0;
+        int crawled = 0;
+
+        for (int index = 0; index < TILES; index++) {
+            total += 1 / Math.pow(index + 1, SKEW);
+            cumulative[index] = total;
+        }
+
+        while (trace.size() < REQUESTS) {
+            // One request in five comes from a crawler walking the long tail
+            if (random.nextInt(5) == 0) {
+                for (int index = 0; index < 50; index++) {
+                    trace.add("crawl" + crawled++);
+                }
+            } else {
+                for (int index = 0; index < 50; index++) {
+                    int tile = search(cumulative, random.nextDouble() * total);
+                    trace.add("tile" + tile);
+                }
+            }
+        }
+
+        return trace;
+    }
+
+    private static int search(double[] aCumulative, double aValue) {
+        int low = 0;
+        int high = aCumulative.length - 1;
+
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+
+            if (aCumulative[middle] < aValue) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+}
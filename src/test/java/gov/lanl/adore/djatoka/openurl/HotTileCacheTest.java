@@ -0,0 +1,66 @@
+package gov.lanl.adore.djatoka.openurl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HotTileCacheTest {
+
+    /**
+     * Tests that tiles spanning several blocks come back intact.
+     */
+    @Test
+    public void testRoundTrip() {
+        HotTileCache cache = new HotTileCache(1024 * 1024, 1024);
+        Random random = new Random(42);
+        byte[] tile = new byte[5000];
+
+        random.nextBytes(tile);
+
+        assertTrue(cache.put("tile", tile));
+        assertArrayEquals(tile, cache.get("tile"));
+        assertEquals(5000, cache.getByteSize());
+        assertEquals(1, cache.getHitCount());
+        assertNull(cache.get("missing"));
+        assertEquals(1, cache.getMissCount());
+    }
+
+    /**
+     * Tests that the cache stays within its memory budget.
+     */
+    @Test
+    public void testEvictsByBytes() {
+        HotTileCache cache = new HotTileCache(64 * 1024, 1024);
+
+        for (int index = 0; index < 1000; index++) {
+            assertTrue(cache.put("tile" + index, new byte[1000]));
+        }
+
+        assertTrue(cache.getByteSize() <= cache.getMaxByteSize());
+        assertTrue(cache.getEvictionCount() >= 1000 - 64);
+        assertEquals(cache.getByteSize(), cache.size() * 1000L);
+    }
+
+    /**
+     * Tests that replacing, removing and oversized tiles are handled.
+     */
+    @Test
+    public void testReplaceRemoveAndOversized() {
+        HotTileCache cache = new HotTileCache(16 * 4096);
+
+        assertTrue(cache.put("a", new byte[] { 1, 2, 3 }));
+        assertTrue(cache.put("a", new byte[] { 4, 5 }));
+        assertArrayEquals(new byte[] { 4, 5 }, cache.get("a"));
+        assertEquals(2, cache.getByteSize());
+        assertTrue(cache.remove("a"));
+        assertFalse(cache.containsKey("a"));
+        assertEquals(0, cache.getByteSize());
+        assertFalse(cache.put("big", new byte[8192]));
+    }
+}
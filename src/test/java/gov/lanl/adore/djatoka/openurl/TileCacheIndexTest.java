@@ -0,0 +1,115 @@
+package gov.lanl.adore.djatoka.openurl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TileCacheIndexTest {
+
+    private File myCacheDir;
+
+    @Before
+    public void setUp() throws IOException {
+        myCacheDir = File.createTempFile("tile-cache-index", "");
+
+        assertTrue(myCacheDir.delete());
+        assertTrue(myCacheDir.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = myCacheDir.listFiles();
+
+        for (File file : files == null ? new File[0] : files) {
+            file.delete();
+        }
+
+        myCacheDir.delete();
+    }
+
+    /**
+     * Tests that tiles put into an indexed cache are there after a restart.
+     */
+    @Test
+    public void testReload() throws IOException {
+        TileCacheManager<String, String> cache =
+                new TileCacheManager<String, String>(Long.MAX_VALUE, 0);
+        TileCacheIndex index = new TileCacheIndex(myCacheDir, cache);
+
+        assertEquals(0, index.load());
+
+        index.put("a.jpg", "/nonexistent/a.jpg", 10);
+        index.put("b.jpg", "/nonexistent/b.jpg", 20);
+        index.put("c.jpg", "/nonexistent/c.jpg", 30);
+        index.remove("b.jpg");
+        index.close();
+
+        // Simulate a partial line left behind by a crash
+        FileOutputStream out =
+                new FileOutputStream(new File(myCacheDir,
+                        TileCacheIndex.INDEX_FILE_NAME), true);
+        out.write("+\td.jpg\t/nonexi".getBytes("UTF-8"));
+        out.close();
+
+        cache = new TileCacheManager<String, String>(Long.MAX_VALUE, 0);
+        index = new TileCacheIndex(myCacheDir, cache);
+
+        assertEquals(2, index.load());
+        assertEquals("/nonexistent/a.jpg", cache.get("a.jpg"));
+        assertEquals("/nonexistent/c.jpg", cache.get("c.jpg"));
+        assertFalse(cache.containsKey("b.jpg"));
+        assertFalse(cache.containsKey("d.jpg"));
+        assertEquals(40, cache.getByteSize());
+
+        index.close();
+    }
+
+    /**
+     * Tests that tiles evicted from an indexed cache aren't brought back by a
+     * restart.
+     */
+    @Test
+    public void testEviction() throws IOException {
+        TileCacheManager<String, String> cache =
+                new TileCacheManager<String, String>(Long.MAX_VALUE, 1);
+        TileCacheIndex index = new TileCacheIndex(myCacheDir, cache);
+        int count;
+
+        assertEquals(0, index.load());
+
+        for (int tile = 0; tile < 1000; tile++) {
+            String key = tile + ".jpg";
+            String file = "/nonexistent/" + key;
+
+            cache.put(key, file, 10);
+            index.put(key, file, 10);
+        }
+
+        count = cache.size();
+        index.close();
+
+        assertTrue(cache.getEvictionCount() > 0);
+
+        // An unbounded cache would keep any tile the index didn't forget
+        TileCacheManager<String, String> reloaded =
+                new TileCacheManager<String, String>(Long.MAX_VALUE, 0);
+        index = new TileCacheIndex(myCacheDir, reloaded);
+
+        assertEquals(count, index.load());
+
+        for (int tile = 0; tile < 1000; tile++) {
+            String key = tile + ".jpg";
+            assertEquals(cache.containsKey(key), reloaded.containsKey(key));
+        }
+
+        index.close();
+    }
+}
@@ -0,0 +1,142 @@
+package gov.lanl.adore.djatoka.openurl;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A contention benchmark for the tile cache. It runs the same mix of tile
+ * lookups and insertions against the striped {@link TileCacheManager} and
+ * against a single synchronized, access-ordered map (the cache's previous
+ * design) with an increasing number of threads. Run it with:
+ * <p/>
+ * <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=gov.lanl.adore.djatoka.openurl.TileCacheManagerBenchmark</code>
+ */
+public class TileCacheManagerBenchmark {
+
+    private static final int KEYS = 200000;
+
+    private static final int MAX_ENTRIES = 50000;
+
+    private static final long RUN_MILLIS = 2000;
+
+    /**
+     * Runs the tile cache contention benchmark.
+     *
+     * @param args Optional maximum number of threads
+     * @throws InterruptedException If the benchmark is interrupted
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : cores;
+
+        System.out.println("cores: " + cores);
+        System.out.println("threads\tsynchronized ops/s\tstriped ops/s");
+
+        for (int threads = 1; threads <= maxThreads; threads <<= 1) {
+            final Map<String, String> map =
+                    Collections.synchronizedMap(new LinkedHashMap<String, String>(
+                            MAX_ENTRIES, 0.75F, true) {
+
+                        private static final long serialVersionUID = 1L;
+
+                        @Override
+                        protected boolean removeEldestEntry(
+                                Map.Entry<String, String> aEldest) {
+                            return size() > MAX_ENTRIES;
+                        }
+                    });
+            final TileCacheManager<String, String> cache =
+                    new TileCacheManager<String, String>(MAX_ENTRIES * 1024L,
+                            0);
+
+            long locked = run(threads, new Op() {
+
+                public void get(String aKey) {
+                    map.get(aKey);
+                }
+
+                public void put(String aKey, String aValue) {
+                    map.put(aKey, aValue);
+                }
+            });
+
+            long striped = run(threads, new Op() {
+
+                public void get(String aKey) {
+                    cache.get(aKey);
+                }
+
+                public void put(String aKey, String aValue) {
+                    cache.put(aKey, aValue, 1024);
+                }
+            });
+
+            System.out.println(threads + "\t" + locked + "\t" + striped);
+        }
+    }
+
+    private static long run(int aThreadCount, final Op aOp)
+            throws InterruptedException {
+        final String[] keys = new String[KEYS];
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(aThreadCount);
+        final AtomicLong ops = new AtomicLong();
+        final long end[] = new long[1];
+
+        for (int index = 0; index < KEYS; index++) {
+            keys[index] = "tile-" + index;
+        }
+
+        for (int index = 0; index < aThreadCount; index++) {
+            final Random random = new Random(index);
+
+            new Thread(new Runnable() {
+
+                public void run() {
+                    long count = 0;
+
+                    try {
+                        start.await();
+                    } catch (InterruptedException details) {
+                        return;
+                    }
+
+                    while (System.currentTimeMillis() < end[0]) {
+                        // Skewed towards a hot set, like viewers on top tiles
+                        int next = random.nextInt(KEYS);
+                        String key = keys[next % (next % 4 == 0 ? KEYS : 5000)];
+
+                        aOp.get(key);
+
+                        if (next % 10 == 0) {
+                            aOp.put(key, "/nonexistent/" + key);
+                        }
+
+                        count++;
+                    }
+
+                    ops.addAndGet(count);
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        end[0] = System.currentTimeMillis() + RUN_MILLIS;
+        start.countDown();
+        done.await();
+
+        return ops.get() * 1000 / RUN_MILLIS;
+    }
+
+    private interface Op {
+
+        void get(String aKey);
+
+        void put(String aKey, String aValue);
+    }
+}
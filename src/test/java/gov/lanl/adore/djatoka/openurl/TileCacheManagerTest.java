@@ -0,0 +1,135 @@
+package gov.lanl.adore.djatoka.openurl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import info.freelibrary.djatoka.util.TinyLFU;
+
+import org.junit.Test;
+
+public class TileCacheManagerTest {
+
+    /**
+     * Tests that the cache is bounded by the bytes its tiles take up.
+     */
+    @Test
+    public void testEvictsByBytes() {
+        TileCacheManager<String, String> cache =
+                new TileCacheManager<String, String>(64 * 1024, 0);
+
+        for (int index = 0; index < 1000; index++) {
+            cache.put("tile" + index, "/nonexistent/tile" + index, 1024);
+        }
+
+        assertTrue(cache.getByteSize() <= 64 * 1024);
+        assertTrue(cache.getEvictionCount() >= 1000 - 64);
+        assertEquals(cache.getByteSize(), cache.size() * 1024L);
+    }
+
+    /**
+     * Tests that the cache is still bounded by the number of entries when one
+     * is supplied.
+     */
+    @Test
+    public void testEvictsByCount() {
+        TileCacheManager<String, String> cache =
+                new TileCacheManager<String, String>(100);
+
+        for (int index = 0; index < 1000; index++) {
+            cache.put("tile" + index, "/nonexistent/tile" + index, 1);
+        }
+
+        assertTrue(cache.size() <= 100);
+    }
+
+    /**
+     * Tests that replacing and removing entries keeps the byte count right.
+     */
+    @Test
+    public void testReplaceAndRemove() {
+        TileCacheManager<String, String> cache =
+                new TileCacheManager<String, String>(Long.MAX_VALUE, 0);
+
+        assertNull(cache.put("a", "/nonexistent/a", 10));
+        assertEquals("/nonexistent/a", cache.put("a", "/nonexistent/b", 20));
+        assertEquals(20, cache.getByteSize());
+        assertEquals("/nonexistent/b", cache.release("a"));
+        assertEquals(0, cache.getByteSize());
+        assertFalse(cache.containsKey("a"));
+    }
+
+    /**
+     * Tests that evicted tiles are deleted from the file system.
+     *
+     * @throws IOException If the test tiles can't be written
+     * @throws InterruptedException If the test is interrupted
+     */
+    @Test
+    public void testEvictedFileIsDeleted() throws IOException,
+            InterruptedException {
+        TileCacheManager<String, String> cache =
+                new TileCacheManager<String, String>(Long.MAX_VALUE, 0);
+        File tile = File.createTempFile("tile-", ".jpg");
+        FileOutputStream outStream = new FileOutputStream(tile);
+
+        outStream.write(new byte[128]);
+        outStream.close();
+
+        cache.put("tile", tile.getAbsolutePath());
+        assertEquals(128, cache.getByteSize());
+        cache.remove("tile");
+
+        for (int index = 0; index < 50 && tile.exists(); index++) {
+            Thread.sleep(20);
+        }
+
+        assertFalse(tile.exists());
+    }
+
+    /**
+     * Tests that, with an admission policy, tiles that are requested once
+     * don't push out tiles that are requested again and again.
+     */
+    @Test
+    public void testAdmissionPolicy() {
+        TileCacheManager<String, String> cache =
+                new TileCacheManager<String, String>(Long.MAX_VALUE, 16 * 64);
+        int hot = 0;
+
+        cache.setAdmissionPolicy(new TinyLFU(1024));
+
+        for (int round = 0; round < 5; round++) {
+            for (int index = 0; index < 512; index++) {
+                String key = "hot" + index;
+
+                if (cache.get(key) == null) {
+                    cache.offer(key, "/nonexistent/" + key, 1);
+                }
+            }
+        }
+
+        // A crawler passing over many tiles it will never ask for again
+        for (int index = 0; index < 10000; index++) {
+            String key = "cold" + index;
+
+            if (cache.get(key) == null) {
+                cache.offer(key, "/nonexistent/" + key, 1);
+            }
+        }
+
+        for (int index = 0; index < 512; index++) {
+            if (cache.peek("hot" + index) != null) {
+                hot++;
+            }
+        }
+
+        assertTrue(hot > 400);
+        assertTrue(cache.getRejectionCount() > 0);
+    }
+}
@@ -0,0 +1,138 @@
+
+package gov.lanl.adore.djatoka.openurl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import gov.lanl.adore.djatoka.util.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TileCacheWriterTest {
+
+    private File myCacheDir;
+
+    @Before
+    public void setUp() throws IOException {
+        myCacheDir = File.createTempFile("tile-cache-writer", "");
+
+        assertTrue(myCacheDir.delete());
+        assertTrue(myCacheDir.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = myCacheDir.listFiles();
+
+        for (File file : files == null ? new File[0] : files) {
+            file.delete();
+        }
+
+        myCacheDir.delete();
+    }
+
+    /**
+     * Tests that a queued tile ends up in the tile cache and its index.
+     */
+    @Test
+    public void testWrite() throws Exception {
+        TileCacheManager<String, String> cache =
+                new TileCacheManager<String, String>(Long.MAX_VALUE, 0);
+        TileCacheIndex index = new TileCacheIndex(myCacheDir, cache);
+        TileCacheWriter writer =
+                new TileCacheWriter(myCacheDir, cache, index, 16);
+        byte[] tile = new byte[] {
+            1, 2, 3, 4
+        };
+        String file;
+
+        index.load();
+
+        assertTrue(writer.write("a.jpg", "jpg", tile));
+        assertTrue(writer.close(10000));
+
+        file = cache.get("a.jpg");
+
+        assertNotNull(file);
+        assertTrue(file.endsWith(".jpg"));
+        assertArrayEquals(tile, IOUtils.getBytesFromFile(new File(file)));
+        assertNull(writer.getPending("a.jpg"));
+        assertEquals(1, writer.getWriteCount());
+        assertEquals(0, writer.getSkipCount());
+
+        index.close();
+    }
+
+    /**
+     * Tests that a tile that's already cached isn't written again.
+     */
+    @Test
+    public void testAlreadyCached() throws Exception {
+        TileCacheManager<String, String> cache =
+                new TileCacheManager<String, String>(Long.MAX_VALUE, 0);
+        TileCacheWriter writer =
+                new TileCacheWriter(myCacheDir, cache, null, 16);
+
+        cache.put("a.jpg", "/nonexistent/a.jpg", 4);
+
+        assertTrue(writer.write("a.jpg", "jpg", new byte[4]));
+        assertTrue(writer.close(10000));
+
+        assertEquals("/nonexistent/a.jpg", cache.get("a.jpg"));
+        assertEquals(0, writer.getWriteCount());
+        assertEquals(0, myCacheDir.listFiles().length);
+    }
+
+    /**
+     * Tests that temp files left by an earlier run are deleted.
+     */
+    @Test
+    public void testTempFiles() throws Exception {
+        TileCacheManager<String, String> cache =
+                new TileCacheManager<String, String>(Long.MAX_VALUE, 0);
+        File tmpFile = new File(myCacheDir, "cache123.jpg.tmp");
+        File otherFile = new File(myCacheDir, "other.tmp");
+        TileCacheWriter writer;
+
+        assertTrue(tmpFile.createNewFile());
+        assertTrue(otherFile.createNewFile());
+
+        writer = new TileCacheWriter(myCacheDir, cache, null, 16);
+
+        assertTrue(writer.close(10000));
+        assertFalse(tmpFile.exists());
+        assertTrue(otherFile.exists());
+    }
+
+    /**
+     * Tests that a full queue skips caching instead of blocking.
+     */
+    @Test
+    public void testQueueFull() throws Exception {
+        TileCacheManager<String, String> cache =
+                new TileCacheManager<String, String>(Long.MAX_VALUE, 0);
+        TileCacheWriter writer =
+                new TileCacheWriter(myCacheDir, cache, null, 1);
+        int queued = 0;
+
+        for (int index = 0; index < 1000; index++) {
+            if (writer.write("tile" + index + ".jpg", "jpg", new byte[1024])) {
+                queued++;
+            }
+        }
+
+        assertTrue(writer.close(10000));
+        assertEquals(1000 - queued, writer.getSkipCount());
+        assertEquals(queued, writer.getWriteCount());
+        assertEquals(queued, cache.size());
+    }
+}
@@ -0,0 +1,84 @@
+package gov.lanl.adore.djatoka.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ImageProcessingUtilsTest {
+
+    private static final int WIDTH = 5;
+
+    private static final int HEIGHT = 3;
+
+    /**
+     * Tests that rotated images keep their type and samples.
+     */
+    @Test
+    public void testRotate() {
+        int[] types =
+                new int[] { BufferedImage.TYPE_BYTE_GRAY,
+                    BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_INT_RGB };
+
+        for (int type : types) {
+            BufferedImage image = createImage(type);
+            Raster source = image.getRaster();
+            Raster quarter =
+                    ImageProcessingUtils.rotate(image, 90).getRaster();
+            Raster half =
+                    ImageProcessingUtils.rotate(image, 180).getRaster();
+            BufferedImage threeQuarter =
+                    ImageProcessingUtils.rotate(image, 270);
+
+            assertEquals(type, threeQuarter.getType());
+            assertEquals(HEIGHT, threeQuarter.getWidth());
+            assertEquals(WIDTH, threeQuarter.getHeight());
+
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    for (int b = 0; b < source.getNumBands(); b++) {
+                        int sample = source.getSample(x, y, b);
+
+                        assertEquals(sample, quarter.getSample(HEIGHT - y - 1,
+                                x, b));
+                        assertEquals(sample, half.getSample(WIDTH - x - 1,
+                                HEIGHT - y - 1, b));
+                        assertEquals(sample, threeQuarter.getRaster()
+                                .getSample(y, WIDTH - x - 1, b));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests that a greyscale image stays greyscale when it's scaled.
+     */
+    @Test
+    public void testScaleGrey() {
+        BufferedImage image =
+                ImageProcessingUtils.scale(
+                        createImage(BufferedImage.TYPE_BYTE_GRAY), 0.5);
+
+        assertEquals(BufferedImage.TYPE_BYTE_GRAY, image.getType());
+        assertEquals(1, image.getRaster().getNumBands());
+    }
+
+    private BufferedImage createImage(int aType) {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, aType);
+        Random random = new Random(aType);
+
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                for (int b = 0; b < image.getRaster().getNumBands(); b++) {
+                    image.getRaster().setSample(x, y, b, random.nextInt(256));
+                }
+            }
+        }
+
+        return image;
+    }
+}
@@ -0,0 +1,109 @@
+
+package gov.lanl.adore.djatoka.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ImageRecordCacheTest {
+
+    private File myFile;
+
+    @Before
+    public void setUp() throws IOException {
+        myFile = File.createTempFile("record-", ".jp2");
+        write(myFile, 10);
+        ImageRecordCache.clear();
+    }
+
+    @After
+    public void tearDown() {
+        ImageRecordCache.setMaxSize(ImageRecordCache.DEFAULT_MAX_SIZE);
+        ImageRecordCache.clear();
+        myFile.delete();
+    }
+
+    /**
+     * Tests that cached metadata is copied into a record.
+     */
+    @Test
+    public void testCopyTo() {
+        ImageRecord record = new ImageRecord(myFile.getAbsolutePath());
+
+        assertFalse(ImageRecordCache.copyTo(myFile, myFile.lastModified(),
+                myFile.length(), record));
+
+        ImageRecordCache.put(myFile, myFile.lastModified(), myFile.length(),
+                getRecord(640, 480));
+        assertTrue(ImageRecordCache.copyTo(myFile, myFile.lastModified(),
+                myFile.length(), record));
+        assertEquals(640, record.getWidth());
+        assertEquals(480, record.getHeight());
+        assertEquals(5, record.getDWTLevels());
+        assertEquals(1, ImageRecordCache.size());
+    }
+
+    /**
+     * Tests that a changed file's metadata isn't used.
+     */
+    @Test
+    public void testChangedFile() throws IOException {
+        ImageRecord record = new ImageRecord(myFile.getAbsolutePath());
+
+        ImageRecordCache.put(myFile, myFile.lastModified(), myFile.length(),
+                getRecord(640, 480));
+        write(myFile, 20);
+
+        assertFalse(ImageRecordCache.copyTo(myFile, myFile.lastModified(),
+                myFile.length(), record));
+        assertEquals(0, ImageRecordCache.size());
+    }
+
+    /**
+     * Tests that the least recently used metadata is dropped once the cache
+     * is full.
+     */
+    @Test
+    public void testMaxSize() {
+        File other = new File(myFile.getParentFile(), "other.jp2");
+        ImageRecord record = new ImageRecord();
+
+        ImageRecordCache.put(myFile, 1, 10, getRecord(640, 480));
+        ImageRecordCache.put(other, 1, 10, getRecord(320, 240));
+        ImageRecordCache.setMaxSize(1);
+
+        assertEquals(1, ImageRecordCache.size());
+        assertFalse(ImageRecordCache.copyTo(myFile, 1, 10, record));
+        assertTrue(ImageRecordCache.copyTo(other, 1, 10, record));
+        assertEquals(320, record.getWidth());
+    }
+
+    private static ImageRecord getRecord(int aWidth, int aHeight) {
+        ImageRecord record = new ImageRecord();
+
+        record.setWidth(aWidth);
+        record.setHeight(aHeight);
+        record.setDWTLevels(5);
+        record.setLevels(5);
+
+        return record;
+    }
+
+    private static void write(File aFile, int aLength) throws IOException {
+        FileOutputStream out = new FileOutputStream(aFile);
+
+        try {
+            out.write(new byte[aLength]);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+
+package info.freelibrary.djatoka.io;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * A throughput benchmark for reading the PPM and PGM images kdu_expand writes.
+ * It reads the same in-memory image with the previous parser, which read a
+ * byte at a time and set each pixel through the image's colour model, and
+ * with {@link PNMImage}, which reads rows in bulk straight into the raster.
+ * Run it with:
+ * <p/>
+ * <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=info.freelibrary.djatoka.io.PNMImageBenchmark</code>
+ */
+public class PNMImageBenchmark {
+
+    private static final int SIZE = 1024;
+
+    private static final long RUN_MILLIS = 3000;
+
+    /**
+     * Runs the PNM parsing benchmark.
+     *
+     * @param args Optional number of rounds to run
+     * @throws Exception If an image can't be read
+     */
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        byte[] ppm = createImage('6', 3);
+        byte[] pgm = createImage('5', 1);
+
+        System.out.println("image: " + SIZE + "x" + SIZE);
+        System.out.println("round\tPPM setRGB images/s\tPPM bulk images/s\t" +
+                "PGM setRGB images/s\tPGM bulk images/s");
+
+        for (int round = 1; round <= rounds; round++) {
+            System.out.println(round + "\t" + run(ppm, true) + "\t" +
+                    run(ppm, false) + "\t" + run(pgm, true) + "\t" +
+                    run(pgm, false));
+        }
+    }
+
+    private static String run(byte[] aImage, boolean aLegacy)
+            throws Exception {
+        long end = System.currentTimeMillis() + RUN_MILLIS;
+        long count = 0;
+
+        while (System.currentTimeMillis() < end) {
+            InputStream inStream = new ByteArrayInputStream(aImage);
+
+            if (aLegacy) {
+                readLegacy(inStream);
+            } else {
+                new PNMImage(inStream).getBufferedImage();
+            }
+
+            count++;
+        }
+
+        return String.format("%.1f", count * 1000.0 / RUN_MILLIS);
+    }
+
+    private static byte[] createImage(char aType, int aSamples)
+            throws IOException {
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        byte[] samples = new byte[SIZE * SIZE * aSamples];
+
+        new Random(SIZE).nextBytes(samples);
+        outStream.write(("P" + aType + "\n" + SIZE + " " + SIZE + "\n255\n")
+                .getBytes("US-ASCII"));
+        outStream.write(samples);
+
+        return outStream.toByteArray();
+    }
+
+    /**
+     * The 8-bit PPM and PGM parsing PNMImage used to do.
+     */
+    private static BufferedImage readLegacy(InputStream aInputStream)
+            throws IOException {
+        DataInputStream stream = new DataInputStream(aInputStream);
+        boolean isGreyscale;
+
+        stream.read();
+        isGreyscale = stream.read() == '5';
+
+        int width = readNumber(stream);
+        int height = readNumber(stream);
+
+        readNumber(stream);
+
+        BufferedImage image =
+                new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r, g, b;
+
+                if (isGreyscale) {
+                    r = g = b = stream.read();
+                } else {
+                    r = stream.read();
+                    g = stream.read();
+                    b = stream.read();
+                }
+
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+
+        return image;
+    }
+
+    private static int readNumber(InputStream aStream) throws IOException {
+        int number = 0;
+        int c = aStream.read();
+
+        while (Character.isWhitespace((char) c)) {
+            c = aStream.read();
+        }
+
+        while (c >= '0' && c <= '9') {
+            number = number * 10 + (c - '0');
+            c = aStream.read();
+        }
+
+        return number;
+    }
+}
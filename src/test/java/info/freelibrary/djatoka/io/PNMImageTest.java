@@ -0,0 +1,114 @@
+
+package info.freelibrary.djatoka.io;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PNMImageTest {
+
+    /**
+     * Tests that a colour image written as a PPM is read back unchanged.
+     */
+    @Test
+    public void testColour() throws Exception {
+        BufferedImage image =
+                new BufferedImage(7, 5, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(7);
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, random.nextInt(0xFFFFFF));
+            }
+        }
+
+        PNMImage.write(image, outStream);
+
+        BufferedImage read =
+                new PNMImage(new ByteArrayInputStream(outStream.toByteArray()))
+                        .getBufferedImage();
+
+        assertEquals(BufferedImage.TYPE_3BYTE_BGR, read.getType());
+        assertEquals(image.getWidth(), read.getWidth());
+        assertEquals(image.getHeight(), read.getHeight());
+
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                assertEquals(image.getRGB(x, y), read.getRGB(x, y));
+            }
+        }
+    }
+
+    /**
+     * Tests that a PGM is read as a greyscale image.
+     */
+    @Test
+    public void testGreyscale() throws Exception {
+        BufferedImage image = read("P5\n# comment\n3 1\n255\n", 0, 128, 255);
+
+        assertEquals(BufferedImage.TYPE_BYTE_GRAY, image.getType());
+        assertEquals(0, image.getRaster().getSample(0, 0, 0));
+        assertEquals(128, image.getRaster().getSample(1, 0, 0));
+        assertEquals(255, image.getRaster().getSample(2, 0, 0));
+    }
+
+    /**
+     * Tests that a bitmap's set bits are read as black and that its rows are
+     * padded to a whole byte.
+     */
+    @Test
+    public void testBitmap() throws Exception {
+        BufferedImage image = read("P4\n9 2\n", 0x80, 0x80, 0x7F, 0x00);
+
+        assertEquals(BufferedImage.TYPE_BYTE_GRAY, image.getType());
+        assertEquals(0, image.getRaster().getSample(0, 0, 0));
+        assertEquals(255, image.getRaster().getSample(1, 0, 0));
+        assertEquals(0, image.getRaster().getSample(8, 0, 0));
+        assertEquals(255, image.getRaster().getSample(0, 1, 0));
+        assertEquals(0, image.getRaster().getSample(1, 1, 0));
+    }
+
+    /**
+     * Tests that 16-bit samples, and samples with a maximum value other than
+     * 255, are scaled to 8 bits.
+     */
+    @Test
+    public void testScaled() throws Exception {
+        BufferedImage wide = read("P5\n2 1\n65535\n", 0xFF, 0xFF, 0x80, 0x00);
+        BufferedImage narrow = read("P5\n2 1\n15\n", 15, 7);
+
+        assertEquals(255, wide.getRaster().getSample(0, 0, 0));
+        assertEquals(128, wide.getRaster().getSample(1, 0, 0));
+        assertEquals(255, narrow.getRaster().getSample(0, 0, 0));
+        assertEquals(119, narrow.getRaster().getSample(1, 0, 0));
+    }
+
+    /**
+     * Tests that a truncated image isn't accepted.
+     */
+    @Test(expected = IOException.class)
+    public void testTruncated() throws Exception {
+        read("P6\n2 2\n255\n", 1, 2, 3);
+    }
+
+    private BufferedImage read(String aHeader, int... aBytes)
+            throws Exception {
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+
+        outStream.write(aHeader.getBytes("US-ASCII"));
+
+        for (int value : aBytes) {
+            outStream.write(value);
+        }
+
+        return new PNMImage(new ByteArrayInputStream(outStream.toByteArray()))
+                .getBufferedImage();
+    }
+}
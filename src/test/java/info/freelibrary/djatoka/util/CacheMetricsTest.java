@@ -0,0 +1,84 @@
+
+package info.freelibrary.djatoka.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class CacheMetricsTest {
+
+    /**
+     * Tests that the hit ratio is calculated from hits and misses.
+     */
+    @Test
+    public void testHitRatio() {
+        CacheMetrics metrics = new CacheMetrics("test");
+
+        assertEquals(0, metrics.getHitRatio(), 0);
+
+        metrics.recordHit();
+        metrics.recordHit();
+        metrics.recordHit();
+        metrics.recordMiss();
+
+        assertEquals(0.75, metrics.getHitRatio(), 0);
+    }
+
+    /**
+     * Tests that load times are counted in the histogram's buckets.
+     */
+    @Test
+    public void testLoadHistogram() {
+        CacheMetrics metrics = new CacheMetrics("test");
+        long[] histogram = new long[CacheMetrics.getBucketLimits().length + 1];
+
+        for (int index = 0; index < 98; index++) {
+            metrics.recordLoad(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+
+        metrics.recordLoad(TimeUnit.MILLISECONDS.toNanos(150));
+        metrics.recordLoad(TimeUnit.SECONDS.toNanos(60));
+
+        histogram[0] = 98;
+        histogram[7] = 1;
+        histogram[histogram.length - 1] = 1;
+
+        assertArrayEquals(histogram, metrics.getLoadHistogram());
+        assertEquals(100, metrics.getLoadCount());
+        assertEquals(1, metrics.getP50LoadMillis());
+        assertEquals(1, metrics.getP95LoadMillis());
+        assertEquals(200, metrics.getP99LoadMillis());
+        assertEquals(60000, metrics.getMaxLoadMillis());
+    }
+
+    /**
+     * Tests that registered metrics are published through JMX.
+     */
+    @Test
+    public void testRegister() throws Exception {
+        CacheMetrics metrics = CacheMetrics.register(new CacheMetrics("test"));
+        ObjectName name =
+                new ObjectName("info.freelibrary.djatoka:type=Cache,name=test");
+
+        try {
+            metrics.recordHit();
+
+            assertTrue(CacheMetrics.getAll().contains(metrics));
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer()
+                    .getAttribute(name, "HitCount"));
+        } finally {
+            CacheMetrics.unregister("test");
+        }
+
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(
+                name));
+    }
+}
@@ -0,0 +1,197 @@
+
+package info.freelibrary.djatoka.util;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+import javax.servlet.ServletOutputStream;
+
+import info.freelibrary.util.IOUtils;
+
+/**
+ * A throughput benchmark for serving cached 256x256 tiles. It sends the same
+ * tile file over a loopback socket with the previous stream copy that the
+ * view layer used, with {@link ChannelUtils#sendFile(File, OutputStream)}
+ * through a <code>ServletOutputStream</code> that can't send channels itself
+ * (the fallback taken outside of Jetty), and with
+ * <code>FileChannel.transferTo</code> straight to a socket channel (the path
+ * the container's own file-send support takes). Run it with:
+ * <p/>
+ * <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=info.freelibrary.djatoka.util.ChannelUtilsBenchmark</code>
+ */
+public class ChannelUtilsBenchmark {
+
+    private static final int TILE_SIZE = 256;
+
+    private static final long RUN_MILLIS = 3000;
+
+    /**
+     * Runs the tile serving benchmark.
+     *
+     * @param args Optional number of rounds to run
+     * @throws IOException If the tile can't be written or sent
+     * @throws InterruptedException If the benchmark is interrupted
+     */
+    public static void main(String[] args) throws IOException,
+            InterruptedException {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        File tile = createTile();
+        ServerSocketChannel server = ServerSocketChannel.open();
+
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        SocketChannel client = SocketChannel.open(server.getLocalAddress());
+        Thread drain = drain(server.accept());
+
+        System.out.println("tile: " + tile.length() + " bytes");
+        System.out.println("round\tstream copy tiles/s\tsendFile tiles/s\t" +
+                "transferTo tiles/s");
+
+        try {
+            for (int round = 1; round <= rounds; round++) {
+                long copied = run(tile, client, Path.STREAM_COPY);
+                long sent = run(tile, client, Path.SEND_FILE);
+                long transferred = run(tile, client, Path.TRANSFER_TO);
+
+                System.out.println(round + "\t" + copied + " (" +
+                        mb(copied, tile) + " MB/s)\t" + sent + " (" +
+                        mb(sent, tile) + " MB/s)\t" + transferred + " (" +
+                        mb(transferred, tile) + " MB/s)");
+            }
+        } finally {
+            client.close();
+            drain.join();
+            server.close();
+            tile.delete();
+        }
+    }
+
+    private static long run(File aTile, SocketChannel aClient, Path aPath)
+            throws IOException {
+        OutputStream outStream = aClient.socket().getOutputStream();
+        OutputStream servletStream = new SocketServletOutputStream(outStream);
+        long end = System.currentTimeMillis() + RUN_MILLIS;
+        long count = 0;
+
+        while (System.currentTimeMillis() < end) {
+            switch (aPath) {
+                case STREAM_COPY:
+                    IOUtils.copyStream(aTile, outStream);
+                    break;
+                case SEND_FILE:
+                    ChannelUtils.sendFile(aTile, servletStream);
+                    break;
+                default:
+                    transferTo(aTile, aClient);
+                    break;
+            }
+
+            count++;
+        }
+
+        return count * 1000 / RUN_MILLIS;
+    }
+
+    private static void transferTo(File aTile, SocketChannel aClient)
+            throws IOException {
+        FileInputStream inStream = new FileInputStream(aTile);
+
+        try {
+            FileChannel channel = inStream.getChannel();
+            long size = channel.size();
+            long position = 0;
+
+            while (position < size) {
+                position += channel.transferTo(position, size - position,
+                        aClient);
+            }
+        } finally {
+            inStream.close();
+        }
+    }
+
+    private static long mb(long aTilesPerSecond, File aTile) {
+        return aTilesPerSecond * aTile.length() / (1024 * 1024);
+    }
+
+    private static File createTile() throws IOException {
+        BufferedImage image =
+                new BufferedImage(TILE_SIZE, TILE_SIZE,
+                        BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(TILE_SIZE);
+        File file = File.createTempFile("tile-", ".jpg");
+
+        // Noise doesn't compress well, so the tile is a realistic worst case
+        for (int y = 0; y < TILE_SIZE; y++) {
+            for (int x = 0; x < TILE_SIZE; x++) {
+                image.setRGB(x, y, random.nextInt(0xFFFFFF));
+            }
+        }
+
+        ImageIO.write(image, "jpg", file);
+        return file;
+    }
+
+    private static Thread drain(final SocketChannel aChannel) {
+        Thread thread = new Thread(new Runnable() {
+
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+
+                try {
+                    while (aChannel.read(buffer) != -1) {
+                        buffer.clear();
+                    }
+
+                    aChannel.close();
+                } catch (IOException details) {
+                    details.printStackTrace();
+                }
+            }
+        });
+
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * A servlet output stream without Jetty's channel support, like those of
+     * other containers.
+     */
+    private static class SocketServletOutputStream extends
+            ServletOutputStream {
+
+        private final OutputStream myOutStream;
+
+        private SocketServletOutputStream(OutputStream aOutStream) {
+            myOutStream = aOutStream;
+        }
+
+        @Override
+        public void write(int aByte) throws IOException {
+            myOutStream.write(aByte);
+        }
+
+        @Override
+        public void write(byte[] aBytes, int aOffset, int aLength)
+                throws IOException {
+            myOutStream.write(aBytes, aOffset, aLength);
+        }
+    }
+
+    private enum Path {
+        STREAM_COPY, SEND_FILE, TRANSFER_TO
+    }
+}
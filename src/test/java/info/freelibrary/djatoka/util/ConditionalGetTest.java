@@ -0,0 +1,58 @@
+
+package info.freelibrary.djatoka.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class ConditionalGetTest {
+
+    /**
+     * Tests that entity tags change with the source image and the variant.
+     */
+    @Test
+    public void testGetETag() throws IOException {
+        File source = File.createTempFile("source-", ".jp2");
+        String tile = TileKey.getHash("image_3.jpg");
+        String info = TileKey.getHash("info.json");
+
+        try {
+            String eTag = ConditionalGet.getETag(source, tile);
+
+            assertTrue(eTag.startsWith("\"") && eTag.endsWith("\""));
+            assertTrue(eTag.endsWith("-" + tile + "\""));
+            assertEquals(eTag, ConditionalGet.getETag(source, tile));
+            assertNotEquals(eTag, ConditionalGet.getETag(source, info));
+
+            FileOutputStream outStream = new FileOutputStream(source);
+            outStream.write(new byte[16]);
+            outStream.close();
+
+            assertNotEquals(eTag, ConditionalGet.getETag(source, tile));
+        } finally {
+            source.delete();
+        }
+    }
+
+    /**
+     * Tests matching entity tags against If-None-Match header values.
+     */
+    @Test
+    public void testMatches() {
+        String eTag = "\"1a-2b-3c\"";
+
+        assertTrue(ConditionalGet.matches(eTag, eTag));
+        assertTrue(ConditionalGet.matches("W/" + eTag, eTag));
+        assertTrue(ConditionalGet.matches("\"x\", " + eTag, eTag));
+        assertTrue(ConditionalGet.matches("*", eTag));
+        assertFalse(ConditionalGet.matches("\"1a-2b-3d\"", eTag));
+        assertFalse(ConditionalGet.matches("1a-2b-3c", eTag));
+    }
+}
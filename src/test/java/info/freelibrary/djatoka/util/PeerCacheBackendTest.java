@@ -0,0 +1,215 @@
+package info.freelibrary.djatoka.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class PeerCacheBackendTest {
+
+    private static final String NODE_A = "http://localhost:8888";
+
+    private static final String NODE_B = "http://localhost:8889";
+
+    private static final String NODE_C = "http://localhost:8890";
+
+    /**
+     * Tests that removing a peer only moves the tiles that it owned.
+     */
+    @Test
+    public void testRemovePeer() {
+        PeerCacheBackend before = new PeerCacheBackend();
+        PeerCacheBackend after = new PeerCacheBackend();
+        int moved = 0;
+
+        before.setPeers(Arrays.asList(NODE_A, NODE_B, NODE_C), NODE_A);
+        after.setPeers(Arrays.asList(NODE_A, NODE_B), NODE_A);
+
+        for (int index = 0; index < 3000; index++) {
+            String key = "tile" + index + "jpg";
+            String owner = before.getOwner(key);
+
+            if (owner.equals(NODE_C)) {
+                moved++;
+            } else {
+                assertEquals(owner, after.getOwner(key));
+            }
+        }
+
+        // Each peer should own roughly a third of the tiles
+        assertTrue(moved > 700 && moved < 1300);
+    }
+
+    /**
+     * Tests that a node fetches the tiles it doesn't own from their owner.
+     */
+    @Test
+    public void testGet() throws IOException {
+        final byte[] tile = new byte[] {
+            1, 2, 3, 4
+        };
+        HttpServer server =
+                HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        String owner =
+                "http://localhost:" + server.getAddress().getPort();
+        PeerCacheBackend backend = new PeerCacheBackend();
+        Properties props = new Properties();
+        String key;
+
+        server.createContext("/resolve", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange aExchange) throws IOException {
+                OutputStream out = aExchange.getResponseBody();
+
+                assertEquals("url_ver=Z39.88-2004", aExchange.getRequestURI()
+                        .getQuery());
+                assertEquals(NODE_A, aExchange.getRequestHeaders().getFirst(
+                        CacheBackend.PEER_HEADER));
+
+                aExchange.sendResponseHeaders(200, tile.length);
+                out.write(tile);
+                out.close();
+            }
+        });
+        server.start();
+
+        try {
+            props.setProperty(PeerCacheBackend.PEERS, NODE_A + "," + owner);
+            props.setProperty(PeerCacheBackend.SELF, NODE_A);
+            backend.setProperties(props);
+            key = getKey(backend, owner);
+
+            assertFalse(backend.isLocal(key));
+            assertArrayEquals(tile, backend.get(key, "url_ver=Z39.88-2004"));
+            assertNull(backend.get(getKey(backend, NODE_A), "url_ver="));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Tests that a node handles the tiles of a peer it can't reach itself.
+     */
+    @Test
+    public void testUnreachablePeer() throws IOException {
+        ServerSocket socket =
+                new ServerSocket(0, 0, InetAddress.getByName("localhost"));
+        String owner = "http://localhost:" + socket.getLocalPort();
+        PeerCacheBackend backend = new PeerCacheBackend();
+        String key;
+
+        // Nothing is listening on the port once the socket is closed; a
+        // server that was never started may leave its port open
+        socket.close();
+
+        backend.setPeers(Arrays.asList(NODE_A, owner), NODE_A);
+        key = getKey(backend, owner);
+
+        assertFalse(backend.isLocal(key));
+
+        try {
+            backend.get(key, "url_ver=Z39.88-2004");
+            fail("Expected the peer to be unreachable");
+        } catch (IOException details) {
+            assertTrue(backend.isLocal(key));
+            assertNull(backend.get(key, "url_ver=Z39.88-2004"));
+        }
+    }
+
+    /**
+     * Tests that a peer that answers with an error, or too slowly, is still
+     * asked for its tiles.
+     */
+    @Test
+    public void testPeerErrors() throws IOException {
+        HttpServer server =
+                HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        String owner =
+                "http://localhost:" + server.getAddress().getPort();
+        PeerCacheBackend backend = new PeerCacheBackend();
+        Properties props = new Properties();
+        String key;
+
+        server.createContext("/resolve", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange aExchange) throws IOException {
+                byte[] body = "Not found".getBytes("UTF-8");
+                OutputStream out = aExchange.getResponseBody();
+
+                if (aExchange.getRequestURI().getQuery().contains("slow")) {
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException details) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                aExchange.sendResponseHeaders(404, body.length);
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+
+        try {
+            props.setProperty(PeerCacheBackend.PEERS, NODE_A + "," + owner);
+            props.setProperty(PeerCacheBackend.SELF, NODE_A);
+            props.setProperty(PeerCacheBackend.TIMEOUT, "200");
+            backend.setProperties(props);
+            key = getKey(backend, owner);
+
+            assertNull(backend.get(key, "url_ver=Z39.88-2004"));
+            assertFalse(backend.isLocal(key));
+
+            try {
+                backend.get(key, "url_ver=Z39.88-2004&slow");
+                fail("Expected the peer to time out");
+            } catch (IOException details) {
+                assertFalse(backend.isLocal(key));
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Tests that a node has to be one of the peers.
+     */
+    @Test(expected = IOException.class)
+    public void testSelfNotAPeer() throws IOException {
+        Properties props = new Properties();
+
+        props.setProperty(PeerCacheBackend.PEERS, NODE_A + "," + NODE_B);
+        props.setProperty(PeerCacheBackend.SELF, NODE_C);
+
+        new PeerCacheBackend().setProperties(props);
+    }
+
+    private String getKey(PeerCacheBackend aBackend, String aOwner) {
+        for (int index = 0;; index++) {
+            String key = "tile" + index + "jpg";
+
+            if (aOwner.equals(aBackend.getOwner(key))) {
+                return key;
+            }
+        }
+    }
+}
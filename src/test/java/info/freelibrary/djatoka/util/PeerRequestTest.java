@@ -0,0 +1,192 @@
+
+package info.freelibrary.djatoka.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class PeerRequestTest {
+
+    private static final String NODE_A = "http://localhost:8888";
+
+    private static final String IIIF_PATH =
+            "/iiif/walters/full/full/0/native.jpg";
+
+    private static final String RESOLVE_QUERY =
+            "url_ver=Z39.88-2004&rft_id=walters&svc_id=info:lanl-repo/svc/"
+                    + "getRegion&svc_val_fmt=info:ofi/fmt:kev:mtx:jpeg2000"
+                    + "&svc.format=image/jpeg&svc.level=3&svc.rotate=0";
+
+    private static final byte[] TILE = new byte[] {
+        1, 2, 3, 4
+    };
+
+    @After
+    public void clearRequest() {
+        PeerRequest.clear();
+    }
+
+    /**
+     * Tests that a /iiif request forwarded to the OpenURL layer of a node that
+     * doesn't own its tile asks the owner with the OpenURL query.
+     */
+    @Test
+    public void testForwardedRequest() throws IOException {
+        List<String> queries = new CopyOnWriteArrayList<String>();
+        HttpServer server = createOwner(queries);
+        String owner = "http://localhost:" + server.getAddress().getPort();
+        PeerCacheBackend backend = new PeerCacheBackend();
+        Map<String, Object> attributes = new HashMap<String, Object>();
+        String key;
+
+        // What the view layer sets before it forwards the request
+        attributes.put(RequestDispatcher.FORWARD_REQUEST_URI, IIIF_PATH);
+        attributes.put(PeerRequest.QUERY, RESOLVE_QUERY);
+
+        try {
+            backend.setPeers(Arrays.asList(NODE_A, owner), NODE_A);
+            key = getKey(backend, owner);
+
+            PeerRequest.set(createRequest("quality=native", attributes,
+                    null));
+
+            assertFalse(PeerRequest.get().isFromPeer());
+            assertEquals(RESOLVE_QUERY, PeerRequest.get().getQuery());
+            assertArrayEquals(TILE, PeerRequest.fetch(backend, key));
+            assertEquals(Arrays.asList(RESOLVE_QUERY), queries);
+
+            // The node's own tiles aren't fetched from anyone
+            assertNull(PeerRequest.fetch(backend, getKey(backend, NODE_A)));
+            assertEquals(1, queries.size());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Tests that a request from another peer is answered without asking the
+     * tile's owner, so a tile is never passed around the ring.
+     */
+    @Test
+    public void testPeerRequest() throws IOException {
+        List<String> queries = new CopyOnWriteArrayList<String>();
+        HttpServer server = createOwner(queries);
+        String owner = "http://localhost:" + server.getAddress().getPort();
+        PeerCacheBackend backend = new PeerCacheBackend();
+
+        try {
+            backend.setPeers(Arrays.asList(NODE_A, owner), NODE_A);
+
+            PeerRequest.set(createRequest(RESOLVE_QUERY,
+                    new HashMap<String, Object>(), NODE_A));
+
+            assertTrue(PeerRequest.get().isFromPeer());
+            assertEquals(RESOLVE_QUERY, PeerRequest.get().getQuery());
+            assertNull(PeerRequest.fetch(backend, getKey(backend, owner)));
+            assertTrue(queries.isEmpty());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Tests that tiles aren't fetched from peers outside of a request.
+     */
+    @Test
+    public void testNoRequest() throws IOException {
+        PeerCacheBackend backend = new PeerCacheBackend();
+        String owner = "http://localhost:8889";
+
+        backend.setPeers(Arrays.asList(NODE_A, owner), NODE_A);
+
+        assertNull(PeerRequest.get());
+        assertNull(PeerRequest.fetch(backend, getKey(backend, owner)));
+    }
+
+    private HttpServer createOwner(final List<String> aQueries)
+            throws IOException {
+        HttpServer server =
+                HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+
+        server.createContext("/resolve", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange aExchange) throws IOException {
+                OutputStream out = aExchange.getResponseBody();
+
+                assertEquals(NODE_A, aExchange.getRequestHeaders().getFirst(
+                        CacheBackend.PEER_HEADER));
+                aQueries.add(aExchange.getRequestURI().getRawQuery());
+
+                aExchange.sendResponseHeaders(200, TILE.length);
+                out.write(TILE);
+                out.close();
+            }
+        });
+        server.start();
+
+        return server;
+    }
+
+    private HttpServletRequest createRequest(final String aQuery,
+            final Map<String, Object> aAttributes, final String aPeer) {
+        InvocationHandler handler = new InvocationHandler() {
+
+            @Override
+            public Object invoke(Object aProxy, Method aMethod,
+                    Object[] aArgs) {
+                String name = aMethod.getName();
+
+                if (name.equals("getQueryString")) {
+                    return aQuery;
+                } else if (name.equals("getAttribute")) {
+                    return aAttributes.get(aArgs[0]);
+                } else if (name.equals("getHeader")) {
+                    return CacheBackend.PEER_HEADER.equalsIgnoreCase(
+                            (String) aArgs[0]) ? aPeer : null;
+                }
+
+                throw new UnsupportedOperationException(name);
+            }
+        };
+
+        return (HttpServletRequest) Proxy.newProxyInstance(getClass()
+                .getClassLoader(), new Class<?>[] {
+            HttpServletRequest.class
+        }, handler);
+    }
+
+    private String getKey(PeerCacheBackend aBackend, String aOwner) {
+        for (int index = 0;; index++) {
+            String key = "tile" + index + "jpg";
+
+            if (aOwner.equals(aBackend.getOwner(key))) {
+                return key;
+            }
+        }
+    }
+}
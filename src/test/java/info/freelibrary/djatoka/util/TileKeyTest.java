@@ -0,0 +1,116 @@
+
+package info.freelibrary.djatoka.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import gov.lanl.adore.djatoka.util.ImageRecord;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TileKeyTest {
+
+    private ImageRecord myImage;
+
+    @Before
+    public void setUp() {
+        myImage = new ImageRecord();
+        myImage.setWidth(4000);
+        myImage.setHeight(3000);
+        myImage.setDWTLevels(6);
+    }
+
+    /**
+     * Tests that full size requests made in different ways share a key.
+     */
+    @Test
+    public void testFullRegion() {
+        TileKey full = key(null, "full", "full", "0");
+
+        assertTrue(full.isResolved());
+        assertEquals(full, key(null, null, "1.0", null));
+        assertEquals(full, key(null, "0,0,3000,4000", null, "360"));
+        assertEquals("image_r0_full_4000x3000.jpg", full.getFileName());
+    }
+
+    /**
+     * Tests that pixel regions are resolved to the pixels they cover.
+     */
+    @Test
+    public void testRegions() {
+        TileKey pixels = key(null, "0,2000,1500,2000", null, null);
+
+        assertTrue(pixels.isResolved());
+        assertEquals(pixels, key(null, "0,2000,1500,2000", "1.0", null));
+        assertEquals("image_r0_2000-0-2000-1500_2000x1500.jpg", pixels
+                .getFileName());
+        assertNotEquals(pixels, key(null, "0,2000,1500,1999", null, null));
+    }
+
+    /**
+     * Tests that fractional regions aren't resolved, since the extractors
+     * round them at the reduced resolution and not as pixel regions are.
+     */
+    @Test
+    public void testFractionalRegions() {
+        TileKey fraction = key("4", "0.003,0.0,0.5,0.5", null, null);
+
+        assertFalse(fraction.isResolved());
+        assertEquals(fraction, key("4", "0.003,0.0,0.5,0.5", null, null));
+        assertNotEquals(fraction, key("4", "9,0,750,1000", null, null));
+        assertNotEquals(fraction, key("4", "0.004,0.0,0.5,0.5", null, null));
+    }
+
+    /**
+     * Tests that scaling factors and sizes that render the same output size
+     * share a key.
+     */
+    @Test
+    public void testScales() {
+        TileKey half = key(null, null, "0.5", null);
+
+        assertEquals(half, key(null, null, "2000,1500", null));
+        assertEquals(half, key(null, null, "!2000,1500", null));
+        assertEquals(half, key(null, null, "2000,0", null));
+        assertNotEquals(half, key(null, null, "0.25", null));
+    }
+
+    /**
+     * Tests that keys fall back to the request's own parameters when the
+     * image's dimensions aren't known.
+     */
+    @Test
+    public void testUnresolved() {
+        TileKey key =
+                TileKey.create("id", TileKey.getDecodeParam("3", null, null,
+                        null, null), "JPG", null);
+
+        assertFalse(key.isResolved());
+        assertEquals(40, key.getHash().length());
+        assertEquals("image_" + key.getHash() + ".jpg", key.getFileName());
+        assertNotEquals(key, key("3", null, null, null));
+    }
+
+    /**
+     * Tests that rotations that turn the image the same way share a key.
+     */
+    @Test
+    public void testRotations() {
+        TileKey right = key(null, null, null, "90");
+
+        assertEquals(right, key(null, null, null, "-270"));
+        assertEquals(right, key(null, null, null, "450"));
+        assertEquals(key(null, null, null, null), key(null, null, null,
+                "-360"));
+        assertNotEquals(right, key(null, null, null, "-90"));
+    }
+
+    private TileKey key(String aLevel, String aRegion, String aScale,
+            String aRotation) {
+        return TileKey.create("id", TileKey.getDecodeParam(aLevel, aRegion,
+                aScale, aRotation, null), "jpg", myImage);
+    }
+}
@@ -0,0 +1,72 @@
+
+package info.freelibrary.djatoka.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TinyLFUTest {
+
+    /**
+     * Tests that frequencies are counted up to the counters' limit.
+     */
+    @Test
+    public void testFrequency() {
+        TinyLFU policy = new TinyLFU(1024);
+
+        assertEquals(0, policy.frequency("tile"));
+
+        for (int index = 0; index < 5; index++) {
+            policy.record("tile");
+        }
+
+        assertEquals(5, policy.frequency("tile"));
+
+        for (int index = 0; index < 20; index++) {
+            policy.record("tile");
+        }
+
+        assertEquals(15, policy.frequency("tile"));
+    }
+
+    /**
+     * Tests that only a more frequently requested candidate is admitted.
+     */
+    @Test
+    public void testAdmit() {
+        TinyLFU policy = new TinyLFU(1024);
+
+        policy.record("victim");
+        policy.record("victim");
+        policy.record("candidate");
+
+        assertFalse(policy.admit("candidate", "victim"));
+
+        policy.record("candidate");
+        assertFalse(policy.admit("candidate", "victim"));
+
+        policy.record("candidate");
+        assertTrue(policy.admit("candidate", "victim"));
+    }
+
+    /**
+     * Tests that frequencies fade once the sketch has seen its sample size.
+     */
+    @Test
+    public void testReset() {
+        TinyLFU policy = new TinyLFU(64);
+
+        for (int index = 0; index < 8; index++) {
+            policy.record("tile");
+        }
+
+        // Ten requests per entry is the sample size
+        for (int index = 0; index < 640; index++) {
+            policy.record("other" + index);
+        }
+
+        assertTrue(policy.frequency("tile") < 8);
+    }
+}
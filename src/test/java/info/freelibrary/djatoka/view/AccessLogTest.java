@@ -0,0 +1,73 @@
+
+package info.freelibrary.djatoka.view;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import info.freelibrary.djatoka.util.TileKey;
+
+import org.junit.Test;
+
+public class AccessLogTest {
+
+    private static final String PREFIX =
+            "127.0.0.1 - - [16/Oct/2026:10:00:00 -0400] \"GET ";
+
+    /**
+     * Tests that a legacy view request and the OpenURL request it's answered
+     * with map to the same key.
+     */
+    @Test
+    public void testViewAndResolve() {
+        AccessLog.Entry view =
+                AccessLog.parse(PREFIX +
+                        "/view/image/walters%2FW102_000059 HTTP/1.1\" " +
+                        "200 2326 \"-\" \"Mozilla/5.0\"");
+        AccessLog.Entry resolve =
+                AccessLog.parse(PREFIX + "/djatoka/resolve?url_ver=" +
+                        "Z39.88-2004&rft_id=walters%2FW102_000059&svc_id=" +
+                        "info:lanl-repo/svc/getRegion&svc_val_fmt=info:" +
+                        "ofi/fmt:kev:mtx:jpeg2000&svc.format=image/jpeg&" +
+                        "svc.level=3&svc.rotate=0 HTTP/1.1\" 200 2326");
+
+        assertNotNull(view);
+        assertNotNull(resolve);
+        assertEquals(view.getKey(), resolve.getKey());
+        assertEquals(2326, view.getSize());
+        assertEquals("walters/W102_000059", view.getKey().getID());
+    }
+
+    /**
+     * Tests that an IIIF request is mapped the way the IIIF servlet maps it.
+     */
+    @Test
+    public void testIIIF() {
+        AccessLog.Entry entry =
+                AccessLog.parse(PREFIX +
+                        "/iiif/walters/0,0,256,256/full/0/native.jpg " +
+                        "HTTP/1.1\" 200 -");
+        TileKey key =
+                TileKey.create("walters", ImageServlet.getDecodeParam(null,
+                        "0,0,256,256", "full", 0.0f), "jpg", null);
+
+        assertNotNull(entry);
+        assertEquals(key, entry.getKey());
+        assertEquals(0, entry.getSize());
+    }
+
+    /**
+     * Tests that requests that aren't for images are skipped.
+     */
+    @Test
+    public void testSkipped() {
+        assertNull(AccessLog.parse(PREFIX +
+                "/view/image/walters/info.json HTTP/1.1\" 200 512"));
+        assertNull(AccessLog.parse(PREFIX +
+                "/iiif/walters/info.json HTTP/1.1\" 200 512"));
+        assertNull(AccessLog.parse(PREFIX +
+                "/view/image/walters HTTP/1.1\" 404 0"));
+        assertNull(AccessLog.parse(PREFIX + "/health HTTP/1.1\" 200 100"));
+        assertNull(AccessLog.parse("not a log line"));
+    }
+}
@@ -0,0 +1,91 @@
+
+package info.freelibrary.djatoka.view;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class CacheSimulatorTest {
+
+    private static final String PREFIX =
+            "127.0.0.1 - - [16/Oct/2026:10:00:00 -0400] \"GET /view/image/";
+
+    /**
+     * Tests that an LRU cache keeps the most recently requested tiles.
+     */
+    @Test
+    public void testLRU() {
+        // a b a c a b: with room for two tiles, only the second and third a hit
+        List<AccessLog.Entry> trace = getTrace("a", "b", "a", "c", "a", "b");
+        CacheSimulator.Result result =
+                CacheSimulator.simulate(trace, CacheSimulator.LRU, "2");
+
+        assertEquals(2, result.getHitCount());
+        assertEquals(2 / 6.0, result.getHitRatio(), 0.0001);
+    }
+
+    /**
+     * Tests that an LFU cache keeps the most frequently requested tiles.
+     */
+    @Test
+    public void testLFU() {
+        List<AccessLog.Entry> trace =
+                getTrace("a", "a", "a", "b", "c", "d", "a");
+        CacheSimulator.Result lfu =
+                CacheSimulator.simulate(trace, CacheSimulator.LFU, "2");
+
+        // a is requested often enough to survive the scan of b, c and d
+        assertEquals(3, lfu.getHitCount());
+    }
+
+    /**
+     * Tests that byte capacities and byte hit ratios are counted in bytes.
+     */
+    @Test
+    public void testBytes() {
+        List<AccessLog.Entry> trace = getTrace("a", "a", "b", "b");
+        CacheSimulator.Result result =
+                CacheSimulator.simulate(trace, CacheSimulator.LRU, "1k");
+
+        assertEquals(1024, CacheSimulator.parseCapacity("1k"));
+        assertEquals(2, result.getHitCount());
+        assertEquals(0.5, result.getByteHitRatio(), 0.0001);
+    }
+
+    /**
+     * Tests that TinyLFU keeps a scan of one-off tiles from evicting a popular
+     * tile.
+     */
+    @Test
+    public void testTinyLFU() {
+        List<String> ids = new ArrayList<String>();
+
+        for (int index = 0; index < 100; index++) {
+            ids.add("popular");
+            ids.add("once" + index);
+        }
+
+        List<AccessLog.Entry> trace = getTrace(ids.toArray(new String[0]));
+        CacheSimulator.Result lru =
+                CacheSimulator.simulate(trace, CacheSimulator.LRU, "1");
+        CacheSimulator.Result tinyLFU =
+                CacheSimulator.simulate(trace, CacheSimulator.TINY_LFU, "1");
+
+        assertEquals(0, lru.getHitCount());
+        assertTrue(tinyLFU.getHitCount() > 90);
+    }
+
+    private List<AccessLog.Entry> getTrace(String... aIDs) {
+        List<AccessLog.Entry> trace = new ArrayList<AccessLog.Entry>();
+
+        for (String id : aIDs) {
+            trace.add(AccessLog.parse(PREFIX + id + " HTTP/1.1\" 200 512"));
+        }
+
+        return trace;
+    }
+}
@@ -0,0 +1,71 @@
+
+package info.freelibrary.djatoka.view;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+public class InfoCacheTest {
+
+    /**
+     * Tests that a response is only used for an image of the same size.
+     */
+    @Test
+    public void testGet() throws IOException {
+        InfoCache cache = new InfoCache(10);
+        String key = InfoCache.getKey("id", "info.xml", null, null);
+        byte[] bytes = "<info/>".getBytes("UTF-8");
+
+        cache.put(key, 24, 42, bytes);
+
+        assertArrayEquals(bytes, cache.get(key, 24, 42).getBytes());
+        assertNull(cache.get(key, 42, 24));
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Tests that the gzipped response unzips to the plain one.
+     */
+    @Test
+    public void testGzippedBytes() throws IOException {
+        InfoCache cache = new InfoCache(10);
+        byte[] bytes = "{ \"width\" : 42 }".getBytes("UTF-8");
+        InfoCache.Info info = cache.put("key", 24, 42, bytes);
+        GZIPInputStream gzip =
+                new GZIPInputStream(new ByteArrayInputStream(info
+                        .getGzippedBytes()));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        int read;
+
+        while ((read = gzip.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+
+        gzip.close();
+        assertArrayEquals(bytes, out.toByteArray());
+    }
+
+    /**
+     * Tests that the least recently used response is dropped first.
+     */
+    @Test
+    public void testMaxSize() throws IOException {
+        InfoCache cache = new InfoCache(2);
+
+        cache.put("a", 1, 1, new byte[1]);
+        cache.put("b", 1, 1, new byte[1]);
+        cache.get("a", 1, 1);
+        cache.put("c", 1, 1, new byte[1]);
+
+        assertEquals(2, cache.size());
+        assertNull(cache.get("b", 1, 1));
+    }
+}
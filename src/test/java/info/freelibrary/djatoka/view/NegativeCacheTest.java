@@ -0,0 +1,54 @@
+
+package info.freelibrary.djatoka.view;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class NegativeCacheTest {
+
+    /**
+     * Tests that IDs are remembered until they're removed.
+     */
+    @Test
+    public void testAddAndRemove() {
+        NegativeCache cache = new NegativeCache(10, 60000);
+
+        assertFalse(cache.contains("missing"));
+        cache.add("missing");
+        assertTrue(cache.contains("missing"));
+        cache.remove("missing");
+        assertFalse(cache.contains("missing"));
+    }
+
+    /**
+     * Tests that the oldest IDs are dropped once the cache is full.
+     */
+    @Test
+    public void testBounded() {
+        NegativeCache cache = new NegativeCache(10, 60000);
+
+        for (int index = 0; index < 20; index++) {
+            cache.add("missing" + index);
+        }
+
+        assertEquals(10, cache.size());
+        assertFalse(cache.contains("missing0"));
+        assertTrue(cache.contains("missing19"));
+    }
+
+    /**
+     * Tests that IDs expire after their time-to-live and jitter.
+     */
+    @Test
+    public void testExpires() throws InterruptedException {
+        NegativeCache cache = new NegativeCache(10, 50);
+
+        cache.add("missing");
+        assertTrue(cache.contains("missing"));
+        Thread.sleep(100);
+        assertFalse(cache.contains("missing"));
+    }
+}
@@ -0,0 +1,186 @@
+
+package info.freelibrary.djatoka.view;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TilePackTest {
+
+    private File myDir;
+
+    @Before
+    public void setUp() throws IOException {
+        myDir = File.createTempFile("tile-pack", "");
+
+        assertTrue(myDir.delete());
+        assertTrue(myDir.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        TilePack.evictAll();
+
+        for (File file : myDir.listFiles()) {
+            file.delete();
+        }
+
+        myDir.delete();
+    }
+
+    /**
+     * Tests that packed tiles can be read and sent back.
+     */
+    @Test
+    public void testAppend() throws IOException {
+        TilePack pack = TilePack.open(myDir, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try {
+            assertTrue(pack.append("image_1.jpg", bytes(100, 1)));
+            assertTrue(pack.append("image_2.jpg", bytes(50, 2)));
+            assertFalse(pack.append("image_1.jpg", bytes(10, 3)));
+
+            assertEquals(100, pack.getLength("image_1.jpg"));
+            assertEquals(-1, pack.getLength("image_3.jpg"));
+            assertArrayEquals(bytes(50, 2), pack.read("image_2.jpg"));
+            assertNull(pack.read("image_3.jpg"));
+
+            assertEquals(100, pack.send("image_1.jpg", out));
+            assertArrayEquals(bytes(100, 1), out.toByteArray());
+        } finally {
+            pack.release();
+        }
+    }
+
+    /**
+     * Tests that a pack's tiles are found again after it's been closed.
+     */
+    @Test
+    public void testReopen() throws IOException {
+        TilePack pack = TilePack.open(myDir, true);
+
+        pack.append("image_1.jpg", bytes(100, 1));
+        pack.release();
+        TilePack.evictAll();
+
+        assertNull(TilePack.open(new File(myDir, "missing"), false));
+
+        pack = TilePack.open(myDir, false);
+
+        try {
+            assertEquals(1, pack.size());
+            assertArrayEquals(bytes(100, 1), pack.read("image_1.jpg"));
+        } finally {
+            pack.release();
+        }
+    }
+
+    /**
+     * Tests that requests that open the same pack at once share it.
+     */
+    @Test
+    public void testConcurrentOpen() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<TilePack>> opens = new ArrayList<Future<TilePack>>();
+        TilePack pack = TilePack.open(myDir, true);
+
+        pack.append("image_1.jpg", bytes(100, 1));
+        pack.release();
+        TilePack.evictAll();
+
+        try {
+            for (int index = 0; index < 8; index++) {
+                opens.add(executor.submit(new Callable<TilePack>() {
+
+                    public TilePack call() throws IOException {
+                        return TilePack.open(myDir, false);
+                    }
+                }));
+            }
+
+            pack = opens.get(0).get();
+
+            for (Future<TilePack> open : opens) {
+                assertSame(pack, open.get());
+                assertEquals(1, open.get().size());
+            }
+        } finally {
+            executor.shutdown();
+
+            for (Future<TilePack> open : opens) {
+                open.get().release();
+            }
+        }
+    }
+
+    /**
+     * Tests that a tile whose index record was cut short is dropped and that
+     * the pack can still be added to.
+     */
+    @Test
+    public void testDamagedIndex() throws IOException {
+        TilePack pack = TilePack.open(myDir, true);
+        RandomAccessFile index;
+
+        pack.append("image_1.jpg", bytes(100, 1));
+        pack.append("image_2.jpg", bytes(100, 2));
+        pack.release();
+        TilePack.evictAll();
+
+        index =
+                new RandomAccessFile(new File(myDir, TilePack.INDEX_FILE),
+                        "rw");
+        index.setLength(index.length() - 3);
+        index.close();
+
+        pack = TilePack.open(myDir, false);
+
+        try {
+            assertEquals(1, pack.size());
+            assertTrue(pack.append("image_3.jpg", bytes(20, 3)));
+            assertEquals(120, new File(myDir, TilePack.DATA_FILE)
+                    .length());
+        } finally {
+            pack.release();
+        }
+
+        TilePack.evictAll();
+        pack = TilePack.open(myDir, false);
+
+        try {
+            assertEquals(2, pack.size());
+            assertArrayEquals(bytes(20, 3), pack.read("image_3.jpg"));
+        } finally {
+            pack.release();
+        }
+    }
+
+    private static byte[] bytes(int aLength, int aValue) {
+        byte[] bytes = new byte[aLength];
+
+        for (int index = 0; index < aLength; index++) {
+            bytes[index] = (byte) (aValue + index);
+        }
+
+        return bytes;
+    }
+}
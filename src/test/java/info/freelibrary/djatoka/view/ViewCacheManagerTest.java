@@ -0,0 +1,106 @@
+
+package info.freelibrary.djatoka.view;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ViewCacheManagerTest {
+
+    private File myRoot;
+
+    @Before
+    public void setUp() throws IOException {
+        myRoot = File.createTempFile("view-cache", "");
+
+        assertTrue(myRoot.delete());
+        assertTrue(myRoot.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        delete(myRoot);
+    }
+
+    /**
+     * Tests that the least recently used objects are evicted down to the low
+     * watermark once the high watermark is passed.
+     */
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws IOException {
+        ViewCacheManager manager = new ViewCacheManager(myRoot, 3000, 2000);
+        File oldest = write("ab/cd/old", 1000, 1000L);
+        File older = write("ab/ef/older", 1000, 2000L);
+        File newer = write("gh/ij/newer", 1000, 3000L);
+
+        manager.scan();
+
+        assertEquals(3000, manager.getByteSize());
+        assertEquals(3, manager.getObjectCount());
+
+        // Using the oldest object makes it the most recently used one
+        manager.touch(oldest.getParentFile());
+        manager.added(write("gh/kl/newest", 1000, 4000L), 1000);
+        manager.run();
+
+        assertTrue(oldest.exists());
+        assertFalse(older.exists());
+        assertFalse(newer.exists());
+        assertEquals(2000, manager.getByteSize());
+        assertEquals(2, manager.getEvictionCount());
+    }
+
+    /**
+     * Tests that a rescan corrects the sizes of the objects it already knows
+     * about and forgets the ones that are gone from disk.
+     */
+    @Test
+    public void testRescan() throws IOException {
+        ViewCacheManager manager = new ViewCacheManager(myRoot, 0, 0);
+        File kept = write("ab/cd/kept", 1000, 1000L);
+        File gone = write("ab/ef/gone", 1000, 2000L);
+
+        manager.added(kept, 400);
+        manager.added(gone, 1000);
+
+        assertEquals(1400, manager.getByteSize());
+        assertTrue(gone.delete());
+
+        manager.scan();
+
+        assertEquals(1000, manager.getByteSize());
+        assertEquals(1, manager.getObjectCount());
+    }
+
+    private File write(String aPath, int aSize, long aModified)
+            throws IOException {
+        File file = new File(myRoot, aPath + "/image_3.jpg");
+        FileOutputStream outStream;
+
+        assertTrue(file.getParentFile().mkdirs());
+        outStream = new FileOutputStream(file);
+        outStream.write(new byte[aSize]);
+        outStream.close();
+        assertTrue(file.setLastModified(aModified));
+
+        return file;
+    }
+
+    private void delete(File aFile) {
+        File[] files = aFile.listFiles();
+
+        for (File file : files == null ? new File[0] : files) {
+            delete(file);
+        }
+
+        aFile.delete();
+    }
+}